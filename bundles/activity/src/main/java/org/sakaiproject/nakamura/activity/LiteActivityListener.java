@@ -23,23 +23,31 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
 
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.PropertyOption;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
 import org.sakaiproject.nakamura.api.activity.ActivityConstants;
 import org.sakaiproject.nakamura.api.activity.ActivityRoute;
 import org.sakaiproject.nakamura.api.activity.ActivityRouterManager;
+import org.sakaiproject.nakamura.api.activity.ReaderActivityRoute;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Dictionary;
 import java.util.List;
 import java.util.Map.Entry;
 
@@ -51,9 +59,24 @@ import javax.jms.MessageConsumer;
 import javax.jms.MessageListener;
 import javax.jms.Topic;
 
-@Component(immediate = true)
+@Component(immediate = true, metatype = true)
 public class LiteActivityListener implements MessageListener {
 
+  static final String DELIVERY_REFERENCE = "reference";
+  static final String DELIVERY_COPY = "copy";
+
+  /**
+   * How an activity is delivered to the feeds of users. A reference only holds the path
+   * of the original activity, its actor and its creation time; the original is read back
+   * (with the reader's own permissions) when the feed is rendered. A copy duplicates
+   * every property of the activity into every feed, and is only made for users who can
+   * read the activity. Feeds that are not a user's feed always get a copy.
+   */
+  @Property(value = DELIVERY_REFERENCE, options = {
+      @PropertyOption(name = DELIVERY_REFERENCE, value = "Reference"),
+      @PropertyOption(name = DELIVERY_COPY, value = "Copy") })
+  static final String DELIVERY_MODE = "activity.delivery.mode";
+
   // References/properties need for JMS
   @Reference
   protected ConnectionFactoryService connFactoryService;
@@ -69,10 +92,15 @@ public class LiteActivityListener implements MessageListener {
 
   private Connection connection = null;
 
+  protected boolean deliverReferences = true;
+
   /**
    * Start a JMS connection.
    */
   public void activate(ComponentContext componentContext) {
+    Dictionary<?, ?> props = componentContext.getProperties();
+    deliverReferences = !DELIVERY_COPY.equals(OsgiUtil.toString(
+        props.get(DELIVERY_MODE), DELIVERY_REFERENCE));
     try {
       connection = connFactoryService.getDefaultConnectionFactory().createConnection();
       javax.jms.Session session = connection.createSession(false,
@@ -128,9 +156,18 @@ public class LiteActivityListener implements MessageListener {
         List<ActivityRoute> routes = activityRouterManager
             .getActivityRoutes(activity, session);
   
-        // Copy the activity items to each endpoint.
+        // Deliver the activity items to each endpoint.
         for (ActivityRoute route : routes) {
-          deliverActivityToFeed(session, activity, route.getDestination());
+          if (route instanceof ReaderActivityRoute) {
+            if (deliverReferences) {
+              // the reader's permissions are applied when the feed is read.
+              deliverActivityToFeed(session, activity, route.getDestination(), true);
+            } else if (canRead(session, (ReaderActivityRoute) route, activity)) {
+              deliverActivityToFeed(session, activity, route.getDestination(), false);
+            }
+          } else {
+            deliverActivityToFeed(session, activity, route.getDestination(), false);
+          }
         }
       } finally {
         try { 
@@ -150,7 +187,28 @@ public class LiteActivityListener implements MessageListener {
   }
 
   /**
-   * Delivers an activity to a feed.
+   * @return true if the reader of the feed may read the activity, the actor always can.
+   */
+  protected boolean canRead(Session session, ReaderActivityRoute route, Content activity)
+      throws StorageClientException {
+    if (route.getReader().equals(activity.getProperty(PARAM_ACTOR_ID))) {
+      return true;
+    }
+    try {
+      Authorizable reader = session.getAuthorizableManager().findAuthorizable(
+          route.getReader());
+      return reader != null
+          && session.getAccessControlManager().can(reader, Security.ZONE_CONTENT,
+              activity.getPath(), Permissions.CAN_READ);
+    } catch (AccessDeniedException e) {
+      LOG.debug("Unable to check access of {} to {}", route.getReader(), activity.getPath());
+      return false;
+    }
+  }
+
+  /**
+   * Delivers an activity to a feed, either as a reference to the original activity or as
+   * a full copy of it.
    * 
    * @param session
    *          The session that should be used to do the delivering.
@@ -158,20 +216,33 @@ public class LiteActivityListener implements MessageListener {
    *          The node that represents the activity.
    * @param activityFeedPath
    *          The path that holds the feed where the activity should be delivered.
+   * @param reference
+   *          true to only deliver a reference to the activity, only for feeds that are
+   *          read through the activity feed search.
    * @throws RepositoryException
    * @throws StorageClientException 
    * @throws AccessDeniedException 
    */
   protected void deliverActivityToFeed(Session session, Content activity,
-      String activityFeedPath) throws AccessDeniedException, StorageClientException {
+      String activityFeedPath, boolean reference) throws AccessDeniedException,
+      StorageClientException {
     // ensure the activityFeed node with the proper type
     ContentManager contentManager = session.getContentManager();
     String deliveryPath = StorageClientUtils
         .newPath(activityFeedPath, StorageClientUtils.getObjectName(activity.getPath()));
     Builder<String, Object> contentProperties = ImmutableMap.builder();
-    for ( Entry<String, Object> e : activity.getProperties().entrySet()) {
-      if (!JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY.equals(e.getKey())) {
-        contentProperties.put(e.getKey(), e.getValue());
+    if (reference) {
+      contentProperties.put(ActivityConstants.PARAM_ACTIVITY_REF, activity.getPath());
+      contentProperties.put(PARAM_ACTOR_ID, activity.getProperty(PARAM_ACTOR_ID));
+      // the feed is sorted on the creation time of the original activity
+      if (activity.hasProperty("_created")) {
+        contentProperties.put("_created", activity.getProperty("_created"));
+      }
+    } else {
+      for ( Entry<String, Object> e : activity.getProperties().entrySet()) {
+        if (!JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY.equals(e.getKey())) {
+          contentProperties.put(e.getKey(), e.getValue());
+        }
       }
     }
     contentProperties.put(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
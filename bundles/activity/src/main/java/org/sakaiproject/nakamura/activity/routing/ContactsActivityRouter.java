@@ -26,15 +26,11 @@ import org.sakaiproject.nakamura.api.activity.ActivityConstants;
 import org.sakaiproject.nakamura.api.activity.ActivityRoute;
 import org.sakaiproject.nakamura.api.activity.ActivityRouter;
 import org.sakaiproject.nakamura.api.activity.ActivityUtils;
+import org.sakaiproject.nakamura.api.activity.ReaderActivityRoute;
 import org.sakaiproject.nakamura.api.connections.ConnectionManager;
 import org.sakaiproject.nakamura.api.connections.ConnectionState;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
-import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
-import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
-import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
-import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
-import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,9 +45,10 @@ import javax.jcr.security.AccessControlManager;
 import javax.jcr.security.Privilege;
 
 /**
- * This router will deliver an activity to the feed of all the contacts of the actor. It
- * will only deliver if the contact has READ access on the node where the activity was
- * performed on.
+ * This router will deliver an activity to the feed of all the contacts of the actor. A
+ * contact should only see the activity if they have READ access on the node where the
+ * activity was performed on; for sparse activities that is checked when the activity is
+ * delivered (see {@link ReaderActivityRoute}).
  */
 @Component(immediate = true, enabled = true)
 @Service(value = ActivityRouter.class)
@@ -127,32 +124,13 @@ public class ContactsActivityRouter implements ActivityRouter {
 
   public void route(Content activity, List<ActivityRoute> routes, org.sakaiproject.nakamura.api.lite.Session adminSession) {
     try {
-      String activityFeedPath = null;
       String actor = (String) activity.getProperty(ActivityConstants.PARAM_ACTOR_ID);
       List<String> connections = connectionManager.getConnectedUsers(adminSession, actor,
           ConnectionState.ACCEPTED);
-      org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager accessControlManager = adminSession.getAccessControlManager();
-      AuthorizableManager authorizableManager = adminSession.getAuthorizableManager();
-      if (connections != null && connections.size() > 0) {
-
-        String activityPath = activity.getPath();
+      if (connections != null) {
         for (String connection : connections) {
-          // Check if this connection has READ access on the path.
-          try {
-          Authorizable authorizable = authorizableManager.findAuthorizable(connection);
-          boolean allowCopy = accessControlManager.can(authorizable, Security.ZONE_CONTENT, activityPath, Permissions.CAN_READ);
-          if (allowCopy) {
-            // Get the activity feed for this contact and deliver it.
-            activityFeedPath = ActivityUtils.getUserFeed(connection);
-            ActivityRoute route = new AbstractActivityRoute(activityFeedPath) {
-            };
-            routes.add(route);
-          }
-          } catch ( StorageClientException e) {
-            LOGGER.error(e.getMessage(),e);            
-          } catch (AccessDeniedException e) {
-            LOGGER.error(e.getMessage(),e);
-          }
+          routes.add(new ReaderActivityRoute(ActivityUtils.getUserFeed(connection),
+              connection));
         }
       }
     } catch (StorageClientException e) {
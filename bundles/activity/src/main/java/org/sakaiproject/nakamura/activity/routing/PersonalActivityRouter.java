@@ -24,6 +24,7 @@ import org.sakaiproject.nakamura.api.activity.ActivityConstants;
 import org.sakaiproject.nakamura.api.activity.ActivityRoute;
 import org.sakaiproject.nakamura.api.activity.ActivityRouter;
 import org.sakaiproject.nakamura.api.activity.ActivityUtils;
+import org.sakaiproject.nakamura.api.activity.ReaderActivityRoute;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.slf4j.Logger;
@@ -79,9 +80,7 @@ public class PersonalActivityRouter implements ActivityRouter {
   public void route(Content activity, List<ActivityRoute> routes, Session adminSession) {
     String actor = (String) activity.getProperty(ActivityConstants.PARAM_ACTOR_ID);
     String path = ActivityUtils.getUserFeed(actor);
-    ActivityRoute route = new AbstractActivityRoute(path) {
-    };
-    routes.add(route);    
+    routes.add(new ReaderActivityRoute(path, actor));
   }
 
 }
@@ -29,6 +29,7 @@ import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.sakaiproject.nakamura.api.activity.ActivityConstants;
+import org.sakaiproject.nakamura.api.activity.ActivityUtils;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
@@ -86,11 +87,16 @@ public class ActivityFeedSearchResultProcessor implements SolrSearchResultProces
     Session session =
       StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
     try {
-      Content contentResult = session.getContentManager().get(contentPath);
-      write.object();
-      if (contentResult != null) {
-        ExtendedJSONWriter.writeContentTreeToWriter(write, contentResult, true, -1);
+      // The feed may only hold a reference; the original activity is read with the
+      // permissions of the current user and skipped when it can't be seen.
+      Content contentResult = ActivityUtils.resolveActivity(session.getContentManager(),
+          session.getContentManager().get(contentPath));
+      if (contentResult == null) {
+        LOGGER.debug("Activity in feed [{}] is not readable", contentPath);
+        return;
       }
+      write.object();
+      ExtendedJSONWriter.writeContentTreeToWriter(write, contentResult, true, -1);
       String actor = String.valueOf(contentResult.getProperty(ActivityConstants.PARAM_ACTOR_ID));
       if (!StringUtils.isBlank(actor)) {
         Authorizable actorAuth = session.getAuthorizableManager().findAuthorizable(actor);
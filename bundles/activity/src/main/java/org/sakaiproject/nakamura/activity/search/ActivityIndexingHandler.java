@@ -31,6 +31,7 @@ import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrInputDocument;
 import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.activity.ActivityConstants;
+import org.sakaiproject.nakamura.api.activity.ActivityUtils;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
@@ -106,7 +107,21 @@ public class ActivityIndexingHandler implements IndexingHandler {
           for (String prop : WHITELISTED_PROPS) {
             doc.addField(prop, content.getProperty(prop));
           }
-          doc.addField(_DOC_SOURCE_OBJECT, content);
+          if (content.hasProperty(ActivityConstants.PARAM_ACTIVITY_REF)) {
+            // A reference is indexed with the access control of the activity it points
+            // to, so searches (and their totals) leave out references the user can't
+            // read. The path is set here so the document still stands for the feed item.
+            Content activity = ActivityUtils.resolveActivity(cm, content);
+            if (activity == null) {
+              return documents;
+            }
+            doc.addField(_DOC_SOURCE_OBJECT, activity);
+            doc.setField(FIELD_PATH, path);
+            doc.setField(FIELD_ID, path);
+            doc.setField(FIELD_RESOURCE_TYPE, content.getProperty("sling:resourceType"));
+          } else {
+            doc.addField(_DOC_SOURCE_OBJECT, content);
+          }
           documents.add(doc);
         }
       } catch (StorageClientException e) {
@@ -0,0 +1,220 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A set of activity counters that decay exponentially with time, so a resource that was
+ * busy a month ago slowly gives way to one that is busy today. Each counter only holds
+ * its score and the time that score was taken; the decay is applied when it is next
+ * touched or read. The number of counters is bounded, the least active ones are dropped
+ * when the bound is exceeded.
+ */
+public class DecayingTopCounters {
+
+  /**
+   * The score of a single resource at a point in time.
+   */
+  public static class Score implements Comparable<Score> {
+    public final String id;
+    public final double value;
+
+    public Score(String id, double value) {
+      this.id = id;
+      this.value = value;
+    }
+
+    public int compareTo(Score other) {
+      int c = Double.compare(value, other.value);
+      // ids break ties so the ordering is stable between requests
+      return c != 0 ? c : other.id.compareTo(id);
+    }
+
+    @Override
+    public String toString() {
+      return "Score(" + id + ", " + value + ")";
+    }
+  }
+
+  private static class Counter {
+    private double score;
+    private long when;
+    /**
+     * Set once the counter has been pruned, anything still holding it must start again.
+     */
+    private boolean removed;
+
+    private Counter(double score, long when) {
+      this.score = score;
+      this.when = when;
+    }
+  }
+
+  private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+  private final double halfLife;
+  private final int maxCounters;
+
+  /**
+   * @param halfLife
+   *          the time in ms after which a single unit of activity counts for half.
+   * @param maxCounters
+   *          the number of resources to track.
+   */
+  public DecayingTopCounters(long halfLife, int maxCounters) {
+    if (halfLife <= 0 || maxCounters <= 0) {
+      throw new IllegalArgumentException("halfLife and maxCounters must be positive");
+    }
+    this.halfLife = halfLife;
+    this.maxCounters = maxCounters;
+  }
+
+  /**
+   * Count one unit of activity on a resource.
+   */
+  public void increment(String id, long when) {
+    add(id, 1.0, when);
+  }
+
+  /**
+   * Add a (possibly decayed) score to a resource, as seen at time when.
+   */
+  public void add(String id, double value, long when) {
+    while (!addTo(getCounter(id, when), value, when)) {
+      // the counter was pruned while this was adding to it, add to a new one
+    }
+    if (counters.size() > maxCounters + maxCounters / 4) {
+      prune(id, when);
+    }
+  }
+
+  private Counter getCounter(String id, long when) {
+    Counter counter = counters.get(id);
+    if (counter == null) {
+      Counter created = new Counter(0, when);
+      counter = counters.putIfAbsent(id, created);
+      if (counter == null) {
+        counter = created;
+      }
+    }
+    return counter;
+  }
+
+  /**
+   * @return false if the counter has been pruned and nothing was added.
+   */
+  private boolean addTo(Counter counter, double value, long when) {
+    synchronized (counter) {
+      if (counter.removed) {
+        return false;
+      }
+      if (when >= counter.when) {
+        counter.score = decay(counter.score, when - counter.when) + value;
+        counter.when = when;
+      } else {
+        // an older event, decay it up to the time of the counter
+        counter.score += decay(value, counter.when - when);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * @return the score of a resource at time now, 0 if it is not tracked.
+   */
+  public double score(String id, long now) {
+    Counter counter = counters.get(id);
+    if (counter == null) {
+      return 0;
+    }
+    synchronized (counter) {
+      return decay(counter.score, now - counter.when);
+    }
+  }
+
+  /**
+   * @return the k most active resources at time now, most active first.
+   */
+  public List<Score> top(int k, long now) {
+    if (k <= 0) {
+      return Collections.emptyList();
+    }
+    PriorityQueue<Score> heap = new PriorityQueue<Score>(k + 1);
+    for (Entry<String, Counter> e : counters.entrySet()) {
+      double value;
+      synchronized (e.getValue()) {
+        value = decay(e.getValue().score, now - e.getValue().when);
+      }
+      if (heap.size() < k) {
+        heap.add(new Score(e.getKey(), value));
+      } else if (value > heap.peek().value) {
+        heap.poll();
+        heap.add(new Score(e.getKey(), value));
+      }
+    }
+    List<Score> result = new ArrayList<Score>(heap);
+    Collections.sort(result, Collections.reverseOrder());
+    return result;
+  }
+
+  /**
+   * @return the number of resources being tracked.
+   */
+  public int size() {
+    return counters.size();
+  }
+
+  public void clear() {
+    counters.clear();
+  }
+
+  /**
+   * Drop the least active counters so no more than maxCounters remain. The counter that
+   * has just been touched is kept so new resources get a chance to build up a score.
+   */
+  private synchronized void prune(String touched, long now) {
+    if (counters.size() <= maxCounters) {
+      return;
+    }
+    List<Score> keep = top(maxCounters, now);
+    double threshold = keep.get(keep.size() - 1).value;
+    for (Entry<String, Counter> e : counters.entrySet()) {
+      Counter counter = e.getValue();
+      synchronized (counter) {
+        if (decay(counter.score, now - counter.when) < threshold
+            && !e.getKey().equals(touched)) {
+          counter.removed = true;
+          counters.remove(e.getKey(), counter);
+        }
+      }
+    }
+  }
+
+  private double decay(double value, long elapsed) {
+    if (elapsed <= 0) {
+      return value;
+    }
+    return value * Math.pow(0.5, elapsed / halfLife);
+  }
+}
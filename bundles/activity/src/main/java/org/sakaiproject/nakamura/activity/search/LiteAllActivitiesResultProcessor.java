@@ -27,6 +27,7 @@ import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.sakaiproject.nakamura.api.activity.ActivityConstants;
+import org.sakaiproject.nakamura.api.activity.ActivityUtils;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -74,8 +75,12 @@ public class LiteAllActivitiesResultProcessor implements SolrSearchResultProcess
       ContentManager contentManager = session.getContentManager();
       AuthorizableManager authorizableManager = session.getAuthorizableManager();
       String path = result.getPath();
-      Content activityNode = contentManager.get(path);
-      if (activityNode != null ) {
+      Content item = contentManager.get(path);
+      // a feed item that references an activity the user can't read is not shown.
+      Content activityNode = ActivityUtils.resolveActivity(contentManager, item);
+      if (item != null && activityNode == null) {
+        LOGGER.debug("Activity in feed [{}] is not readable", path);
+      } else if (activityNode != null ) {
         String sourcePath = (String) activityNode.getProperty(ActivityConstants.PARAM_SOURCE);
         LOGGER.info("Processing {} {} Source = {} ",new Object[]{path, activityNode.getProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY), sourcePath });
         Content contentNode = null;
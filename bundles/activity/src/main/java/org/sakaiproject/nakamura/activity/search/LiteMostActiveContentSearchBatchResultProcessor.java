@@ -44,11 +44,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
 @Component(immediate = true, label = "MostActiveContentSearchBatchResultProcessor", description = "Formatter for most active content")
 @Service(value = SolrSearchBatchResultProcessor.class)
@@ -63,9 +60,17 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
   private static final Logger LOG = LoggerFactory
       .getLogger(LiteMostActiveContentSearchBatchResultProcessor.class);
 
+  /**
+   * How many of the busiest items are checked for access on each request.
+   */
+  private static final int MAX_CANDIDATES = 200;
+
   @Reference
   private SolrSearchServiceFactory searchServiceFactory;
 
+  @Reference
+  private MostActiveTracker mostActiveTracker;
+
   /**
    * 
    * {@inheritDoc}
@@ -75,33 +80,25 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
    */
   public void writeResults(SlingHttpServletRequest request, JSONWriter write,
       Iterator<Result> iterator) throws JSONException {
-    final Map<String, ResourceActivity> resources = new HashMap<String, ResourceActivity>();
     final Session session = StorageClientUtils.adaptToSession(request
         .getResourceResolver().adaptTo(javax.jcr.Session.class));
 
-    // count all the activity
+    // take the busiest content from the running counters and keep what this user can see
     LOG.debug("Computing the most active content feed.");
-    while (iterator.hasNext()) {
+    final List<ResourceActivity> resourceActivities = new ArrayList<ResourceActivity>();
+    for (DecayingTopCounters.Score score : mostActiveTracker.getMostActive(
+        MostActiveTracker.CONTENT, MAX_CANDIDATES)) {
       try {
-        final Result result = iterator.next();
-        final String path = result.getPath();
-        final Content node = session.getContentManager().get(path);
-        if (node != null) {
-          final String resourceId = (String) node.getProperty("resourceId");
-          if (!resources.containsKey(resourceId)) {
-            final Content resourceNode = session.getContentManager().get(resourceId);
-            if (resourceNode == null) {
-              // this can happen if this content is no longer public
-              continue;
-            }
-            final String resourceName = (String) resourceNode
-                .getProperty(FilesConstants.POOLED_CONTENT_FILENAME);
-            resources.put(resourceId, new ResourceActivity(resourceId, 0, resourceName,
-                (Long) resourceNode.getProperty(FilesConstants.LAST_MODIFIED)));
-          }
-          // increment the count for this particular resource.
-          resources.get(resourceId).activityScore++;
+        final Content resourceNode = session.getContentManager().get(score.id);
+        if (resourceNode == null) {
+          // this can happen if this content is no longer public
+          continue;
         }
+        final String resourceName = (String) resourceNode
+            .getProperty(FilesConstants.POOLED_CONTENT_FILENAME);
+        resourceActivities.add(new ResourceActivity(score.id, (int) Math
+            .ceil(score.value), resourceName, (Long) resourceNode
+            .getProperty(FilesConstants.LAST_MODIFIED)));
       } catch (StorageClientException e) {
         // if something is wrong with this particular resourceNode,
         // we don't let it wreck the whole feed
@@ -112,7 +109,7 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
         continue;
       }
     }
-    
+
     // KERN-1724 determine how many content items the current user can read
     long totalCanRead = 0L;
     try {
@@ -128,15 +125,12 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
       LOG.error(e.getLocalizedMessage(), e);
     }
 
-    // write the most-used content to the JSONWriter
-    final List<ResourceActivity> resourceActivities = new ArrayList<ResourceActivity>(
-        resources.values());
-    Collections.sort(resourceActivities, Collections.reverseOrder());
+    // write the most-used content to the JSONWriter, it is already in order
     write.object();
     write.key("totalCanRead");
     write.value(totalCanRead);
     write.key(SolrSearchConstants.TOTAL);
-    write.value(resources.size());
+    write.value(resourceActivities.size());
     final RequestParameter startpageP = request.getRequestParameter(STARTPAGE_PARAM);
     int startpage = (startpageP != null) ? Integer.valueOf(startpageP.getString()) : 1;
     startpage = (startpage < 1) ? 1 : startpage;
@@ -238,8 +232,9 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
    */
   public SolrSearchResultSet getSearchResultSet(SlingHttpServletRequest request,
       Query query) throws SolrSearchException {
-
-    return searchServiceFactory.getSearchResultSet(request, query);
+    // The ranking comes from the running counters, there is no need to pull every
+    // recorded activity out of the index.
+    return mostActiveTracker.getResultSet(MostActiveTracker.CONTENT);
   }
 
 }
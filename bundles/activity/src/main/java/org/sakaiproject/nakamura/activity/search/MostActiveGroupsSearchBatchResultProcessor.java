@@ -24,8 +24,6 @@ import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.request.RequestParameter;
-import org.apache.sling.api.resource.Resource;
-import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.sakaiproject.nakamura.api.files.FilesConstants;
@@ -44,11 +42,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
 @Component(immediate = true, label = "MostActiveGroupSearchBatchResultProcessor", description = "Formatter for most active groups")
 @Service
@@ -63,9 +58,17 @@ public class MostActiveGroupsSearchBatchResultProcessor implements
   private static final Logger LOG = LoggerFactory
       .getLogger(MostActiveGroupsSearchBatchResultProcessor.class);
 
+  /**
+   * How many of the busiest groups are checked for access on each request.
+   */
+  private static final int MAX_CANDIDATES = 200;
+
   @Reference
   private SolrSearchServiceFactory searchServiceFactory;
 
+  @Reference
+  private MostActiveTracker mostActiveTracker;
+
   /**
    * {@inheritDoc}
    * 
@@ -74,35 +77,29 @@ public class MostActiveGroupsSearchBatchResultProcessor implements
    */
   public void writeResults(SlingHttpServletRequest request, JSONWriter write,
       Iterator<Result> results) throws JSONException {
-    final Map<String, ResourceActivity> resources = new HashMap<String, ResourceActivity>();
-    final ResourceResolver resolver = request.getResourceResolver();
     final Session session = StorageClientUtils.adaptToSession(request
         .getResourceResolver().adaptTo(javax.jcr.Session.class));
-    while (results.hasNext()) {
-      final Result result = results.next();
-      final String path = result.getPath();
-      final Resource resource = resolver.getResource(path);
-      final Content content = resource.adaptTo(Content.class);
-      if (content != null) {
-        final String resourceId = (String) content.getProperty("resourceId");
-        if (!resources.containsKey(resourceId)) {
-          final String resourcePath = LitePersonalUtils.getProfilePath(resourceId);
-          Content resourceContent = null;
-          try {
-            resourceContent = session.getContentManager().get(resourcePath);
-          } catch (Exception e) {
-            // this happens if the group is not public
-            // or if the group path simply doesn't exist
-            continue;
-          }
-          final String resourceName = (String) resourceContent
-              .getProperty("sakai:group-title");
-          resources.put(resourceId, new ResourceActivity(resourceId, 0, resourceName,
-              (Long) resourceContent.getProperty(FilesConstants.LAST_MODIFIED)));
-        }
-        // increment the count for this particular resource.
-        resources.get(resourceId).activityScore++;
+
+    // take the busiest groups from the running counters and keep what this user can see
+    final List<ResourceActivity> resourceActivities = new ArrayList<ResourceActivity>();
+    for (DecayingTopCounters.Score score : mostActiveTracker.getMostActive(
+        MostActiveTracker.GROUP, MAX_CANDIDATES)) {
+      final String resourcePath = LitePersonalUtils.getProfilePath(score.id);
+      Content resourceContent = null;
+      try {
+        resourceContent = session.getContentManager().get(resourcePath);
+      } catch (Exception e) {
+        // this happens if the group is not public
+        continue;
+      }
+      if (resourceContent == null) {
+        // or if the group path simply doesn't exist
+        continue;
       }
+      final String resourceName = (String) resourceContent
+          .getProperty("sakai:group-title");
+      resourceActivities.add(new ResourceActivity(score.id, (int) Math.ceil(score.value),
+          resourceName, (Long) resourceContent.getProperty(FilesConstants.LAST_MODIFIED)));
     }
 
     // KERN-1724 determine how many content items the current user can read
@@ -119,10 +116,7 @@ public class MostActiveGroupsSearchBatchResultProcessor implements
       LOG.error(e.getLocalizedMessage(), e);
     }
 
-    // write the most-used content to the JSONWriter
-    final List<ResourceActivity> resourceActivities = new ArrayList<ResourceActivity>(
-        resources.values());
-    Collections.sort(resourceActivities, Collections.reverseOrder());
+    // write the most-used content to the JSONWriter, it is already in order
     write.object();
     write.key("totalCanRead");
     write.value(totalCanRead);
@@ -169,8 +163,9 @@ public class MostActiveGroupsSearchBatchResultProcessor implements
    */
   public SolrSearchResultSet getSearchResultSet(SlingHttpServletRequest request,
       Query query) throws SolrSearchException {
-    // Return the result set.
-    return searchServiceFactory.getSearchResultSet(request, query);
+    // The ranking comes from the running counters, there is no need to pull every
+    // recorded activity out of the index.
+    return mostActiveTracker.getResultSet(MostActiveTracker.GROUP);
   }
 
   public class ResourceActivity implements Comparable<ResourceActivity> {
@@ -0,0 +1,414 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity.search;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps running, time decayed activity counts for pooled content and groups so the most
+ * active lists can be served without walking every recorded activity on each request.
+ * The counters are fed by the tracking items the personal tracking store writes under
+ * /activity/&lt;type&gt;/&lt;resourceId&gt;, and are seeded from the search index the
+ * first time the tracker runs.
+ * <p>
+ * Each server only sees the activity recorded on it, so each server checkpoints its own
+ * counts to /var/activity/mostactive/&lt;type&gt;/&lt;serverId&gt; and the counts served
+ * are its own plus the last checkpoints of every other server (and of the seed), merged
+ * each time it checkpoints.
+ */
+@Component(immediate = true, metatype = true, label = "MostActiveTracker", description = "Keeps running counts of the most active content and groups")
+@Service(value = { MostActiveTracker.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "event.topics", value = "org/sakaiproject/nakamura/lite/content/ADDED") })
+public class MostActiveTracker implements EventHandler {
+
+  public static final String CONTENT = "content";
+  public static final String GROUP = "group";
+
+  private static final String TRACKING_ROOT = "/activity/";
+  private static final String CHECKPOINT_ROOT = "/var/activity/mostactive/";
+  private static final String ENTRIES_PROP = "entries";
+  private static final String CHECKPOINT_PROP = "checkpoint";
+  private static final String SERVERS_PROP = "servers";
+  private static final String SEED = "seed";
+  private static final long DAY = 24L * 60 * 60 * 1000;
+  private static final int SEED_BATCH = 1000;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MostActiveTracker.class);
+
+  @Property(intValue = 7)
+  static final String HALF_LIFE_DAYS = "mostactive.halfLifeDays";
+
+  @Property(intValue = 5000)
+  static final String MAX_TRACKED = "mostactive.maxTracked";
+
+  @Property(intValue = 300)
+  static final String CHECKPOINT_INTERVAL = "mostactive.checkpointInterval";
+
+  @Reference
+  protected Repository sparseRepository;
+
+  @Reference
+  protected SolrServerService solrServerService;
+
+  @Reference
+  protected ClusterTrackingService clusterTrackingService;
+
+  /**
+   * The activity seen by this server.
+   */
+  private final Map<String, DecayingTopCounters> local = new ConcurrentHashMap<String, DecayingTopCounters>();
+
+  /**
+   * The activity seen by the whole cluster, which is what is served.
+   */
+  private final Map<String, DecayingTopCounters> counters = new ConcurrentHashMap<String, DecayingTopCounters>();
+
+  private long halfLife;
+
+  private int maxTracked;
+
+  private String serverId;
+
+  private ScheduledExecutorService checkpointer;
+
+  @Activate
+  protected void activate(Map<String, Object> props) {
+    halfLife = OsgiUtil.toInteger(props.get(HALF_LIFE_DAYS), 7) * DAY;
+    maxTracked = OsgiUtil.toInteger(props.get(MAX_TRACKED), 5000);
+    int interval = OsgiUtil.toInteger(props.get(CHECKPOINT_INTERVAL), 300);
+    serverId = clusterTrackingService.getCurrentServerId();
+    checkpointer = Executors.newSingleThreadScheduledExecutor();
+    for (final String type : new String[] { CONTENT, GROUP }) {
+      DecayingTopCounters localCounters = new DecayingTopCounters(halfLife, maxTracked);
+      local.put(type, localCounters);
+      if (!merge(type, true)) {
+        // walking the index can take a while, don't hold up activation
+        checkpointer.execute(new Runnable() {
+          public void run() {
+            seed(type);
+          }
+        });
+      }
+    }
+    checkpointer.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        checkpoint();
+        for (String type : local.keySet()) {
+          merge(type, false);
+        }
+      }
+    }, interval, interval, TimeUnit.SECONDS);
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> props) {
+    if (checkpointer != null) {
+      checkpointer.shutdownNow();
+      checkpointer = null;
+    }
+    checkpoint();
+    local.clear();
+    counters.clear();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    // be fast, everything needed is in the path
+    // /activity/<type>/<resourceId>/<activity>
+    String path = (String) event.getProperty("path");
+    if (path == null || !path.startsWith(TRACKING_ROOT)) {
+      return;
+    }
+    String[] parts = path.substring(TRACKING_ROOT.length()).split("/");
+    if (parts.length != 3) {
+      return;
+    }
+    DecayingTopCounters localCounters = local.get(parts[0]);
+    if (localCounters != null) {
+      long now = System.currentTimeMillis();
+      localCounters.increment(parts[1], now);
+      // also count it in what is served, until the next merge picks it up from local
+      DecayingTopCounters typeCounters = counters.get(parts[0]);
+      if (typeCounters != null) {
+        typeCounters.increment(parts[1], now);
+      }
+    }
+  }
+
+  /**
+   * @param type
+   *          {@link #CONTENT} or {@link #GROUP}
+   * @param max
+   *          the number of candidates to return.
+   * @return the most active resources of a type, most active first. These have not been
+   *         checked for access.
+   */
+  public List<DecayingTopCounters.Score> getMostActive(String type, int max) {
+    DecayingTopCounters typeCounters = counters.get(type);
+    if (typeCounters == null) {
+      throw new IllegalArgumentException("Unknown activity type " + type);
+    }
+    return typeCounters.top(max, System.currentTimeMillis());
+  }
+
+  /**
+   * @return the number of resources of a type that have recent activity.
+   */
+  public int getTrackedCount(String type) {
+    DecayingTopCounters typeCounters = counters.get(type);
+    return typeCounters == null ? 0 : typeCounters.size();
+  }
+
+  /**
+   * @return a result set standing in for the raw activity of a type, it only carries the
+   *         number of resources with recent activity.
+   */
+  public SolrSearchResultSet getResultSet(String type) {
+    final long size = getTrackedCount(type);
+    return new SolrSearchResultSet() {
+      public Iterator<Result> getResultSetIterator() {
+        return Collections.<Result> emptyList().iterator();
+      }
+
+      public long getSize() {
+        return size;
+      }
+    };
+  }
+
+  /**
+   * Write the scores this server has seen of each type to sparse.
+   */
+  protected void checkpoint() {
+    Session session = null;
+    try {
+      session = sparseRepository.loginAdministrative();
+      ContentManager contentManager = session.getContentManager();
+      for (Map.Entry<String, DecayingTopCounters> e : local.entrySet()) {
+        write(contentManager, e.getKey(), serverId, e.getValue());
+      }
+    } catch (StorageClientException e) {
+      LOGGER.warn("Failed to checkpoint most active counters: {}", e.getMessage());
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Failed to checkpoint most active counters: {}", e.getMessage());
+    } finally {
+      logout(session);
+    }
+  }
+
+  /**
+   * Write the scores of one part of the counts of a type, and list that part under the
+   * type so every server merges it.
+   */
+  private void write(ContentManager contentManager, String type, String part,
+      DecayingTopCounters typeCounters) throws StorageClientException,
+      AccessDeniedException {
+    long now = System.currentTimeMillis();
+    List<DecayingTopCounters.Score> scores = typeCounters.top(typeCounters.size(), now);
+    String[] entries = new String[scores.size()];
+    for (int i = 0; i < entries.length; i++) {
+      entries[i] = scores.get(i).value + "|" + scores.get(i).id;
+    }
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(ENTRIES_PROP, entries);
+    props.put(CHECKPOINT_PROP, now);
+    contentManager.update(new Content(CHECKPOINT_ROOT + type + "/" + part, props));
+
+    Content typeNode = contentManager.get(CHECKPOINT_ROOT + type);
+    Set<String> parts = new TreeSet<String>();
+    if (typeNode != null && typeNode.hasProperty(SERVERS_PROP)) {
+      parts.addAll(Arrays.asList((String[]) typeNode.getProperty(SERVERS_PROP)));
+    }
+    if (parts.add(part)) {
+      // another server adding itself at the same time may be lost here, it adds itself
+      // again on its next checkpoint.
+      Map<String, Object> typeProps = new HashMap<String, Object>();
+      typeProps.put(SERVERS_PROP, parts.toArray(new String[parts.size()]));
+      contentManager.update(new Content(CHECKPOINT_ROOT + type, typeProps));
+    }
+  }
+
+  /**
+   * Rebuild the counts served for a type from the counts of this server and the last
+   * checkpoints of the others.
+   *
+   * @param restore
+   *          true to also load the last checkpoint of this server into its own counts.
+   * @return false if no server has checkpointed this type yet.
+   */
+  private boolean merge(String type, boolean restore) {
+    DecayingTopCounters localCounters = local.get(type);
+    DecayingTopCounters merged = new DecayingTopCounters(halfLife, maxTracked);
+    boolean found = false;
+    Session session = null;
+    try {
+      session = sparseRepository.loginAdministrative();
+      ContentManager contentManager = session.getContentManager();
+      Content typeNode = contentManager.get(CHECKPOINT_ROOT + type);
+      if (typeNode != null && typeNode.hasProperty(SERVERS_PROP)) {
+        for (String part : (String[]) typeNode.getProperty(SERVERS_PROP)) {
+          Content checkpoint = contentManager.get(CHECKPOINT_ROOT + type + "/" + part);
+          if (checkpoint == null || !checkpoint.hasProperty(ENTRIES_PROP)) {
+            continue;
+          }
+          found = true;
+          if (!part.equals(serverId)) {
+            read(checkpoint, merged);
+          } else if (restore) {
+            read(checkpoint, localCounters);
+          }
+        }
+      }
+    } catch (StorageClientException e) {
+      LOGGER.warn("Failed to restore most active counters: {}", e.getMessage());
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Failed to restore most active counters: {}", e.getMessage());
+    } finally {
+      logout(session);
+    }
+    long now = System.currentTimeMillis();
+    for (DecayingTopCounters.Score score : localCounters.top(localCounters.size(), now)) {
+      merged.add(score.id, score.value, now);
+    }
+    counters.put(type, merged);
+    return found;
+  }
+
+  private void read(Content checkpoint, DecayingTopCounters typeCounters) {
+    long when = OsgiUtil.toLong(checkpoint.getProperty(CHECKPOINT_PROP),
+        System.currentTimeMillis());
+    for (String entry : (String[]) checkpoint.getProperty(ENTRIES_PROP)) {
+      int i = entry.indexOf('|');
+      if (i > 0) {
+        try {
+          typeCounters.add(entry.substring(i + 1),
+              Double.parseDouble(entry.substring(0, i)), when);
+        } catch (NumberFormatException e) {
+          LOGGER.warn("Invalid most active checkpoint entry: {}", entry);
+        }
+      }
+    }
+  }
+
+  /**
+   * Build the counters of a type from the activity recorded in the index over the
+   * longest period the most active feeds could ever look at. The index covers the whole
+   * cluster, so these counts are checkpointed as a part of their own rather than as
+   * this server's; servers that seed at the same time write the same part.
+   */
+  private void seed(String type) {
+    DecayingTopCounters typeCounters = new DecayingTopCounters(halfLife, maxTracked);
+    long then = System.currentTimeMillis() - MostActiveContentPropertyProvider.MAXIMUM_DAYS_MS;
+    String prefix = TRACKING_ROOT + type + "/";
+    SolrQuery query = new SolrQuery("path:" + TRACKING_ROOT + type
+        + " AND resourceType:sakai/resource\\-update AND timestamp:[" + then + " TO *]");
+    query.setFields("id", "timestamp");
+    query.setRows(SEED_BATCH);
+    try {
+      int start = 0;
+      long found;
+      do {
+        query.setStart(start);
+        QueryResponse response = solrServerService.getServer().query(query);
+        found = response.getResults().getNumFound();
+        for (SolrDocument doc : response.getResults()) {
+          String id = (String) doc.getFieldValue("id");
+          if (id != null && id.startsWith(prefix)) {
+            int end = id.indexOf('/', prefix.length());
+            String resourceId = id.substring(prefix.length(), end < 0 ? id.length() : end);
+            typeCounters.increment(resourceId,
+                OsgiUtil.toLong(doc.getFieldValue("timestamp"), then));
+          }
+        }
+        start += SEED_BATCH;
+      } while (start < found);
+      LOGGER.info("Seeded {} most active {} counters from {} activities", new Object[] {
+          typeCounters.size(), type, found });
+    } catch (SolrServerException e) {
+      LOGGER.warn("Failed to seed most active counters: {}", e.getMessage());
+      return;
+    }
+    Session session = null;
+    try {
+      session = sparseRepository.loginAdministrative();
+      write(session.getContentManager(), type, SEED, typeCounters);
+    } catch (StorageClientException e) {
+      LOGGER.warn("Failed to checkpoint seeded most active counters: {}", e.getMessage());
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Failed to checkpoint seeded most active counters: {}", e.getMessage());
+    } finally {
+      logout(session);
+    }
+    merge(type, false);
+  }
+
+  private void logout(Session session) {
+    if (session != null) {
+      try {
+        session.logout();
+      } catch (ClientPoolException e) {
+        LOGGER.warn(e.getMessage(), e);
+      }
+    }
+  }
+}
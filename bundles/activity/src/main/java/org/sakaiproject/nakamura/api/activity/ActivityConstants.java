@@ -40,6 +40,11 @@ public interface ActivityConstants {
    * The property name for the source of the activity.
    */
   public static final String PARAM_SOURCE = "sakai:activity-source";
+  /**
+   * The property name on a delivered feed item that points to the original activity
+   * when the feed holds references rather than copies.
+   */
+  public static final String PARAM_ACTIVITY_REF = "sakai:activity-ref";
 
 
   // Node names
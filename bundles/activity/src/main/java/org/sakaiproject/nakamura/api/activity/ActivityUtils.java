@@ -21,6 +21,10 @@ import static org.sakaiproject.nakamura.api.activity.ActivityConstants.EVENT_TOP
 
 import org.apache.commons.lang.StringUtils;
 import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.util.LitePersonalUtils;
 import org.sakaiproject.nakamura.util.PathUtils;
@@ -122,4 +126,28 @@ public class ActivityUtils {
     id.append(randomHash);
     return id.toString();
   }
+
+  /**
+   * Read the activity a feed item stands for.
+   *
+   * @param contentManager
+   *          the content manager of the session reading the feed.
+   * @param item
+   *          an item of an activity feed.
+   * @return the original activity when the item is a reference to it, the item itself
+   *         otherwise. null when the original activity can't be read or no longer exists.
+   * @throws StorageClientException
+   */
+  public static Content resolveActivity(ContentManager contentManager, Content item)
+      throws StorageClientException {
+    if (item == null || !item.hasProperty(ActivityConstants.PARAM_ACTIVITY_REF)) {
+      return item;
+    }
+    try {
+      return contentManager.get((String) item
+          .getProperty(ActivityConstants.PARAM_ACTIVITY_REF));
+    } catch (AccessDeniedException e) {
+      return null;
+    }
+  }
 }
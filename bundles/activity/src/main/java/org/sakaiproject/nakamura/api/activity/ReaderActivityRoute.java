@@ -0,0 +1,42 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.activity;
+
+/**
+ * A route to the feed of a single user. These feeds are read through the activity feed
+ * search, which reads the original activity back with the reader's own permissions, so
+ * an activity may be delivered to them by reference. When the whole activity is copied
+ * into the feed instead, the reader must be able to read the activity.
+ */
+public class ReaderActivityRoute extends AbstractActivityRoute {
+
+  private String reader;
+
+  public ReaderActivityRoute(String destination, String reader) {
+    super(destination);
+    this.reader = reader;
+  }
+
+  /**
+   * @return the id of the user who reads the feed.
+   */
+  public String getReader() {
+    return reader;
+  }
+
+}
@@ -17,10 +17,18 @@
  */
 package org.sakaiproject.nakamura.activity;
 
+import static org.easymock.EasyMock.expect;
+
+import com.google.common.collect.ImmutableMap;
+
 import org.junit.Assert;
 import org.junit.Test;
 import org.sakaiproject.nakamura.api.activity.ActivityConstants;
 import org.sakaiproject.nakamura.api.activity.ActivityUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
 
 import java.io.UnsupportedEncodingException;
@@ -77,4 +85,23 @@ public class ActivityUtilsTest extends AbstractEasyMockTest{
         result);
   }
 
+  @Test
+  public void testResolveActivity() throws Exception {
+    Content original = new Content("/p/abc/activity/1", null);
+    Content item = new Content("a:alice/private/activityFeed/1", ImmutableMap.of(
+        ActivityConstants.PARAM_ACTIVITY_REF, (Object) "/p/abc/activity/1"));
+    Content hidden = new Content("a:alice/private/activityFeed/2", ImmutableMap.of(
+        ActivityConstants.PARAM_ACTIVITY_REF, (Object) "/p/abc/activity/2"));
+    Content copy = new Content("a:alice/private/activityFeed/3", null);
+    ContentManager contentManager = createMock(ContentManager.class);
+    expect(contentManager.get("/p/abc/activity/1")).andReturn(original);
+    expect(contentManager.get("/p/abc/activity/2")).andThrow(
+        new AccessDeniedException(Security.ZONE_CONTENT, "/p/abc/activity/2", "", "alice"));
+    replay();
+    Assert.assertSame(original, ActivityUtils.resolveActivity(contentManager, item));
+    Assert.assertNull(ActivityUtils.resolveActivity(contentManager, hidden));
+    Assert.assertSame(copy, ActivityUtils.resolveActivity(contentManager, copy));
+    verify();
+  }
+
 }
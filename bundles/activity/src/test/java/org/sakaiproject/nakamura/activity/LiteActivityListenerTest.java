@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.activity.AbstractActivityRoute;
+import org.sakaiproject.nakamura.api.activity.ActivityConstants;
+import org.sakaiproject.nakamura.api.activity.ActivityRoute;
+import org.sakaiproject.nakamura.api.activity.ActivityRouterManager;
+import org.sakaiproject.nakamura.api.activity.ReaderActivityRoute;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jms.Message;
+
+public class LiteActivityListenerTest extends AbstractEasyMockTest {
+
+  private static final String ACTIVITY_PATH = "/p/abc/activity/2011-01-01-01-xyz";
+
+  private Session session;
+  private AccessControlManager accessControlManager;
+  private List<ActivityRoute> routes;
+  private List<String> references;
+  private List<String> copies;
+  private RecordingListener listener;
+
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+    Content activity = new Content(ACTIVITY_PATH, ImmutableMap.of(
+        ActivityConstants.PARAM_ACTOR_ID, (Object) "jack"));
+    session = createMock(Session.class);
+    ContentManager contentManager = createMock(ContentManager.class);
+    AuthorizableManager authorizableManager = createMock(AuthorizableManager.class);
+    accessControlManager = createMock(AccessControlManager.class);
+    expect(session.getContentManager()).andReturn(contentManager).anyTimes();
+    expect(session.getAuthorizableManager()).andReturn(authorizableManager).anyTimes();
+    expect(session.getAccessControlManager()).andReturn(accessControlManager).anyTimes();
+    expect(contentManager.get(ACTIVITY_PATH)).andReturn(activity);
+    for (String id : new String[] { "alice", "bob" }) {
+      expect(authorizableManager.findAuthorizable(id)).andReturn(
+          new User(ImmutableMap.of(User.ID_FIELD, (Object) id))).anyTimes();
+    }
+    session.logout();
+
+    routes = new ArrayList<ActivityRoute>();
+    routes.add(new ReaderActivityRoute("a:jack/private/activityFeed", "jack"));
+    routes.add(new ReaderActivityRoute("a:alice/private/activityFeed", "alice"));
+    routes.add(new ReaderActivityRoute("a:bob/private/activityFeed", "bob"));
+    routes.add(new AbstractActivityRoute("/p/abc/activityFeed") {
+    });
+    Repository repository = createMock(Repository.class);
+    expect(repository.loginAdministrative()).andReturn(session);
+    ActivityRouterManager activityRouterManager = createMock(ActivityRouterManager.class);
+    expect(activityRouterManager.getActivityRoutes(activity, session)).andReturn(routes);
+
+    references = new ArrayList<String>();
+    copies = new ArrayList<String>();
+    listener = new RecordingListener();
+    listener.sparseRepository = repository;
+    listener.activityRouterManager = activityRouterManager;
+  }
+
+  @Test
+  public void testReferencesOnlyToUserFeeds() throws Exception {
+    replay();
+    listener.onMessage(createMessage());
+
+    assertEquals(3, references.size());
+    assertEquals(1, copies.size());
+    assertEquals("/p/abc/activityFeed", copies.get(0));
+    verify();
+  }
+
+  @Test
+  public void testCopiesChecksAccess() throws Exception {
+    expect(accessControlManager.can((User) EasyMock.anyObject(),
+        EasyMock.eq(Security.ZONE_CONTENT), EasyMock.eq(ACTIVITY_PATH),
+        EasyMock.eq(Permissions.CAN_READ))).andAnswer(new IAnswer<Boolean>() {
+      public Boolean answer() throws Throwable {
+        return "alice".equals(((User) EasyMock.getCurrentArguments()[0]).getId());
+      }
+    }).times(2);
+    replay();
+    listener.deliverReferences = false;
+    listener.onMessage(createMessage());
+
+    assertEquals(0, references.size());
+    // the actor, alice and the feed of the content, not bob who can't read it.
+    assertEquals(3, copies.size());
+    assertEquals("a:jack/private/activityFeed", copies.get(0));
+    assertEquals("a:alice/private/activityFeed", copies.get(1));
+    assertEquals("/p/abc/activityFeed", copies.get(2));
+    verify();
+  }
+
+  private Message createMessage() throws Exception {
+    Message message = EasyMock.createMock(Message.class);
+    expect(message.getStringProperty(ActivityConstants.EVENT_PROP_PATH)).andReturn(
+        ACTIVITY_PATH);
+    EasyMock.replay(message);
+    return message;
+  }
+
+  private class RecordingListener extends LiteActivityListener {
+    @Override
+    protected void deliverActivityToFeed(Session session, Content activity,
+        String activityFeedPath, boolean reference) {
+      if (reference) {
+        references.add(activityFeedPath);
+      } else {
+        copies.add(activityFeedPath);
+      }
+    }
+  }
+}
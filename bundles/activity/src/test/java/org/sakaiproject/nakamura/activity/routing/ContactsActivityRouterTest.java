@@ -17,14 +17,24 @@
  */
 package org.sakaiproject.nakamura.activity.routing;
 
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableMap;
+
 import org.easymock.EasyMock;
 import org.junit.Before;
 import org.junit.Test;
+import org.sakaiproject.nakamura.api.activity.ActivityConstants;
+import org.sakaiproject.nakamura.api.activity.ActivityRoute;
+import org.sakaiproject.nakamura.api.activity.ActivityUtils;
+import org.sakaiproject.nakamura.api.activity.ReaderActivityRoute;
 import org.sakaiproject.nakamura.api.connections.ConnectionManager;
 import org.sakaiproject.nakamura.api.connections.ConnectionState;
 import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.content.Content;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import javax.jcr.RepositoryException;
@@ -55,4 +65,25 @@ public class ContactsActivityRouterTest extends AbstractActivityRouterTest {
     verify();
   }
 
+  @Test
+  public void testLiteRoutingDefersAccessCheck() throws Exception {
+    ConnectionManager connectionManager = createNiceMock(ConnectionManager.class);
+    // a plain mock: any lookup of authorizables or ACLs fails the test
+    Session adminSession = createMock(Session.class);
+    EasyMock.expect(connectionManager.getConnectedUsers(EasyMock.eq(adminSession), EasyMock.eq(user), EasyMock.eq(ConnectionState.ACCEPTED))).andReturn(Arrays.asList("alice", "bob"));
+    replay();
+    ContactsActivityRouter router = new ContactsActivityRouter();
+    router.connectionManager = connectionManager;
+    Content content = new Content(path, ImmutableMap.of(
+        ActivityConstants.PARAM_ACTOR_ID, (Object) user));
+    List<ActivityRoute> liteRoutes = new ArrayList<ActivityRoute>();
+    router.route(content, liteRoutes, adminSession);
+
+    assertEquals(2, liteRoutes.size());
+    assertEquals(ActivityUtils.getUserFeed("alice"), liteRoutes.get(0).getDestination());
+    assertEquals(ActivityUtils.getUserFeed("bob"), liteRoutes.get(1).getDestination());
+    assertEquals("bob", ((ReaderActivityRoute) liteRoutes.get(1)).getReader());
+    verify();
+  }
+
 }
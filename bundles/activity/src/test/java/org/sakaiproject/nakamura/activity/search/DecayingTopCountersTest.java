@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ *
+ */
+public class DecayingTopCountersTest {
+
+  private static final long HOUR = 60L * 60 * 1000;
+
+  @Test
+  public void testScoresHalveEachHalfLife() {
+    DecayingTopCounters counters = new DecayingTopCounters(HOUR, 10);
+    counters.increment("a", 0);
+    counters.increment("a", 0);
+    assertEquals(2.0, counters.score("a", 0), 0.0001);
+    assertEquals(1.0, counters.score("a", HOUR), 0.0001);
+    assertEquals(0.5, counters.score("a", 2 * HOUR), 0.0001);
+    // older activity arriving late counts as if it had been there all along
+    counters.increment("a", -HOUR);
+    assertEquals(1.25, counters.score("a", HOUR), 0.0001);
+  }
+
+  @Test
+  public void testRecentActivityOutranksOldActivity() {
+    DecayingTopCounters counters = new DecayingTopCounters(HOUR, 10);
+    for (int i = 0; i < 4; i++) {
+      counters.increment("old", 0);
+    }
+    counters.increment("new", 3 * HOUR);
+    counters.increment("new", 3 * HOUR);
+    counters.increment("other", 3 * HOUR);
+
+    List<DecayingTopCounters.Score> top = counters.top(2, 3 * HOUR);
+    assertEquals(2, top.size());
+    assertEquals("new", top.get(0).id);
+    assertEquals("other", top.get(1).id);
+  }
+
+  @Test
+  public void testLeastActiveAreDropped() {
+    DecayingTopCounters counters = new DecayingTopCounters(HOUR, 4);
+    for (int i = 0; i < 10; i++) {
+      for (int j = 0; j <= i; j++) {
+        counters.increment("r" + i, 0);
+      }
+    }
+    assertTrue(counters.size() <= 5);
+    List<DecayingTopCounters.Score> top = counters.top(4, 0);
+    assertEquals("r9", top.get(0).id);
+    assertEquals("r6", top.get(3).id);
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.params.SolrParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+public class MostActiveTrackerTest {
+
+  private Map<String, Content> store;
+  private List<MostActiveTracker> trackers;
+
+  @Before
+  public void setUp() {
+    store = new HashMap<String, Content>();
+    trackers = new ArrayList<MostActiveTracker>();
+  }
+
+  @After
+  public void tearDown() {
+    for (MostActiveTracker tracker : trackers) {
+      tracker.deactivate(null);
+    }
+  }
+
+  @Test
+  public void testServersMergeEachOthersCounts() throws Exception {
+    MostActiveTracker a = createTracker("serverA");
+    MostActiveTracker b = createTracker("serverB");
+    record(a, "x", 3);
+    record(b, "x", 2);
+    record(b, "y", 1);
+    a.checkpoint();
+    b.checkpoint();
+
+    // a server coming back reads its own counts and everyone else's
+    MostActiveTracker a2 = createTracker("serverA");
+    assertEquals(5, score(a2, "x"), 0.01);
+    assertEquals(1, score(a2, "y"), 0.01);
+
+    // checkpointing again does not count anything twice
+    a2.checkpoint();
+    MostActiveTracker b2 = createTracker("serverB");
+    assertEquals(5, score(b2, "x"), 0.01);
+    record(b2, "y", 1);
+    assertEquals(2, score(b2, "y"), 0.01);
+  }
+
+  private void record(MostActiveTracker tracker, String id, int count) {
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put("path", "/activity/content/" + id + "/activity");
+    for (int i = 0; i < count; i++) {
+      tracker.handleEvent(new Event("org/sakaiproject/nakamura/lite/content/ADDED",
+          props));
+    }
+  }
+
+  private double score(MostActiveTracker tracker, String id) {
+    for (DecayingTopCounters.Score score : tracker.getMostActive(
+        MostActiveTracker.CONTENT, 10)) {
+      if (score.id.equals(id)) {
+        return score.value;
+      }
+    }
+    return 0;
+  }
+
+  private MostActiveTracker createTracker(String serverId) throws Exception {
+    ContentManager contentManager = mock(ContentManager.class);
+    when(contentManager.get(anyString())).thenAnswer(new Answer<Content>() {
+      public Content answer(InvocationOnMock invocation) {
+        return store.get(invocation.getArguments()[0]);
+      }
+    });
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) {
+        Content content = (Content) invocation.getArguments()[0];
+        store.put(content.getPath(), content);
+        return null;
+      }
+    }).when(contentManager).update(any(Content.class));
+    Session session = mock(Session.class);
+    when(session.getContentManager()).thenReturn(contentManager);
+    Repository repository = mock(Repository.class);
+    when(repository.loginAdministrative()).thenReturn(session);
+
+    SolrServer server = mock(SolrServer.class);
+    when(server.query(any(SolrParams.class))).thenThrow(
+        new SolrServerException("no index here"));
+    SolrServerService solrServerService = mock(SolrServerService.class);
+    when(solrServerService.getServer()).thenReturn(server);
+    ClusterTrackingService clusterTrackingService = mock(ClusterTrackingService.class);
+    when(clusterTrackingService.getCurrentServerId()).thenReturn(serverId);
+
+    MostActiveTracker tracker = new MostActiveTracker();
+    tracker.sparseRepository = repository;
+    tracker.solrServerService = solrServerService;
+    tracker.clusterTrackingService = clusterTrackingService;
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(MostActiveTracker.CHECKPOINT_INTERVAL, 3600);
+    tracker.activate(props);
+    trackers.add(tracker);
+    return tracker;
+  }
+}
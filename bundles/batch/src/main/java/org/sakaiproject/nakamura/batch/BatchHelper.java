@@ -26,6 +26,7 @@ import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.json.JSONTokener;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.util.RequestInfo;
@@ -35,7 +36,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
@@ -55,9 +56,25 @@ public class BatchHelper {
 
   protected static final String REQUESTS_PARAMETER = "requests";
 
+  /**
+   * When "true", JSON bodies of the sub responses are embedded as JSON values instead of
+   * as escaped strings.
+   */
+  protected static final String RAW_PARAMETER = "raw";
+
 
   /**
    * Takes the original request and starts the batching.
+   * <p>
+   * The sub requests are forwarded one after another on the request thread. They are
+   * not run on an executor: every forward pushes its resource on to the content stack of
+   * the single Sling RequestData behind <code>request</code> and pops it when done, so
+   * two forwards at once would each see the other's resource, and the JCR and sparse
+   * sessions of the shared resolver are not thread safe either. Because the results are
+   * streamed in order, the first one reaches the client after the first sub request
+   * however they are run. For the 10 to 30 GETs of a page, each taking t, that is t
+   * instead of the 10t to 30t it took to build the whole response before. Running them
+   * on 4 threads would only bring the last byte from 10t-30t down to 3t-8t.
    *
    * @param request
    * @param response
@@ -88,43 +105,52 @@ public class BatchHelper {
       return;
     }
 
-    // Loop over the requests and handle each one.
+    // Anonymous users may only GET, refuse the whole batch before anything is streamed.
+    // TODO: This is a nasty hack to work around white listing of /system/batch POST
+    // requests. This should be removed when the UI has refactored itself not to use batch
+    // POSTs in place of GETs (see http spec for reasons by thats bad)
+    if (User.ANON_USER.equals(request.getRemoteUser())) {
+      for (RequestInfo r : batchedRequests) {
+        if (!"GET".equals(r.getMethod())) {
+          response.reset();
+          throw new ServletException("Anon Users may only perform GET operations");
+        }
+      }
+    }
+    boolean rawBodies = "true".equals(request.getParameter(RAW_PARAMETER));
+
+    // Loop over the requests and handle each one, streaming each result to the client
+    // as soon as it is complete.
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    PrintWriter out = response.getWriter();
     try {
-      StringWriter sw = new StringWriter();
-      JSONWriter write = new JSONWriter(sw);
+      JSONWriter write = new JSONWriter(out);
       write.object();
       write.key("results");
       write.array();
 
       for (RequestInfo r : batchedRequests) {
-        doRequest(request, response, r, write);
+        doRequest(request, response, r, write, rawBodies);
+        out.flush();
       }
       write.endArray();
       write.endObject();
-      response.setContentType("application/json");
-      response.setCharacterEncoding("UTF-8");
-      response.getWriter().write(sw.getBuffer().toString());
+      out.flush();
     } catch (JSONException e) {
       LOGGER.warn("Failed to create a JSON response");
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-          "Failed to write JSON response");
+      if (!response.isCommitted()) {
+        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+            "Failed to write JSON response");
+      }
     }
   }
 
   private void doRequest(SlingHttpServletRequest request,
       SlingHttpServletResponse response, RequestInfo requestInfo,
-      JSONWriter write) throws JSONException, ServletException {
+      JSONWriter write, boolean rawBodies) throws JSONException {
     // Look for a matching resource in the usual way. If one is found,
     // the resource will also be embedded with any necessary RequestPathInfo.
-    // TODO: This is a nasty hack to work around white listing of /system/batch POST
-    // requests. This should be removed when the UI has refactored itself not to use batch
-    // POSTs in place of GETs (see http spec for reasons by thats bad)
-    if (User.ANON_USER.equals(request.getRemoteUser())) {
-      if (!"GET".equals(requestInfo.getMethod())) {
-        response.reset();
-        throw new ServletException("Anon Users may only perform GET operations");
-      }
-    }
     String requestPath = requestInfo.getUrl();
     ResourceResolver resourceResolver = request.getResourceResolver();
     Resource resource = resourceResolver.resolve(request, requestPath);
@@ -150,7 +176,7 @@ public class BatchHelper {
         responseWrapper.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
       }
       // Write the response (status, headers, body) back to the client.
-      writeResponse(write, responseWrapper, requestInfo);
+      writeResponse(write, responseWrapper, requestInfo, rawBodies);
     } catch (ServletException e) {
       writeFailedRequest(write, requestInfo);
     } catch (IOException e) {
@@ -160,7 +186,7 @@ public class BatchHelper {
   }
 
   private void writeResponse(JSONWriter write, ResponseWrapper responseWrapper,
-      RequestInfo requestData) throws JSONException {
+      RequestInfo requestData, boolean rawBodies) throws JSONException {
     try {
       String body = responseWrapper.getDataAsString();
       write.object();
@@ -169,7 +195,13 @@ public class BatchHelper {
       write.key("success");
       write.value(true);
       write.key("body");
-      write.value(body);
+      Object json = rawBodies ? parseJson(responseWrapper, body) : null;
+      if (json != null) {
+        // embed the JSON as a value rather than as an escaped string
+        write.value(json);
+      } else {
+        write.value(body);
+      }
       write.key("status");
       write.value(responseWrapper.getResponseStatus());
       write.key("headers");
@@ -188,6 +220,31 @@ public class BatchHelper {
     }
   }
 
+  /**
+   * @return the body parsed as a JSON object or array if the sub response is a
+   *         successful JSON document, null if it is anything else or does not parse, in
+   *         which case it is sent as a string.
+   */
+  private Object parseJson(ResponseWrapper responseWrapper, String body) {
+    String contentType = responseWrapper.getContentType();
+    int status = responseWrapper.getResponseStatus();
+    if (contentType == null || !contentType.startsWith("application/json")
+        || status < 200 || status >= 300) {
+      return null;
+    }
+    try {
+      JSONTokener tokener = new JSONTokener(body);
+      Object value = tokener.nextValue();
+      if ((value instanceof JSONObject || value instanceof JSONArray)
+          && tokener.nextClean() == 0) {
+        return value;
+      }
+    } catch (JSONException e) {
+      LOGGER.debug("Sending body as a string, it is not valid JSON: {}", e.getMessage());
+    }
+    return null;
+  }
+
   private void writeFailedRequest(JSONWriter write, RequestInfo requestData)
       throws JSONException {
     write.object();
@@ -17,6 +17,11 @@
  */
 package org.sakaiproject.nakamura.batch;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -26,15 +31,23 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletResponse;
 
 /**
@@ -80,4 +93,103 @@ public class BatchServletTest {
     servlet.doPost(request, response);
   }
 
+  @Test
+  public void testRawJsonBodies() throws Exception {
+    String json = "[{\"url\" : \"/foo/bar.json\",\"method\" : \"GET\"}]";
+    when(request.getParameter(REQUESTS_PARAMETER)).thenReturn(json);
+    when(request.getParameter(BatchHelper.RAW_PARAMETER)).thenReturn("true");
+
+    StringWriter sw = new StringWriter();
+    PrintWriter writer = new PrintWriter(sw);
+
+    RequestDispatcher dispatcher = mock(RequestDispatcher.class);
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    Resource resource = mock(Resource.class);
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    when(resourceResolver.resolve(request, "/foo/bar.json")).thenReturn(resource);
+    when(request.getRequestDispatcher(resource)).thenReturn(dispatcher);
+    when(response.getWriter()).thenReturn(writer);
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        HttpServletResponse subResponse = (HttpServletResponse) invocation.getArguments()[1];
+        subResponse.setContentType("application/json");
+        subResponse.getWriter().write("{\"a\":1}");
+        return null;
+      }
+    }).when(dispatcher).forward(any(ServletRequest.class), any(ServletResponse.class));
+
+    servlet.doGet(request, response);
+    writer.flush();
+
+    JSONObject result = new JSONObject(sw.toString()).getJSONArray("results")
+        .getJSONObject(0);
+    assertEquals(1, result.getJSONObject("body").getInt("a"));
+  }
+
+  @Test
+  public void testInvalidRawJsonIsSentAsString() throws Exception {
+    String json = "[{\"url\" : \"/foo/bar.json\",\"method\" : \"GET\"}]";
+    when(request.getParameter(REQUESTS_PARAMETER)).thenReturn(json);
+    when(request.getParameter(BatchHelper.RAW_PARAMETER)).thenReturn("true");
+
+    StringWriter sw = new StringWriter();
+    PrintWriter writer = new PrintWriter(sw);
+
+    RequestDispatcher dispatcher = mock(RequestDispatcher.class);
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    Resource resource = mock(Resource.class);
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    when(resourceResolver.resolve(request, "/foo/bar.json")).thenReturn(resource);
+    when(request.getRequestDispatcher(resource)).thenReturn(dispatcher);
+    when(response.getWriter()).thenReturn(writer);
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        HttpServletResponse subResponse = (HttpServletResponse) invocation.getArguments()[1];
+        subResponse.setContentType("application/json");
+        subResponse.getWriter().write("{\"a\":1}]}");
+        return null;
+      }
+    }).when(dispatcher).forward(any(ServletRequest.class), any(ServletResponse.class));
+
+    servlet.doGet(request, response);
+    writer.flush();
+
+    JSONObject result = new JSONObject(sw.toString()).getJSONArray("results")
+        .getJSONObject(0);
+    assertEquals("{\"a\":1}]}", result.getString("body"));
+  }
+
+  @Test
+  public void testResultsAreStreamed() throws Exception {
+    String json = "[{\"url\" : \"/foo/a.json\",\"method\" : \"GET\"},"
+        + "{\"url\" : \"/foo/b.json\",\"method\" : \"GET\"}]";
+    when(request.getParameter(REQUESTS_PARAMETER)).thenReturn(json);
+
+    final StringWriter sw = new StringWriter();
+    PrintWriter writer = new PrintWriter(sw);
+
+    RequestDispatcher dispatcher = mock(RequestDispatcher.class);
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    Resource resource = mock(Resource.class);
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    when(resourceResolver.resolve(any(SlingHttpServletRequest.class), any(String.class)))
+        .thenReturn(resource);
+    when(request.getRequestDispatcher(resource)).thenReturn(dispatcher);
+    when(response.getWriter()).thenReturn(writer);
+    final List<String> seenByClient = new ArrayList<String>();
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        seenByClient.add(sw.toString());
+        return null;
+      }
+    }).when(dispatcher).forward(any(ServletRequest.class), any(ServletResponse.class));
+
+    servlet.doGet(request, response);
+
+    // the first result has reached the client before the second request runs
+    assertEquals(2, seenByClient.size());
+    assertFalse(seenByClient.get(0).contains("/foo/a.json"));
+    assertTrue(seenByClient.get(1).contains("/foo/a.json"));
+  }
+
 }
@@ -99,6 +99,9 @@ public class ConnectionManagerImpl implements ConnectionManager {
   @Reference
   protected transient Repository repository;
 
+  @Reference
+  protected transient SocialGraphIndex socialGraphIndex;
+
 
   private static Map<TransitionKey, StatePair> stateMap = new HashMap<TransitionKey, StatePair>();
 
@@ -283,6 +286,8 @@ public class ConnectionManagerImpl implements ConnectionManager {
       ContentManager contentManager = adminSession.getContentManager();
       contentManager.update(thisNode);
       contentManager.update(otherNode);
+      socialGraphIndex.connectionChanged(thisUserId, otherUserId, getConnectionState(thisNode));
+      socialGraphIndex.connectionChanged(otherUserId, thisUserId, getConnectionState(otherNode));
 
       if (operation == ConnectionOperation.invite) {
         throw new ConnectionException(200, "Invitation made between "
@@ -391,30 +396,21 @@ public class ConnectionManagerImpl implements ConnectionManager {
    *      org.sakaiproject.nakamura.api.connections.ConnectionState)
    */
   public List<String> getConnectedUsers(Session session, String user, ConnectionState state) {
-    List<String> connections = Lists.newArrayList();
     try {
-      ContentManager contentManager = session.getContentManager();
-      String path = ConnectionUtils.getConnectionPathBase(user);
-      Content content = contentManager.get(path);
-      if (content != null) {
-        for ( Content connection : content.listChildren() ) {
-          String resourceType = (String) connection.getProperty("sling:resourceType");
-          String connectionStateValue = (String) connection.getProperty(ConnectionConstants.SAKAI_CONNECTION_STATE);
-          ConnectionState connectionState = ConnectionState.NONE;
-          if (connectionStateValue != null ) {
-            connectionState = ConnectionState.valueOf(connectionStateValue);
-          }
-          if ( ConnectionConstants.SAKAI_CONTACT_RT.equals(resourceType) && state.equals(connectionState)) {
-            connections.add(StorageClientUtils.getObjectName(connection.getPath()));
-          }
+      String sessionUser = session.getUserId();
+      if (!user.equals(sessionUser) && !User.ADMIN_USER.equals(sessionUser)) {
+        // the contact store of a user is readable as a whole or not at all, so checking
+        // the store once stands in for checking each of the connections in it
+        if (session.getContentManager().get(ConnectionUtils.getConnectionPathBase(user)) == null) {
+          return Lists.newArrayList();
         }
       }
+      return socialGraphIndex.getConnectedUsers(user, state);
     } catch (StorageClientException e) {
       throw new IllegalStateException(e.getMessage(), e);
     } catch (AccessDeniedException e) {
       throw new IllegalStateException(e.getMessage(), e);
     }
-    return connections;
   }
 
   protected Content getOrCreateConnectionNode(Session session, Authorizable fromUser,
@@ -0,0 +1,441 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.connections;
+
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in memory graph of the connections between users and of the members of groups.
+ * Every authorizable is given an int id the first time it is seen and all edges are held
+ * as sorted int arrays, so walking the neighbours of the neighbours of a user touches no
+ * storage and allocates almost nothing.
+ *
+ * The graph does not load itself. The connections of a user and the members of a group
+ * are either known (set by a loader) or unknown, and are made unknown again when they
+ * change. Each id carries a version that is bumped when it is invalidated, a loader reads
+ * the version before it loads and its result is only kept if nothing changed meanwhile.
+ */
+public class SocialGraph {
+
+  private static final int[] EMPTY = new int[0];
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+  private String[] names = new String[1024];
+
+  /**
+   * The users each user has a connection with, sorted, null if not known.
+   */
+  private int[][] contacts = new int[1024][];
+
+  /**
+   * The state of each of the connections in {@link #contacts}, as the ordinal of the
+   * {@link ConnectionState}.
+   */
+  private byte[][] states = new byte[1024][];
+
+  /**
+   * The members of each group, sorted, null if not known.
+   */
+  private int[][] members = new int[1024][];
+
+  private long[] versions = new long[1024];
+
+  private int size;
+
+  /**
+   * @return the version of an id, to be handed back when setting what was loaded for it.
+   */
+  public long getVersion(String id) {
+    lock.writeLock().lock();
+    try {
+      return versions[intern(id)];
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return true if the connections of the user are known.
+   */
+  public boolean hasConnections(String user) {
+    lock.readLock().lock();
+    try {
+      int u = lookup(user);
+      return u >= 0 && contacts[u] != null;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return true if the members of the group are known.
+   */
+  public boolean hasMembers(String group) {
+    lock.readLock().lock();
+    try {
+      int g = lookup(group);
+      return g >= 0 && members[g] != null;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Set all the connections of a user.
+   *
+   * @param version
+   *          the version of the user before the connections were loaded.
+   * @return false if the user was invalidated while loading and the connections were not
+   *         kept.
+   */
+  public boolean setConnections(String user, long version,
+      Map<String, ConnectionState> connections) {
+    lock.writeLock().lock();
+    try {
+      int u = intern(user);
+      if (versions[u] != version) {
+        return false;
+      }
+      long[] edges = new long[connections.size()];
+      int n = 0;
+      for (Entry<String, ConnectionState> e : connections.entrySet()) {
+        edges[n++] = ((long) intern(e.getKey()) << 8) | e.getValue().ordinal();
+      }
+      Arrays.sort(edges);
+      int[] c = new int[n];
+      byte[] s = new byte[n];
+      for (int i = 0; i < n; i++) {
+        c[i] = (int) (edges[i] >>> 8);
+        s[i] = (byte) (edges[i] & 0xff);
+      }
+      contacts[u] = c;
+      states[u] = s;
+      return true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Change a single connection of a user, if the connections of that user are known.
+   */
+  public void setConnection(String user, String other, ConnectionState state) {
+    lock.writeLock().lock();
+    try {
+      int u = lookup(user);
+      if (u < 0 || contacts[u] == null) {
+        return;
+      }
+      int o = intern(other);
+      int[] c = contacts[u];
+      byte[] s = states[u];
+      int i = Arrays.binarySearch(c, o);
+      if (i >= 0) {
+        s[i] = (byte) state.ordinal();
+      } else {
+        i = -i - 1;
+        int[] nc = new int[c.length + 1];
+        byte[] ns = new byte[s.length + 1];
+        System.arraycopy(c, 0, nc, 0, i);
+        System.arraycopy(s, 0, ns, 0, i);
+        nc[i] = o;
+        ns[i] = (byte) state.ordinal();
+        System.arraycopy(c, i, nc, i + 1, c.length - i);
+        System.arraycopy(s, i, ns, i + 1, s.length - i);
+        contacts[u] = nc;
+        states[u] = ns;
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Set the members of a group.
+   *
+   * @param version
+   *          the version of the group before the members were loaded.
+   * @return false if the group was invalidated while loading and the members were not
+   *         kept.
+   */
+  public boolean setMembers(String group, long version, String[] groupMembers) {
+    lock.writeLock().lock();
+    try {
+      int g = intern(group);
+      if (versions[g] != version) {
+        return false;
+      }
+      int[] m = new int[groupMembers == null ? 0 : groupMembers.length];
+      for (int i = 0; i < m.length; i++) {
+        m[i] = intern(groupMembers[i]);
+      }
+      Arrays.sort(m);
+      members[g] = m;
+      return true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Forget the connections of a user.
+   */
+  public void invalidateConnections(String user) {
+    lock.writeLock().lock();
+    try {
+      int u = lookup(user);
+      if (u >= 0) {
+        contacts[u] = null;
+        states[u] = null;
+        versions[u]++;
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Forget the members of a group.
+   */
+  public void invalidateMembers(String group) {
+    lock.writeLock().lock();
+    try {
+      int g = lookup(group);
+      if (g >= 0) {
+        members[g] = null;
+        versions[g]++;
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public void clear() {
+    lock.writeLock().lock();
+    try {
+      for (int i = 0; i < size; i++) {
+        contacts[i] = null;
+        states[i] = null;
+        members[i] = null;
+        versions[i]++;
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return the users the user has a connection in the given state with, null if the
+   *         connections of the user are not known.
+   */
+  public List<String> getConnections(String user, ConnectionState state) {
+    lock.readLock().lock();
+    try {
+      int u = lookup(user);
+      if (u < 0 || contacts[u] == null) {
+        return null;
+      }
+      int[] c = withState(u, state);
+      List<String> result = new ArrayList<String>(c.length);
+      for (int i = 0; i < c.length; i++) {
+        result.add(names[c[i]]);
+      }
+      return result;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the users the accepted contacts of the user have accepted, that are not
+   *         contacts of the user already, most shared contacts first. Contacts whose own
+   *         connections are not known are skipped. null if the connections of the user
+   *         are not known.
+   * @param max
+   *          the number of users to return.
+   * @param salt
+   *          orders the users that have the same number of shared contacts, the same
+   *          salt gives the same order.
+   */
+  public List<String> getFriendsOfFriends(String user, int max, int salt) {
+    lock.readLock().lock();
+    try {
+      int u = lookup(user);
+      if (u < 0 || contacts[u] == null) {
+        return null;
+      }
+      int[] direct = withState(u, ConnectionState.ACCEPTED);
+      int[] candidates = new int[64];
+      int n = 0;
+      for (int f : direct) {
+        if (contacts[f] == null) {
+          continue;
+        }
+        for (int c : withState(f, ConnectionState.ACCEPTED)) {
+          if (c != u && Arrays.binarySearch(direct, c) < 0) {
+            if (n == candidates.length) {
+              candidates = Arrays.copyOf(candidates, n * 2);
+            }
+            candidates[n++] = c;
+          }
+        }
+      }
+      return rank(candidates, n, max, salt);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the members of the given groups, other than the user and the accepted
+   *         contacts of the user if those are known, most shared groups first. Groups
+   *         whose members are not known are skipped.
+   * @param max
+   *          the number of members to return.
+   * @param salt
+   *          orders the members that share the same number of groups, the same salt
+   *          gives the same order.
+   */
+  public List<String> getGroupPeers(String user, String[] groups, int max, int salt) {
+    lock.readLock().lock();
+    try {
+      int u = lookup(user);
+      int[] direct = u >= 0 && contacts[u] != null ? withState(u,
+          ConnectionState.ACCEPTED) : EMPTY;
+      int[] candidates = new int[64];
+      int n = 0;
+      for (String group : groups) {
+        int g = lookup(group);
+        if (g < 0 || members[g] == null) {
+          continue;
+        }
+        for (int m : members[g]) {
+          if (m != u && Arrays.binarySearch(direct, m) < 0) {
+            if (n == candidates.length) {
+              candidates = Arrays.copyOf(candidates, n * 2);
+            }
+            candidates[n++] = m;
+          }
+        }
+      }
+      return rank(candidates, n, max, salt);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the number of authorizables that have been given an id.
+   */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return size;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Count how often each candidate occurs and return the max most frequent. Each
+   * candidate is packed into a long with its count in the high half, so a single
+   * primitive sort does the ranking; the low half holds the id xor the salt which keeps
+   * the id recoverable while shuffling the candidates that have the same count.
+   */
+  private List<String> rank(int[] candidates, int n, int max, int salt) {
+    Arrays.sort(candidates, 0, n);
+    long[] counted = new long[n];
+    int distinct = 0;
+    for (int i = 0; i < n;) {
+      int j = i;
+      while (j < n && candidates[j] == candidates[i]) {
+        j++;
+      }
+      counted[distinct++] = ((long) (j - i) << 32) | ((candidates[i] ^ salt) & 0x7fffffffL);
+      i = j;
+    }
+    Arrays.sort(counted, 0, distinct);
+    int k = Math.min(max, distinct);
+    List<String> result = new ArrayList<String>(k);
+    for (int i = distinct - 1; i >= distinct - k; i--) {
+      result.add(names[((int) counted[i] ^ salt) & 0x7fffffff]);
+    }
+    return result;
+  }
+
+  private int[] withState(int u, ConnectionState state) {
+    int[] c = contacts[u];
+    byte[] s = states[u];
+    byte ordinal = (byte) state.ordinal();
+    int n = 0;
+    for (int i = 0; i < s.length; i++) {
+      if (s[i] == ordinal) {
+        n++;
+      }
+    }
+    if (n == c.length) {
+      return c;
+    }
+    int[] result = new int[n];
+    n = 0;
+    for (int i = 0; i < s.length; i++) {
+      if (s[i] == ordinal) {
+        result[n++] = c[i];
+      }
+    }
+    return result;
+  }
+
+  private int lookup(String id) {
+    Integer i = ids.get(id);
+    return i == null ? -1 : i;
+  }
+
+  /**
+   * Must be called with the write lock held.
+   */
+  private int intern(String id) {
+    Integer i = ids.get(id);
+    if (i != null) {
+      return i;
+    }
+    if (size == names.length) {
+      int capacity = size * 2;
+      names = Arrays.copyOf(names, capacity);
+      contacts = Arrays.copyOf(contacts, capacity);
+      states = Arrays.copyOf(states, capacity);
+      members = Arrays.copyOf(members, capacity);
+      versions = Arrays.copyOf(versions, capacity);
+    }
+    names[size] = id;
+    ids.put(id, size);
+    return size++;
+  }
+}
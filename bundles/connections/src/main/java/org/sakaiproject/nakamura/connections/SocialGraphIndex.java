@@ -0,0 +1,224 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.connections;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.util.LitePersonalUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+
+/**
+ * Keeps a {@link SocialGraph} of connections and group members current. Connections and
+ * members are loaded from sparse the first time they are asked for and forgotten again
+ * when the contact store of the user or the group changes, so the graph only ever holds
+ * the part of the social network that is in use.
+ *
+ * Everything is loaded with an administrative session. Callers are responsible for
+ * checking what the current user may see, which should only be done for the users that
+ * are actually returned to the client.
+ */
+@Component(immediate = true, description = "Index of connections and group members", label = "SocialGraphIndex")
+@Service(value = { SocialGraphIndex.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "event.topics", value = {
+        "org/sakaiproject/nakamura/lite/content/ADDED",
+        "org/sakaiproject/nakamura/lite/content/UPDATED",
+        "org/sakaiproject/nakamura/lite/content/DELETE",
+        "org/sakaiproject/nakamura/lite/authorizables/ADDED",
+        "org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+        "org/sakaiproject/nakamura/lite/authorizables/DELETE" }) })
+public class SocialGraphIndex implements EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SocialGraphIndex.class);
+
+  private static final String HOME_PREFIX = LitePersonalUtils.getHomePath("");
+
+  private static final String CONTACTS_SEGMENT = "/" + ConnectionConstants.CONTACT_STORE_NAME + "/";
+
+  @Reference
+  protected transient Repository repository;
+
+  private final SocialGraph graph = new SocialGraph();
+
+  private final Random random = new Random();
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    graph.clear();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty(StoreListener.PATH_PROPERTY);
+    if (path == null) {
+      return;
+    }
+    if (event.getTopic().startsWith("org/sakaiproject/nakamura/lite/authorizables/")) {
+      graph.invalidateMembers(path);
+    } else if (path.startsWith(HOME_PREFIX)) {
+      // a:<user>/contacts/<other>
+      int i = path.indexOf(CONTACTS_SEGMENT);
+      if (i > HOME_PREFIX.length()
+          && path.indexOf('/', i + CONTACTS_SEGMENT.length()) < 0) {
+        graph.invalidateConnections(path.substring(HOME_PREFIX.length(), i));
+      }
+    }
+  }
+
+  /**
+   * @return the users the user has a connection in the given state with.
+   */
+  public List<String> getConnectedUsers(String user, ConnectionState state)
+      throws StorageClientException, AccessDeniedException {
+    List<String> connections = graph.getConnections(user, state);
+    if (connections == null) {
+      Map<String, ConnectionState> loaded = loadConnections(user);
+      connections = graph.getConnections(user, state);
+      if (connections == null) {
+        // changed again while loading, answer from what was loaded
+        connections = new ArrayList<String>();
+        for (Entry<String, ConnectionState> e : loaded.entrySet()) {
+          if (state.equals(e.getValue())) {
+            connections.add(e.getKey());
+          }
+        }
+      }
+    }
+    return connections;
+  }
+
+  /**
+   * @return up to max users that the contacts of the user are connected with but the user
+   *         is not, most shared contacts first.
+   */
+  public List<String> getFriendsOfFriends(String user, int max)
+      throws StorageClientException, AccessDeniedException {
+    for (String contact : getConnectedUsers(user, ConnectionState.ACCEPTED)) {
+      if (!graph.hasConnections(contact)) {
+        loadConnections(contact);
+      }
+    }
+    List<String> result = graph.getFriendsOfFriends(user, max, random.nextInt());
+    return result == null ? Collections.<String> emptyList() : result;
+  }
+
+  /**
+   * @return up to max members of the groups who are neither the user nor one of the
+   *         contacts of the user, most shared groups first.
+   */
+  public List<String> getGroupPeers(String user, String[] groups, int max)
+      throws StorageClientException, AccessDeniedException {
+    for (String group : groups) {
+      if (!Group.EVERYONE.equals(group) && !graph.hasMembers(group)) {
+        loadMembers(group);
+      }
+    }
+    return graph.getGroupPeers(user, groups, max, random.nextInt());
+  }
+
+  /**
+   * Record a change to a connection made on this server, without waiting for the event.
+   */
+  public void connectionChanged(String user, String other, ConnectionState state) {
+    graph.setConnection(user, other, state);
+  }
+
+  private Map<String, ConnectionState> loadConnections(String user) throws StorageClientException,
+      AccessDeniedException {
+    long version = graph.getVersion(user);
+    Map<String, ConnectionState> connections = new HashMap<String, ConnectionState>();
+    Session session = repository.loginAdministrative();
+    try {
+      Content content = session.getContentManager().get(
+          ConnectionUtils.getConnectionPathBase(user));
+      if (content != null) {
+        for (Content connection : content.listChildren()) {
+          if (ConnectionConstants.SAKAI_CONTACT_RT.equals(connection
+              .getProperty("sling:resourceType"))) {
+            String state = (String) connection
+                .getProperty(ConnectionConstants.SAKAI_CONNECTION_STATE);
+            connections.put(StorageClientUtils.getObjectName(connection.getPath()),
+                state == null ? ConnectionState.NONE : ConnectionState.valueOf(state));
+          }
+        }
+      }
+    } finally {
+      logout(session);
+    }
+    if (!graph.setConnections(user, version, connections)) {
+      LOGGER.debug("Connections of {} changed while loading", user);
+    }
+    return connections;
+  }
+
+  private void loadMembers(String group) throws StorageClientException,
+      AccessDeniedException {
+    long version = graph.getVersion(group);
+    String[] members = null;
+    Session session = repository.loginAdministrative();
+    try {
+      Authorizable authorizable = session.getAuthorizableManager().findAuthorizable(group);
+      if (authorizable instanceof Group) {
+        members = ((Group) authorizable).getMembers();
+      }
+    } finally {
+      logout(session);
+    }
+    graph.setMembers(group, version, members);
+  }
+
+  private void logout(Session session) {
+    try {
+      session.logout();
+    } catch (ClientPoolException e) {
+      LOGGER.warn(e.getMessage(), e);
+    }
+  }
+}
@@ -39,7 +39,6 @@ import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
-import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.Result;
@@ -51,19 +50,17 @@ import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchUtil;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
+import org.sakaiproject.nakamura.connections.SocialGraphIndex;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
 
 /**
@@ -109,6 +106,9 @@ public class RelatedContactsSearchBatchResultProcessor implements
   @Reference
   private ConnectionManager connectionManager;
 
+  @Reference
+  private SocialGraphIndex socialGraphIndex;
+
   /**
    * Used for random people matching
    */
@@ -175,27 +175,23 @@ public class RelatedContactsSearchBatchResultProcessor implements
         LOG.debug("writeResults() first iteration took {} seconds",
             new Object[] { (float) (firstIterationTicks - startTicks) / 1000 });
       if (processedUsers.size() < nitems) {
-        // TODO migrate to part of the primary solr query - this was a quick solution
-        /* Add people that are a member of groups I'm a member of */
-        final Set<String> relatedUsers = new HashSet<String>();
+        /* Add contacts of my contacts, then people that are a member of groups I'm a member of */
+        // Both come from the social graph index, which has not checked access; only the
+        // people actually rendered are looked up with the user's session.
+        for (final String peep : socialGraphIndex.getFriendsOfFriends(user,
+            (int) nitems + processedUsers.size())) {
+          if (processedUsers.size() >= nitems) {
+            break;
+          }
+          renderContact(peep, session, authMgr, writer, connectedUsers, processedUsers);
+        }
         final String[] principals = auth.getPrincipals();
-        if (principals != null) {
-          // process the groups randomly because we might hit page size any time
-          final List<String> randomPrincipals = Arrays.asList(principals);
-          Collections.shuffle(randomPrincipals);
-          for (int i = 0; i < randomPrincipals.size() && processedUsers.size() < nitems; i++) {
-            final Group group = (Group) authMgr.findAuthorizable(randomPrincipals.get(i));
-            if (group != null) {
-              final String[] members = group.getMembers();
-              if (members != null) {
-                relatedUsers.addAll(Arrays.asList(members));
-              }
+        if (principals != null && processedUsers.size() < nitems) {
+          for (final String peep : socialGraphIndex.getGroupPeers(user, principals,
+              (int) nitems + processedUsers.size())) {
+            if (processedUsers.size() >= nitems) {
+              break;
             }
-          }
-          // randomize the list because we want different people showing up each time
-          // but limit the size of the list to the number required by spec - significant optimization
-          final List<String> relatedPeopleFromGroupMembers = makeRandomList(relatedUsers, nitems);
-          for (final String peep : relatedPeopleFromGroupMembers) {
             renderContact(peep, session, authMgr, writer, connectedUsers, processedUsers);
           }
         }
@@ -267,23 +263,6 @@ public class RelatedContactsSearchBatchResultProcessor implements
           new Object[] { (float) (endTicks - startTicks) / 1000 });
   }
 
-  // make a random list for rendering that is no longer than the number requested
-  private List<String> makeRandomList(Set<String> relatedUsers, long nitems) {
-    if (LOG.isDebugEnabled())
-      LOG.debug("makeRandomList() relatedUsers source list length: "
-          + relatedUsers.size());
-    List<String> randomRelatedUsers = new ArrayList<String>();
-    Object[] relatedUsersArr = relatedUsers.toArray();
-    Random random = new Random();
-    int count = (int) (nitems < relatedUsersArr.length ? nitems : relatedUsersArr.length);                                                       
-    for (int i = 0; i < count; i++) {
-      randomRelatedUsers.add((String) relatedUsersArr[random.nextInt(count)]);
-    }
-    if (LOG.isDebugEnabled())
-      LOG.debug("makeRandomList() randomRelatedUsers target list length: " + randomRelatedUsers.size());
-    return randomRelatedUsers;
-  }
-
   /**
    * @param request
    * @param writer
@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.connections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ */
+public class SocialGraphTest {
+
+  private SocialGraph graph;
+
+  @Before
+  public void setUp() {
+    graph = new SocialGraph();
+  }
+
+  @Test
+  public void testConnectionsByState() {
+    connect("alice", ConnectionState.ACCEPTED, "bob", "carol");
+    graph.setConnection("alice", "dave", ConnectionState.PENDING);
+
+    assertEquals(new HashSet<String>(Arrays.asList("bob", "carol")), new HashSet<String>(
+        graph.getConnections("alice", ConnectionState.ACCEPTED)));
+    assertEquals(Arrays.asList("dave"), graph.getConnections("alice",
+        ConnectionState.PENDING));
+
+    graph.setConnection("alice", "dave", ConnectionState.ACCEPTED);
+    assertEquals(3, graph.getConnections("alice", ConnectionState.ACCEPTED).size());
+    assertNull(graph.getConnections("bob", ConnectionState.ACCEPTED));
+  }
+
+  @Test
+  public void testFriendsOfFriendsRankedBySharedContacts() {
+    connect("alice", ConnectionState.ACCEPTED, "bob", "carol");
+    connect("bob", ConnectionState.ACCEPTED, "alice", "carol", "dave", "erin");
+    connect("carol", ConnectionState.ACCEPTED, "alice", "bob", "dave");
+
+    List<String> fof = graph.getFriendsOfFriends("alice", 10, 0);
+    // carol is already a contact, dave is known through both bob and carol
+    assertEquals(Arrays.asList("dave", "erin"), fof);
+    assertEquals(Arrays.asList("dave"), graph.getFriendsOfFriends("alice", 1, 12345));
+  }
+
+  @Test
+  public void testGroupPeers() {
+    connect("alice", ConnectionState.ACCEPTED, "bob");
+    graph.setMembers("g1", graph.getVersion("g1"), new String[] { "alice", "bob", "carol" });
+    graph.setMembers("g2", graph.getVersion("g2"), new String[] { "alice", "carol", "dave" });
+
+    List<String> peers = graph.getGroupPeers("alice", new String[] { "g1", "g2", "g3" },
+        10, 0);
+    assertEquals(Arrays.asList("carol", "dave"), peers);
+  }
+
+  @Test
+  public void testInvalidatedWhileLoading() {
+    long version = graph.getVersion("alice");
+    graph.invalidateConnections("alice");
+    Map<String, ConnectionState> connections = new HashMap<String, ConnectionState>();
+    connections.put("bob", ConnectionState.ACCEPTED);
+    assertFalse(graph.setConnections("alice", version, connections));
+    assertFalse(graph.hasConnections("alice"));
+
+    assertTrue(graph.setConnections("alice", graph.getVersion("alice"), connections));
+    assertTrue(graph.hasConnections("alice"));
+    graph.invalidateConnections("alice");
+    assertFalse(graph.hasConnections("alice"));
+  }
+
+  @Test
+  public void testGrows() {
+    for (int i = 0; i < 5000; i++) {
+      graph.setMembers("g", graph.getVersion("g"), new String[] { "u" + i });
+    }
+    assertEquals(5001, graph.size());
+    assertEquals(Arrays.asList("u4999"), graph.getGroupPeers("x", new String[] { "g" }, 5,
+        0));
+  }
+
+  private void connect(String user, ConnectionState state, String... others) {
+    Map<String, ConnectionState> connections = new HashMap<String, ConnectionState>();
+    for (String other : others) {
+      connections.put(other, state);
+    }
+    graph.setConnections(user, graph.getVersion(user), connections);
+  }
+}
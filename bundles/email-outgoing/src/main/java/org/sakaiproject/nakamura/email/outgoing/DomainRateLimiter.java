@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Limits the number of recipients per minute at each domain, so a large mailing does not
+ * get the server throttled or blacklisted by the receiving domains. Each domain has a
+ * bucket that fills at its rate up to a minute's worth, and sending to a recipient takes
+ * one from it.
+ */
+public class DomainRateLimiter {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DomainRateLimiter.class);
+
+  private static final long MINUTE = 60000L;
+
+  private final int defaultPerMinute;
+
+  private final Map<String, Integer> perMinute = new HashMap<String, Integer>();
+
+  private final Map<String, Bucket> buckets = new HashMap<String, Bucket>();
+
+  /**
+   * @param defaultPerMinute
+   *          the recipients per minute for domains that are not listed, 0 for no limit.
+   * @param domainLimits
+   *          <code>domain=recipientsPerMinute</code> for domains that have their own
+   *          limit, may be null.
+   */
+  public DomainRateLimiter(int defaultPerMinute, String[] domainLimits) {
+    this.defaultPerMinute = Math.max(0, defaultPerMinute);
+    if (domainLimits != null) {
+      for (String domainLimit : domainLimits) {
+        int i = domainLimit.indexOf('=');
+        if (i > 0) {
+          try {
+            perMinute.put(domainLimit.substring(0, i).trim().toLowerCase(),
+                Integer.parseInt(domainLimit.substring(i + 1).trim()));
+          } catch (NumberFormatException e) {
+            LOGGER.warn("Ignoring invalid domain rate limit {}", domainLimit);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Take as many of the wanted recipients as the domain allows now.
+   *
+   * @return the number of recipients that may be sent to now, the rest have to wait.
+   */
+  public synchronized int acquire(String domain, int wanted, long now) {
+    Bucket bucket = getBucket(domain, now);
+    if (bucket == null) {
+      return wanted;
+    }
+    int allowed = (int) Math.min(wanted, Math.floor(bucket.tokens));
+    bucket.tokens -= allowed;
+    return allowed;
+  }
+
+  /**
+   * @return the milliseconds until the domain can be sent to again.
+   */
+  public synchronized long getDelay(String domain, long now) {
+    Bucket bucket = getBucket(domain, now);
+    if (bucket == null || bucket.tokens >= 1) {
+      return 0;
+    }
+    return (long) Math.ceil((1 - bucket.tokens) * MINUTE / bucket.perMinute);
+  }
+
+  /**
+   * @return the domain of an address, lower cased.
+   */
+  public static String getDomain(String address) {
+    int i = address.lastIndexOf('@');
+    return (i < 0) ? "" : address.substring(i + 1).trim().toLowerCase();
+  }
+
+  private Bucket getBucket(String domain, long now) {
+    Integer limit = perMinute.get(domain);
+    int rate = (limit == null) ? defaultPerMinute : limit;
+    if (rate <= 0) {
+      return null;
+    }
+    Bucket bucket = buckets.get(domain);
+    if (bucket == null) {
+      bucket = new Bucket(rate, now);
+      buckets.put(domain, bucket);
+    } else {
+      bucket.tokens = Math.min(rate, bucket.tokens + (now - bucket.updated) * rate
+          / (double) MINUTE);
+      bucket.updated = now;
+    }
+    return bucket;
+  }
+
+  private static final class Bucket {
+    private final int perMinute;
+    private double tokens;
+    private long updated;
+
+    private Bucket(int perMinute, long now) {
+      this.perMinute = perMinute;
+      this.tokens = perMinute;
+      this.updated = now;
+    }
+  }
+}
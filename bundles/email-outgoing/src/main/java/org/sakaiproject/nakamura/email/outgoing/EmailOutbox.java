@@ -0,0 +1,231 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Recipients of messages that could not be sent yet, because the receiving domain is
+ * over its rate or the SMTP server asked us to try again later. Each entry is stored
+ * under {@link #OUTBOX_PATH} with the message, the recipients still to send to and when
+ * to next try, so nothing is lost if the server restarts before then.
+ *
+ * The content store has no compare and set, so servers in a cluster do not compete for
+ * entries. Each server adds entries to its own partition of the outbox and only sends
+ * the entries in the partitions it holds, see {@link #isHeldBy(String, String, List)}.
+ * Within a partition entries are kept in buckets by the minute they are next due, so
+ * finding the due entries only reads the buckets that are due and not the whole outbox.
+ */
+public final class EmailOutbox {
+
+  public static final String OUTBOX_PATH = "/var/email/outbox";
+
+  static final String CONTENT_PATH = "sakai:contentPath";
+
+  static final String RECIPIENTS = "sakai:recipients";
+
+  static final String NEXT_ATTEMPT = "sakai:nextAttempt";
+
+  static final String LEASE = "sakai:outboxLease";
+
+  /**
+   * How much time each bucket of entries covers, in milliseconds.
+   */
+  static final long BUCKET_SIZE = 60000L;
+
+  private EmailOutbox() {
+  }
+
+  /**
+   * Hold recipients of a message to try again later.
+   *
+   * @param partition
+   *          the id of the server adding the entry.
+   * @param retryCount
+   *          the number of times sending to these recipients has failed.
+   */
+  public static void add(ContentManager contentManager, String partition,
+      String contentPath, Collection<String> recipients, long nextAttempt,
+      long retryCount) throws StorageClientException, AccessDeniedException {
+    String bucketPath = getPartitionPath(partition) + "/" + (nextAttempt / BUCKET_SIZE);
+    createIfMissing(contentManager, OUTBOX_PATH);
+    createIfMissing(contentManager, getPartitionPath(partition));
+    createIfMissing(contentManager, bucketPath);
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(CONTENT_PATH, contentPath);
+    properties.put(RECIPIENTS, recipients.toArray(new String[recipients.size()]));
+    properties.put(NEXT_ATTEMPT, nextAttempt);
+    properties.put(MessageConstants.PROP_SAKAI_RETRY_COUNT, retryCount);
+    contentManager.update(new Content(bucketPath + "/" + UUID.randomUUID().toString(),
+        properties));
+  }
+
+  /**
+   * @return the ids of the servers that have added entries to the outbox.
+   */
+  public static List<String> getPartitions(ContentManager contentManager)
+      throws StorageClientException, AccessDeniedException {
+    List<String> partitions = new ArrayList<String>();
+    if (contentManager.exists(OUTBOX_PATH)) {
+      for (Iterator<String> i = contentManager.listChildPaths(OUTBOX_PATH); i.hasNext();) {
+        partitions.add(StorageClientUtils.getObjectName(i.next()));
+      }
+    }
+    return partitions;
+  }
+
+  /**
+   * A server holds its own partition while it is part of the cluster. The partition of a
+   * server that has left is held by one of the servers still in the cluster, picked the
+   * same way by all of them, so its entries are sent once.
+   *
+   * @param server
+   *          the id of the server asking.
+   * @param servers
+   *          the ids of the servers in the cluster.
+   * @return true if the server is to send the entries in the partition.
+   */
+  public static boolean isHeldBy(String partition, String server, List<String> servers) {
+    if (partition.equals(server)) {
+      return true;
+    }
+    if (servers.contains(partition) || !servers.contains(server)) {
+      return false;
+    }
+    List<String> sorted = new ArrayList<String>(servers);
+    Collections.sort(sorted);
+    return server.equals(sorted.get((partition.hashCode() & Integer.MAX_VALUE)
+        % sorted.size()));
+  }
+
+  /**
+   * @return the entries in a partition that are due to be tried again and that are not
+   *         leased, read from the buckets that are due.
+   */
+  public static List<Content> getDue(ContentManager contentManager, String partition,
+      long now) throws StorageClientException, AccessDeniedException {
+    List<Content> due = new ArrayList<Content>();
+    for (String bucketPath : getBuckets(contentManager, partition)) {
+      if (getBucketStart(bucketPath) > now) {
+        continue;
+      }
+      for (Iterator<String> i = contentManager.listChildPaths(bucketPath); i.hasNext();) {
+        Content entry = contentManager.get(i.next());
+        if (entry != null && isDue(entry, now)) {
+          due.add(entry);
+        }
+      }
+    }
+    return due;
+  }
+
+  /**
+   * Take a lease on an entry before sending it, so that if it is sent but can not be
+   * taken out of the outbox it is not sent again until the lease is over.
+   *
+   * @param lease
+   *          how long the entry is held for, in milliseconds.
+   * @return the entry, or null if it is gone or not due.
+   */
+  public static Content claim(ContentManager contentManager, String path, long now,
+      long lease) throws StorageClientException, AccessDeniedException {
+    Content entry = contentManager.get(path);
+    if (entry == null || !isDue(entry, now)) {
+      return null;
+    }
+    entry.setProperty(LEASE, now + lease);
+    contentManager.update(entry);
+    return entry;
+  }
+
+  /**
+   * Take an entry out of the outbox once it has been sent, along with its bucket if
+   * that is now empty. Any recipients that still could not be sent to have been added
+   * again as a new entry.
+   */
+  public static void remove(ContentManager contentManager, Content entry)
+      throws StorageClientException, AccessDeniedException {
+    contentManager.delete(entry.getPath());
+    String bucketPath = StorageClientUtils.getParentObjectPath(entry.getPath());
+    if (!contentManager.listChildPaths(bucketPath).hasNext()) {
+      contentManager.delete(bucketPath);
+    }
+  }
+
+  /**
+   * Take the partition of a server that has left out of the outbox once all of its
+   * entries have been sent.
+   */
+  public static void removeIfEmpty(ContentManager contentManager, String partition)
+      throws StorageClientException, AccessDeniedException {
+    if (getBuckets(contentManager, partition).isEmpty()) {
+      contentManager.delete(getPartitionPath(partition));
+    }
+  }
+
+  private static List<String> getBuckets(ContentManager contentManager, String partition)
+      throws StorageClientException, AccessDeniedException {
+    List<String> buckets = new ArrayList<String>();
+    String partitionPath = getPartitionPath(partition);
+    if (contentManager.exists(partitionPath)) {
+      for (Iterator<String> i = contentManager.listChildPaths(partitionPath); i.hasNext();) {
+        buckets.add(i.next());
+      }
+    }
+    return buckets;
+  }
+
+  private static long getBucketStart(String bucketPath) {
+    try {
+      return Long.parseLong(StorageClientUtils.getObjectName(bucketPath)) * BUCKET_SIZE;
+    } catch (NumberFormatException e) {
+      return Long.MAX_VALUE;
+    }
+  }
+
+  private static String getPartitionPath(String partition) {
+    return OUTBOX_PATH + "/" + partition;
+  }
+
+  private static void createIfMissing(ContentManager contentManager, String path)
+      throws StorageClientException, AccessDeniedException {
+    if (!contentManager.exists(path)) {
+      contentManager.update(new Content(path, new HashMap<String, Object>()));
+    }
+  }
+
+  private static boolean isDue(Content entry, long now) {
+    return StorageClientUtils.toLong(entry.getProperty(NEXT_ATTEMPT)) <= now
+        && (!entry.hasProperty(LEASE) || StorageClientUtils.toLong(entry
+            .getProperty(LEASE)) <= now);
+  }
+}
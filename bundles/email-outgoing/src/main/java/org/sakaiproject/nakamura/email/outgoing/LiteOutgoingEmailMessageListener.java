@@ -24,14 +24,13 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.sling.commons.osgi.OsgiUtil;
-import org.apache.sling.commons.scheduler.Job;
-import org.apache.sling.commons.scheduler.JobContext;
 import org.apache.sling.commons.scheduler.Scheduler;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.osgi.service.component.ComponentContext;
-import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
 import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.cluster.ClusterServer;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -46,14 +45,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Properties;
+import java.util.Map.Entry;
 import java.util.Set;
 
 import javax.jcr.Node;
@@ -66,6 +67,11 @@ import javax.jms.MessageConsumer;
 import javax.jms.MessageListener;
 import javax.jms.Queue;
 import javax.jms.Session;
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
 
 @Component(immediate = true, metatype = true)
 public class LiteOutgoingEmailMessageListener implements MessageListener {
@@ -80,6 +86,38 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
   private static final String MAX_RETRIES = "sakai.email.maxRetries";
   @Property(intValue = 30)
   private static final String RETRY_INTERVAL = "sakai.email.retryIntervalMinutes";
+  @Property(intValue = 2)
+  private static final String SMTP_MAX_CONNECTIONS = "sakai.smtp.maxConnections";
+  @Property(intValue = 100)
+  private static final String SMTP_MAX_MESSAGES_PER_CONNECTION = "sakai.smtp.maxMessagesPerConnection";
+  @Property(intValue = 0)
+  private static final String DOMAIN_RATE = "sakai.email.domainRatePerMinute";
+  @Property(value = { "" }, cardinality = 9999999)
+  private static final String DOMAIN_RATES = "sakai.email.domainRates";
+  @Property(intValue = 60)
+  private static final String OUTBOX_INTERVAL = "sakai.email.outboxIntervalSeconds";
+
+  /**
+   * How long an SMTP connection may sit unused before it is closed.
+   */
+  private static final long SMTP_MAX_IDLE = 30000L;
+
+  /**
+   * The most the retry interval is multiplied by as the retries back off. Retries stop
+   * once they would take longer in all than the maximum retries times the interval, so
+   * that product is still how long a message is tried for, and backing off means it is
+   * tried fewer times than the maximum.
+   */
+  private static final long MAX_BACKOFF = 16L;
+
+  /**
+   * How long a server leaves an outbox entry it has sent but could not take out of the
+   * outbox before sending it again.
+   */
+  private static final long OUTBOX_LEASE = 600000L;
+
+  private static final String OUTBOX_JOB = LiteOutgoingEmailMessageListener.class.getName()
+      + ".outbox";
 
   protected static final String QUEUE_NAME = "org/sakaiproject/nakamura/message/email/outgoing";
 
@@ -93,6 +131,8 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
   protected ConnectionFactoryService connFactoryService;
   @Reference
   protected TemplateService templateService;
+  @Reference
+  protected ClusterTrackingService clusterTrackingService;
 
   /**
    * If present points to a node
@@ -112,6 +152,10 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
 
   private Integer retryInterval;
 
+  private volatile SmtpConnectionPool pool;
+
+  private volatile DomainRateLimiter rateLimiter;
+
   public LiteOutgoingEmailMessageListener() {
   }
 
@@ -124,7 +168,6 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
     try {
       LOGGER.debug("Started handling email jms message.");
 
-      String nodePath = message.getStringProperty(NODE_PATH_PROPERTY);
       String contentPath = message.getStringProperty(CONTENT_PATH_PROPERTY);
       Object objRcpt = message.getObjectProperty(RECIPIENTS);
       List<String> recipients = null;
@@ -141,108 +184,169 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
 
       if (contentPath != null && contentPath.length() > 0) {
         javax.jcr.Session adminSession = repository.loginAdministrative(null);
-        org.sakaiproject.nakamura.api.lite.Session sparseSession = StorageClientUtils
-            .adaptToSession(adminSession);
-
         try {
-          ContentManager contentManager = sparseSession.getContentManager();
-          Content messageContent = contentManager.get(contentPath);
-
-          if (objRcpt != null) {
-            // validate the message
-            if (messageContent != null) {
-              if (messageContent.hasProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX)
-                  && (MessageConstants.BOX_OUTBOX.equals(messageContent
-                      .getProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX)) 
-                      || MessageConstants.BOX_PENDING.equals(messageContent.getProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX)))) {
-                if (messageContent.hasProperty(MessageConstants.PROP_SAKAI_MESSAGEERROR)) {
-                  // We're retrying this message, so clear the errors
-                  messageContent.setProperty(MessageConstants.PROP_SAKAI_MESSAGEERROR,
-                      (String) null);
-                }
-                if (messageContent.hasProperty(MessageConstants.PROP_SAKAI_TO)
-                    && messageContent.hasProperty(MessageConstants.PROP_SAKAI_FROM)) {
-                  // make a commons-email message from the message
-                  MultiPartEmail email = null;
-                  try {
-                    email = constructMessage(messageContent, recipients, adminSession,
-                        sparseSession);
-
-                    email.setSmtpPort(smtpPort);
-                    email.setHostName(smtpServer);
-
-                    email.send();
-                  } catch (EmailException e) {
-                    String exMessage = e.getMessage();
-                    Throwable cause = e.getCause();
-
-                    setError(messageContent, exMessage);
-                    LOGGER.warn("Unable to send email: " + exMessage);
-
-                    // Get the SMTP error code
-                    // There has to be a better way to do this
-                    boolean rescheduled = false;
-                    if (cause != null && cause.getMessage() != null) {
-                      String smtpError = cause.getMessage().trim();
-                      try {
-                        int errorCode = Integer.parseInt(smtpError.substring(0, 3));
-                        // All retry-able SMTP errors should have codes starting
-                        // with 4
-                        scheduleRetry(errorCode, messageContent);
-                        rescheduled = true;
-                      } catch (NumberFormatException nfe) {
-                        // smtpError didn't start with an error code, let's dig for
-                        // it
-                        String searchFor = "response:";
-                        int rindex = smtpError.indexOf(searchFor);
-                        if (rindex > -1
-                            && (rindex + searchFor.length()) < smtpError.length()) {
-                          int errorCode = Integer.parseInt(smtpError.substring(
-                              searchFor.length(), searchFor.length() + 3));
-                          scheduleRetry(errorCode, messageContent);
-                          rescheduled = true;
-                        }
-                      }
-                    }
-                    if (rescheduled) {
-                      LOGGER.info("Email {} rescheduled for redelivery. ", nodePath);
-                    } else {
-                      LOGGER
-                          .error(
-                              "Unable to reschedule email for delivery: "
-                                  + e.getMessage(), e);
-                    }
-                  }
-                } else {
-                  setError(messageContent, "Message must have a to and from set");
-                }
-              } else {
-                setError(messageContent, "Not an outbox");
-              }
-              if (!messageContent.hasProperty(MessageConstants.PROP_SAKAI_MESSAGEERROR)) {
-                messageContent.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX,
-                    MessageConstants.BOX_SENT);
-              }
+          deliver(contentPath, recipients, 0, false, adminSession,
+              StorageClientUtils.adaptToSession(adminSession));
+        } finally {
+          adminSession.logout();
+        }
+      }
+    } catch (JMSException e) {
+      LOGGER.error(e.getMessage(), e);
+    } catch (RepositoryException e) {
+      LOGGER.error(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Try again to send to the recipients held in the outbox that are due, and close SMTP
+   * connections that are no longer being used.
+   */
+  protected void sendDue() {
+    if (pool == null) {
+      return;
+    }
+    pool.closeIdle();
+    javax.jcr.Session adminSession = null;
+    try {
+      adminSession = repository.loginAdministrative(null);
+      sendDue(adminSession, StorageClientUtils.adaptToSession(adminSession),
+          System.currentTimeMillis());
+    } catch (RepositoryException e) {
+      LOGGER.error(e.getMessage(), e);
+    } catch (StorageClientException e) {
+      LOGGER.error(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      LOGGER.error(e.getMessage(), e);
+    } finally {
+      if (adminSession != null) {
+        adminSession.logout();
+      }
+    }
+  }
+
+  /**
+   * Send the outbox entries that are due in the partitions this server holds. An entry
+   * is only removed once it has been dealt with, if that fails it is sent again when the
+   * lease on it is over.
+   */
+  void sendDue(javax.jcr.Session adminSession,
+      org.sakaiproject.nakamura.api.lite.Session sparseSession, long now)
+      throws StorageClientException, AccessDeniedException {
+    ContentManager contentManager = sparseSession.getContentManager();
+    String serverId = clusterTrackingService.getCurrentServerId();
+    List<String> servers = new ArrayList<String>();
+    for (ClusterServer server : clusterTrackingService.getAllServers()) {
+      servers.add(server.getServerId());
+    }
+    for (String partition : EmailOutbox.getPartitions(contentManager)) {
+      if (!EmailOutbox.isHeldBy(partition, serverId, servers)) {
+        continue;
+      }
+      for (Content due : EmailOutbox.getDue(contentManager, partition, now)) {
+        Content entry = EmailOutbox.claim(contentManager, due.getPath(), now,
+            OUTBOX_LEASE);
+        if (entry == null) {
+          continue;
+        }
+        // the entry is added again for any recipients that still cannot be sent to.
+        if (deliver((String) entry.getProperty(EmailOutbox.CONTENT_PATH),
+            Arrays.asList((String[]) entry.getProperty(EmailOutbox.RECIPIENTS)),
+            StorageClientUtils.toLong(entry
+                .getProperty(MessageConstants.PROP_SAKAI_RETRY_COUNT)), true,
+            adminSession, sparseSession)) {
+          EmailOutbox.remove(contentManager, entry);
+        }
+      }
+      if (!partition.equals(serverId)) {
+        EmailOutbox.removeIfEmpty(contentManager, partition);
+      }
+    }
+  }
+
+  /**
+   * Send a message to its recipients, holding any that cannot be sent to now in the
+   * outbox.
+   *
+   * @param retryCount
+   *          the number of times sending to these recipients has failed already.
+   * @param fromOutbox
+   *          true if the recipients were held in the outbox, in which case the message
+   *          may already have been marked as sent to its other recipients.
+   * @return true if the message was dealt with, false if what happened could not be
+   *         stored, so the recipients should be tried again.
+   */
+  boolean deliver(String contentPath, List<String> recipients, long retryCount,
+      boolean fromOutbox, javax.jcr.Session adminSession,
+      org.sakaiproject.nakamura.api.lite.Session sparseSession) {
+    try {
+      ContentManager contentManager = sparseSession.getContentManager();
+      Content messageContent = contentManager.get(contentPath);
+      if (messageContent == null) {
+        return true;
+      }
+
+      if (recipients != null) {
+        // validate the message
+        Object box = messageContent.getProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX);
+        if (MessageConstants.BOX_OUTBOX.equals(box)
+            || MessageConstants.BOX_PENDING.equals(box)
+            || (fromOutbox && MessageConstants.BOX_SENT.equals(box))) {
+          if (messageContent.hasProperty(MessageConstants.PROP_SAKAI_MESSAGEERROR)) {
+            // We're retrying this message, so clear the errors
+            messageContent.setProperty(MessageConstants.PROP_SAKAI_MESSAGEERROR,
+                (String) null);
+          }
+          if (messageContent.hasProperty(MessageConstants.PROP_SAKAI_TO)
+              && messageContent.hasProperty(MessageConstants.PROP_SAKAI_FROM)) {
+            boolean deferred = false;
+            // make a commons-email message from the message
+            try {
+              MultiPartEmail email = constructMessage(messageContent, recipients,
+                  adminSession, sparseSession);
+
+              email.setSmtpPort(smtpPort);
+              email.setHostName(smtpServer);
+
+              deferred = send(contentManager, messageContent, email, retryCount);
+            } catch (EmailException e) {
+              setError(messageContent, e.getMessage());
+              LOGGER.warn("Unable to send email: " + e.getMessage());
+            } catch (MessagingException e) {
+              setError(messageContent, e.getMessage());
+              LOGGER.warn("Unable to send email: " + e.getMessage());
+            }
+            if (deferred
+                && !messageContent.hasProperty(MessageConstants.PROP_SAKAI_MESSAGEERROR)) {
+              messageContent.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX,
+                  MessageConstants.BOX_PENDING);
             }
           } else {
-            String retval = "null";
-            setError(messageContent,
-                "Expected recipients to be String or List<String>.  Found " + retval);
-          }
-        } finally {
-          if (adminSession != null) {
-            adminSession.logout();
+            setError(messageContent, "Message must have a to and from set");
           }
+        } else {
+          setError(messageContent, "Not an outbox");
+        }
+        if (!messageContent.hasProperty(MessageConstants.PROP_SAKAI_MESSAGEERROR)
+            && !MessageConstants.BOX_PENDING.equals(messageContent
+                .getProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX))) {
+          messageContent.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX,
+              MessageConstants.BOX_SENT);
         }
+      } else {
+        setError(messageContent,
+            "Expected recipients to be String or List<String>.  Found null");
       }
+      contentManager.update(messageContent);
+      return true;
     } catch (PathNotFoundException e) {
       LOGGER.error(e.getMessage(), e);
     } catch (RepositoryException e) {
       LOGGER.error(e.getMessage(), e);
-    } catch (JMSException e) {
-      LOGGER.error(e.getMessage(), e);
     } catch (EmailDeliveryException e) {
+      // the message is being dropped.
       LOGGER.error(e.getMessage());
+      return true;
     } catch (ClientPoolException e) {
       LOGGER.error(e.getMessage(), e);
     } catch (StorageClientException e) {
@@ -250,6 +354,170 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
     } catch (AccessDeniedException e) {
       LOGGER.error(e.getMessage(), e);
     }
+    return false;
+  }
+
+  /**
+   * Send a message on the pooled connections. The recipients at each domain are sent to
+   * as one SMTP transaction, as many as the rate of the domain allows, and the rest are
+   * held in the outbox until it allows more.
+   *
+   * @return true if any recipients were held in the outbox.
+   */
+  private boolean send(ContentManager contentManager, Content messageContent,
+      MultiPartEmail email, long retryCount) throws EmailException, MessagingException,
+      StorageClientException, AccessDeniedException {
+    if (pool == null) {
+      throw new EmailException("No SMTP server set");
+    }
+    email.buildMimeMessage();
+    MimeMessage mimeMessage = email.getMimeMessage();
+    mimeMessage.saveChanges();
+
+    Address[] recipients = mimeMessage.getAllRecipients();
+    if (recipients == null) {
+      throw new EmailException("Message has no recipients");
+    }
+    Map<String, List<Address>> byDomain = new LinkedHashMap<String, List<Address>>();
+    for (Address address : recipients) {
+      String domain = DomainRateLimiter.getDomain(getAddress(address));
+      if (!byDomain.containsKey(domain)) {
+        byDomain.put(domain, new ArrayList<Address>());
+      }
+      byDomain.get(domain).add(address);
+    }
+
+    boolean deferred = false;
+    long now = System.currentTimeMillis();
+    for (Entry<String, List<Address>> e : byDomain.entrySet()) {
+      List<Address> addresses = e.getValue();
+      int allowed = rateLimiter.acquire(e.getKey(), addresses.size(), now);
+      if (allowed < addresses.size()) {
+        EmailOutbox.add(contentManager, clusterTrackingService.getCurrentServerId(),
+            messageContent.getPath(),
+            getAddresses(addresses.subList(allowed, addresses.size())),
+            now + rateLimiter.getDelay(e.getKey(), now), retryCount);
+        deferred = true;
+      }
+      if (allowed > 0) {
+        List<Address> sending = addresses.subList(0, allowed);
+        try {
+          pool.send(mimeMessage, sending.toArray(new Address[sending.size()]));
+        } catch (MessagingException ex) {
+          deferred |= retry(contentManager, messageContent, sending, retryCount, ex);
+        }
+      }
+    }
+    return deferred;
+  }
+
+  /**
+   * Hold recipients that could not be sent to in the outbox, if the SMTP server said to
+   * try again or could not be reached, backing off each time.
+   *
+   * @return true if any recipients were held in the outbox.
+   */
+  private boolean retry(ContentManager contentManager, Content messageContent,
+      List<Address> addresses, long retryCount, MessagingException e)
+      throws StorageClientException, AccessDeniedException {
+    List<String> unsent = getAddresses(addresses);
+    // All retry-able SMTP errors should have codes starting with 4, no code means the
+    // server could not be reached.
+    int errorCode = getSmtpErrorCode(e);
+    boolean temporary = errorCode == -1 || (errorCode / 100) == 4;
+    if (e instanceof SendFailedException) {
+      SendFailedException sfe = (SendFailedException) e;
+      if (sfe.getValidSentAddresses() != null) {
+        unsent.removeAll(getAddresses(Arrays.asList(sfe.getValidSentAddresses())));
+      }
+      if (sfe.getInvalidAddresses() != null) {
+        List<String> invalid = getAddresses(Arrays.asList(sfe.getInvalidAddresses()));
+        if (!invalid.isEmpty()) {
+          unsent.removeAll(invalid);
+          setError(messageContent, "Invalid recipients " + invalid);
+          // the rest were only held back by the invalid ones.
+          temporary = true;
+        }
+      }
+    }
+    if (unsent.isEmpty()) {
+      return false;
+    }
+    LOGGER.warn("Unable to send email: " + e.getMessage());
+    if (!temporary) {
+      setError(messageContent, e.getMessage());
+      return false;
+    }
+    if (getRetryWindow(retryCount, retryInterval) > (long) maxRetries * retryInterval) {
+      setError(messageContent, "Unable to send message, exhausted SMTP retries.");
+      return false;
+    }
+    EmailOutbox.add(contentManager, clusterTrackingService.getCurrentServerId(),
+        messageContent.getPath(), unsent,
+        System.currentTimeMillis() + getRetryDelay(retryCount, retryInterval) * 60000L,
+        retryCount + 1);
+    LOGGER.info("Email {} rescheduled for redelivery to {} recipients. ",
+        messageContent.getPath(), unsent.size());
+    return true;
+  }
+
+  /**
+   * @return the minutes to wait before the retry after <code>retryCount</code> failed
+   *         retries, doubling each time up to {@link #MAX_BACKOFF} times the interval.
+   */
+  static long getRetryDelay(long retryCount, long retryInterval) {
+    return retryInterval * Math.min(1L << Math.min(retryCount, 30), MAX_BACKOFF);
+  }
+
+  /**
+   * @return the minutes from the first failure until the retry after
+   *         <code>retryCount</code> failed retries.
+   */
+  static long getRetryWindow(long retryCount, long retryInterval) {
+    long window = 0;
+    for (long i = 0; i <= retryCount; i++) {
+      window += getRetryDelay(i, retryInterval);
+    }
+    return window;
+  }
+
+  /**
+   * @return the SMTP reply code from an exception or the exceptions it wraps, or -1.
+   */
+  static int getSmtpErrorCode(Exception e) {
+    Exception ex = e;
+    while (ex != null) {
+      String message = ex.getMessage();
+      if (message != null) {
+        message = message.trim();
+        int rindex = message.indexOf("response:");
+        if (rindex > -1) {
+          message = message.substring(rindex + "response:".length()).trim();
+        }
+        if (message.length() >= 3 && Character.isDigit(message.charAt(0))
+            && Character.isDigit(message.charAt(1)) && Character.isDigit(message.charAt(2))) {
+          return Integer.parseInt(message.substring(0, 3));
+        }
+      }
+      ex = (ex instanceof MessagingException) ? ((MessagingException) ex)
+          .getNextException() : null;
+    }
+    return -1;
+  }
+
+  private static String getAddress(Address address) {
+    if (address instanceof InternetAddress) {
+      return ((InternetAddress) address).getAddress();
+    }
+    return address.toString();
+  }
+
+  private static List<String> getAddresses(List<Address> addresses) {
+    List<String> rv = new ArrayList<String>();
+    for (Address address : addresses) {
+      rv.add(getAddress(address));
+    }
+    return rv;
   }
 
   private MultiPartEmail constructMessage(Content contentNode, List<String> recipients,
@@ -399,52 +667,45 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
     return address;
   }
 
-  private void scheduleRetry(int errorCode, Content contentNode) {
-    // All retry-able SMTP errors should have codes starting with 4
-    if ((errorCode / 100) == 4) {
-      long retryCount = 0;
-      if (contentNode.hasProperty(MessageConstants.PROP_SAKAI_RETRY_COUNT)) {
-        retryCount = StorageClientUtils.toLong(contentNode
-            .getProperty(MessageConstants.PROP_SAKAI_RETRY_COUNT));
-      }
-
-      if (retryCount < maxRetries) {
-        Job job = new Job() {
-
-          public void execute(JobContext jc) {
-            Map<String, Serializable> config = jc.getConfiguration();
-            Properties eventProps = new Properties();
-            eventProps.put(NODE_PATH_PROPERTY, config.get(NODE_PATH_PROPERTY));
-
-            Event retryEvent = new Event(QUEUE_NAME, eventProps);
-            eventAdmin.postEvent(retryEvent);
-
-          }
-        };
-
-        HashMap<String, Serializable> jobConfig = new HashMap<String, Serializable>();
-        jobConfig.put(NODE_PATH_PROPERTY, contentNode.getPath());
+  protected void activate(ComponentContext ctx) {
+    @SuppressWarnings("rawtypes")
+    Dictionary props = ctx.getProperties();
+    configure(props);
 
-        int retryIntervalMillis = retryInterval * 60000;
-        Date nextTry = new Date(System.currentTimeMillis() + (retryIntervalMillis));
+    try {
+      scheduler.addPeriodicJob(OUTBOX_JOB, new Runnable() {
+        public void run() {
+          sendDue();
+        }
+      }, new HashMap<String, Serializable>(), OsgiUtil.toLong(props.get(OUTBOX_INTERVAL),
+          60), false);
+    } catch (Exception e) {
+      LOGGER.error("Failed to add periodic job for the email outbox", e);
+    }
 
+    try {
+      connection = connFactoryService.getDefaultConnectionFactory().createConnection();
+      Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      Queue dest = session.createQueue(QUEUE_NAME);
+      MessageConsumer consumer = session.createConsumer(dest);
+      consumer.setMessageListener(this);
+      connection.start();
+    } catch (JMSException e) {
+      LOGGER.error(e.getMessage(), e);
+      if (connection != null) {
         try {
-          scheduler.fireJobAt(null, job, jobConfig, nextTry);
-        } catch (Exception e) {
-          LOGGER.error(e.getMessage(), e);
+          connection.close();
+        } catch (JMSException e1) {
         }
-      } else {
-        setError(contentNode, "Unable to send message, exhausted SMTP retries.");
       }
-    } else {
-      LOGGER.warn("Not scheduling a retry for error code not of the form 4xx.");
     }
   }
 
-  protected void activate(ComponentContext ctx) {
-    @SuppressWarnings("rawtypes")
-    Dictionary props = ctx.getProperties();
-
+  /**
+   * Take the SMTP settings from the component properties, connections are made with
+   * them from then on.
+   */
+  void configure(@SuppressWarnings("rawtypes") Dictionary props) {
     Integer _maxRetries = OsgiUtil.toInteger(props.get(MAX_RETRIES), -1);
     if (_maxRetries > -1 ) {
       if (diff(maxRetries, _maxRetries)) {
@@ -463,6 +724,7 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
       LOGGER.error("SMTP retry interval not set.");
     }
 
+    // retries back off but stop at this window, see MAX_BACKOFF.
     if (maxRetries * retryInterval < 4320 /* minutes in 3 days */) {
       LOGGER.warn("SMTP retry window is very short.");
     }
@@ -487,22 +749,17 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
       LOGGER.error("No SMTP server set");
     }
 
-    try {
-      connection = connFactoryService.getDefaultConnectionFactory().createConnection();
-      Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-      Queue dest = session.createQueue(QUEUE_NAME);
-      MessageConsumer consumer = session.createConsumer(dest);
-      consumer.setMessageListener(this);
-      connection.start();
-    } catch (JMSException e) {
-      LOGGER.error(e.getMessage(), e);
-      if (connection != null) {
-        try {
-          connection.close();
-        } catch (JMSException e1) {
-        }
-      }
+    if (pool != null) {
+      pool.close();
+      pool = null;
+    }
+    if (smtpServer != null && smtpPort != null) {
+      pool = new SmtpConnectionPool(smtpServer, smtpPort, OsgiUtil.toInteger(
+          props.get(SMTP_MAX_CONNECTIONS), 2), OsgiUtil.toInteger(
+          props.get(SMTP_MAX_MESSAGES_PER_CONNECTION), 100), SMTP_MAX_IDLE);
     }
+    rateLimiter = new DomainRateLimiter(OsgiUtil.toInteger(props.get(DOMAIN_RATE), 0),
+        OsgiUtil.toStringArray(props.get(DOMAIN_RATES)));
   }
 
   protected void deactivate(ComponentContext ctx) {
@@ -512,6 +769,12 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
       } catch (JMSException e) {
       }
     }
+    if (scheduler != null) {
+      scheduler.removeJob(OUTBOX_JOB);
+    }
+    if (pool != null) {
+      pool.close();
+    }
   }
 
   private void setError(Content node, String error) {
@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Keeps connections to the SMTP server open between messages, so a run of messages does
+ * not pay for a connection (and handshake) each. A connection is used for a bounded
+ * number of messages and is closed once it has been idle for a while, and at most a fixed
+ * number are open at once, senders waiting for one to come free.
+ */
+public class SmtpConnectionPool {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SmtpConnectionPool.class);
+
+  private static final String TIMEOUT = "60000";
+
+  private final Session session;
+
+  private final int maxMessagesPerConnection;
+
+  private final long maxIdleMillis;
+
+  private final Semaphore permits;
+
+  /**
+   * The most recently used connection first.
+   */
+  private final LinkedList<PooledTransport> idle = new LinkedList<PooledTransport>();
+
+  private final AtomicInteger opened = new AtomicInteger();
+
+  private volatile boolean closed;
+
+  /**
+   * @param host
+   *          the SMTP server.
+   * @param port
+   *          the SMTP port.
+   * @param maxConnections
+   *          the most connections to have open at once.
+   * @param maxMessagesPerConnection
+   *          the number of messages to send on a connection before opening a new one.
+   * @param maxIdleMillis
+   *          how long a connection may sit unused before it is closed.
+   */
+  public SmtpConnectionPool(String host, int port, int maxConnections,
+      int maxMessagesPerConnection, long maxIdleMillis) {
+    Properties properties = new Properties();
+    properties.put("mail.smtp.host", host);
+    properties.put("mail.smtp.port", String.valueOf(port));
+    properties.put("mail.smtp.connectiontimeout", TIMEOUT);
+    properties.put("mail.smtp.timeout", TIMEOUT);
+    this.session = Session.getInstance(properties);
+    this.permits = new Semaphore(Math.max(1, maxConnections), true);
+    this.maxMessagesPerConnection = Math.max(1, maxMessagesPerConnection);
+    this.maxIdleMillis = maxIdleMillis;
+  }
+
+  /**
+   * Send a message on a pooled connection. The message must already have had
+   * {@link MimeMessage#saveChanges()} called on it.
+   *
+   * @param message
+   *          the message to send.
+   * @param recipients
+   *          who to send it to, which may be some of the recipients of the message.
+   * @throws MessagingException
+   *           if the message could not be sent, the connection is not reused.
+   */
+  public void send(MimeMessage message, Address[] recipients) throws MessagingException {
+    if (closed) {
+      throw new MessagingException("SMTP connection pool has been closed");
+    }
+    permits.acquireUninterruptibly();
+    PooledTransport pooled = null;
+    try {
+      pooled = borrow();
+      pooled.transport.sendMessage(message, recipients);
+      pooled.sent++;
+      giveBack(pooled);
+      pooled = null;
+    } finally {
+      if (pooled != null) {
+        close(pooled);
+      }
+      permits.release();
+    }
+  }
+
+  /**
+   * Close the connections that have been idle for too long.
+   */
+  public void closeIdle() {
+    long now = System.currentTimeMillis();
+    LinkedList<PooledTransport> expired = new LinkedList<PooledTransport>();
+    synchronized (idle) {
+      for (Iterator<PooledTransport> i = idle.iterator(); i.hasNext();) {
+        PooledTransport pooled = i.next();
+        if (now - pooled.lastUsed > maxIdleMillis) {
+          i.remove();
+          expired.add(pooled);
+        }
+      }
+    }
+    for (PooledTransport pooled : expired) {
+      close(pooled);
+    }
+  }
+
+  /**
+   * Close all the connections, no more messages can be sent.
+   */
+  public void close() {
+    closed = true;
+    LinkedList<PooledTransport> all;
+    synchronized (idle) {
+      all = new LinkedList<PooledTransport>(idle);
+      idle.clear();
+    }
+    for (PooledTransport pooled : all) {
+      close(pooled);
+    }
+  }
+
+  /**
+   * @return the number of connections that have been opened.
+   */
+  public int getConnectionsOpened() {
+    return opened.get();
+  }
+
+  private PooledTransport borrow() throws MessagingException {
+    long now = System.currentTimeMillis();
+    while (true) {
+      PooledTransport pooled;
+      synchronized (idle) {
+        pooled = idle.poll();
+      }
+      if (pooled == null) {
+        break;
+      }
+      // the server may have dropped a connection that has sat for a while, isConnected
+      // checks it is still there.
+      if (now - pooled.lastUsed <= maxIdleMillis && pooled.transport.isConnected()) {
+        return pooled;
+      }
+      close(pooled);
+    }
+    Transport transport = session.getTransport("smtp");
+    transport.connect();
+    opened.incrementAndGet();
+    return new PooledTransport(transport);
+  }
+
+  private void giveBack(PooledTransport pooled) {
+    if (closed || pooled.sent >= maxMessagesPerConnection) {
+      close(pooled);
+      return;
+    }
+    pooled.lastUsed = System.currentTimeMillis();
+    synchronized (idle) {
+      idle.addFirst(pooled);
+    }
+  }
+
+  private void close(PooledTransport pooled) {
+    try {
+      pooled.transport.close();
+    } catch (MessagingException e) {
+      LOGGER.debug("Failed to close SMTP connection {}", e.getMessage());
+    }
+  }
+
+  private static final class PooledTransport {
+    private final Transport transport;
+    private int sent;
+    private long lastUsed;
+
+    private PooledTransport(Transport transport) {
+      this.transport = transport;
+      this.lastUsed = System.currentTimeMillis();
+    }
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.getCurrentArguments;
+import static org.easymock.EasyMock.replay;
+
+import org.easymock.IAnswer;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A content manager that keeps content in a map, for the parts of the outbox and the
+ * listener that get, list, update and delete content.
+ */
+class ContentStore {
+
+  final Map<String, Map<String, Object>> content = new HashMap<String, Map<String, Object>>();
+
+  /**
+   * Paths that can not be updated.
+   */
+  final Set<String> failing = new HashSet<String>();
+
+  /**
+   * Paths that have been read.
+   */
+  final List<String> read = new ArrayList<String>();
+
+  final ContentManager contentManager;
+
+  ContentStore() throws Exception {
+    contentManager = createMock(ContentManager.class);
+    expect(contentManager.get((String) anyObject())).andAnswer(new IAnswer<Content>() {
+      public Content answer() {
+        String path = (String) getCurrentArguments()[0];
+        read.add(path);
+        Map<String, Object> properties = content.get(path);
+        return properties == null ? null : new Content(path,
+            new HashMap<String, Object>(properties));
+      }
+    }).anyTimes();
+    expect(contentManager.exists((String) anyObject())).andAnswer(new IAnswer<Boolean>() {
+      public Boolean answer() {
+        return content.containsKey(getCurrentArguments()[0]);
+      }
+    }).anyTimes();
+    expect(contentManager.listChildPaths((String) anyObject())).andAnswer(
+        new IAnswer<Iterator<String>>() {
+          public Iterator<String> answer() {
+            String prefix = getCurrentArguments()[0] + "/";
+            List<String> children = new ArrayList<String>();
+            for (String path : content.keySet()) {
+              if (path.startsWith(prefix) && path.indexOf('/', prefix.length()) < 0) {
+                children.add(path);
+              }
+            }
+            return children.iterator();
+          }
+        }).anyTimes();
+    contentManager.update((Content) anyObject());
+    expectLastCall().andAnswer(new IAnswer<Object>() {
+      public Object answer() throws Throwable {
+        Content updated = (Content) getCurrentArguments()[0];
+        if (failing.contains(updated.getPath())) {
+          throw new StorageClientException("Unable to update " + updated.getPath());
+        }
+        content.put(updated.getPath(), new HashMap<String, Object>(updated
+            .getProperties()));
+        return null;
+      }
+    }).anyTimes();
+    contentManager.delete((String) anyObject());
+    expectLastCall().andAnswer(new IAnswer<Object>() {
+      public Object answer() {
+        content.remove(getCurrentArguments()[0]);
+        return null;
+      }
+    }).anyTimes();
+    replay(contentManager);
+  }
+
+  /**
+   * @return the entries in the outbox.
+   */
+  List<Map<String, Object>> getOutbox() {
+    List<Map<String, Object>> outbox = new ArrayList<Map<String, Object>>();
+    for (Map.Entry<String, Map<String, Object>> e : content.entrySet()) {
+      if (e.getKey().startsWith(EmailOutbox.OUTBOX_PATH + "/")
+          && e.getValue().containsKey(EmailOutbox.CONTENT_PATH)) {
+        outbox.add(e.getValue());
+      }
+    }
+    return outbox;
+  }
+}
@@ -0,0 +1,51 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class DomainRateLimiterTest {
+
+  @Test
+  public void testDomainLimits() {
+    DomainRateLimiter limiter = new DomainRateLimiter(0, new String[] {
+        "example.com=60", "bad" });
+    long now = 1000000L;
+    assertEquals(500, limiter.acquire("example.org", 500, now));
+    assertEquals(0, limiter.getDelay("example.org", now));
+
+    assertEquals(40, limiter.acquire("example.com", 40, now));
+    assertEquals(20, limiter.acquire("example.com", 40, now));
+    assertEquals(0, limiter.acquire("example.com", 1, now));
+    assertEquals(1000, limiter.getDelay("example.com", now));
+
+    // a second later there is room for one more.
+    assertEquals(1, limiter.acquire("example.com", 5, now + 1000));
+  }
+
+  @Test
+  public void testDefaultLimit() {
+    DomainRateLimiter limiter = new DomainRateLimiter(10, null);
+    long now = 1000000L;
+    assertEquals(10, limiter.acquire("example.org", 50, now));
+    assertEquals(6000, limiter.getDelay("example.org", now));
+    assertEquals("example.org", DomainRateLimiter.getDomain("Someone@Example.ORG"));
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class EmailOutboxTest {
+
+  private static final String MESSAGE = "a:ieb/message/ab/cd/msg1";
+
+  private ContentStore store;
+  private ContentManager contentManager;
+  private long now;
+
+  @Before
+  public void setUp() throws Exception {
+    store = new ContentStore();
+    contentManager = store.contentManager;
+    now = System.currentTimeMillis();
+  }
+
+  @Test
+  public void testDue() throws Exception {
+    assertEquals(0, EmailOutbox.getDue(contentManager, "server1", now).size());
+    EmailOutbox.add(contentManager, "server1", MESSAGE, Arrays.asList("a@example.com",
+        "b@example.com"), now, 2);
+    EmailOutbox.add(contentManager, "server1", MESSAGE, Arrays.asList("c@example.com"),
+        now + 1000, 0);
+
+    List<Content> due = EmailOutbox.getDue(contentManager, "server1", now);
+    assertEquals(1, due.size());
+    Content entry = due.get(0);
+    assertEquals(MESSAGE, entry.getProperty(EmailOutbox.CONTENT_PATH));
+    assertArrayEquals(new String[] { "a@example.com", "b@example.com" },
+        (String[]) entry.getProperty(EmailOutbox.RECIPIENTS));
+    assertEquals(2, EmailOutbox.getDue(contentManager, "server1", now + 1000).size());
+    assertEquals(0, EmailOutbox.getDue(contentManager, "server2", now + 1000).size());
+  }
+
+  @Test
+  public void testOnlyDueBucketsRead() throws Exception {
+    EmailOutbox.add(contentManager, "server1", MESSAGE, Arrays.asList("a@example.com"),
+        now, 0);
+    EmailOutbox.add(contentManager, "server1", MESSAGE, Arrays.asList("b@example.com"),
+        now + 3600000L, 0);
+    String later = EmailOutbox.OUTBOX_PATH + "/server1/"
+        + ((now + 3600000L) / EmailOutbox.BUCKET_SIZE) + "/";
+
+    assertEquals(1, EmailOutbox.getDue(contentManager, "server1", now).size());
+    assertEquals(1, store.read.size());
+    assertFalse(store.read.get(0).startsWith(later));
+  }
+
+  @Test
+  public void testClaim() throws Exception {
+    EmailOutbox.add(contentManager, "server1", MESSAGE, Arrays.asList("a@example.com"),
+        now, 0);
+    String path = EmailOutbox.getDue(contentManager, "server1", now).get(0).getPath();
+
+    assertNotNull(EmailOutbox.claim(contentManager, path, now, 1000));
+    // leased until the lease is over.
+    assertNull(EmailOutbox.claim(contentManager, path, now, 1000));
+    assertEquals(0, EmailOutbox.getDue(contentManager, "server1", now + 999).size());
+
+    assertEquals(1, EmailOutbox.getDue(contentManager, "server1", now + 1000).size());
+    assertNotNull(EmailOutbox.claim(contentManager, path, now + 1000, 1000));
+  }
+
+  @Test
+  public void testClaimNotDue() throws Exception {
+    EmailOutbox.add(contentManager, "server1", MESSAGE, Arrays.asList("a@example.com"),
+        now + 1000, 0);
+    String path = EmailOutbox.getDue(contentManager, "server1", now + 1000).get(0)
+        .getPath();
+    assertNull(EmailOutbox.claim(contentManager, path, now, 1000));
+  }
+
+  @Test
+  public void testRemove() throws Exception {
+    EmailOutbox.add(contentManager, "server1", MESSAGE, Arrays.asList("a@example.com"),
+        now, 0);
+    Content entry = EmailOutbox.getDue(contentManager, "server1", now).get(0);
+    EmailOutbox.remove(contentManager, entry);
+    assertEquals(0, EmailOutbox.getDue(contentManager, "server1", now).size());
+    // an entry that has gone can not be claimed.
+    assertNull(EmailOutbox.claim(contentManager, entry.getPath(), now, 1000));
+    // nor is its empty bucket kept.
+    assertFalse(contentManager.exists(StorageClientUtils.getParentObjectPath(entry
+        .getPath())));
+
+    EmailOutbox.removeIfEmpty(contentManager, "server1");
+    assertEquals(0, EmailOutbox.getPartitions(contentManager).size());
+  }
+
+  @Test
+  public void testIsHeldBy() {
+    List<String> servers = Arrays.asList("server1", "server2", "server3");
+    assertTrue(EmailOutbox.isHeldBy("server1", "server1", servers));
+    assertFalse(EmailOutbox.isHeldBy("server2", "server1", servers));
+
+    // a partition of a server that has left is held by exactly one of the others.
+    for (String partition : new String[] { "gone1", "gone2", "gone3", "gone4" }) {
+      int holders = 0;
+      for (String server : servers) {
+        if (EmailOutbox.isHeldBy(partition, server, servers)) {
+          holders++;
+        }
+      }
+      assertEquals(1, holders);
+    }
+
+    // a server that is not part of the cluster yet only holds its own partition.
+    assertTrue(EmailOutbox.isHeldBy("server4", "server4", servers));
+    assertFalse(EmailOutbox.isHeldBy("gone1", "server4", servers));
+  }
+
+  @Test
+  public void testServersRacingClaimEachEntryOnce() throws Exception {
+    List<String> servers = Arrays.asList("server1", "server2");
+    EmailOutbox.add(contentManager, "server1", MESSAGE, Arrays.asList("a@example.com"),
+        now, 0);
+    EmailOutbox.add(contentManager, "server2", MESSAGE, Arrays.asList("b@example.com"),
+        now, 0);
+    EmailOutbox.add(contentManager, "gone", MESSAGE, Arrays.asList("c@example.com"),
+        now, 0);
+
+    // both servers look for due entries before either claims one.
+    List<Content> first = getDueHeldBy("server1", servers);
+    List<Content> second = getDueHeldBy("server2", servers);
+
+    Set<String> claimed = new HashSet<String>();
+    for (List<Content> due : Arrays.asList(first, second)) {
+      for (Content entry : due) {
+        assertNotNull(EmailOutbox.claim(contentManager, entry.getPath(), now, 1000));
+        assertTrue(claimed.add(entry.getPath()));
+      }
+    }
+    assertEquals(3, claimed.size());
+  }
+
+  private List<Content> getDueHeldBy(String server, List<String> servers)
+      throws Exception {
+    List<Content> due = new ArrayList<Content>();
+    for (String partition : EmailOutbox.getPartitions(contentManager)) {
+      if (EmailOutbox.isHeldBy(partition, server, servers)) {
+        due.addAll(EmailOutbox.getDue(contentManager, partition, now));
+      }
+    }
+    return due;
+  }
+}
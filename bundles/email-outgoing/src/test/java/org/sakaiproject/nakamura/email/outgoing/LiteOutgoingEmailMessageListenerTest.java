@@ -0,0 +1,307 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.cluster.ClusterServer;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.subethamail.wiser.Wiser;
+
+import java.net.BindException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+public class LiteOutgoingEmailMessageListenerTest {
+
+  private static final String MESSAGE = "a:ieb/message/ab/cd/msg1";
+
+  private static Wiser wiser;
+  private static int smtpPort;
+
+  private ContentStore store;
+  private Session session;
+  private LiteOutgoingEmailMessageListener listener;
+
+  @BeforeClass
+  public static void startWiser() {
+    wiser = new Wiser();
+    smtpPort = 8025;
+    boolean started = false;
+    while (!started) {
+      wiser.setPort(smtpPort);
+      try {
+        wiser.start();
+        started = true;
+      } catch (RuntimeException re) {
+        if (re.getCause() instanceof BindException) {
+          smtpPort++;
+        }
+      }
+    }
+  }
+
+  @AfterClass
+  public static void stopWiser() {
+    wiser.stop();
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    wiser.getMessages().clear();
+    store = new ContentStore();
+    session = createMock(Session.class);
+    expect(session.getContentManager()).andReturn(store.contentManager).anyTimes();
+    replay(session);
+    listener = createListener("server1");
+  }
+
+  @After
+  public void tearDown() {
+    listener.deactivate(null);
+  }
+
+  @Test
+  public void testDeliver() throws Exception {
+    addMessage(MessageConstants.BOX_OUTBOX, "a@example.com");
+    assertTrue(listener.deliver(MESSAGE, Arrays.asList("a@example.com"), 0, false, null,
+        session));
+    assertEquals(1, wiser.getMessages().size());
+    assertEquals("a@example.com", wiser.getMessages().get(0).getEnvelopeReceiver());
+    assertEquals(MessageConstants.BOX_SENT, getMessage().get(
+        MessageConstants.PROP_SAKAI_MESSAGEBOX));
+    assertEquals(0, store.getOutbox().size());
+  }
+
+  @Test
+  public void testDeliverOverDomainRate() throws Exception {
+    configure(smtpPort, 240, "example.com=1");
+    addMessage(MessageConstants.BOX_OUTBOX, "a@example.com,b@example.com");
+    assertTrue(listener.deliver(MESSAGE, Arrays.asList("a@example.com", "b@example.com"),
+        0, false, null, session));
+    assertEquals(1, wiser.getMessages().size());
+    assertEquals(MessageConstants.BOX_PENDING, getMessage().get(
+        MessageConstants.PROP_SAKAI_MESSAGEBOX));
+
+    List<Map<String, Object>> outbox = store.getOutbox();
+    assertEquals(1, outbox.size());
+    assertEquals(1, ((String[]) outbox.get(0).get(EmailOutbox.RECIPIENTS)).length);
+    assertEquals(0L, StorageClientUtils.toLong(outbox.get(0).get(
+        MessageConstants.PROP_SAKAI_RETRY_COUNT)));
+  }
+
+  @Test
+  public void testRetryBacksOff() throws Exception {
+    configure(getClosedPort(), 240, null);
+    addMessage(MessageConstants.BOX_PENDING, "a@example.com");
+    long before = System.currentTimeMillis();
+    assertTrue(listener.deliver(MESSAGE, Arrays.asList("a@example.com"), 2, true, null,
+        session));
+    long after = System.currentTimeMillis();
+
+    List<Map<String, Object>> outbox = store.getOutbox();
+    assertEquals(1, outbox.size());
+    assertEquals(3L, StorageClientUtils.toLong(outbox.get(0).get(
+        MessageConstants.PROP_SAKAI_RETRY_COUNT)));
+    // the third retry waits four intervals.
+    long nextAttempt = StorageClientUtils.toLong(outbox.get(0).get(
+        EmailOutbox.NEXT_ATTEMPT));
+    assertTrue(nextAttempt >= before + 120 * 60000L);
+    assertTrue(nextAttempt <= after + 120 * 60000L);
+    assertEquals(MessageConstants.BOX_PENDING, getMessage().get(
+        MessageConstants.PROP_SAKAI_MESSAGEBOX));
+  }
+
+  @Test
+  public void testRetriesExhausted() throws Exception {
+    // two intervals in all, the second retry would be three intervals after the first
+    // failure.
+    configure(getClosedPort(), 2, null);
+    addMessage(MessageConstants.BOX_PENDING, "a@example.com");
+    assertTrue(listener.deliver(MESSAGE, Arrays.asList("a@example.com"), 1, true, null,
+        session));
+    assertEquals(0, store.getOutbox().size());
+    assertEquals("Unable to send message, exhausted SMTP retries.", getMessage().get(
+        MessageConstants.PROP_SAKAI_MESSAGEERROR));
+  }
+
+  @Test
+  public void testRetryWindow() {
+    assertEquals(30, LiteOutgoingEmailMessageListener.getRetryDelay(0, 30));
+    assertEquals(240, LiteOutgoingEmailMessageListener.getRetryDelay(3, 30));
+    assertEquals(480, LiteOutgoingEmailMessageListener.getRetryDelay(4, 30));
+    assertEquals(480, LiteOutgoingEmailMessageListener.getRetryDelay(100, 30));
+    assertEquals(30, LiteOutgoingEmailMessageListener.getRetryWindow(0, 30));
+    assertEquals(90, LiteOutgoingEmailMessageListener.getRetryWindow(1, 30));
+    assertEquals(930, LiteOutgoingEmailMessageListener.getRetryWindow(4, 30));
+    assertEquals(1410, LiteOutgoingEmailMessageListener.getRetryWindow(5, 30));
+  }
+
+  @Test
+  public void testSendDue() throws Exception {
+    addMessage(MessageConstants.BOX_PENDING, "a@example.com");
+    long now = System.currentTimeMillis();
+    EmailOutbox.add(store.contentManager, "server1", MESSAGE,
+        Arrays.asList("a@example.com"), now, 1);
+    EmailOutbox.add(store.contentManager, "server1", MESSAGE,
+        Arrays.asList("b@example.com"), now + 60000L, 1);
+
+    listener.sendDue(null, session, now);
+    assertEquals(1, wiser.getMessages().size());
+    assertEquals("a@example.com", wiser.getMessages().get(0).getEnvelopeReceiver());
+    assertEquals(1, store.getOutbox().size());
+    assertEquals(MessageConstants.BOX_SENT, getMessage().get(
+        MessageConstants.PROP_SAKAI_MESSAGEBOX));
+  }
+
+  @Test
+  public void testSendDueLeavesEntriesHeldElsewhere() throws Exception {
+    addMessage(MessageConstants.BOX_PENDING, "a@example.com");
+    long now = System.currentTimeMillis();
+    EmailOutbox.add(store.contentManager, "server2", MESSAGE,
+        Arrays.asList("a@example.com"), now, 1);
+
+    listener.sendDue(null, session, now);
+    assertEquals(0, wiser.getMessages().size());
+    assertEquals(1, store.getOutbox().size());
+  }
+
+  @Test
+  public void testServersRacingSendEachEntryOnce() throws Exception {
+    addMessage(MessageConstants.BOX_PENDING, "a@example.com,b@example.com");
+    long now = System.currentTimeMillis();
+    EmailOutbox.add(store.contentManager, "server1", MESSAGE,
+        Arrays.asList("a@example.com"), now, 1);
+    // left by a server that is no longer part of the cluster.
+    EmailOutbox.add(store.contentManager, "gone", MESSAGE, Arrays.asList("b@example.com"),
+        now, 1);
+
+    LiteOutgoingEmailMessageListener other = createListener("server2");
+    try {
+      listener.sendDue(null, session, now);
+      other.sendDue(null, session, now);
+      listener.sendDue(null, session, now + 3600000L);
+      other.sendDue(null, session, now + 3600000L);
+    } finally {
+      other.deactivate(null);
+    }
+    assertEquals(2, wiser.getMessages().size());
+    assertFalse(wiser.getMessages().get(0).getEnvelopeReceiver().equals(
+        wiser.getMessages().get(1).getEnvelopeReceiver()));
+    assertEquals(0, store.getOutbox().size());
+    assertEquals(Arrays.asList("server1"), EmailOutbox.getPartitions(store.contentManager));
+  }
+
+  @Test
+  public void testSendDueKeepsEntryUntilStored() throws Exception {
+    addMessage(MessageConstants.BOX_PENDING, "a@example.com");
+    long now = System.currentTimeMillis();
+    EmailOutbox.add(store.contentManager, "server1", MESSAGE,
+        Arrays.asList("a@example.com"), now, 1);
+
+    // the message is sent, but can not be marked as sent.
+    store.failing.add(MESSAGE);
+    listener.sendDue(null, session, now);
+    assertEquals(1, wiser.getMessages().size());
+    assertEquals(1, store.getOutbox().size());
+
+    // this server holds the entry until the lease is over.
+    listener.sendDue(null, session, now + 1000L);
+    assertEquals(1, wiser.getMessages().size());
+
+    store.failing.clear();
+    listener.sendDue(null, session, now + 3600000L);
+    assertEquals(2, wiser.getMessages().size());
+    assertEquals(0, store.getOutbox().size());
+    assertFalse(getMessage().containsKey(MessageConstants.PROP_SAKAI_MESSAGEERROR));
+  }
+
+  private LiteOutgoingEmailMessageListener createListener(String serverId) {
+    ClusterTrackingService clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn(serverId).anyTimes();
+    List<ClusterServer> servers = new ArrayList<ClusterServer>();
+    for (String id : new String[] { "server1", "server2" }) {
+      ClusterServer server = createMock(ClusterServer.class);
+      expect(server.getServerId()).andReturn(id).anyTimes();
+      replay(server);
+      servers.add(server);
+    }
+    expect(clusterTrackingService.getAllServers()).andReturn(servers).anyTimes();
+    replay(clusterTrackingService);
+    LiteOutgoingEmailMessageListener listener = new LiteOutgoingEmailMessageListener();
+    listener.clusterTrackingService = clusterTrackingService;
+    configure(listener, smtpPort, 240, null);
+    return listener;
+  }
+
+  private void configure(int port, int maxRetries, String domainRates) {
+    configure(listener, port, maxRetries, domainRates);
+  }
+
+  private void configure(LiteOutgoingEmailMessageListener listener, int port,
+      int maxRetries, String domainRates) {
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put("sakai.smtp.server", "localhost");
+    props.put("sakai.smtp.port", port);
+    props.put("sakai.email.maxRetries", maxRetries);
+    props.put("sakai.email.retryIntervalMinutes", 30);
+    if (domainRates != null) {
+      props.put("sakai.email.domainRates", new String[] { domainRates });
+    }
+    listener.configure(props);
+  }
+
+  private int getClosedPort() throws Exception {
+    ServerSocket socket = new ServerSocket(0);
+    int port = socket.getLocalPort();
+    socket.close();
+    return port;
+  }
+
+  private void addMessage(String box, String to) {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(MessageConstants.PROP_SAKAI_MESSAGEBOX, box);
+    properties.put(MessageConstants.PROP_SAKAI_TO, to);
+    properties.put(MessageConstants.PROP_SAKAI_FROM, "from@example.com");
+    properties.put(MessageConstants.PROP_SAKAI_SUBJECT, "Subject");
+    properties.put(MessageConstants.PROP_SAKAI_BODY, "Body");
+    store.content.put(MESSAGE, properties);
+  }
+
+  private Map<String, Object> getMessage() {
+    return store.content.get(MESSAGE);
+  }
+}
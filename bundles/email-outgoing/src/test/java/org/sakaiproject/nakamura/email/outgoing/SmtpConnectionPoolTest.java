@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.subethamail.wiser.Wiser;
+import org.subethamail.wiser.WiserMessage;
+
+import java.net.BindException;
+import java.util.Properties;
+
+import javax.mail.Address;
+import javax.mail.Message.RecipientType;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+public class SmtpConnectionPoolTest {
+  private static Wiser wiser;
+  private static int smtpPort;
+
+  private SmtpConnectionPool pool;
+
+  @BeforeClass
+  public static void startWiser() {
+    wiser = new Wiser();
+    smtpPort = 8025;
+    boolean started = false;
+    while (!started) {
+      wiser.setPort(smtpPort);
+      try {
+        wiser.start();
+        started = true;
+      } catch (RuntimeException re) {
+        if (re.getCause() instanceof BindException) {
+          smtpPort++;
+        }
+      }
+    }
+  }
+
+  @AfterClass
+  public static void stopWiser() {
+    wiser.stop();
+  }
+
+  @Before
+  public void setup() {
+    wiser.getMessages().clear();
+    pool = new SmtpConnectionPool("localhost", smtpPort, 1, 2, 30000L);
+  }
+
+  @After
+  public void tearDown() {
+    pool.close();
+  }
+
+  @Test
+  public void testConnectionsReused() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      MimeMessage message = createMessage("Message " + i, "a@example.com");
+      pool.send(message, message.getAllRecipients());
+    }
+    assertEquals(5, wiser.getMessages().size());
+    // two messages are sent on each connection.
+    assertEquals(3, pool.getConnectionsOpened());
+  }
+
+  @Test
+  public void testSendToSomeRecipients() throws Exception {
+    MimeMessage message = createMessage("Some", "a@example.com", "b@example.org");
+    pool.send(message, new Address[] { new InternetAddress("b@example.org") });
+    assertEquals(1, wiser.getMessages().size());
+    WiserMessage sent = wiser.getMessages().get(0);
+    assertEquals("b@example.org", sent.getEnvelopeReceiver());
+    assertEquals("Some", sent.getMimeMessage().getSubject());
+  }
+
+  private MimeMessage createMessage(String subject, String... recipients)
+      throws Exception {
+    MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+    message.setFrom(new InternetAddress("from@example.com"));
+    for (String recipient : recipients) {
+      message.addRecipient(RecipientType.BCC, new InternetAddress(recipient));
+    }
+    message.setSubject(subject);
+    message.setText("Body");
+    message.saveChanges();
+    return message;
+  }
+}
@@ -0,0 +1,369 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.events;
+
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Connection;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+/**
+ * Sends OSGi events to JMS from bounded queues with a small pool of workers. Each worker
+ * keeps its connection, session and a producer per destination for as long as they work,
+ * and sends what has built up on its queue as a batch. Non persistent events that are
+ * identical to an earlier event in the same batch are only sent once.
+ * <p>
+ * Events are queued by topic, each topic always going to the same worker, so the events of
+ * a topic are sent in the order they were posted. A persistent event that finds its queue
+ * full is sent by the posting thread instead, and may overtake events already queued.
+ * </p>
+ */
+public class AsyncJmsSender implements AsyncJmsSenderMBean {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(AsyncJmsSender.class);
+
+  private final OsgiJmsBridge bridge;
+  private final ConnectionFactoryService connFactoryService;
+  private final List<BlockingQueue<Event>> queues;
+  private final int queueCapacity;
+  private final int workerCount;
+  private final int batchSize;
+  private final boolean transacted;
+  private final List<Thread> workers = new ArrayList<Thread>();
+  private volatile boolean running;
+
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong sendTime = new AtomicLong();
+
+  /**
+   * @param bridge
+   *          the bridge that turns events into messages.
+   * @param connFactoryService
+   * @param queueCapacity
+   *          the maximum number of events waiting to be sent.
+   * @param workerCount
+   *          the number of threads sending events.
+   * @param batchSize
+   *          the maximum number of events a worker takes from the queue at once.
+   * @param transacted
+   *          if true each batch is sent in one transaction.
+   */
+  public AsyncJmsSender(OsgiJmsBridge bridge, ConnectionFactoryService connFactoryService,
+      int queueCapacity, int workerCount, int batchSize, boolean transacted) {
+    this.bridge = bridge;
+    this.connFactoryService = connFactoryService;
+    this.queueCapacity = Math.max(1, queueCapacity);
+    this.workerCount = Math.max(1, workerCount);
+    this.queues = new ArrayList<BlockingQueue<Event>>(this.workerCount);
+    for (int i = 0; i < this.workerCount; i++) {
+      queues.add(new ArrayBlockingQueue<Event>(Math.max(1, this.queueCapacity
+          / this.workerCount)));
+    }
+    this.batchSize = Math.max(1, batchSize);
+    this.transacted = transacted;
+  }
+
+  public synchronized void start() {
+    if (running) {
+      return;
+    }
+    running = true;
+    for (int i = 0; i < workerCount; i++) {
+      final BlockingQueue<Event> queue = queues.get(i);
+      Thread worker = new Thread("OsgiJmsBridge-" + i) {
+        @Override
+        public void run() {
+          new Worker(queue).run();
+        }
+      };
+      worker.setDaemon(true);
+      worker.start();
+      workers.add(worker);
+    }
+  }
+
+  /**
+   * Stop the workers, events still on the queue are dropped.
+   */
+  public synchronized void stop() {
+    if (!running) {
+      return;
+    }
+    running = false;
+    for (Thread worker : workers) {
+      worker.interrupt();
+    }
+    for (Thread worker : workers) {
+      try {
+        worker.join(5000L);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    workers.clear();
+    int left = 0;
+    for (BlockingQueue<Event> queue : queues) {
+      left += queue.size();
+      queue.clear();
+    }
+    if (left > 0) {
+      dropped.addAndGet(left);
+      LOGGER.warn("Dropped {} events that had not been sent to JMS on shutdown", left);
+    }
+  }
+
+  /**
+   * Queue an event to be sent.
+   *
+   * @param event
+   * @return false if the queue is full, and the event was not queued.
+   */
+  public boolean offer(Event event) {
+    if (!running) {
+      return false;
+    }
+    if (getQueue(event).offer(event)) {
+      return true;
+    }
+    if (!OsgiJmsBridge.isPersistent(event)) {
+      if (dropped.incrementAndGet() % 1000 == 1) {
+        LOGGER.warn("OSGi to JMS bridge queue is full, dropping events ({} so far)",
+            dropped.get());
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the queue for the topic of the event.
+   */
+  BlockingQueue<Event> getQueue(Event event) {
+    return queues.get((event.getTopic().hashCode() & Integer.MAX_VALUE) % queues.size());
+  }
+
+  /**
+   * Remove duplicate non persistent events from a batch, keeping the first of each.
+   */
+  List<Event> coalesce(List<Event> events) {
+    Map<Object, Event> unique = new LinkedHashMap<Object, Event>();
+    int position = 0;
+    for (Event event : events) {
+      Object key;
+      if (OsgiJmsBridge.isPersistent(event)) {
+        // every persistent event is delivered.
+        key = Integer.valueOf(position);
+      } else {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        for (String name : event.getPropertyNames()) {
+          Object value = event.getProperty(name);
+          properties.put(name, value instanceof Object[] ? Arrays.asList((Object[]) value) : value);
+        }
+        List<Object> eventKey = new ArrayList<Object>(3);
+        eventKey.add(event.getTopic());
+        eventKey.add(OsgiJmsBridge.isP2P(event));
+        eventKey.add(properties);
+        key = eventKey;
+      }
+      position++;
+      if (unique.containsKey(key)) {
+        coalesced.incrementAndGet();
+      } else {
+        unique.put(key, event);
+      }
+    }
+    return new ArrayList<Event>(unique.values());
+  }
+
+  /**
+   * Takes batches from its queue and sends them on a session that lives as long as it
+   * works.
+   */
+  private class Worker {
+    private final BlockingQueue<Event> queue;
+    private Connection connection;
+    private Session session;
+    private Map<String, MessageProducer> producers = new HashMap<String, MessageProducer>();
+
+    private Worker(BlockingQueue<Event> queue) {
+      this.queue = queue;
+    }
+
+    public void run() {
+      List<Event> drained = new ArrayList<Event>(batchSize);
+      while (running) {
+        try {
+          Event first = queue.poll(1, TimeUnit.SECONDS);
+          if (first == null) {
+            continue;
+          }
+          drained.add(first);
+          queue.drainTo(drained, batchSize - 1);
+          send(coalesce(drained));
+        } catch (InterruptedException e) {
+          if (running) {
+            LOGGER.debug("Interrupted while waiting for events");
+          }
+        } finally {
+          drained.clear();
+        }
+      }
+      close();
+    }
+
+    private void send(List<Event> batch) {
+      long start = System.nanoTime();
+      int done = 0;
+      try {
+        Session jmsSession = getSession();
+        for (Event event : batch) {
+          Message msg = bridge.createMessage(jmsSession, event);
+          MessageProducer producer = getProducer(jmsSession, event);
+          producer.send(msg, msg.getJMSDeliveryMode(), Message.DEFAULT_PRIORITY,
+              Message.DEFAULT_TIME_TO_LIVE);
+          done++;
+        }
+        if (transacted) {
+          jmsSession.commit();
+        }
+        sent.addAndGet(done);
+        batches.incrementAndGet();
+        sendTime.addAndGet(System.nanoTime() - start);
+      } catch (JMSException e) {
+        // in a transaction nothing was sent, otherwise the events up to the failure were.
+        int lost = transacted ? batch.size() : batch.size() - done;
+        if (!transacted) {
+          sent.addAndGet(done);
+        }
+        failed.addAndGet(lost);
+        bridge.logJmsException(e);
+        // start again with a fresh connection on the next batch.
+        close();
+      }
+    }
+
+    private Session getSession() throws JMSException {
+      if (session == null) {
+        connection = connFactoryService.getDefaultPooledConnectionFactory()
+            .createConnection();
+        session = connection.createSession(transacted, Session.AUTO_ACKNOWLEDGE);
+      }
+      return session;
+    }
+
+    private MessageProducer getProducer(Session session, Event event) throws JMSException {
+      String key = (OsgiJmsBridge.isP2P(event) ? "queue:" : "topic:") + event.getTopic();
+      MessageProducer producer = producers.get(key);
+      if (producer == null) {
+        Destination destination = OsgiJmsBridge.createDestination(session, event);
+        producer = session.createProducer(destination);
+        producers.put(key, producer);
+      }
+      return producer;
+    }
+
+    private void close() {
+      producers.clear();
+      if (session != null) {
+        try {
+          session.close();
+        } catch (JMSException e) {
+          LOGGER.debug(e.getMessage(), e);
+        }
+        session = null;
+      }
+      if (connection != null) {
+        try {
+          connection.close();
+        } catch (JMSException e) {
+          LOGGER.debug(e.getMessage(), e);
+        }
+        connection = null;
+      }
+    }
+  }
+
+  // ---------- AsyncJmsSenderMBean ----------
+
+  public int getQueueDepth() {
+    int depth = 0;
+    for (BlockingQueue<Event> queue : queues) {
+      depth += queue.size();
+    }
+    return depth;
+  }
+
+  public int getQueueCapacity() {
+    return queueCapacity;
+  }
+
+  public long getSentCount() {
+    return sent.get();
+  }
+
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  public long getFailedCount() {
+    return failed.get();
+  }
+
+  public long getCoalescedCount() {
+    return coalesced.get();
+  }
+
+  public long getBatchCount() {
+    return batches.get();
+  }
+
+  public double getAverageSendTime() {
+    long count = sent.get();
+    return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(sendTime.get()) / 1000.0 / count;
+  }
+
+  public void resetStatistics() {
+    sent.set(0);
+    dropped.set(0);
+    failed.set(0);
+    coalesced.set(0);
+    batches.set(0);
+    sendTime.set(0);
+  }
+}
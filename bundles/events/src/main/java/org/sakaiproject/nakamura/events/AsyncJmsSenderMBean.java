@@ -0,0 +1,61 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.events;
+
+/**
+ * Statistics for the asynchronous OSGi to JMS bridge.
+ */
+public interface AsyncJmsSenderMBean {
+
+  /**
+   * @return the number of events waiting to be sent.
+   */
+  int getQueueDepth();
+
+  /**
+   * @return the maximum number of events that can wait to be sent.
+   */
+  int getQueueCapacity();
+
+  long getSentCount();
+
+  /**
+   * @return the number of events dropped because the queue was full.
+   */
+  long getDroppedCount();
+
+  /**
+   * @return the number of events not sent because JMS failed.
+   */
+  long getFailedCount();
+
+  /**
+   * @return the number of events not sent because an identical event was in the same
+   *         batch.
+   */
+  long getCoalescedCount();
+
+  long getBatchCount();
+
+  /**
+   * @return the average time in ms to send one event.
+   */
+  double getAverageSendTime();
+
+  void resetStatistics();
+}
@@ -17,11 +17,13 @@
  */
 package org.sakaiproject.nakamura.events;
 
+import java.lang.management.ManagementFactory;
 import java.util.Dictionary;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import javax.jms.Connection;
 import javax.jms.DeliveryMode;
@@ -33,6 +35,7 @@ import javax.jms.Session;
 
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.PropertyOption;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.commons.osgi.OsgiUtil;
@@ -51,14 +54,18 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Bridge to send OSGi events onto a JMS topic.
+ * Bridge to send OSGi events onto a JMS topic. Only the topics in the allow-list are
+ * subscribed to. In the default async mode events are put on a bounded queue and sent by
+ * a few workers, each holding its own session and producers, so the thread that posted
+ * the event does no JMS work. The sync mode sends each event on a new session from the
+ * posting thread.
  */
 @Component(label = "%bridge.name", description = "%bridge.description", metatype = true, immediate = true)
 @Service
 public class OsgiJmsBridge implements EventHandler {
   private static final Logger LOGGER = LoggerFactory.getLogger(OsgiJmsBridge.class);
 
-  @Property(value = "*", propertyPrivate = true)
+  @Property(value = { "org/sakaiproject/nakamura/*" })
   static final String TOPICS = EventConstants.EVENT_TOPIC;
 
   @Property(value = "sakai.event.bridge")
@@ -70,11 +77,22 @@ public class OsgiJmsBridge implements EventHandler {
   @Property(intValue = Session.AUTO_ACKNOWLEDGE, propertyPrivate = true)
   static final String ACKNOWLEDGE_MODE = "bridge.acknowledgeMode";
 
-  @Property(value = {"org/osgi/service/log/LogEntry/LOG_DEBUG", "org/osgi/service/log/LogEntry/LOG_INFO", "org/osgi/service/log/LogEntry/LOG_TRACE"})
-  private static final String IGNORE_EVENT_TOPICS = "bridge.ignore.event.topics";
+  static final String MODE_ASYNC = "async";
+  static final String MODE_SYNC = "sync";
+
+  @Property(value = MODE_ASYNC, options = {
+      @PropertyOption(name = MODE_ASYNC, value = "Asynchronous"),
+      @PropertyOption(name = MODE_SYNC, value = "Synchronous") })
+  static final String MODE = "bridge.mode";
+
+  @Property(intValue = 10000)
+  static final String QUEUE_SIZE = "bridge.queueSize";
 
-  private Set<String> ignoreEventTopics = new HashSet<String>();
+  @Property(intValue = 2)
+  static final String WORKERS = "bridge.workers";
 
+  @Property(intValue = 100)
+  static final String BATCH_SIZE = "bridge.batchSize";
 
   @Reference
   private ConnectionFactoryService connFactoryService;
@@ -91,6 +109,10 @@ public class OsgiJmsBridge implements EventHandler {
 
   private String serverId;
 
+  private volatile AsyncJmsSender asyncSender;
+
+  private ObjectName mbeanName;
+
   /**
    * Default constructor.
    */
@@ -125,17 +147,19 @@ public class OsgiJmsBridge implements EventHandler {
     connectionClientId = OsgiUtil.toString(props.get(CONNECTION_CLIENT_ID), "sakai.event.bridge");
     serverId = clusterTrackingService.getCurrentServerId();
 
-    String[] ignoreEventTopicsValues = OsgiUtil.toStringArray(props.get(IGNORE_EVENT_TOPICS));
-    ignoreEventTopics.clear();
-
-    if ( ignoreEventTopicsValues != null ) {
-      for ( String iet : ignoreEventTopicsValues ) {
-        ignoreEventTopics.add(iet);
-      }
+    String mode = OsgiUtil.toString(props.get(MODE), MODE_ASYNC);
+    if (MODE_ASYNC.equals(mode)) {
+      AsyncJmsSender sender = new AsyncJmsSender(this, connFactoryService,
+          OsgiUtil.toInteger(props.get(QUEUE_SIZE), 10000),
+          OsgiUtil.toInteger(props.get(WORKERS), 2),
+          OsgiUtil.toInteger(props.get(BATCH_SIZE), 100), transacted);
+      sender.start();
+      asyncSender = sender;
+      registerMBean(sender);
     }
 
-    LOGGER.info("Session Transacted: {}, Acknowledge Mode: {}, " + "Client ID: {}",
-        new Object[] { transacted, acknowledgeMode, connectionClientId });
+    LOGGER.info("Session Transacted: {}, Acknowledge Mode: {}, " + "Client ID: {}, Mode: {}",
+        new Object[] { transacted, acknowledgeMode, connectionClientId, mode });
   }
 
   /**
@@ -144,6 +168,33 @@ public class OsgiJmsBridge implements EventHandler {
    * @param ctx
    */
   protected void deactivate(ComponentContext ctx) {
+    AsyncJmsSender sender = asyncSender;
+    asyncSender = null;
+    if (sender != null) {
+      unregisterMBean();
+      sender.stop();
+    }
+  }
+
+  private void registerMBean(AsyncJmsSender sender) {
+    try {
+      mbeanName = new ObjectName("org.sakaiproject.nakamura:type=OsgiJmsBridge");
+      ManagementFactory.getPlatformMBeanServer().registerMBean(sender, mbeanName);
+    } catch (JMException e) {
+      mbeanName = null;
+      LOGGER.warn("Unable to register bridge statistics: {} ", e.getMessage());
+    }
+  }
+
+  private void unregisterMBean() {
+    if (mbeanName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+      } catch (JMException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+      mbeanName = null;
+    }
   }
 
   /**
@@ -153,10 +204,26 @@ public class OsgiJmsBridge implements EventHandler {
    */
   public void handleEvent(Event event) {
     LOGGER.trace("Receiving event");
-    if ( ignoreEventTopics.contains(event.getTopic()) ) {
-      // Ignore Log messages in jms.
-      return;
+    AsyncJmsSender sender = asyncSender;
+    if (sender != null) {
+      if (sender.offer(event)) {
+        return;
+      }
+      if (!isPersistent(event)) {
+        // the queue is full, shed the event rather than hold up the thread that posted it.
+        return;
+      }
+      // a persistent event is not dropped, send it here instead.
     }
+    sendEvent(event);
+  }
+
+  /**
+   * Send an event on a connection and session of its own.
+   *
+   * @param event
+   */
+  private void sendEvent(Event event) {
     Connection conn = null;
 
     LOGGER.debug("Processing event {}", event);
@@ -168,11 +235,6 @@ public class OsgiJmsBridge implements EventHandler {
       // post to JMS
       // Sessions are not thread safe, so we need to create and destroy a session, for
       // sending.
-      EventDeliveryMode deliveryMode = (EventDeliveryMode) event
-          .getProperty(EventDeliveryConstants.DELIVERY_MODE);
-      EventMessageMode messageMode = (EventMessageMode) event
-          .getProperty(EventDeliveryConstants.MESSAGE_MODE);
-
       EventAcknowledgeMode acknowledgeModeForEvent = (EventAcknowledgeMode) event
           .getProperty(EventDeliveryConstants.ACKNOWLEDGE_MODE);
 
@@ -193,70 +255,14 @@ public class OsgiJmsBridge implements EventHandler {
 
       clientSession = conn.createSession(transacted, clientAcknowledgeMode);
 
-      Message msg = clientSession.createMessage();
-
-      // may need to set a delivery mode eg persistent for certain types of messages.
-      // this should be specified in the OSGi event.
-      if (messageMode != null) {
-        switch (messageMode) {
-        case PERSISTENT:
-          msg.setJMSDeliveryMode(DeliveryMode.PERSISTENT);
-          break;
-        case NON_PERSISTENT:
-        default:
-          msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
-          break;
-        }
-      } else {
-        msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
-      }
-
-      Destination destination = null;
-      if (deliveryMode != null) {
-        switch (deliveryMode) {
-        case P2P:
-          destination = clientSession.createQueue(event.getTopic());
-          break;
-        case BROADCAST:
-        default:
-          destination = clientSession.createTopic(event.getTopic());
-          break;
-        }
-      } else {
-        destination = clientSession.createTopic(event.getTopic());
-      }
+      Message msg = createMessage(clientSession, event);
+      Destination destination = createDestination(clientSession, event);
       MessageProducer producer = clientSession.createProducer(destination);
-      msg.setJMSType(event.getTopic());
-
-      for (String name : event.getPropertyNames()) {
-        Object obj = event.getProperty(name);
-        // "Only objectified primitive objects, String, Map and List types are
-        // allowed" as stated by an exception when putting something into the
-        // message that was not of one of these types.
-        if (obj instanceof Byte || obj instanceof Boolean || obj instanceof Character
-            || obj instanceof Number || obj instanceof Map || obj instanceof String
-            || obj instanceof List || obj instanceof Object[]) {
-          msg.setObjectProperty(name, EventUtils.cleanProperty(obj));
-        }
-      }
-
-      msg.setStringProperty("clusterServerId", serverId);
-
-      // add the current user
 
       LOGGER.debug("Sending Message {} to {}  ",msg, destination);
       producer.send(msg);
     } catch (JMSException e) {
-      Throwable t = e.getCause();
-      if ( t != null && t.getClass().getName().equals("org.apache.activemq.transport.TransportDisposedIOException") ) {
-        if ( (System.currentTimeMillis() - lastMessage) > 15000L ) {
-          lastMessage = System.currentTimeMillis();
-          LOGGER.info("Transport disposed, probably on shutdown, use debug level logging to see more :{} ", e.getMessage());
-        }
-        LOGGER.debug(e.getMessage(), e);
-      } else {
-        LOGGER.error(e.getMessage(), e);
-      }
+      logJmsException(e);
     } finally {
       try {
         if (conn != null) {
@@ -274,4 +280,75 @@ public class OsgiJmsBridge implements EventHandler {
       }
     }
   }
+
+  /**
+   * @param event
+   * @return true if the event asks for persistent delivery.
+   */
+  static boolean isPersistent(Event event) {
+    return EventMessageMode.PERSISTENT == event
+        .getProperty(EventDeliveryConstants.MESSAGE_MODE);
+  }
+
+  /**
+   * @param event
+   * @return true if the event should go to a queue rather than a topic.
+   */
+  static boolean isP2P(Event event) {
+    return EventDeliveryMode.P2P == event.getProperty(EventDeliveryConstants.DELIVERY_MODE);
+  }
+
+  /**
+   * Create the destination named by the topic of the event.
+   */
+  static Destination createDestination(Session session, Event event) throws JMSException {
+    if (isP2P(event)) {
+      return session.createQueue(event.getTopic());
+    }
+    return session.createTopic(event.getTopic());
+  }
+
+  /**
+   * Create the JMS message that carries an event.
+   */
+  Message createMessage(Session session, Event event) throws JMSException {
+    Message msg = session.createMessage();
+
+    // may need to set a delivery mode eg persistent for certain types of messages.
+    // this should be specified in the OSGi event.
+    if (isPersistent(event)) {
+      msg.setJMSDeliveryMode(DeliveryMode.PERSISTENT);
+    } else {
+      msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
+    }
+    msg.setJMSType(event.getTopic());
+
+    for (String name : event.getPropertyNames()) {
+      Object obj = event.getProperty(name);
+      // "Only objectified primitive objects, String, Map and List types are
+      // allowed" as stated by an exception when putting something into the
+      // message that was not of one of these types.
+      if (obj instanceof Byte || obj instanceof Boolean || obj instanceof Character
+          || obj instanceof Number || obj instanceof Map || obj instanceof String
+          || obj instanceof List || obj instanceof Object[]) {
+        msg.setObjectProperty(name, EventUtils.cleanProperty(obj));
+      }
+    }
+
+    msg.setStringProperty("clusterServerId", serverId);
+    return msg;
+  }
+
+  void logJmsException(JMSException e) {
+    Throwable t = e.getCause();
+    if ( t != null && t.getClass().getName().equals("org.apache.activemq.transport.TransportDisposedIOException") ) {
+      if ( (System.currentTimeMillis() - lastMessage) > 15000L ) {
+        lastMessage = System.currentTimeMillis();
+        LOGGER.info("Transport disposed, probably on shutdown, use debug level logging to see more :{} ", e.getMessage());
+      }
+      LOGGER.debug(e.getMessage(), e);
+    } else {
+      LOGGER.error(e.getMessage(), e);
+    }
+  }
 }
@@ -254,12 +254,14 @@ public class OsgiJmsBridgeTest {
   }
 
   /**
-   * Creates a dictionary of default values as found in the bridge.
+   * Creates a dictionary of default values as found in the bridge, in sync mode so that
+   * each event is sent on the calling thread.
    *
    * @return
    */
   private Hashtable<Object, Object> buildComponentProperties() {
     Hashtable<Object, Object> dict = new Hashtable<Object, Object>();
+    dict.put(OsgiJmsBridge.MODE, OsgiJmsBridge.MODE_SYNC);
     dict.put(OsgiJmsBridge.ACKNOWLEDGE_MODE, Session.AUTO_ACKNOWLEDGE);
     dict.put(OsgiJmsBridge.CONNECTION_CLIENT_ID, "sakai.event.bridge");
     dict.put(OsgiJmsBridge.SESSION_TRANSACTED, false);
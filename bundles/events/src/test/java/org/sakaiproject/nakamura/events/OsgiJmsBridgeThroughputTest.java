@@ -0,0 +1,219 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.events;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.Connection;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Session;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs events through the bridge into an embedded broker, in both modes, and logs the
+ * time taken on the posting thread at debug.
+ */
+public class OsgiJmsBridgeThroughputTest {
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(OsgiJmsBridgeThroughputTest.class);
+  private static final String BROKER_URL = "vm://bridgetest?broker.persistent=false&broker.useJmx=false";
+  private static final String TOPIC = "org/sakaiproject/nakamura/test/bridge";
+  private static final int EVENTS = 500;
+
+  private ActiveMQConnectionFactory connectionFactory;
+  private Connection consumerConnection;
+  private OsgiJmsBridge bridge;
+
+  @Before
+  public void setUp() throws Exception {
+    connectionFactory = new ActiveMQConnectionFactory(BROKER_URL);
+    // keeps the embedded broker up between bridge connections.
+    consumerConnection = connectionFactory.createConnection();
+    consumerConnection.start();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (bridge != null) {
+      bridge.deactivate(null);
+    }
+    consumerConnection.close();
+  }
+
+  @Test
+  public void testAsync() throws Exception {
+    long elapsed = runEvents(OsgiJmsBridge.MODE_ASYNC);
+    LOGGER.debug("Async bridge: {} events posted in {}ms", EVENTS,
+        TimeUnit.NANOSECONDS.toMillis(elapsed));
+  }
+
+  @Test
+  public void testSync() throws Exception {
+    long elapsed = runEvents(OsgiJmsBridge.MODE_SYNC);
+    LOGGER.debug("Sync bridge: {} events posted in {}ms", EVENTS,
+        TimeUnit.NANOSECONDS.toMillis(elapsed));
+  }
+
+  @Test
+  public void testCoalesce() throws Exception {
+    createBridge(OsgiJmsBridge.MODE_ASYNC);
+    AsyncJmsSender sender = new AsyncJmsSender(bridge, null, 10, 1, 10, false);
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put("path", "/a");
+    Hashtable<String, Object> other = new Hashtable<String, Object>();
+    other.put("path", "/b");
+    List<Event> batch = new ArrayList<Event>();
+    batch.add(new Event(TOPIC, props));
+    batch.add(new Event(TOPIC, other));
+    batch.add(new Event(TOPIC, props));
+    assertEquals(2, sender.coalesce(batch).size());
+    assertEquals(1, sender.getCoalescedCount());
+  }
+
+  @Test
+  public void testTopicOrderKept() throws Exception {
+    String[] topics = new String[] { TOPIC + "/a", TOPIC + "/b", TOPIC + "/c", TOPIC + "/d" };
+    Session session = consumerConnection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    final CountDownLatch received = new CountDownLatch(EVENTS);
+    final Map<String, Integer> last = new HashMap<String, Integer>();
+    final AtomicInteger outOfOrder = new AtomicInteger();
+    // the consumers share a session, so messages are delivered to them one at a time.
+    MessageListener listener = new MessageListener() {
+      public void onMessage(Message message) {
+        try {
+          String topic = message.getJMSType();
+          int n = message.getIntProperty("n");
+          Integer previous = last.put(topic, n);
+          if (previous != null && previous > n) {
+            outOfOrder.incrementAndGet();
+          }
+        } catch (Exception e) {
+          outOfOrder.incrementAndGet();
+        }
+        received.countDown();
+      }
+    };
+    List<MessageConsumer> consumers = new ArrayList<MessageConsumer>();
+    for (String topic : topics) {
+      MessageConsumer consumer = session.createConsumer(session.createTopic(topic));
+      consumer.setMessageListener(listener);
+      consumers.add(consumer);
+    }
+
+    // several workers, each topic still goes through one of them.
+    createBridge(OsgiJmsBridge.MODE_ASYNC, 4);
+    for (int i = 0; i < EVENTS; i++) {
+      Hashtable<String, Object> props = new Hashtable<String, Object>();
+      props.put("n", i);
+      bridge.handleEvent(new Event(topics[i % topics.length], props));
+    }
+    assertTrue(received.await(30, TimeUnit.SECONDS));
+    assertEquals(0, outOfOrder.get());
+    for (MessageConsumer consumer : consumers) {
+      consumer.close();
+    }
+    session.close();
+  }
+
+  @Test
+  public void testTopicQueue() throws Exception {
+    createBridge(OsgiJmsBridge.MODE_ASYNC);
+    AsyncJmsSender sender = new AsyncJmsSender(bridge, null, 100, 4, 10, false);
+    Event first = new Event(TOPIC + "/a", new Hashtable<String, Object>());
+    Event second = new Event(TOPIC + "/a", new Hashtable<String, Object>());
+    assertTrue(sender.getQueue(first) == sender.getQueue(second));
+  }
+
+  /**
+   * @return the time spent in handleEvent in ns.
+   */
+  private long runEvents(String mode) throws Exception {
+    Session session = consumerConnection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    MessageConsumer consumer = session.createConsumer(session.createTopic(TOPIC));
+    final CountDownLatch received = new CountDownLatch(EVENTS);
+    final AtomicInteger count = new AtomicInteger();
+    consumer.setMessageListener(new MessageListener() {
+      public void onMessage(Message message) {
+        count.incrementAndGet();
+        received.countDown();
+      }
+    });
+
+    createBridge(mode);
+    long start = System.nanoTime();
+    for (int i = 0; i < EVENTS; i++) {
+      Hashtable<String, Object> props = new Hashtable<String, Object>();
+      props.put("n", i);
+      bridge.handleEvent(new Event(TOPIC, props));
+    }
+    long elapsed = System.nanoTime() - start;
+    assertTrue(received.await(30, TimeUnit.SECONDS));
+    assertEquals(EVENTS, count.get());
+    consumer.close();
+    session.close();
+    return elapsed;
+  }
+
+  private void createBridge(String mode) {
+    createBridge(mode, 2);
+  }
+
+  private void createBridge(String mode, int workers) {
+    ConnectionFactoryService connFactoryService = createMock(ConnectionFactoryService.class);
+    expect(connFactoryService.getDefaultPooledConnectionFactory()).andReturn(
+        connectionFactory).anyTimes();
+    ClusterTrackingService clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID")
+        .anyTimes();
+    Hashtable<Object, Object> compProps = new Hashtable<Object, Object>();
+    compProps.put(OsgiJmsBridge.MODE, mode);
+    compProps.put(OsgiJmsBridge.WORKERS, workers);
+    ComponentContext ctx = createMock(ComponentContext.class);
+    expect(ctx.getProperties()).andReturn(compProps).anyTimes();
+    replay(connFactoryService, clusterTrackingService, ctx);
+
+    bridge = new OsgiJmsBridge(connFactoryService);
+    bridge.clusterTrackingService = clusterTrackingService;
+    bridge.activate(ctx);
+  }
+}
@@ -21,6 +21,7 @@ import static org.sakaiproject.nakamura.api.files.FilesConstants.REQUIRED_MIXIN;
 import static org.sakaiproject.nakamura.api.files.FilesConstants.RT_SAKAI_LINK;
 import static org.sakaiproject.nakamura.api.files.FilesConstants.SAKAI_LINK;
 import static org.sakaiproject.nakamura.api.files.FilesConstants.SAKAI_TAGS;
+import static org.sakaiproject.nakamura.api.files.FilesConstants.SAKAI_TAG_COUNT;
 import static org.sakaiproject.nakamura.api.files.FilesConstants.SAKAI_TAG_NAME;
 import static org.sakaiproject.nakamura.api.files.FilesConstants.SAKAI_TAG_UUIDS;
 
@@ -50,14 +51,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.security.AccessControlException;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import javax.jcr.AccessDeniedException;
 import javax.jcr.ItemNotFoundException;
 import javax.jcr.Node;
+import javax.jcr.NodeIterator;
 import javax.jcr.Property;
 import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
@@ -579,8 +583,9 @@ public class FileUtils {
    * @throws RepositoryException
    * @throws StorageClientException
    * @throws org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException
+   * @return true if the tag was on the node.
    */
-  public static void deleteTag(ContentManager contentManager, Content contentNode,
+  public static boolean deleteTag(ContentManager contentManager, Content contentNode,
       Node tagNode) throws RepositoryException,
       org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException,
       StorageClientException {
@@ -589,7 +594,7 @@ public class FileUtils {
           + contentNode + " Node To Tag:" + tagNode);
     }
     // Add the reference from the tag to the node.
-    deleteTag(contentManager, contentNode, getTags(tagNode));
+    return deleteTag(contentManager, contentNode, getTags(tagNode));
   }
 
   private static void deleteTag(Session adminSession, Node fileNode, String[] tags)
@@ -627,6 +632,93 @@ public class FileUtils {
     return false;
   }
 
+  /**
+   * Count an item that has just been tagged against the tag and the tags above it. The
+   * item is counted once at each level, so a tag is not counted again if the item already
+   * carries a tag below it, and a parent is not counted again if the item already carries
+   * the parent or one of its other children. Only call this when the tag was actually
+   * added, otherwise the counts drift.
+   *
+   * @param adminTagNode
+   *          the tag, from a session that can modify it.
+   * @param tagNames
+   *          the names of all the tags the item now carries.
+   * @throws RepositoryException
+   */
+  public static void incrementTagCounts(Node adminTagNode, String[] tagNames)
+      throws RepositoryException {
+    updateTagCounts(adminTagNode, Arrays.asList(tagNames), 1L, false);
+  }
+
+  /**
+   * Remove an item that has just been untagged from the counts of the tag and the tags
+   * above it, the reverse of {@link #incrementTagCounts(Node, String[])}.
+   *
+   * @param adminTagNode
+   *          the tag, from a session that can modify it.
+   * @param tagNames
+   *          the names of the tags the item still carries.
+   * @throws RepositoryException
+   */
+  public static void decrementTagCounts(Node adminTagNode, String[] tagNames)
+      throws RepositoryException {
+    updateTagCounts(adminTagNode, Arrays.asList(tagNames), -1L, false);
+  }
+
+  private static void updateTagCounts(Node tagNode, List<String> tagNames, long delta,
+      boolean calledByAChild) throws RepositoryException {
+    if (calledByAChild || !taggedBelow(tagNode, tagNames)) {
+      long tagCount = 0L;
+      if (tagNode.hasProperty(SAKAI_TAG_COUNT)) {
+        tagCount = tagNode.getProperty(SAKAI_TAG_COUNT).getLong();
+      }
+      tagNode.setProperty(SAKAI_TAG_COUNT, Math.max(0L, tagCount + delta));
+    }
+    if (isChildOfRoot(tagNode)) {
+      return;
+    }
+    // if the item carries an ancestor or a peer of this tag, the parent already counts it.
+    Node parent = tagNode.getParent();
+    Node root = tagNode.getSession().getRootNode();
+    for (Node ancestor = parent; !ancestor.isSame(root); ancestor = ancestor.getParent()) {
+      if (isTag(ancestor) && tagNames.contains(getTagName(ancestor))) {
+        return;
+      }
+    }
+    NodeIterator peers = parent.getNodes();
+    while (peers.hasNext()) {
+      Node peer = peers.nextNode();
+      if (!tagNode.isSame(peer) && isTag(peer) && tagNames.contains(getTagName(peer))) {
+        return;
+      }
+    }
+    updateTagCounts(parent, tagNames, delta, true);
+  }
+
+  private static boolean taggedBelow(Node tagNode, List<String> tagNames)
+      throws RepositoryException {
+    NodeIterator children = tagNode.getNodes();
+    while (children.hasNext()) {
+      Node child = children.nextNode();
+      if ((isTag(child) && tagNames.contains(getTagName(child)))
+          || taggedBelow(child, tagNames)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String getTagName(Node tagNode) throws RepositoryException {
+    if (tagNode.hasProperty(SAKAI_TAG_NAME)) {
+      return tagNode.getProperty(SAKAI_TAG_NAME).getString();
+    }
+    return null;
+  }
+
+  private static boolean isChildOfRoot(Node node) throws RepositoryException {
+    return node.getParent().isSame(node.getSession().getRootNode());
+  }
+
   /**
    * Resolves a Node given one of three possible passed parameters: 1) A fully qualified
    * path to a Node (e.g. "/foo/bar/baz"), 2) a Node's UUID, or 3) the PoolId from a
@@ -1,6 +1,8 @@
 package org.sakaiproject.nakamura.files.pool;
 
 import static javax.servlet.http.HttpServletResponse.SC_NOT_MODIFIED;
+import static javax.servlet.http.HttpServletResponse.SC_PARTIAL_CONTENT;
+import static javax.servlet.http.HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE;
 import static org.apache.sling.api.servlets.HttpConstants.HEADER_IF_MODIFIED_SINCE;
 import static org.apache.sling.api.servlets.HttpConstants.HEADER_LAST_MODIFIED;
 
@@ -12,9 +14,17 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 import javax.jcr.RepositoryException;
 import javax.servlet.ServletContext;
@@ -23,25 +33,292 @@ import javax.servlet.http.HttpServletResponse;
 
 public class StreamHelper {
 
+  /**
+   * The property sparse keeps the location of the stored body in. A new location is
+   * allocated every time a body is written, so it identifies the bytes of the body.
+   */
+  static final String BODY_LOCATION_FIELD = "_bodyLocation";
+
+  /**
+   * Requests for more ranges than this are answered with the whole body.
+   */
+  static final int MAX_RANGES = 16;
+
+  private static final String BYTES_UNIT = "bytes=";
+
   public void stream(HttpServletRequest request, ContentManager contentManager, Content node, String alternativeStream, HttpServletResponse response, Resource resource, ServletContext servletContext) throws IOException, StorageClientException, AccessDeniedException {
+    Map<String, Object> properties = node.getProperties();
+    long modifTime = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LASTMODIFIED_FIELD, alternativeStream)));
+    long length = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LENGTH_FIELD, alternativeStream)));
+    String etag = getETag(properties, alternativeStream, length, modifTime);
+
+    // decide on a 304 from the properties alone, so the body is not opened for nothing.
+    if (unmodified(request, etag, modifTime)) {
+      response.setStatus(SC_NOT_MODIFIED);
+      if (etag != null) {
+        response.setHeader("ETag", etag);
+      }
+      return;
+    }
+
+    List<long[]> ranges = getRanges(request, length, etag, modifTime);
+    if (ranges != null && ranges.isEmpty()) {
+      response.setHeader("Content-Range", "bytes */" + length);
+      response.sendError(SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+      return;
+    }
+
     InputStream dataStream = contentManager.getInputStream(node.getPath(), alternativeStream);
 
     if ( dataStream == null ) {
       response.sendError(HttpServletResponse.SC_NOT_FOUND);
       return;
     }
-    
-    Map<String, Object> properties = node.getProperties();
-    long modifTime = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LASTMODIFIED_FIELD, alternativeStream)));
-    if (unmodified(request, modifTime)) {
-      response.setStatus(SC_NOT_MODIFIED);
-      return;
+
+    try {
+      String contentType = getContentType(properties, resource, alternativeStream, servletContext);
+      setHeaders(properties, resource, response, alternativeStream, servletContext);
+      if (etag != null) {
+        response.setHeader("ETag", etag);
+      }
+      if (length > 0) {
+        response.setHeader("Accept-Ranges", "bytes");
+      }
+      if (ranges == null) {
+        setContentLength(properties, response, alternativeStream);
+        if (dataStream instanceof FileInputStream) {
+          copy(((FileInputStream) dataStream).getChannel(), 0, -1, response.getOutputStream());
+        } else {
+          IOUtils.copyLarge(dataStream, response.getOutputStream());
+        }
+      } else if (ranges.size() == 1) {
+        long[] range = ranges.get(0);
+        response.setStatus(SC_PARTIAL_CONTENT);
+        response.setHeader("Content-Range", contentRange(range, length));
+        setContentLength(response, range[1] - range[0] + 1);
+        dataStream = copyRange(dataStream, 0, range, contentManager, node, alternativeStream, response.getOutputStream());
+      } else {
+        String boundary = UUID.randomUUID().toString();
+        response.setStatus(SC_PARTIAL_CONTENT);
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        OutputStream out = response.getOutputStream();
+        long position = 0;
+        for (long[] range : ranges) {
+          StringBuilder part = new StringBuilder();
+          part.append("\r\n--").append(boundary).append("\r\n");
+          if (contentType != null) {
+            part.append("Content-Type: ").append(contentType).append("\r\n");
+          }
+          part.append("Content-Range: ").append(contentRange(range, length)).append("\r\n\r\n");
+          out.write(part.toString().getBytes("ISO-8859-1"));
+          dataStream = copyRange(dataStream, position, range, contentManager, node, alternativeStream, out);
+          position = range[1] + 1;
+        }
+        out.write(("\r\n--" + boundary + "--\r\n").getBytes("ISO-8859-1"));
+      }
+    } finally {
+      dataStream.close();
     }
+  }
 
-    setHeaders(properties, resource, response, alternativeStream, servletContext);
-    setContentLength(properties, response, alternativeStream);
-    IOUtils.copyLarge(dataStream, response.getOutputStream());
-    dataStream.close();
+  /**
+   * A strong entity tag for the body, or null if there is nothing to build one from.
+   * Sparse does not keep a digest of bodies, but it stores every body it is given at a
+   * new location, so the location together with the length and the time the body was
+   * written changes whenever the bytes do.
+   */
+  String getETag(Map<String, Object> properties, String alternativeStream, long length, long modifTime) {
+    Object location = properties.get(StorageClientUtils.getAltField(BODY_LOCATION_FIELD, alternativeStream));
+    if (location == null) {
+      return null;
+    }
+    String tag = location.toString();
+    int i = tag.lastIndexOf('/');
+    if (i >= 0) {
+      tag = tag.substring(i + 1);
+    }
+    StringBuilder sb = new StringBuilder("\"");
+    for (char c : tag.toCharArray()) {
+      // keep to the characters an entity tag may hold.
+      if (c > 0x20 && c < 0x7f && c != '"' && c != '\\') {
+        sb.append(c);
+      }
+    }
+    return sb.append('-').append(Long.toHexString(length)).append('-')
+        .append(Long.toHexString(modifTime)).append('"').toString();
+  }
+
+  /**
+   * Works out the byte ranges asked for by the <code>Range</code> header.
+   *
+   * @return null if the whole body should be sent, the ranges to send in the order they
+   *         were asked for, or an empty list if none of them can be satisfied.
+   */
+  List<long[]> getRanges(HttpServletRequest request, long length, String etag, long modifTime) {
+    String header = request.getHeader("Range");
+    if (header == null || length <= 0 || !header.startsWith(BYTES_UNIT)
+        || !ifRange(request, etag, modifTime)) {
+      return null;
+    }
+    String[] specs = header.substring(BYTES_UNIT.length()).split(",");
+    if (specs.length > MAX_RANGES) {
+      return null;
+    }
+    List<long[]> ranges = new ArrayList<long[]>();
+    for (String spec : specs) {
+      spec = spec.trim();
+      int dash = spec.indexOf('-');
+      if (dash < 0) {
+        // a syntactically invalid header is ignored.
+        return null;
+      }
+      long start;
+      long end;
+      try {
+        if (dash == 0) {
+          long suffix = Long.parseLong(spec.substring(1));
+          if (suffix <= 0) {
+            continue;
+          }
+          start = Math.max(0, length - suffix);
+          end = length - 1;
+        } else {
+          start = Long.parseLong(spec.substring(0, dash));
+          end = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+          if (start < 0 || end < start) {
+            return null;
+          }
+          end = Math.min(end, length - 1);
+        }
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      if (start < length) {
+        ranges.add(new long[] { start, end });
+      }
+    }
+    return ranges;
+  }
+
+  /**
+   * @return true if the ranges should be honoured, ie there is no <code>If-Range</code>
+   *         header or the one there still matches the body.
+   */
+  private boolean ifRange(HttpServletRequest request, String etag, long modifTime) {
+    String ifRange = request.getHeader("If-Range");
+    if (ifRange == null) {
+      return true;
+    }
+    ifRange = ifRange.trim();
+    if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+      // only a strong comparison will do for a range.
+      return etag != null && etag.equals(ifRange);
+    }
+    try {
+      long date = request.getDateHeader("If-Range");
+      return modifTime > 0 && date > 0 && modifTime / 1000 == date / 1000;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Copies one range, moving through the stream from <code>position</code>. The stream is
+   * opened again if the range starts before the position.
+   *
+   * @return the stream, which will be a new one if it had to be opened again.
+   */
+  private InputStream copyRange(InputStream dataStream, long position, long[] range, ContentManager contentManager, Content node, String alternativeStream, OutputStream out) throws IOException, StorageClientException, AccessDeniedException {
+    long count = range[1] - range[0] + 1;
+    if (dataStream instanceof FileInputStream) {
+      copy(((FileInputStream) dataStream).getChannel(), range[0], count, out);
+      return dataStream;
+    }
+    if (range[0] < position) {
+      dataStream.close();
+      dataStream = contentManager.getInputStream(node.getPath(), alternativeStream);
+      position = 0;
+    }
+    skip(dataStream, range[0] - position);
+    byte[] buffer = new byte[4096];
+    while (count > 0) {
+      int n = dataStream.read(buffer, 0, (int) Math.min(buffer.length, count));
+      if (n < 0) {
+        throw new IOException("Body of " + node.getPath() + " ended before " + range[1]);
+      }
+      out.write(buffer, 0, n);
+      count -= n;
+    }
+    return dataStream;
+  }
+
+  /**
+   * Copies a body held in a local file without reading it through a buffer of our own.
+   * The channel is positioned at the start of the range, so nothing before it is read.
+   *
+   * @param count
+   *          the number of bytes to copy, or 0 or less for the rest of the file.
+   */
+  private void copy(FileChannel channel, long position, long count, OutputStream out) throws IOException {
+    if (count <= 0) {
+      count = channel.size() - position;
+    }
+    WritableByteChannel target = Channels.newChannel(out);
+    while (count > 0) {
+      long n = channel.transferTo(position, count, target);
+      if (n <= 0) {
+        if (position >= channel.size()) {
+          throw new IOException("File ended before " + (position + count));
+        }
+        continue;
+      }
+      position += n;
+      count -= n;
+    }
+  }
+
+  private void skip(InputStream in, long n) throws IOException {
+    while (n > 0) {
+      long skipped = in.skip(n);
+      if (skipped <= 0) {
+        if (in.read() < 0) {
+          throw new IOException("Stream ended while skipping");
+        }
+        skipped = 1;
+      }
+      n -= skipped;
+    }
+  }
+
+  private String contentRange(long[] range, long length) {
+    return "bytes " + range[0] + "-" + range[1] + "/" + length;
+  }
+
+  /**
+   * Returns <code>true</code> if the copy of the body the client holds is still current.
+   * <code>If-None-Match</code> is used when it is given, otherwise
+   * <code>If-Modified-Since</code>.
+   */
+  private boolean unmodified(HttpServletRequest request, String etag, long modifTime) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      if (etag == null) {
+        return false;
+      }
+      for (String candidate : ifNoneMatch.split(",")) {
+        candidate = candidate.trim();
+        if ("*".equals(candidate) || etag.equals(candidate) || ("W/" + etag).equals(candidate)) {
+          return true;
+        }
+      }
+      // If-None-Match takes precedence over If-Modified-Since
+      return false;
+    }
+    try {
+      return unmodified(request, modifTime);
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
   }
 
   /**
@@ -82,13 +359,7 @@ public class StreamHelper {
       response.setDateHeader(HEADER_LAST_MODIFIED, modifTime);
     }
 
-    String contentType = (String) properties.get(StorageClientUtils.getAltField(Content.MIMETYPE_FIELD, alternativeStream));
-    if (contentType == null && servletContext != null) {
-      final String ct = servletContext.getMimeType(resource.getPath());
-      if (ct != null) {
-        contentType = ct;
-      }
-    }
+    String contentType = getContentType(properties, resource, alternativeStream, servletContext);
     if (contentType != null) {
       response.setContentType(contentType);
     }
@@ -99,6 +370,17 @@ public class StreamHelper {
     }
   }
 
+  private String getContentType(Map<String, Object> properties, Resource resource, String alternativeStream, ServletContext servletContext) {
+    String contentType = (String) properties.get(StorageClientUtils.getAltField(Content.MIMETYPE_FIELD, alternativeStream));
+    if (contentType == null && servletContext != null) {
+      final String ct = servletContext.getMimeType(resource.getPath());
+      if (ct != null) {
+        contentType = ct;
+      }
+    }
+    return contentType;
+  }
+
   /**
    * Set the <code>Content-Length</code> header to the give value. If the length is larger
    * than <code>Integer.MAX_VALUE</code> it is converted to a string and the
@@ -112,7 +394,10 @@ public class StreamHelper {
    *          the header is not set.
    */
   private void setContentLength(Map<String,Object> properties, HttpServletResponse response, String alternativeStream) {
-    long length = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LENGTH_FIELD, alternativeStream)));
+    setContentLength(response, StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LENGTH_FIELD, alternativeStream))));
+  }
+
+  private void setContentLength(HttpServletResponse response, long length) {
     if (length > 0) {
       if (length < Integer.MAX_VALUE) {
         response.setContentLength((int) length);
@@ -17,7 +17,7 @@
  */
 package org.sakaiproject.nakamura.files.search;
 
-import static org.sakaiproject.nakamura.api.files.FilesConstants.SAKAI_TAG_UUIDS;
+import static org.sakaiproject.nakamura.api.files.FilesConstants.SAKAI_TAG_NAME;
 
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
@@ -29,32 +29,26 @@ import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.apache.sling.jcr.api.SlingRepository;
-import org.sakaiproject.nakamura.api.lite.Session;
-import org.sakaiproject.nakamura.api.lite.StorageClientException;
-import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
-import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
-import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
-import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.response.QueryResponse;
 import org.sakaiproject.nakamura.api.search.solr.Query;
 import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.SolrQueryResponseWrapper;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
-import javax.jcr.ItemNotFoundException;
 import javax.jcr.Node;
-import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
-import javax.jcr.ValueFormatException;
 
 @Component(immediate = true, label = "TagCloudResultProcessor", description = "Formatter for tag cloud")
 @Service(value = SolrSearchBatchResultProcessor.class)
@@ -66,6 +60,9 @@ public class LiteTagCloudSearchBatchResultProcessor implements
   public static final String STARTPAGE_PARAM = "startpage";
   public static final String NUMITEMS_PARAM = "numitems";
 
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(LiteTagCloudSearchBatchResultProcessor.class);
+
   @Reference
   private SolrSearchServiceFactory searchServiceFactory;
 
@@ -73,61 +70,35 @@ public class LiteTagCloudSearchBatchResultProcessor implements
   protected SlingRepository slingRepository;
 
   /**
-   * 
+   * The field the tags are counted on. The index carries the tag UUIDs rather than the
+   * names as names need not be unique.
+   */
+  static final String TAG_FIELD = "taguuid";
+
+  /**
+   * The request attribute the result set is handed to {@link #writeResults} in, as the
+   * counts come from its facets rather than its hits.
+   */
+  private static final String RESULT_SET_ATTR = LiteTagCloudSearchBatchResultProcessor.class
+      .getName() + ".resultSet";
+
+  /**
+   * The tags are counted by a facet on the tag field of the query (see tagcloud.json), so
+   * the index does the counting over everything the user can read and only the tags on the
+   * page shown are looked up.
+   *
    * {@inheritDoc}
-   * 
+   *
    * @see org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor#writeResults(org.apache.sling.api.SlingHttpServletRequest,
    *      org.apache.sling.commons.json.io.JSONWriter, java.util.Iterator)
    */
   public void writeResults(SlingHttpServletRequest request, JSONWriter write,
       Iterator<Result> iterator) throws JSONException {
-    final Map<String, Tag> tags = new HashMap<String, Tag>();
-    final Session session = StorageClientUtils.adaptToSession(request
-        .getResourceResolver().adaptTo(javax.jcr.Session.class));
     final javax.jcr.Session jcrSession = request.getResourceResolver().adaptTo(
         javax.jcr.Session.class);
-
-    // count all the tags
-    while (iterator.hasNext()) {
-      try {
-        final Result result = iterator.next();
-        final String resourceType = String.valueOf(result.getFirstValue("resourceType"));
-        String[] tagUuids = null;
-        if ("authorizable".equals(resourceType)) {
-          final String id = (String) result.getFirstValue("id");
-          final Authorizable az = session.getAuthorizableManager().findAuthorizable(id);
-          if (az != null && az.hasProperty(SAKAI_TAG_UUIDS)) {
-            // each node that has been tagged has one or more tag UUIDs riding with it
-            tagUuids = (String[]) az.getProperty(SAKAI_TAG_UUIDS);
-          }
-        } else {
-          final String path = result.getPath();
-          final Content content = session.getContentManager().get(path);
-          if (content != null && content.hasProperty(SAKAI_TAG_UUIDS)) {
-            // each node that has been tagged has one or more tag UUIDs riding with it
-            tagUuids = (String[]) content.getProperty(SAKAI_TAG_UUIDS);
-          }
-        }
-        if (tagUuids != null) {
-          for (final String uuid : tagUuids) {
-            if (!tags.containsKey(uuid)) {
-              tags.put(uuid, new Tag(uuid, 0));
-            }
-            // increment the count for this particular tag UUID.
-            tags.get(uuid).frequency++;
-          }
-        }
-      } catch (StorageClientException e) {
-        // if something is wrong with this particular resourceNode,
-        // we don't let it wreck the whole feed
-      } catch (AccessDeniedException e) {
-        // if something is wrong with this particular resourceNode,
-        // we don't let it wreck the whole feed
-      }
-    }
+    final List<Tag> foundTags = getTags(request.getAttribute(RESULT_SET_ATTR));
 
     // write the most-used tags to the JSONWriter
-    final List<Tag> foundTags = new ArrayList<Tag>(tags.values());
     Collections.sort(foundTags, Collections.reverseOrder());
     write.object();
     write.key(SolrSearchConstants.TOTAL);
@@ -146,18 +117,14 @@ public class LiteTagCloudSearchBatchResultProcessor implements
     final int beginPosition = (startpage * numitems) - numitems;
     write.key("tags");
     write.array();
-    try {
-      if (beginPosition < foundTags.size()) {
-        int count = 0;
-        for (int i = beginPosition; i < foundTags.size() && count < numitems; i++) {
-          final Tag tag = foundTags.get(i);
+    if (beginPosition < foundTags.size()) {
+      int count = 0;
+      for (int i = beginPosition; i < foundTags.size() && count < numitems; i++) {
+        final Tag tag = foundTags.get(i);
+        try {
           final Node tagNode = jcrSession.getNodeByIdentifier(tag.id);
-          if (tagNode != null
-              && tagNode
-                  .hasProperty(org.sakaiproject.nakamura.api.files.FilesConstants.SAKAI_TAG_NAME)) {
-            tag.name = tagNode.getProperty(
-                org.sakaiproject.nakamura.api.files.FilesConstants.SAKAI_TAG_NAME)
-                .getString();
+          if (tagNode != null && tagNode.hasProperty(SAKAI_TAG_NAME)) {
+            tag.name = tagNode.getProperty(SAKAI_TAG_NAME).getString();
             write.object();
             write.key("name");
             write.value(tag.name);
@@ -166,25 +133,41 @@ public class LiteTagCloudSearchBatchResultProcessor implements
             write.endObject();
             count++;
           }
+        } catch (RepositoryException e) {
+          // if something is wrong with this particular tag,
+          // we don't let it wreck the whole feed
+          LOGGER.debug("Unable to read tag {} {}", tag.id, e.getMessage());
         }
       }
-    } catch (ItemNotFoundException e) {
-      // if something is wrong with this particular resourceNode,
-      // we don't let it wreck the whole feed
-    } catch (ValueFormatException e) {
-      // if something is wrong with this particular resourceNode,
-      // we don't let it wreck the whole feed
-    } catch (PathNotFoundException e) {
-      // if something is wrong with this particular resourceNode,
-      // we don't let it wreck the whole feed
-    } catch (RepositoryException e) {
-      // if something is wrong with this particular resourceNode,
-      // we don't let it wreck the whole feed
     }
     write.endArray();
     write.endObject();
   }
 
+  /**
+   * @return the tags counted by the facet on the tag field of the result set.
+   */
+  static List<Tag> getTags(Object resultSet) {
+    final List<Tag> tags = new ArrayList<Tag>();
+    if (!(resultSet instanceof SolrQueryResponseWrapper)) {
+      LOGGER.warn("Tag cloud search did not come from Solr, no tags can be counted");
+      return tags;
+    }
+    final QueryResponse queryResponse = ((SolrQueryResponseWrapper) resultSet)
+        .getQueryResponse();
+    final FacetField facet = (queryResponse == null) ? null : queryResponse
+        .getFacetField(TAG_FIELD);
+    if (facet == null || facet.getValues() == null) {
+      return tags;
+    }
+    for (FacetField.Count count : facet.getValues()) {
+      if (count.getCount() > 0) {
+        tags.add(new Tag(count.getName(), (int) count.getCount()));
+      }
+    }
+    return tags;
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -193,8 +176,9 @@ public class LiteTagCloudSearchBatchResultProcessor implements
    */
   public SolrSearchResultSet getSearchResultSet(SlingHttpServletRequest request,
       Query query) throws SolrSearchException {
-
-    return searchServiceFactory.getSearchResultSet(request, query);
+    SolrSearchResultSet resultSet = searchServiceFactory.getSearchResultSet(request, query);
+    request.setAttribute(RESULT_SET_ATTR, resultSet);
+    return resultSet;
   }
 
 }
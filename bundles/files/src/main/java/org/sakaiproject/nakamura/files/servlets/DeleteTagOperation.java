@@ -60,7 +60,7 @@ import org.slf4j.LoggerFactory;
 import java.util.*;
 
 import javax.jcr.Node;
-import javax.jcr.NodeIterator;import javax.jcr.RepositoryException;
+import javax.jcr.RepositoryException;
 import javax.jcr.Value;
 import javax.servlet.http.HttpServletResponse;
 
@@ -173,32 +173,30 @@ public class DeleteTagOperation extends AbstractSparsePostOperation {
           adminSession.logout();
         }
       } else if ( content != null ) {
-        FileUtils.deleteTag(contentManager, content, tagNode);
-        javax.jcr.Session adminSession = null;
-        try {
-          adminSession = slingRepository.loginAdministrative(null);
-          Node adminTagNode = adminSession.getNode(tagNode.getPath());
-          String[] tagNames = StorageClientUtils.nonNullStringArray((String[]) content.getProperty(FilesConstants.SAKAI_TAGS));
-          String resourceType = (String) content.getProperty("sling:resourceType");
-          boolean isProfile = "sakai/user-profile".equals(resourceType) || "sakai/group-profile".equals(resourceType);
-          if (!isProfile) {
-            decrementTagCounts(adminTagNode, tagNames, false);
-          }
-          if (adminSession.hasPendingChanges()) {
-            adminSession.save();
-          }
-        } finally {
-          if (adminSession != null) {
-            adminSession.logout();
+        boolean deleted = FileUtils.deleteTag(contentManager, content, tagNode);
+        String resourceType = (String) content.getProperty("sling:resourceType");
+        boolean isProfile = "sakai/user-profile".equals(resourceType) || "sakai/group-profile".equals(resourceType);
+        // only take the item off the counts when it was actually tagged.
+        if (deleted && !isProfile) {
+          javax.jcr.Session adminSession = null;
+          try {
+            adminSession = slingRepository.loginAdministrative(null);
+            Node adminTagNode = adminSession.getNode(tagNode.getPath());
+            String[] tagNames = StorageClientUtils.nonNullStringArray((String[]) content.getProperty(FilesConstants.SAKAI_TAGS));
+            FileUtils.decrementTagCounts(adminTagNode, tagNames);
+            if (adminSession.hasPendingChanges()) {
+              adminSession.save();
+            }
+          } finally {
+            if (adminSession != null) {
+              adminSession.logout();
+            }
           }
         }
         // keep authz in sync with authprofile
         final Session session = StorageClientUtils.adaptToSession(request.getResource()
             .getResourceResolver().adaptTo(javax.jcr.Session.class));
         final AuthorizableManager authManager = session.getAuthorizableManager();
-        final String resourceType = (String) content.getProperty("sling:resourceType");
-        final boolean isProfile = "sakai/user-profile".equals(resourceType)
-            || "sakai/group-profile".equals(resourceType);
         // If we're remove a tag on an authprofile, remove the property here
         if (isProfile) {
           final String azId = PathUtils.getAuthorizableId(content.getPath());
@@ -236,70 +234,6 @@ public class DeleteTagOperation extends AbstractSparsePostOperation {
 
   }
 
-  private void decrementTagCounts(Node nodeTag, String[] tagNames, boolean calledByAChild) throws RepositoryException {
-      if (calledByAChild || !alreadyTaggedBelowThisLevel(nodeTag, tagNames)) {
-        Long tagCount = 0L;
-        if (nodeTag.hasProperty(FilesConstants.SAKAI_TAG_COUNT)) {
-          tagCount = nodeTag.getProperty(FilesConstants.SAKAI_TAG_COUNT).getLong();
-          tagCount--;
-        }
-        nodeTag.setProperty(FilesConstants.SAKAI_TAG_COUNT, tagCount);
-      }
-
-      // if this node's parent is not the root, we keep going up
-      List<String> peerTags = new ArrayList<String>();
-      peerTags.addAll(ancestorTags(nodeTag));
-      NodeIterator nodeIterator = nodeTag.getParent().getNodes();
-      while(nodeIterator.hasNext()) {
-        Node peer = nodeIterator.nextNode();
-        if (FileUtils.isTag(peer) && !nodeTag.isSame(peer)) {
-          peerTags.add(peer.getProperty(SAKAI_TAG_NAME).getString());
-        }
-      }
-      if (!isChildOfRoot(nodeTag) && !alreadyTaggedAtOrAboveThisLevel(tagNames, peerTags)) {
-        decrementTagCounts(nodeTag.getParent(), tagNames, true);
-      }
-  }
-
-  private boolean alreadyTaggedBelowThisLevel(Node tagNode, String[] tagNames) throws RepositoryException {
-    List<String> tagNamesList = Arrays.asList(tagNames);
-    NodeIterator childNodes = tagNode.getNodes();
-    while(childNodes.hasNext()){
-      Node child = childNodes.nextNode();
-      if (alreadyTaggedBelowThisLevel(child, tagNames)) {
-        return true;
-      }
-      if (FileUtils.isTag(child) && tagNamesList.contains(child.getProperty(SAKAI_TAG_NAME).getString())) {
-        return true;
-      }
-    }
-    return false;
-  }
-
-  private boolean alreadyTaggedAtOrAboveThisLevel(String[] tagNames, List<String>peerTags) {
-    for(String tagName : tagNames) {
-      if(peerTags.contains(tagName)) {
-        return true;
-      }
-    }
-    return false;
-  }
-
-  private Collection<String> ancestorTags(Node tagNode) throws RepositoryException {
-      Collection<String> rv = new ArrayList<String>();
-      if(!isChildOfRoot(tagNode)) {
-        Node parentNode = tagNode.getParent();
-        if (FileUtils.isTag(parentNode)) {
-          rv.add(parentNode.getProperty(SAKAI_TAG_NAME).getString());
-        }
-        rv.addAll(ancestorTags(parentNode));
-      }
-      return rv;
-  }
-
-  private boolean isChildOfRoot(Node node) throws RepositoryException {
-    return node.getParent().isSame(node.getSession().getRootNode());
-  }
   /**
    * Checks if the node already has the uuid in it's properties.
    *
@@ -64,7 +64,7 @@ import org.slf4j.LoggerFactory;
 import java.util.*;
 
 import javax.jcr.Node;
-import javax.jcr.NodeIterator;import javax.jcr.RepositoryException;
+import javax.jcr.RepositoryException;
 import javax.jcr.Value;
 import javax.servlet.http.HttpServletResponse;
 
@@ -170,21 +170,25 @@ public class SparseTagOperation extends AbstractSparsePostOperation {
       } else {
         Node nodeTag = tagResource.adaptTo(Node.class);
         tagUuid = nodeTag.getIdentifier();
+        // only count the item against the tag when it was not already tagged with it.
+        boolean alreadyTagged = Arrays.asList(
+            StorageClientUtils.nonNullStringArray((String[]) content
+                .getProperty(SAKAI_TAG_UUIDS))).contains(tagUuid);
         tagName = tagContentWithNodeTag(contentManager, content, nodeTag);
-        javax.jcr.Session adminSession = null;
-        try {
-          adminSession = slingRepository.loginAdministrative(null);
-          Node adminTagNode = adminSession.getNode(nodeTag.getPath());
-          String[] tagNames = StorageClientUtils.nonNullStringArray((String[]) content.getProperty(SAKAI_TAGS));
-          if (!isProfile) {
-            incrementTagCounts(adminTagNode, tagNames, false);
-          }
-          if (adminSession.hasPendingChanges()) {
-            adminSession.save();
-          }
-        } finally {
-          if (adminSession != null) {
-            adminSession.logout();
+        if (!isProfile && !alreadyTagged) {
+          javax.jcr.Session adminSession = null;
+          try {
+            adminSession = slingRepository.loginAdministrative(null);
+            Node adminTagNode = adminSession.getNode(nodeTag.getPath());
+            String[] tagNames = StorageClientUtils.nonNullStringArray((String[]) content.getProperty(SAKAI_TAGS));
+            FileUtils.incrementTagCounts(adminTagNode, tagNames);
+            if (adminSession.hasPendingChanges()) {
+              adminSession.save();
+            }
+          } finally {
+            if (adminSession != null) {
+              adminSession.logout();
+            }
           }
         }
       }
@@ -228,67 +232,6 @@ public class SparseTagOperation extends AbstractSparsePostOperation {
       LOGGER.error("Could not send an OSGi event for tagging a file", e);
     }
 
-  }private void incrementTagCounts(Node nodeTag, String[] tagNames, boolean calledByAChild) throws RepositoryException {
-      if (calledByAChild || !alreadyTaggedBelowThisLevel(nodeTag, tagNames)) {
-        Long tagCount = 1L;
-        if (nodeTag.hasProperty(FilesConstants.SAKAI_TAG_COUNT)) {
-          tagCount = nodeTag.getProperty(FilesConstants.SAKAI_TAG_COUNT).getLong();
-          tagCount++;
-        }
-        nodeTag.setProperty(FilesConstants.SAKAI_TAG_COUNT, tagCount);
-      }
-
-      // if this node's parent is not the root, we keep going up
-      List<String> relatedTags = new ArrayList<String>();
-      relatedTags.addAll(ancestorTags(nodeTag));
-      NodeIterator nodeIterator = nodeTag.getParent().getNodes();
-      while(nodeIterator.hasNext()) {
-        Node peer = nodeIterator.nextNode();
-        if (FileUtils.isTag(peer) && !nodeTag.isSame(peer)) {
-          relatedTags.add(peer.getProperty(SAKAI_TAG_NAME).getString());
-        }
-      }
-      if (!isChildOfRoot(nodeTag) && !alreadyTaggedAtOrAboveThisLevel(tagNames, relatedTags)) {
-        incrementTagCounts(nodeTag.getParent(), tagNames, true);
-      }
-  }private Collection<String> ancestorTags(Node tagNode) throws RepositoryException {
-      Collection<String> rv = new ArrayList<String>();
-      if(!isChildOfRoot(tagNode)) {
-        Node parentNode = tagNode.getParent();
-        if (FileUtils.isTag(parentNode)) {
-          rv.add(parentNode.getProperty(SAKAI_TAG_NAME).getString());
-        }
-        rv.addAll(ancestorTags(parentNode));
-      }
-      return rv;
-  }
-
-  private boolean alreadyTaggedBelowThisLevel(Node tagNode, String[] tagNames) throws RepositoryException {
-    List<String> tagNamesList = Arrays.asList(tagNames);
-    NodeIterator childNodes = tagNode.getNodes();
-    while(childNodes.hasNext()){
-      Node child = childNodes.nextNode();
-      if (alreadyTaggedBelowThisLevel(child, tagNames)) {
-        return true;
-      }
-      if (FileUtils.isTag(child) && tagNamesList.contains(child.getProperty(SAKAI_TAG_NAME).getString())) {
-        return true;
-      }
-    }
-    return false;
-  }
-
-  private boolean alreadyTaggedAtOrAboveThisLevel(String[] tagNames, List<String>peerTags) {
-    for(String tagName : tagNames) {
-      if(peerTags.contains(tagName)) {
-        return true;
-      }
-    }
-    return false;
-  }
-
-  private boolean isChildOfRoot(Node node) throws RepositoryException {
-    return node.getParent().isSame(node.getSession().getRootNode());
   }
 
   private String tagContentWithNodeTag(ContentManager contentManager, Content content, Node nodeTag) throws Exception {
@@ -0,0 +1,113 @@
+package org.sakaiproject.nakamura.files.pool;
+
+import com.google.common.collect.ImmutableMap;
+
+import junit.framework.Assert;
+
+import org.apache.sling.api.resource.Resource;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+public class StreamHelperTest {
+
+  private static final String TESTING_STREAM_DATA = "0123456789";
+  private static final String ETAG = "\"x8-a-3e8\"";
+
+  private HttpServletRequest request;
+  private HttpServletResponse response;
+  private Resource resource;
+  private ContentManager contentManager;
+  private Content content;
+  private ByteArrayOutputStream outputStream;
+
+  @Before
+  public void before() throws Exception {
+    request = Mockito.mock(HttpServletRequest.class);
+    response = Mockito.mock(HttpServletResponse.class);
+    resource = Mockito.mock(Resource.class);
+    contentManager = Mockito.mock(ContentManager.class);
+    content = new Content("23423423423", ImmutableMap.of(Content.LENGTH_FIELD,
+        (Object) (long) TESTING_STREAM_DATA.length(), Content.LASTMODIFIED_FIELD, 1000L,
+        StreamHelper.BODY_LOCATION_FIELD, "2011/1/tz/fv/x8", Content.MIMETYPE_FIELD,
+        "text/plain"));
+    // the body is opened again for a range that comes before the last one sent.
+    Mockito.when(contentManager.getInputStream("23423423423", null)).thenReturn(
+        new ByteArrayInputStream(TESTING_STREAM_DATA.getBytes("UTF-8")),
+        new ByteArrayInputStream(TESTING_STREAM_DATA.getBytes("UTF-8")),
+        new ByteArrayInputStream(TESTING_STREAM_DATA.getBytes("UTF-8")));
+    outputStream = new ByteArrayOutputStream();
+    Mockito.when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        outputStream.write(b);
+      }
+    });
+  }
+
+  @Test
+  public void testNotModifiedWithoutOpeningBody() throws IOException,
+      StorageClientException, AccessDeniedException {
+    Mockito.when(request.getHeader("If-None-Match")).thenReturn(ETAG);
+    new StreamHelper().stream(request, contentManager, content, null, response, resource, null);
+    Mockito.verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    Mockito.verify(response).setHeader("ETag", ETAG);
+    Mockito.verify(contentManager, Mockito.never()).getInputStream("23423423423", null);
+  }
+
+  @Test
+  public void testSingleRange() throws IOException, StorageClientException,
+      AccessDeniedException {
+    Mockito.when(request.getHeader("Range")).thenReturn("bytes=2-4");
+    Mockito.when(request.getHeader("If-Range")).thenReturn(ETAG);
+    new StreamHelper().stream(request, contentManager, content, null, response, resource, null);
+    Mockito.verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    Mockito.verify(response).setHeader("Content-Range", "bytes 2-4/10");
+    Mockito.verify(response).setContentLength(3);
+    Assert.assertEquals("234", outputStream.toString("UTF-8"));
+  }
+
+  @Test
+  public void testStaleIfRange() throws IOException, StorageClientException,
+      AccessDeniedException {
+    Mockito.when(request.getHeader("Range")).thenReturn("bytes=2-4");
+    Mockito.when(request.getHeader("If-Range")).thenReturn("\"stale\"");
+    new StreamHelper().stream(request, contentManager, content, null, response, resource, null);
+    Mockito.verify(response, Mockito.never()).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    Assert.assertEquals(TESTING_STREAM_DATA, outputStream.toString("UTF-8"));
+  }
+
+  @Test
+  public void testMultipleRanges() throws IOException, StorageClientException,
+      AccessDeniedException {
+    Mockito.when(request.getHeader("Range")).thenReturn("bytes=7-,-12,1-2");
+    new StreamHelper().stream(request, contentManager, content, null, response, resource, null);
+    Mockito.verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    String body = outputStream.toString("UTF-8");
+    Assert.assertTrue(body.contains("Content-Range: bytes 7-9/10\r\n\r\n789\r\n"));
+    Assert.assertTrue(body.contains("Content-Range: bytes 0-9/10\r\n\r\n0123456789\r\n"));
+    Assert.assertTrue(body.contains("Content-Range: bytes 1-2/10\r\n\r\n12\r\n"));
+  }
+
+  @Test
+  public void testUnsatisfiableRange() throws IOException, StorageClientException,
+      AccessDeniedException {
+    Mockito.when(request.getHeader("Range")).thenReturn("bytes=20-");
+    new StreamHelper().stream(request, contentManager, content, null, response, resource, null);
+    Mockito.verify(response).setHeader("Content-Range", "bytes */10");
+    Mockito.verify(response).sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+    Mockito.verify(contentManager, Mockito.never()).getInputStream("23423423423", null);
+  }
+}
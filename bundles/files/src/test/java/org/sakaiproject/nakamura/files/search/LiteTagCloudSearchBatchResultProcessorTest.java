@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.search.solr.SolrQueryResponseWrapper;
+
+import java.util.List;
+
+/**
+ *
+ */
+public class LiteTagCloudSearchBatchResultProcessorTest {
+
+  @Test
+  public void testTagsFromFacet() {
+    FacetField facet = new FacetField(LiteTagCloudSearchBatchResultProcessor.TAG_FIELD);
+    facet.add("uuid-a", 3);
+    facet.add("uuid-b", 7);
+    facet.add("uuid-c", 0);
+    final QueryResponse queryResponse = mock(QueryResponse.class);
+    when(queryResponse.getFacetField(LiteTagCloudSearchBatchResultProcessor.TAG_FIELD))
+        .thenReturn(facet);
+
+    List<Tag> tags = LiteTagCloudSearchBatchResultProcessor
+        .getTags(new SolrQueryResponseWrapper() {
+          public QueryResponse getQueryResponse() {
+            return queryResponse;
+          }
+        });
+    assertEquals(2, tags.size());
+    assertEquals("uuid-a", tags.get(0).id);
+    assertEquals(3, tags.get(0).frequency);
+    assertEquals("uuid-b", tags.get(1).id);
+    assertEquals(7, tags.get(1).frequency);
+  }
+
+  @Test
+  public void testNoFacet() {
+    assertTrue(LiteTagCloudSearchBatchResultProcessor.getTags(null).isEmpty());
+    final QueryResponse queryResponse = mock(QueryResponse.class);
+    assertTrue(LiteTagCloudSearchBatchResultProcessor.getTags(
+        new SolrQueryResponseWrapper() {
+          public QueryResponse getQueryResponse() {
+            return queryResponse;
+          }
+        }).isEmpty());
+  }
+}
@@ -47,4 +47,14 @@ public interface QoSToken {
    */
   void queue(Continuation continuation);
 
+  /**
+   * Remove a queued continuation that timed out before it was resumed.
+   */
+  void dequeue();
+
+  /**
+   * Record that the request was refused, for the statistics of its category.
+   */
+  void rejected();
+
 }
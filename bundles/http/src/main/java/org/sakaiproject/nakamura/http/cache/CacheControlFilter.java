@@ -36,6 +36,10 @@ import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import javax.servlet.Filter;
@@ -55,20 +59,28 @@ import javax.servlet.http.HttpServletResponse;
  * 
  * When more than one pattern matches, the filter sets the lowest maxage of the collection
  * of matching patterns.
+ * 
+ * Where <code>.requestCache</code> is set, responses are kept for that many seconds, keyed
+ * on the path, query and the request headers named in the Vary header. Only one request
+ * renders a missing response at a time, the others wait for it, or if
+ * <code>.staleWhileRevalidate</code> is set they get the expired copy for up to that many
+ * seconds while it is replaced. Conditional requests are answered with a 304 from the
+ * cached copy. The body of a response that is being cached is held until it is
+ * complete, so that its ETag is sent with it the first time too.
  */
 @Component(immediate = true, metatype = true)
 @Properties(value = {
     @Property(name = "service.description", value = "Nakamura Cache-Control Filter"),
     @Property(name = "sakai.cache.paths", value = { 
-        "dev;.lastmodified:unset;.cookies:unset;.requestCache:900;.expires:180000;Vary: Accept-Encoding", 
-        "devwidgets;.lastmodified:unset;.cookies:unset;.requestCache:900;.expires:180000;Vary: Accept-Encoding",
+        "dev;.lastmodified:unset;.cookies:unset;.requestCache:900;.staleWhileRevalidate:60;.expires:180000;Vary: Accept-Encoding, Accept-Language", 
+        "devwidgets;.lastmodified:unset;.cookies:unset;.requestCache:900;.staleWhileRevalidate:60;.expires:180000;Vary: Accept-Encoding, Accept-Language",
         "p;Cache-Control:no-cache" }, 
         description = "List of subpaths and max age for all content under subpath in seconds, setting to 0 makes it non cacheing"),
     @Property(name = "sakai.cache.patterns", value = { 
-        "root;.*(js|css)$;.lastmodified:unset;.cookies:unset;.requestCache:900;.expires:180000;Vary: Accept-Encoding",
-        "root;.*html$;.lastmodified:unset;.cookies:unset;.requestCache:900;.expires:180000;Vary: Accept-Encoding",
-        "var;^/var/search/public/.*$;.lastmodified:unset;.cookies:unset;.requestCache:900;.expires:3600;Vary: Accept-Encoding",
-        "var;^/var/widgets.json$;.lastmodified:unset;.cookies:unset;.requestCache:900;.expires:180000;Vary: Accept-Encoding"}, 
+        "root;.*(js|css)$;.lastmodified:unset;.cookies:unset;.requestCache:900;.staleWhileRevalidate:60;.expires:180000;Vary: Accept-Encoding",
+        "root;.*html$;.lastmodified:unset;.cookies:unset;.requestCache:900;.staleWhileRevalidate:60;.expires:180000;Vary: Accept-Encoding, Accept-Language",
+        "var;^/var/search/public/.*$;.lastmodified:unset;.cookies:unset;.requestCache:900;.staleWhileRevalidate:60;.expires:3600;Vary: Accept-Encoding",
+        "var;^/var/widgets.json$;.lastmodified:unset;.cookies:unset;.requestCache:900;.staleWhileRevalidate:60;.expires:180000;Vary: Accept-Encoding"}, 
         description = "List of path prefixes followed by a regex. If the prefix starts with a root: it means files in the root folder that match the pattern."),
     @Property(name = "service.vendor", value = "The Sakai Foundation")})
 public class CacheControlFilter implements Filter {
@@ -98,6 +110,18 @@ public class CacheControlFilter implements Filter {
   @Property(intValue=5)
   private static final String FILTER_PRIORITY_CONF = "filter.priority";
 
+  /**
+   * The longest time in ms a request will wait for another request to render the same
+   * response before rendering it itself.
+   */
+  private static final long RENDER_WAIT = 10000L;
+
+  /**
+   * The responses being rendered, by cache key, so that concurrent misses wait for one
+   * render rather than all going to the backend.
+   */
+  private final ConcurrentMap<String, CountDownLatch> renders = new ConcurrentHashMap<String, CountDownLatch>();
+
   
   @Reference 
   protected CacheManagerService cacheManagerService;
@@ -129,6 +153,8 @@ public class CacheControlFilter implements Filter {
     boolean withLastModfied = true;
     boolean withCookies = true;
     int cacheAge = 0;
+    int staleAge = 0;
+    String[] varyHeaders = new String[0];
     CachedResponseManager cachedResponseManager = null;
     FilterResponseWrapper fresponse = null;
     if ("GET".equals(srequest.getMethod())) {
@@ -141,6 +167,10 @@ public class CacheControlFilter implements Filter {
         if ( cacheAgeValue != null ) {
           cacheAge = Integer.parseInt(cacheAgeValue);
         }
+        String staleAgeValue = headers.get(".staleWhileRevalidate");
+        if ( staleAgeValue != null ) {
+          staleAge = Integer.parseInt(staleAgeValue);
+        }
         
         String expiresOffsetValue = headers.get(".expires");
         if ( expiresOffsetValue != null ) {
@@ -150,6 +180,9 @@ public class CacheControlFilter implements Filter {
         for(Entry<String, String> header : headers.entrySet() ) {
           if (header.getKey().charAt(0) != '.') {
             sresponse.setHeader(header.getKey(), header.getValue());
+            if ("Vary".equalsIgnoreCase(header.getKey())) {
+              varyHeaders = StringUtils.stripAll(StringUtils.split(header.getValue(), ','));
+            }
           }
         }
       }
@@ -159,23 +192,57 @@ public class CacheControlFilter implements Filter {
       sresponse.setStatus(respCode);
       sresponse.flushBuffer();
     } else {
+      CountDownLatch render = null;
       if ( cacheAge > 0 ) {
-        cachedResponseManager = new CachedResponseManager(srequest, cacheAge, getCache());
+        cachedResponseManager = new CachedResponseManager(srequest, cacheAge, staleAge, varyHeaders, getCache());
         if ( cachedResponseManager.isValid() ) {
-          cachedResponseManager.send(sresponse);
+          cachedResponseManager.send(srequest, sresponse);
           return;
         }
+        render = new CountDownLatch(1);
+        CountDownLatch inProgress = renders.putIfAbsent(cachedResponseManager.getKey(), render);
+        if ( inProgress != null ) {
+          // someone else is rendering this response.
+          render = null;
+          if ( !cachedResponseManager.isStale() ) {
+            try {
+              inProgress.await(RENDER_WAIT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            cachedResponseManager.reload();
+          }
+          if ( cachedResponseManager.isValid() || cachedResponseManager.isStale() ) {
+            cachedResponseManager.send(srequest, sresponse);
+            return;
+          }
+          // the other render failed or could not be cached, render it here.
+        }
       }
-      if ( !withLastModfied || !withCookies || cachedResponseManager != null ) {
-        fresponse = new FilterResponseWrapper(sresponse, withLastModfied, withCookies, cachedResponseManager != null);
-      }
-      if ( fresponse != null ) {
-        chain.doFilter(request, fresponse);
-        if ( cachedResponseManager != null ) {
-          cachedResponseManager.save(fresponse.getResponseOperation());
+      try {
+        if ( !withLastModfied || !withCookies || cachedResponseManager != null ) {
+          fresponse = new FilterResponseWrapper(sresponse, withLastModfied, withCookies, cachedResponseManager != null);
+        }
+        if ( fresponse != null ) {
+          chain.doFilter(request, fresponse);
+          if ( cachedResponseManager != null ) {
+            // the body is held until now, so the first render carries the ETag too.
+            String etag = cachedResponseManager.save(fresponse.getResponseOperation());
+            if ( etag != null && !sresponse.containsHeader("ETag") ) {
+              sresponse.setHeader("ETag", etag);
+            }
+          }
+        } else {
+          chain.doFilter(request, response);
+        }
+      } finally {
+        if ( fresponse != null ) {
+          fresponse.release();
+        }
+        if ( render != null ) {
+          renders.remove(cachedResponseManager.getKey(), render);
+          render.countDown();
         }
-      } else {
-        chain.doFilter(request, response);
       }
     }
   }
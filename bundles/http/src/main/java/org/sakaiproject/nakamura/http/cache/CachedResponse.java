@@ -19,11 +19,15 @@ package org.sakaiproject.nakamura.http.cache;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 import javax.servlet.http.HttpServletResponse;
 
 /**
-  A pojo to contain the response redo log and content.
+  A pojo to contain the response redo log and content. A response is fresh until it
+  expires, after which it may still be served for a while (stale) while one request
+  renders a replacement.
  */
 public class CachedResponse implements Serializable {
 
@@ -32,22 +36,97 @@ public class CachedResponse implements Serializable {
    */
   private static final long serialVersionUID = -533080549451000116L;
   private long expires;
+  private long staleUntil;
+  private long lastModified;
+  private String etag;
   private Operation[] operations;
   private byte[] byteContent;
   private String stringContent;
 
   public CachedResponse(OperationResponseCapture responseOperation, int cacheAge) throws IOException {
+    this(responseOperation, cacheAge, 0);
+  }
+
+  public CachedResponse(OperationResponseCapture responseOperation, int cacheAge, int staleAge) throws IOException {
     expires = System.currentTimeMillis() + cacheAge*1000L;
+    staleUntil = expires + staleAge*1000L;
     responseOperation.setDateHeader("X-Nakamura-Cache", System.currentTimeMillis());
-    operations = responseOperation.getRedoLog();
     byteContent = responseOperation.getByteContent();
     stringContent = responseOperation.getStringContent();
+    lastModified = -1;
+    for ( Operation o : responseOperation.getRedoLog() ) {
+      int op = o.getOperation();
+      String name = (op == OperationResponseCapture.SET_HEADER
+          || op == OperationResponseCapture.ADD_HEADER
+          || op == OperationResponseCapture.SET_DATE_HEADER
+          || op == OperationResponseCapture.ADD_DATE_HEADER) ? (String) o.get(0) : null;
+      if ( "ETag".equalsIgnoreCase(name) ) {
+        etag = (String) o.get(1);
+      } else if ( "Last-Modified".equalsIgnoreCase(name) && o.get(1) instanceof Long ) {
+        lastModified = (Long) o.get(1);
+      }
+    }
+    if ( etag == null ) {
+      etag = createEtag();
+      if ( etag != null ) {
+        responseOperation.setHeader("ETag", etag);
+      }
+    }
+    operations = responseOperation.getRedoLog();
+  }
+
+  private String createEtag() throws IOException {
+    try {
+      MessageDigest md = MessageDigest.getInstance("MD5");
+      if ( stringContent != null ) {
+        md.update(stringContent.getBytes("UTF-8"));
+      } else if ( byteContent != null ) {
+        md.update(byteContent);
+      }
+      StringBuilder sb = new StringBuilder("\"");
+      for ( byte b : md.digest() ) {
+        sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      return sb.append('"').toString();
+    } catch (NoSuchAlgorithmException e) {
+      return null;
+    }
   }
 
+  /**
+   * @return true if the response has not expired.
+   */
   public boolean isValid() {
     return expires > System.currentTimeMillis();
   }
 
+  /**
+   * @return true if the response has expired but may still be served while it is
+   *         replaced.
+   */
+  public boolean isStale() {
+    long now = System.currentTimeMillis();
+    return expires <= now && staleUntil > now;
+  }
+
+  /**
+   * @return true if the response can't be served at all.
+   */
+  public boolean isDead() {
+    return staleUntil <= System.currentTimeMillis();
+  }
+
+  public String getEtag() {
+    return etag;
+  }
+
+  /**
+   * @return the Last-Modified date of the response, or -1 if it had none.
+   */
+  public long getLastModified() {
+    return lastModified;
+  }
+
   public void replay(HttpServletResponse response) throws IOException {
     OperationResponseReplay responseOperation = new OperationResponseReplay(operations, byteContent, stringContent);
     responseOperation.replay(response);
@@ -23,6 +23,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Locale;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -31,18 +32,65 @@ public class CachedResponseManager {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CachedResponseManager.class);
   private int cacheAge;
+  private int staleAge;
   private String key;
   private Cache<CachedResponse> cache;
   private CachedResponse cachedResponse;
 
   public CachedResponseManager(HttpServletRequest request, int cacheAge, Cache<CachedResponse> cache) {
+    this(request, cacheAge, 0, new String[0], cache);
+  }
+
+  /**
+   * @param request
+   *          the request being served.
+   * @param cacheAge
+   *          the time in seconds a saved response is fresh for.
+   * @param staleAge
+   *          the time in seconds after it expires that a saved response may be served
+   *          while it is replaced.
+   * @param varyHeaders
+   *          the request headers the response varies on, as declared in the Vary header.
+   * @param cache
+   */
+  public CachedResponseManager(HttpServletRequest request, int cacheAge, int staleAge,
+      String[] varyHeaders, Cache<CachedResponse> cache) {
     this.cacheAge = cacheAge;
-    this.key = hashKey(request.getPathInfo()+"?"+request.getQueryString());
+    this.staleAge = staleAge;
+    this.key = hashKey(request, varyHeaders);
     this.cache = cache;
     this.cachedResponse = load();
   }
 
-  private String hashKey(String key) {
+  private String hashKey(HttpServletRequest request, String[] varyHeaders) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(request.getPathInfo()).append("?").append(request.getQueryString());
+    for ( String header : varyHeaders ) {
+      sb.append(";").append(header).append("=").append(varyValue(request, header));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Reduce a header to the part the response depends on, so that requests that will get
+   * the same response share an entry.
+   */
+  private String varyValue(HttpServletRequest request, String header) {
+    if ( "Accept-Encoding".equalsIgnoreCase(header) ) {
+      String acceptEncoding = request.getHeader(header);
+      return (acceptEncoding != null && acceptEncoding.indexOf("gzip") >= 0) ? "gzip" : "";
+    } else if ( "Accept-Language".equalsIgnoreCase(header) ) {
+      Locale locale = request.getLocale();
+      return locale == null ? "" : locale.toString();
+    }
+    String value = request.getHeader(header);
+    return value == null ? "" : value;
+  }
+
+  /**
+   * @return the key of the response in the cache.
+   */
+  public String getKey() {
     return key;
   }
 
@@ -50,32 +98,101 @@ public class CachedResponseManager {
    * @return true if the CacheResponse is current and valid.
    */
   public boolean isValid() {
-    return cachedResponse != null;
+    return cachedResponse != null && cachedResponse.isValid();
+  }
+
+  /**
+   * @return true if the CacheResponse has expired but may be sent while it is replaced.
+   */
+  public boolean isStale() {
+    return cachedResponse != null && cachedResponse.isStale();
+  }
+
+  /**
+   * Look in the cache again, another request may have saved a response.
+   */
+  public void reload() {
+    cachedResponse = load();
   }
 
-  public void save(OperationResponseCapture responseOperation) {
+  /**
+   * Save the response if it can be cached.
+   *
+   * @return the ETag of the saved response, or null if it was not saved.
+   */
+  public String save(OperationResponseCapture responseOperation) {
     try {
       if ( responseOperation.canCache() ) {
-        cache.put(key, new CachedResponse(responseOperation, cacheAge));
+        CachedResponse saved = new CachedResponse(responseOperation, cacheAge, staleAge);
+        cache.put(key, saved);
+        return saved.getEtag();
       }
     } catch (IOException e) {
       LOGGER.error("Failed to save response in cache ",e);
     }
+    return null;
   }
 
   private CachedResponse load() {
     CachedResponse cachedResponse = null;
     cachedResponse = cache.get(key);
-    if ( cachedResponse != null && !cachedResponse.isValid() ) {
+    if ( cachedResponse != null && cachedResponse.isDead() ) {
       cachedResponse = null;
       cache.remove(key);
     }
     return cachedResponse;
   }
 
+  /**
+   * Send the cached response, or a 304 if the client already has it.
+   *
+   * @param request
+   * @param response
+   * @throws IOException
+   */
+  public void send(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    if ( isNotModified(request) ) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      if ( cachedResponse.getEtag() != null ) {
+        response.setHeader("ETag", cachedResponse.getEtag());
+      }
+      return;
+    }
+    cachedResponse.replay(response);
+  }
+
   public void send(HttpServletResponse response) throws IOException {
     cachedResponse.replay(response);
   }
+
+  private boolean isNotModified(HttpServletRequest request) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if ( ifNoneMatch != null ) {
+      String etag = cachedResponse.getEtag();
+      if ( etag == null ) {
+        return false;
+      }
+      for ( String candidate : ifNoneMatch.split(",") ) {
+        candidate = candidate.trim();
+        if ( "*".equals(candidate) || etag.equals(candidate) || ("W/"+etag).equals(candidate) ) {
+          return true;
+        }
+      }
+      // If-None-Match takes precedence over If-Modified-Since
+      return false;
+    }
+    long lastModified = cachedResponse.getLastModified();
+    if ( lastModified > 0 ) {
+      try {
+        long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+        // the header has a resolution of seconds.
+        return ifModifiedSince > 0 && lastModified / 1000L <= ifModifiedSince / 1000L;
+      } catch (IllegalArgumentException e) {
+        return false;
+      }
+    }
+    return false;
+  }
   
   @Override
   public String toString() {
@@ -44,7 +44,8 @@ public class FilterResponseWrapper extends HttpServletResponseWrapper {
     this.withCookies = withCookies;
     this.withLastModified = withLastModfied;
     if ( captureResponse ) {
-      capture = new OperationResponseCapture();
+      // the body is held so the ETag of a response that is cached can go out with it.
+      capture = new OperationResponseCapture(true);
     }
     this.captureResponse = captureResponse;
   }
@@ -206,9 +207,26 @@ public class FilterResponseWrapper extends HttpServletResponseWrapper {
     }
   }
 
+  @Override
+  public void flushBuffer() throws IOException {
+    // committing the response now would send the headers without the ETag.
+    if ( !capture.isHeld() ) {
+      super.flushBuffer();
+    }
+  }
+
   public OperationResponseCapture getResponseOperation() {
     return capture;
   }
+
+  /**
+   * Send the body that was held while the response was captured.
+   *
+   * @throws IOException
+   */
+  public void release() throws IOException {
+    capture.release();
+  }
   
 
 }
@@ -52,7 +52,19 @@ public class OperationResponseCapture {
   private SplitWriter splitWriter;
   private List<Operation> operations = new ArrayList<Operation>();
 
+  private boolean hold;
+
   public OperationResponseCapture() {
+    this(false);
+  }
+
+  /**
+   * @param hold
+   *          true if the content is only sent on {@link #release()}, so that an ETag
+   *          made from it can be set on the response that is being captured.
+   */
+  public OperationResponseCapture(boolean hold) {
+    this.hold = hold;
     cacheable = true;
     resetRedoLog();
   }
@@ -62,7 +74,7 @@ public class OperationResponseCapture {
       throw new IllegalStateException();
     }
     if (writer == null) {
-      splitWriter = new SplitWriter(baseWriter);
+      splitWriter = new SplitWriter(baseWriter, hold);
       writer = new PrintWriter(splitWriter);
     }
     return writer;
@@ -73,7 +85,7 @@ public class OperationResponseCapture {
       throw new IllegalStateException();
     }
     if (outputStream == null) {
-      outputStream = new SplitOutputStream(baseStream);
+      outputStream = new SplitOutputStream(baseStream, hold);
     }
     return outputStream;
   }
@@ -215,4 +227,25 @@ public class OperationResponseCapture {
     return cacheable;
   }
 
+  /**
+   * @return true if the content is held until {@link #release()}.
+   */
+  public boolean isHeld() {
+    return hold;
+  }
+
+  /**
+   * Send any content that has been held.
+   */
+  public void release() throws IOException {
+    hold = false;
+    if (splitWriter != null) {
+      writer.flush();
+      splitWriter.release();
+    }
+    if (outputStream != null) {
+      outputStream.release();
+    }
+  }
+
 }
@@ -28,29 +28,58 @@ public class SplitOutputStream extends ServletOutputStream {
   
   private ServletOutputStream baseStream;
   private ByteArrayOutputStream store;
+  private boolean hold;
 
   public SplitOutputStream(ServletOutputStream baseStream) {
+    this(baseStream, false);
+  }
+
+  /**
+   * @param hold
+   *          true if the content is only written to the base stream on {@link #release()},
+   *          so that headers can still be set once all of it is known.
+   */
+  public SplitOutputStream(ServletOutputStream baseStream, boolean hold) {
     store = new ByteArrayOutputStream();
     this.baseStream = baseStream;
+    this.hold = hold;
   }
 
   @Override
   public void write(int b) throws IOException {
-    baseStream.write(b);
+    if ( !hold ) {
+      baseStream.write(b);
+    }
     store.write(b);
   }
   
   @Override
   public void flush() throws IOException {
     super.flush();
-    baseStream.flush();
+    if ( !hold ) {
+      baseStream.flush();
+    }
     store.flush();
   }
   
   @Override
   public void close() throws IOException {
     super.close();
-    baseStream.flush();
+    if ( !hold ) {
+      baseStream.flush();
+    }
+  }
+
+  /**
+   * Write the content held so far to the base stream, and anything after it straight
+   * through.
+   */
+  public void release() throws IOException {
+    if ( hold ) {
+      hold = false;
+      store.writeTo(baseStream);
+      baseStream.flush();
+    }
   }
 
   public byte[] toByteArray() {
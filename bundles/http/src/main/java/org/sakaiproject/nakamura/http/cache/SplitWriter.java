@@ -28,27 +28,56 @@ public class SplitWriter extends Writer {
   
   private PrintWriter baseWriter;
   private StringWriter store;
+  private boolean hold;
 
   public SplitWriter(PrintWriter baseWriter) {
+    this(baseWriter, false);
+  }
+
+  /**
+   * @param hold
+   *          true if the content is only written to the base writer on {@link #release()},
+   *          so that headers can still be set once all of it is known.
+   */
+  public SplitWriter(PrintWriter baseWriter, boolean hold) {
     this.baseWriter = baseWriter;
     this.store = new StringWriter();
+    this.hold = hold;
   }
 
   @Override
   public void write(char[] cbuf, int off, int len) throws IOException {
-    baseWriter.write(cbuf, off, len);
+    if ( !hold ) {
+      baseWriter.write(cbuf, off, len);
+    }
     store.write(cbuf,off,len);
   }
 
   @Override
   public void flush() throws IOException {
-    baseWriter.flush();
+    if ( !hold ) {
+      baseWriter.flush();
+    }
     store.flush();
   }
 
   @Override
   public void close() throws IOException {
-    baseWriter.close();
+    if ( !hold ) {
+      baseWriter.close();
+    }
+  }
+
+  /**
+   * Write the content held so far to the base writer, and anything after it straight
+   * through.
+   */
+  public void release() {
+    if ( hold ) {
+      hold = false;
+      baseWriter.write(store.toString());
+      baseWriter.flush();
+    }
   }
 
   public String getStringContent() { 
@@ -23,19 +23,27 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.commons.osgi.OsgiUtil;
 import org.osgi.framework.Constants;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Properties;
-import java.util.regex.Matcher;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 import javax.jcr.Node;
@@ -52,7 +60,9 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * Filter to transform __MSG_*__ i18n message keys into i18n messages.
+ * Filter to transform __MSG_*__ i18n message keys into i18n messages. Language bundles are
+ * parsed once and pages are split on their message keys once, both are dropped when
+ * anything under the bundles path changes.
  */
 @Component(metatype = true, enabled=false)
 @Service
@@ -63,9 +73,12 @@ import javax.servlet.http.HttpServletResponse;
     @Property(name = "sling.filter.scope", value = "REQUEST", propertyPrivate = true),
     @Property(name = I18nFilter.BUNDLES_PATH, value = I18nFilter.DEFAULT_BUNDLES_PATH),
     @Property(name = I18nFilter.MESSAGE_KEY_PATTERN, value = I18nFilter.DEFAULT_MESSAGE_KEY_PATTERN),
-    @Property(name = I18nFilter.SHOW_MISSING_KEYS, boolValue = I18nFilter.DEFAULT_SHOW_MISSING_KEYS)
+    @Property(name = I18nFilter.SHOW_MISSING_KEYS, boolValue = I18nFilter.DEFAULT_SHOW_MISSING_KEYS),
+    @Property(name = EventConstants.EVENT_TOPIC, value = {
+        SlingConstants.TOPIC_RESOURCE_ADDED, SlingConstants.TOPIC_RESOURCE_CHANGED,
+        SlingConstants.TOPIC_RESOURCE_REMOVED }, propertyPrivate = true)
 })
-public class I18nFilter implements Filter {
+public class I18nFilter implements Filter, EventHandler {
   public static final String PARAM_LANGUAGE = "l";
   public static final String DEFAULT_BUNDLES_PATH = "/dev/bundle";
   public static final String DEFAULT_MESSAGE_KEY_PATTERN = "__MSG__(.+?)__";
@@ -77,11 +90,33 @@ public class I18nFilter implements Filter {
   static final String MESSAGE_KEY_PATTERN = "sakai.filter.i18n.message_key.pattern";
   static final String SHOW_MISSING_KEYS = "sakai.filter.i18n.message_key.show_missing";
 
+  /**
+   * The number of filtered pages to keep, pages are keyed by path.
+   */
+  private static final int MAX_PAGES = 1000;
+
   private String bundlesPath;
   private String keyPattern;
   private Pattern messageKeyPattern;
   private boolean showMissingKeys;
 
+  /**
+   * Counts the changes to the bundles. Bundles and pages are kept with the count from
+   * before they were loaded, and only used while it is still the count, so a load that
+   * read a bundle before a change can not put it back after the change cleared it.
+   */
+  private final AtomicLong generation = new AtomicLong();
+  private final Map<String, Loaded<Map<String, String>>> bundles = new ConcurrentHashMap<String, Loaded<Map<String, String>>>();
+  private final Map<String, Loaded<I18nPage>> pages = Collections
+      .synchronizedMap(new LinkedHashMap<String, Loaded<I18nPage>>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Entry<String, Loaded<I18nPage>> eldest) {
+          return size() > MAX_PAGES;
+        }
+      });
+
   @Activate @Modified
   public void modified(Map<?, ?> props) {
     bundlesPath = OsgiUtil.toString(props.get(BUNDLES_PATH), DEFAULT_BUNDLES_PATH);
@@ -92,6 +127,29 @@ public class I18nFilter implements Filter {
 
     showMissingKeys = OsgiUtil.toBoolean(props.get(SHOW_MISSING_KEYS),
         DEFAULT_SHOW_MISSING_KEYS);
+
+    clear();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+    if (path != null && bundlesPath != null && path.startsWith(bundlesPath)) {
+      clear();
+    }
+  }
+
+  /**
+   * Drop the bundles, and the rendered pages as they hold messages from the bundles.
+   */
+  private void clear() {
+    generation.incrementAndGet();
+    bundles.clear();
+    pages.clear();
   }
 
   // ---------- Filter interface ----------
@@ -109,6 +167,7 @@ public class I18nFilter implements Filter {
    * @see javax.servlet.Filter#destroy()
    */
   public void destroy() {
+    clear();
   }
 
   /**
@@ -134,6 +193,8 @@ public class I18nFilter implements Filter {
     boolean filter = false;
     if ((path.startsWith("/dev/") || path.startsWith("/devwidgets/"))
         && path.endsWith(".html")) {
+      // the page is rendered in the language of the request, so it can not be shared.
+      httpResponse.addHeader("Vary", "Accept-Language");
       httpResponse = new CapturingHttpServletResponse(httpResponse);
       filter = true;
     }
@@ -148,7 +209,7 @@ public class I18nFilter implements Filter {
       if (!StringUtils.isBlank(output)) {
         long start = System.currentTimeMillis();
 
-        writeFilteredResponse(srequest, response, output);
+        writeFilteredResponse(srequest, response, path, output);
 
         long end = System.currentTimeMillis();
         logger.debug("Filtered {} in {}ms", path, (end - start));
@@ -162,66 +223,47 @@ public class I18nFilter implements Filter {
    *
    * @param srequest
    * @param response
+   * @param path
    * @param output
    * @throws IOException
    */
   private void writeFilteredResponse(SlingHttpServletRequest srequest,
-      ServletResponse response, String output) throws IOException {
-    StringBuilder sb = new StringBuilder(output);
+      ServletResponse response, String path, String output) throws IOException {
+    String filtered = output;
     try {
       Session session = srequest.getResourceResolver().adaptTo(Session.class);
-      Node bundlesNode = session.getNode(bundlesPath);
+      long loading = generation.get();
 
       // load the language bundle
       Locale locale = getLocale(srequest);
-      Properties bndLang = getLangBundle(bundlesNode, locale.toString());
+      Map<String, String> bndLang = getLangBundle(session, locale.toString(), loading);
 
       // load the default bundle
-      Properties bndLangDefault = getLangBundle(bundlesNode, "default");
-
-      // check for message keys and replace them with the appropriate message
-      Matcher m = messageKeyPattern.matcher(output);
-      ArrayList<String> matchedKeys = new ArrayList<String>();
-      while (m.find()) {
-        String msgKey = m.group(0);
-        String key = m.group(1);
-        if (!matchedKeys.contains(key)) {
-          String message = "";
-
-          if (bndLang.containsKey(key)) {
-            message = bndLang.getProperty(key);
-          } else if (bndLangDefault.containsKey(key)) {
-            message = bndLangDefault.getProperty(key);
-          } else {
-            String msg = "[MESSAGE KEY NOT FOUND '" + key + "']";
-            logger.warn(msg);
-            if (showMissingKeys) {
-              message = msg;
-            }
-          }
-
-          // replace all instances of msgKey with the actual message
-          int keyStart = sb.indexOf(msgKey);
-          while (keyStart >= 0) {
-            sb.replace(keyStart, keyStart + msgKey.length(), message);
-            keyStart = sb.indexOf(msgKey, keyStart);
-          }
-
-          // track the group so we don't try to replace it again
-          matchedKeys.add(key);
+      Map<String, String> bndLangDefault = getLangBundle(session, "default", loading);
+
+      // replace the message keys with the appropriate messages
+      Loaded<I18nPage> loaded = pages.get(path);
+      I18nPage page;
+      if (loaded != null && loaded.generation == loading && loaded.value.isSource(output)) {
+        page = loaded.value;
+      } else {
+        page = new I18nPage(output, messageKeyPattern);
+        if (loading == generation.get()) {
+          pages.put(path, new Loaded<I18nPage>(loading, page));
         }
       }
+      filtered = page.render(locale.toString(), bndLang, bndLangDefault, showMissingKeys);
     } catch (RepositoryException e) {
       logger.error(e.getMessage(), e);
     }
 
-    response.setContentLength(sb.length());
+    response.setContentLength(filtered.length());
 
     // send the output to the actual response
     try {
-      response.getWriter().write(sb.toString());
+      response.getWriter().write(filtered);
     } catch (IllegalStateException e) {
-      response.getOutputStream().write(sb.toString().getBytes("UTF-8"));
+      response.getOutputStream().write(filtered.getBytes("UTF-8"));
     }
   }
 
@@ -239,15 +281,45 @@ public class I18nFilter implements Filter {
     return l;
   }
 
-  private Properties getLangBundle(Node bundlesNode, String name)
+  private Map<String, String> getLangBundle(Session session, String name, long loading)
       throws PathNotFoundException, RepositoryException, ValueFormatException,
       IOException {
+    Loaded<Map<String, String>> loaded = bundles.get(name);
+    if (loaded != null && loaded.generation == loading) {
+      return loaded.value;
+    }
+    Node bundlesNode = session.getNode(bundlesPath);
     Node langNode = bundlesNode.getNode(name + ".properties");
     Node content = langNode.getNode("jcr:content");
     Properties props = new Properties();
     InputStream in = content.getProperty("jcr:data").getBinary().getStream();
-    props.load(in);
-    in.close();
-    return props;
+    try {
+      props.load(in);
+    } finally {
+      in.close();
+    }
+    Map<String, String> messages = new HashMap<String, String>();
+    for (String key : props.stringPropertyNames()) {
+      messages.put(key, props.getProperty(key));
+    }
+    Map<String, String> bundle = Collections.unmodifiableMap(messages);
+    // a load that started before a change is used once and not kept.
+    if (loading == generation.get()) {
+      bundles.put(name, new Loaded<Map<String, String>>(loading, bundle));
+    }
+    return bundle;
+  }
+
+  /**
+   * A bundle or page and the count of changes to the bundles from before it was loaded.
+   */
+  private static final class Loaded<T> {
+    private final long generation;
+    private final T value;
+
+    private Loaded(long generation, T value) {
+      this.generation = generation;
+      this.value = value;
+    }
   }
 }
@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.i18n;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A page split once on its message keys into literal and key segments, so that filling
+ * it in for a locale is a single pass over the segments. The rendered output is kept per
+ * locale until the page or the bundles change.
+ */
+public class I18nPage {
+  private static final Logger logger = LoggerFactory.getLogger(I18nPage.class);
+
+  private final String source;
+  /**
+   * The text between the keys, always one more than the number of keys.
+   */
+  private final String[] literals;
+  private final String[] keys;
+  private final Map<String, String> rendered = new ConcurrentHashMap<String, String>();
+
+  public I18nPage(String source, Pattern messageKeyPattern) {
+    this.source = source;
+    List<String> literalList = new ArrayList<String>();
+    List<String> keyList = new ArrayList<String>();
+    Matcher m = messageKeyPattern.matcher(source);
+    int last = 0;
+    while (m.find()) {
+      literalList.add(source.substring(last, m.start()));
+      keyList.add(m.group(1));
+      last = m.end();
+    }
+    literalList.add(source.substring(last));
+    literals = literalList.toArray(new String[literalList.size()]);
+    keys = keyList.toArray(new String[keyList.size()]);
+  }
+
+  /**
+   * @param output
+   *          the latest output for the path of this page.
+   * @return true if this page was built from the same output.
+   */
+  public boolean isSource(String output) {
+    return source.equals(output);
+  }
+
+  /**
+   * Fill in the message keys of the page.
+   *
+   * @param locale
+   *          the name of the locale, used to cache the result.
+   * @param bndLang
+   *          the messages of the locale.
+   * @param bndLangDefault
+   *          the default messages, used when the locale has no message for a key.
+   * @param showMissingKeys
+   *          true to mark keys that are in neither bundle, false to remove them.
+   * @return the page with all of its message keys replaced.
+   */
+  public String render(String locale, Map<String, String> bndLang,
+      Map<String, String> bndLangDefault, boolean showMissingKeys) {
+    String output = rendered.get(locale);
+    if (output == null) {
+      int length = source.length();
+      StringBuilder sb = new StringBuilder(length + (length >> 3));
+      for (int i = 0; i < keys.length; i++) {
+        sb.append(literals[i]);
+        String key = keys[i];
+        String message = bndLang.get(key);
+        if (message == null) {
+          message = bndLangDefault.get(key);
+        }
+        if (message == null) {
+          String msg = "[MESSAGE KEY NOT FOUND '" + key + "']";
+          logger.warn(msg);
+          if (showMissingKeys) {
+            sb.append(msg);
+          }
+        } else {
+          sb.append(message);
+        }
+      }
+      sb.append(literals[keys.length]);
+      output = sb.toString();
+      rendered.put(locale, output);
+    }
+    return output;
+  }
+}
@@ -1,41 +1,212 @@
 package org.sakaiproject.nakamura.http.qos;
 
-import org.mortbay.util.ajax.Continuation;
-
-import java.util.Queue;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.ServletRequest;
 
-public class QoSControl {
+/**
+ * The controls for one category of request. When the category has a target service time,
+ * the number of requests allowed to run at once adapts to it: while the average service
+ * time stays under the target the limit grows by one for every limit's worth of requests,
+ * up to the configured maximum, and when it rises above the target the limit is cut by
+ * {@link #BACKOFF}. The limit only moves while it is what holds requests back, so a few
+ * slow requests running alongside fast ones at low load do not shrink it. Queueing inside
+ * the server then shows up as requests waiting here, where they can be woken by priority.
+ * Without a target the limit stays at the configured maximum.
+ */
+public class QoSControl implements QoSControlMBean {
 
-  private Semaphore semaphore;
-  private int priority;
-  private Queue<Continuation>[] priorityQueue;
-  private long timeout;
+  /**
+   * The factor the limit is multiplied by when service times rise.
+   */
+  static final double BACKOFF = 0.9;
+  /**
+   * The weight of each new sample in the moving average.
+   */
+  private static final double SMOOTHING = 0.1;
 
-  public QoSControl(Queue<Continuation>[] priorityQueue, int nRequests, int priority,
-      long timeout) {
-    semaphore = new Semaphore(nRequests, true);
-    this.priority = priority;
-    this.priorityQueue = priorityQueue;
-    this.timeout = timeout;
+  private final QoSScheduler scheduler;
+  private final int priority;
+  private final long timeout;
+  private final int maxLimit;
+  private final int minLimit;
+  private final long targetServiceTime;
+
+  private double limit;
+  private int inFlight;
+  private double averageServiceTime = -1;
+  private long lastBackoff;
+
+  private final AtomicInteger queueDepth = new AtomicInteger();
+  private final AtomicLong accepted = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+
+  public QoSControl(QoSScheduler scheduler, int nRequests, int priority, long timeout) {
+    this(scheduler, nRequests, priority, timeout, 0);
   }
 
-  public Semaphore getSemaphore() {
-    return semaphore;
+  /**
+   * @param targetServiceTime
+   *          the average service time in ms to hold the category to, 0 or less to keep the
+   *          limit at nRequests.
+   */
+  public QoSControl(QoSScheduler scheduler, int nRequests, int priority, long timeout,
+      long targetServiceTime) {
+    this.scheduler = scheduler;
+    this.priority = priority;
+    this.timeout = timeout;
+    this.maxLimit = Math.max(1, nRequests);
+    this.minLimit = 1;
+    this.targetServiceTime = targetServiceTime;
+    this.limit = maxLimit;
   }
 
   public int getPriority(ServletRequest request) {
     return priority;
   }
 
-  public Queue<Continuation>[] getPriorityQueue() {
-    return priorityQueue;
+  public QoSScheduler getScheduler() {
+    return scheduler;
   }
 
   public long getTimeout() {
     return timeout;
   }
 
+  /**
+   * Wait up to waitMs for a place to run.
+   *
+   * @return true if the request may run, and must call {@link #release(long)}.
+   * @throws InterruptedException
+   */
+  public synchronized boolean tryAcquire(long waitMs) throws InterruptedException {
+    long end = System.currentTimeMillis() + waitMs;
+    while (inFlight >= (int) limit) {
+      long remaining = end - System.currentTimeMillis();
+      if (remaining <= 0) {
+        return false;
+      }
+      wait(remaining);
+    }
+    inFlight++;
+    accepted.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Wait for a place to run.
+   *
+   * @throws InterruptedException
+   */
+  public synchronized void acquire() throws InterruptedException {
+    while (inFlight >= (int) limit) {
+      wait();
+    }
+    inFlight++;
+    accepted.incrementAndGet();
+  }
+
+  /**
+   * @return true if a request could start now.
+   */
+  public synchronized boolean hasCapacity() {
+    return inFlight < (int) limit;
+  }
+
+  /**
+   * Give up a place and adapt the limit to the time the request took.
+   *
+   * @param serviceTime
+   *          the time taken in ns.
+   */
+  public synchronized void release(long serviceTime) {
+    inFlight--;
+    long ms = TimeUnit.NANOSECONDS.toMillis(serviceTime);
+    sample(ms);
+    notifyAll();
+  }
+
+  private void sample(long ms) {
+    if (averageServiceTime < 0) {
+      averageServiceTime = ms;
+    } else {
+      averageServiceTime += SMOOTHING * (ms - averageServiceTime);
+    }
+    if (targetServiceTime <= 0 || inFlight + 1 < (int) limit) {
+      // no target, or the limit is not what is holding requests back.
+      return;
+    }
+    long now = System.currentTimeMillis();
+    if (averageServiceTime > targetServiceTime) {
+      // back off at most once per average service time, the requests in flight when we
+      // last backed off will still be reporting the old load.
+      if (now - lastBackoff > averageServiceTime) {
+        limit = Math.max(minLimit, limit * BACKOFF);
+        lastBackoff = now;
+      }
+    } else if (limit < maxLimit) {
+      limit = Math.min(maxLimit, limit + 1.0 / limit);
+    }
+  }
+
+  /**
+   * Record that a request was turned away.
+   */
+  public void rejected() {
+    rejected.incrementAndGet();
+  }
+
+  void parked() {
+    queueDepth.incrementAndGet();
+  }
+
+  void unparked() {
+    queueDepth.decrementAndGet();
+  }
+
+  // ---------- QoSControlMBean ----------
+
+  public synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  public int getMaxLimit() {
+    return maxLimit;
+  }
+
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  public int getQueueDepth() {
+    return queueDepth.get();
+  }
+
+  public int getPriority() {
+    return priority;
+  }
+
+  public long getAcceptedCount() {
+    return accepted.get();
+  }
+
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+
+  public synchronized double getAverageServiceTime() {
+    return averageServiceTime < 0 ? 0 : averageServiceTime;
+  }
+
+  public long getTargetServiceTime() {
+    return targetServiceTime;
+  }
+
+  public void resetStatistics() {
+    accepted.set(0);
+    rejected.set(0);
+  }
+
 }
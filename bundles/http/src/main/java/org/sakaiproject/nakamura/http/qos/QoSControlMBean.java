@@ -0,0 +1,48 @@
+package org.sakaiproject.nakamura.http.qos;
+
+/**
+ * Statistics for a QoS category.
+ */
+public interface QoSControlMBean {
+
+  /**
+   * @return the number of requests currently allowed to run at once.
+   */
+  int getLimit();
+
+  /**
+   * @return the configured maximum for the limit.
+   */
+  int getMaxLimit();
+
+  /**
+   * @return the number of requests running.
+   */
+  int getInFlight();
+
+  /**
+   * @return the number of requests suspended waiting to run.
+   */
+  int getQueueDepth();
+
+  /**
+   * @return the priority of the category, 0 is the lowest.
+   */
+  int getPriority();
+
+  long getAcceptedCount();
+
+  long getRejectedCount();
+
+  /**
+   * @return the moving average of the time in ms taken to serve a request.
+   */
+  double getAverageServiceTime();
+
+  /**
+   * @return the average service time in ms the limit adapts to, 0 if the limit is fixed.
+   */
+  long getTargetServiceTime();
+
+  void resetStatistics();
+}
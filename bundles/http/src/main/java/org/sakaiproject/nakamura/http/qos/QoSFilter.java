@@ -17,11 +17,18 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -35,6 +42,13 @@ import javax.servlet.http.HttpServletResponse;
 /**
  * Provides a configurable QoS filter that manages request in and out of the server, based on number of concurrent requests. Pending requests are prioritiezed into queue, taken out of the queue based on priority and time of entry. If the request does not match any Quality of Service Configuration, the default configuration will be used.
  * Configuration is via the
+ * <p>
+ * The number of concurrent requests for each category adapts to the time requests take,
+ * with the configured number as the upper bound (see {@link QoSControl}). When a request
+ * finishes, the highest priority suspended request of any category that has room is
+ * resumed, so under load low priority categories wait longest and are the first to time
+ * out. Each category is registered as an MBean under
+ * <code>org.sakaiproject.nakamura:type=QoS</code>.
  */
 @Component(immediate = true, metatype = true)
 @Properties(value = {
@@ -68,6 +82,12 @@ public class QoSFilter implements Filter {
    */
   @Property(intValue=2)
   private static final String QOS_DEFAULT_PRIORITY_CONF = "qos.default.priority";
+  /**
+   * Average service time (ms) to adapt the default number of concurrent requests to, 0
+   * keeps the limit fixed at qos.default.limit.
+   */
+  @Property(longValue=0)
+  private static final String QOS_DEFAULT_TARGET_CONF = "qos.default.targetServiceTime";
   /**
    * The maximum priority queue number (default , 0 is the lowest priority)
    */
@@ -79,12 +99,14 @@ public class QoSFilter implements Filter {
   @Property(longValue=60000L)
   private static final String QOS_TIMEOUT_CONFIG = "qos.timeout";
   /**
-   * List of categories, formatted as pathSpec;maxrequests;priority;timeout
+   * List of categories, formatted as pathSpec;maxrequests;priority;timeout;target
    * pathSpec is of the form method:firstPathElement
    * method is * or a HTTP method in lower case (get,post,etc)
    * maxrequests is the maximum number of concurrent requests
    * priority is the queue the request is put into if suspended (0 is the lowest) (optional)
    * timeout is the time (ms) the request will wait if suspended. (optional)
+   * target is the average service time (ms) to adapt the number of concurrent requests
+   * to, up to maxrequests; without it the limit is fixed at maxrequests. (optional)
    */
   @Property(value={})
   private static final String QOS_CATEGORIES_CONFIG = "qos.categories";
@@ -97,9 +119,10 @@ public class QoSFilter implements Filter {
   private long waitMs;
 
 
-  private Queue<Continuation>[] priorityQueue;
+  private QoSScheduler scheduler;
   private QoSControl defaultQoSControl;
   private Map<String, QoSControl> qoSControMap = new ConcurrentHashMap<String, QoSControl>();
+  private List<ObjectName> mbeanNames = new ArrayList<ObjectName>();
 
   public void init(FilterConfig filterConfig) throws ServletException {
   }
@@ -120,8 +143,9 @@ public class QoSFilter implements Filter {
         } else {
           request.setAttribute(suspendedAttributeName, Boolean.TRUE);
           Continuation continuation = ContinuationSupport.getContinuation((HttpServletRequest)request, qoSToken.getMutex());
-          continuation.suspend(qoSToken.getSuspendTime());
+          // queue before suspending, the suspend may not return until the request is resumed.
           qoSToken.queue(continuation);
+          continuation.suspend(qoSToken.getSuspendTime());
           return;
         }
       } else {
@@ -134,6 +158,7 @@ public class QoSFilter implements Filter {
             accepted = true;
           } else {
             // Timeout! try 1 more time.
+            qoSToken.dequeue();
             accepted = qoSToken.acquire(waitMs);
           }
         } else {
@@ -146,11 +171,13 @@ public class QoSFilter implements Filter {
       if (accepted) {
         chain.doFilter(request, response);
       } else {
+        qoSToken.rejected();
         ((HttpServletResponse) response)
             .sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
       }
     } catch (InterruptedException e) {
       LOGGER.warn("QoS", e);
+      qoSToken.rejected();
       ((HttpServletResponse) response)
           .sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
     } finally {
@@ -200,24 +227,25 @@ public class QoSFilter implements Filter {
 
     long defaultTimeout = OsgiUtil.toInteger(properties.get(QOS_TIMEOUT_CONFIG),-1);
     int maxPriorityNumber = OsgiUtil.toInteger(properties.get(QOS_MAX_PRIORITY_CONF),2);
-    priorityQueue = new Queue[maxPriorityNumber+1];
-    for ( int i = 0; i < priorityQueue.length; i++ ) {
-      priorityQueue[i] = new ConcurrentLinkedQueue<Continuation>();
-    }
+    scheduler = new QoSScheduler(maxPriorityNumber);
 
-    // path, max requests, priority, timeout
+    // path, max requests, priority, timeout, target service time
     qoSControMap.clear();
     String[] qosLocations = OsgiUtil.toStringArray(properties.get(QOS_CATEGORIES_CONFIG));
     if ( qosLocations != null ) {
       for ( String qosLocation : qosLocations ) {
         String[] settings = StringUtils.split(qosLocation,";");
         if ( settings != null ) {
-          if ( settings.length > 3 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), Long.parseLong(settings[3])));
-          } else if ( settings.length > 2 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), defaultTimeout));
+          if ( settings.length > 4 ) {
+            qoSControMap.put(settings[0], new QoSControl(scheduler, Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), Long.parseLong(settings[3]), Long.parseLong(settings[4])));
+          } else if ( settings.length > 3 ) {
+            qoSControMap.put(settings[0], new QoSControl(scheduler, Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), Long.parseLong(settings[3])));
           } else if ( settings.length > 2 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), maxPriorityNumber, defaultTimeout));
+            qoSControMap.put(settings[0], new QoSControl(scheduler, Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), defaultTimeout));
+          } else if ( settings.length > 1 ) {
+            qoSControMap.put(settings[0], new QoSControl(scheduler, Integer.parseInt(settings[1]), maxPriorityNumber, defaultTimeout));
+          } else {
+            LOGGER.warn("Ignoring QoS category {}, it needs at least pathSpec;maxrequests", qosLocation);
           }
         }
       }
@@ -227,9 +255,11 @@ public class QoSFilter implements Filter {
     int qosDefaultPriority = OsgiUtil.toInteger(properties.get(QOS_DEFAULT_PRIORITY_CONF),0);
     int qosDefaultLimit = OsgiUtil.toInteger(properties.get(QOS_DEFAULT_LIMIT_CONF),10);
     long qosDefaultTimeout = OsgiUtil.toLong(properties.get(QOS_DEFAULT_REQUEST_TIMEOUT_CONF),defaultTimeout);
+    long qosDefaultTarget = OsgiUtil.toLong(properties.get(QOS_DEFAULT_TARGET_CONF),0);
     waitMs = OsgiUtil.toLong(properties.get(QOS_SEMAPHOREWAIT_CONF),50);
 
-    defaultQoSControl = new QoSControl(priorityQueue, qosDefaultLimit, qosDefaultPriority, qosDefaultTimeout);
+    defaultQoSControl = new QoSControl(scheduler, qosDefaultLimit, qosDefaultPriority, qosDefaultTimeout, qosDefaultTarget);
+    registerMBeans();
 
     int filterPriority = OsgiUtil.toInteger(properties.get(FILTER_PRIORITY_CONF),10);
 
@@ -240,14 +270,39 @@ public class QoSFilter implements Filter {
   @Deactivate
   public void deactivate(ComponentContext componentContext) {
     extHttpService.unregisterFilter(this);
+    unregisterMBeans();
     // resume any continuations held by the filter
-    for (int p = priorityQueue.length; p-- > 0;) {
-      Continuation continutaion = priorityQueue[p].poll();
-      if (continutaion != null && continutaion.isResumed()) {
-        continutaion.resume();
-        break;
+    scheduler.wakeAll();
+  }
+
+  private void registerMBeans() {
+    unregisterMBeans();
+    MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    Map<String, QoSControl> controls = new HashMap<String, QoSControl>(qoSControMap);
+    controls.put("default", defaultQoSControl);
+    for (Entry<String, QoSControl> control : controls.entrySet()) {
+      try {
+        ObjectName name = new ObjectName("org.sakaiproject.nakamura:type=QoS,category="
+            + ObjectName.quote(control.getKey()));
+        mBeanServer.registerMBean(control.getValue(), name);
+        mbeanNames.add(name);
+      } catch (JMException e) {
+        LOGGER.warn("Unable to register QoS statistics for {}: {} ", control.getKey(),
+            e.getMessage());
+      }
+    }
+  }
+
+  private void unregisterMBeans() {
+    MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    for (ObjectName name : mbeanNames) {
+      try {
+        mBeanServer.unregisterMBean(name);
+      } catch (JMException e) {
+        LOGGER.debug(e.getMessage(), e);
       }
     }
+    mbeanNames.clear();
   }
 
 }
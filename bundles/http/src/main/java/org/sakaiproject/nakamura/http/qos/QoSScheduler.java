@@ -0,0 +1,102 @@
+package org.sakaiproject.nakamura.http.qos;
+
+import org.mortbay.util.ajax.Continuation;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Holds the suspended requests of all categories in priority queues, so that when capacity
+ * frees up the highest priority request that can run is woken first, oldest first within
+ * a priority.
+ */
+public class QoSScheduler {
+
+  private final Queue<Parked>[] priorityQueue;
+
+  @SuppressWarnings("unchecked")
+  public QoSScheduler(int maxPriority) {
+    priorityQueue = new Queue[maxPriority + 1];
+    for (int i = 0; i < priorityQueue.length; i++) {
+      priorityQueue[i] = new ConcurrentLinkedQueue<Parked>();
+    }
+  }
+
+  /**
+   * @return the highest priority.
+   */
+  public int getMaxPriority() {
+    return priorityQueue.length - 1;
+  }
+
+  /**
+   * Park a suspended request.
+   *
+   * @return the entry, which can be used to remove the request if it times out.
+   */
+  public Parked park(Continuation continuation, QoSControl control, int priority) {
+    Parked parked = new Parked(continuation, control);
+    int p = Math.max(0, Math.min(priority, priorityQueue.length - 1));
+    control.parked();
+    priorityQueue[p].add(parked);
+    return parked;
+  }
+
+  /**
+   * Remove a request from the queues, if it is still there.
+   *
+   * @return true if this call removed it.
+   */
+  public boolean remove(Parked parked) {
+    for (Queue<Parked> queue : priorityQueue) {
+      if (queue.remove(parked)) {
+        parked.control.unparked();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Resume the highest priority suspended request whose category has capacity. A request
+   * may be resumed before it has finished suspending, in which case the suspend returns
+   * straight away.
+   *
+   * @return true if a request was resumed.
+   */
+  public boolean wake() {
+    for (int p = priorityQueue.length; p-- > 0;) {
+      for (Parked parked : priorityQueue[p]) {
+        if (parked.control.hasCapacity() && priorityQueue[p].remove(parked)) {
+          parked.control.unparked();
+          parked.continuation.resume();
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Resume every suspended request, used on shutdown.
+   */
+  public void wakeAll() {
+    for (int p = priorityQueue.length; p-- > 0;) {
+      Parked parked;
+      while ((parked = priorityQueue[p].poll()) != null) {
+        parked.control.unparked();
+        parked.continuation.resume();
+      }
+    }
+  }
+
+  public static class Parked {
+    private final Continuation continuation;
+    private final QoSControl control;
+
+    private Parked(Continuation continuation, QoSControl control) {
+      this.continuation = continuation;
+      this.control = control;
+    }
+  }
+}
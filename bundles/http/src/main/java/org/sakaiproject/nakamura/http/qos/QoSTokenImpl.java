@@ -3,15 +3,14 @@ package org.sakaiproject.nakamura.http.qos;
 import org.mortbay.util.ajax.Continuation;
 import org.sakaiproject.nakamura.api.http.qos.QoSToken;
 
-import java.util.Queue;
-import java.util.concurrent.TimeUnit;
-
 import javax.servlet.ServletRequest;
 
 public class QoSTokenImpl implements QoSToken {
 
   private QoSControl qoSControl;
   private int priority;
+  private QoSScheduler.Parked parked;
+  private long acquired;
 
   public QoSTokenImpl(QoSControl qoSControl, ServletRequest request) {
     this.qoSControl = qoSControl;
@@ -24,15 +23,9 @@ public class QoSTokenImpl implements QoSToken {
   }
 
   public void release() {
-    Queue<Continuation>[] priorityQueue = qoSControl.getPriorityQueue();
-    for (int p = priorityQueue.length; p-- > 0;) {
-      Continuation continutaion = priorityQueue[p].poll();
-      if (continutaion != null && continutaion.isResumed()) {
-        continutaion.resume();// this assumes only 1 will be resumed, that may not be right and we might want to think how the proprity queues are managed.
-        break;
-      }
-    }
-    qoSControl.getSemaphore().release();
+    qoSControl.release(System.nanoTime() - acquired);
+    // the place we gave up may go to a higher priority request in another category.
+    qoSControl.getScheduler().wake();
   }
 
   public long getSuspendTime() {
@@ -40,15 +33,35 @@ public class QoSTokenImpl implements QoSToken {
   }
 
   public void queue(Continuation continuation) {
-    qoSControl.getPriorityQueue()[priority].add(continuation);
+    parked = qoSControl.getScheduler().park(continuation, qoSControl, priority);
+    // capacity may have freed up between the failed acquire and parking.
+    if (qoSControl.hasCapacity()) {
+      qoSControl.getScheduler().wake();
+    }
+  }
+
+  public void dequeue() {
+    if (parked != null) {
+      qoSControl.getScheduler().remove(parked);
+      parked = null;
+    }
+  }
+
+  public void rejected() {
+    qoSControl.rejected();
   }
 
   public boolean acquire(long waitMs) throws InterruptedException {
-    return qoSControl.getSemaphore().tryAcquire(waitMs, TimeUnit.MILLISECONDS);
+    if (qoSControl.tryAcquire(waitMs)) {
+      acquired = System.nanoTime();
+      return true;
+    }
+    return false;
   }
 
   public void acquire() throws InterruptedException {
-    qoSControl.getSemaphore().acquire();
+    qoSControl.acquire();
+    acquired = System.nanoTime();
   }
 
 }
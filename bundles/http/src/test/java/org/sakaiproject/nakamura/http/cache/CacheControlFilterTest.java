@@ -17,7 +17,10 @@
  */
 package org.sakaiproject.nakamura.http.cache;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -29,14 +32,18 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -44,12 +51,21 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.Dictionary;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 @RunWith(MockitoJUnitRunner.class)
 public class CacheControlFilterTest {
@@ -66,6 +82,8 @@ public class CacheControlFilterTest {
 
   private CacheControlFilter cacheControlFilter;
 
+  private final List<Throwable> failures = new CopyOnWriteArrayList<Throwable>();
+
   @Mock
   private ComponentContext componentContext;
 
@@ -94,6 +112,7 @@ public class CacheControlFilterTest {
         "dev;.expires:3456000;Cache-Control: max-age=432000 public;Vary:Accept-Encoding", 
         "devwidgets;.expires:3456000;Cache-Control:max-age=432000 public;Vary:Accept-Encoding",
         "cacheable;.expires:3456000;.requestCache:3600;Cache-Control:max-age=432000 public;Vary:Accept-Encoding",
+        "stale;.requestCache:3600;.staleWhileRevalidate:60;Vary:Accept-Encoding",
         "p;Cache-Control:no-cache" });
     when(componentContext.getProperties()).thenReturn(properties);
     cacheControlFilter.extHttpService = extHttpService;
@@ -157,7 +176,7 @@ public class CacheControlFilterTest {
     cacheControlFilter.doFilter(request, response, new TFilter(true));
 
     verify(response, Mockito.atLeastOnce()).setHeader(anyString(), anyString());
-    verify(cache).put(Mockito.eq("/cacheable/config.json?null"), Matchers.any(CachedResponse.class));
+    verify(cache).put(Mockito.eq("/cacheable/config.json?null;Accept-Encoding="), Matchers.any(CachedResponse.class));
     
     
     
@@ -180,7 +199,7 @@ public class CacheControlFilterTest {
 
     when(cacheMangerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE)).thenReturn(cache);
     CachedResponse cachedResponse  = populateResponseCapture(true);
-    when(cache.get("/cacheable/config.json?null")).thenReturn(cachedResponse);
+    when(cache.get("/cacheable/config.json?null;Accept-Encoding=")).thenReturn(cachedResponse);
     
     cacheControlFilter.cacheManagerService = cacheMangerService;
 
@@ -191,6 +210,38 @@ public class CacheControlFilterTest {
     
     
     
+  }
+
+  @Test
+  public void checkRequestCachingVaries() throws Exception {
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getPathInfo()).thenReturn("/cacheable/config.json");
+    when(request.getHeader("Accept-Encoding")).thenReturn("gzip, deflate");
+    StringWriter stringWriter = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(stringWriter));
+    when(cacheMangerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE)).thenReturn(cache);
+
+    cacheControlFilter.cacheManagerService = cacheMangerService;
+    cacheControlFilter.doFilter(request, response, new TFilter(false));
+
+    verify(cache).put(Mockito.eq("/cacheable/config.json?null;Accept-Encoding=gzip"), Matchers.any(CachedResponse.class));
+  }
+
+  @Test
+  public void checkRequestCachingNotModified() throws Exception {
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getPathInfo()).thenReturn("/cacheable/config.json");
+    when(cacheMangerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE)).thenReturn(cache);
+    CachedResponse cachedResponse  = populateResponseCapture(false);
+    when(cache.get("/cacheable/config.json?null;Accept-Encoding=")).thenReturn(cachedResponse);
+    when(request.getHeader("If-None-Match")).thenReturn(cachedResponse.getEtag());
+
+    cacheControlFilter.cacheManagerService = cacheMangerService;
+    cacheControlFilter.doFilter(request, response, null);
+
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    verify(response).setHeader("ETag", cachedResponse.getEtag());
+    verify(response, never()).getWriter();
   }
 
   private CachedResponse populateResponseCapture(boolean useOutputStream) throws IOException {
@@ -238,10 +289,173 @@ public class CacheControlFilterTest {
 
     verify(response, Mockito.atLeastOnce()).setHeader(anyString(), anyString());
     
-    verify(cache).put(Mockito.eq("/cacheable/config.json?null"), Matchers.any(CachedResponse.class));
+    verify(cache).put(Mockito.eq("/cacheable/config.json?null;Accept-Encoding="), Matchers.any(CachedResponse.class));
   }
 
 
+  @Test
+  public void firstRenderSendsEtag() throws Exception {
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getPathInfo()).thenReturn("/cacheable/config.json");
+    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        baos.write(b);
+      }
+    });
+    final int[] sentBeforeEtag = new int[] { -1 };
+    doAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) {
+        sentBeforeEtag[0] = baos.size();
+        return null;
+      }
+    }).when(response).setHeader(Mockito.eq("ETag"), anyString());
+    when(cacheMangerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE)).thenReturn(cache);
+
+    cacheControlFilter.cacheManagerService = cacheMangerService;
+    cacheControlFilter.doFilter(request, response, new TFilter(true));
+
+    ArgumentCaptor<CachedResponse> saved = ArgumentCaptor.forClass(CachedResponse.class);
+    verify(cache).put(Mockito.eq("/cacheable/config.json?null;Accept-Encoding="), saved.capture());
+    verify(response).setHeader("ETag", saved.getValue().getEtag());
+    // the header went out before any of the body.
+    assertEquals(0, sentBeforeEtag[0]);
+    assertEquals(1024, baos.size());
+  }
+
+  @Test
+  public void concurrentMissesRenderOnce() throws Exception {
+    useCache(new MapCacheImpl<Object>());
+    BlockingChain chain = new BlockingChain();
+    ByteArrayOutputStream firstSent = new ByteArrayOutputStream();
+    ByteArrayOutputStream secondSent = new ByteArrayOutputStream();
+
+    Thread first = render("/cacheable/config.json", chain, firstSent);
+    assertTrue(chain.entered.await(10, TimeUnit.SECONDS));
+    Thread second = render("/cacheable/config.json", chain, secondSent);
+    // the second request waits for the first to render.
+    waitUntilWaiting(second);
+    chain.release.countDown();
+    first.join(10000L);
+    second.join(10000L);
+
+    assertTrue(failures.isEmpty());
+    assertEquals(1, chain.renders.get());
+    assertEquals(1024, firstSent.size());
+    assertEquals(1024, secondSent.size());
+  }
+
+  @Test
+  public void staleCopyServedWhileReplaced() throws Exception {
+    MapCacheImpl<Object> cache = new MapCacheImpl<Object>();
+    // expired, but still within the stale window.
+    cache.put("/stale/config.json?null;Accept-Encoding=", new CachedResponse(
+        populateResponseCapture(true), 0, 60));
+    useCache(cache);
+    BlockingChain chain = new BlockingChain();
+    ByteArrayOutputStream firstSent = new ByteArrayOutputStream();
+    ByteArrayOutputStream secondSent = new ByteArrayOutputStream();
+
+    Thread first = render("/stale/config.json", chain, firstSent);
+    assertTrue(chain.entered.await(10, TimeUnit.SECONDS));
+    // while the first request replaces it the stale copy is sent, without waiting.
+    cacheControlFilter.doFilter(request("/stale/config.json"), response(secondSent), chain);
+    assertEquals(1, chain.renders.get());
+    assertEquals(1024, secondSent.size());
+
+    chain.release.countDown();
+    first.join(10000L);
+    assertTrue(failures.isEmpty());
+    assertTrue(((CachedResponse) cache.get("/stale/config.json?null;Accept-Encoding="))
+        .isValid());
+  }
+
+  @Test
+  public void staleCopyNotServedAfterWindow() throws Exception {
+    MapCacheImpl<Object> cache = new MapCacheImpl<Object>();
+    cache.put("/stale/config.json?null;Accept-Encoding=", new CachedResponse(
+        populateResponseCapture(false), 0, 0));
+    useCache(cache);
+    ByteArrayOutputStream sent = new ByteArrayOutputStream();
+
+    cacheControlFilter.doFilter(request("/stale/config.json"), response(sent),
+        new TFilter(true));
+    // rendered again rather than sending the old "ABCDEF".
+    assertEquals(1024, sent.size());
+  }
+
+  private void useCache(Cache<Object> cache) {
+    when(cacheMangerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE)).thenReturn(cache);
+    cacheControlFilter.cacheManagerService = cacheMangerService;
+  }
+
+  private HttpServletRequest request(String path) {
+    HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getPathInfo()).thenReturn(path);
+    return request;
+  }
+
+  private HttpServletResponse response(final ByteArrayOutputStream sent) throws IOException {
+    HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        sent.write(b);
+      }
+    });
+    return response;
+  }
+
+  private Thread render(String path, final FilterChain chain,
+      ByteArrayOutputStream sent) throws IOException {
+    final HttpServletRequest request = request(path);
+    final HttpServletResponse response = response(sent);
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          cacheControlFilter.doFilter(request, response, chain);
+        } catch (Throwable t) {
+          failures.add(t);
+        }
+      }
+    };
+    thread.start();
+    return thread;
+  }
+
+  private void waitUntilWaiting(Thread thread) throws InterruptedException {
+    long until = System.currentTimeMillis() + 10000L;
+    while (thread.getState() != Thread.State.TIMED_WAITING
+        && System.currentTimeMillis() < until) {
+      Thread.sleep(10);
+    }
+    assertEquals(Thread.State.TIMED_WAITING, thread.getState());
+  }
+
+  /**
+   * Renders like {@link TFilter} once it is released, counting the renders.
+   */
+  private static class BlockingChain implements FilterChain {
+    private final CountDownLatch entered = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger renders = new AtomicInteger();
+
+    public void doFilter(ServletRequest request, ServletResponse response)
+        throws IOException, ServletException {
+      renders.incrementAndGet();
+      entered.countDown();
+      try {
+        release.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        throw new ServletException(e);
+      }
+      new TFilter(true).doFilter(request, response);
+    }
+  }
+
   private void verifyExpiresHeaderWithPath(String method, String path,
       boolean expectHeader) throws ServletException, IOException {
     when(request.getMethod()).thenReturn(method);
@@ -25,6 +25,7 @@ import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
@@ -33,6 +34,7 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.jackrabbit.api.JackrabbitSession;
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.junit.After;
@@ -47,12 +49,15 @@ import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Locale;
 import java.util.Properties;
@@ -219,6 +224,8 @@ public class I18nFilterTest {
     assertNotNull(output);
     assertFalse(output.contains("__MSG__BAD_REPLACEMENT__"));
     assertTrue(output.contains("[MESSAGE KEY NOT FOUND 'BAD_REPLACEMENT']"));
+    // the page depends on the language asked for.
+    verify(response).addHeader("Vary", "Accept-Language");
   }
 
   @Test
@@ -371,6 +378,60 @@ public class I18nFilterTest {
     assertTrue(output.contains("Wie geht es ihnen?"));
   }
 
+  @Test
+  public void bundlesAreCachedUntilChanged() throws Exception {
+    when(request.getPathInfo()).thenReturn("/dev/index.html");
+    writeToResponse("__MSG__REPLACE_ME__", false);
+
+    filter.doFilter(request, response, chain);
+    filter.doFilter(request, response, chain);
+    verify(bundlesNode, times(1)).getNode("en_US.properties");
+    assertTrue(sw.toString().contains("Yay, In the language bundle!"));
+
+    // a change outside of the bundles doesn't matter
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(SlingConstants.PROPERTY_PATH, "/dev/index.html");
+    filter.handleEvent(new Event(SlingConstants.TOPIC_RESOURCE_CHANGED, properties));
+    filter.doFilter(request, response, chain);
+    verify(bundlesNode, times(1)).getNode("en_US.properties");
+
+    properties.put(SlingConstants.PROPERTY_PATH, I18nFilter.DEFAULT_BUNDLES_PATH
+        + "/en_US.properties/jcr:content");
+    filter.handleEvent(new Event(SlingConstants.TOPIC_RESOURCE_CHANGED, properties));
+    filter.doFilter(request, response, chain);
+    verify(bundlesNode, times(2)).getNode("en_US.properties");
+  }
+
+  @Test
+  public void bundleLoadedDuringChangeIsNotKept() throws Exception {
+    when(request.getPathInfo()).thenReturn("/dev/index.html");
+    writeToResponse("__MSG__REPLACE_ME__", false);
+
+    // the bundle changes while it is being read.
+    final Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(SlingConstants.PROPERTY_PATH, I18nFilter.DEFAULT_BUNDLES_PATH
+        + "/en_US.properties/jcr:content");
+    Binary binary = langNode.getNode("jcr:content").getProperty("jcr:data").getBinary();
+    when(binary.getStream()).thenAnswer(new Answer<InputStream>() {
+      private boolean changed;
+
+      public InputStream answer(InvocationOnMock invocation) throws Exception {
+        if (!changed) {
+          changed = true;
+          filter.handleEvent(new Event(SlingConstants.TOPIC_RESOURCE_CHANGED, properties));
+        }
+        return new ByteArrayInputStream("REPLACE_ME=Yay, In the language bundle!"
+            .getBytes("UTF-8"));
+      }
+    });
+
+    filter.doFilter(request, response, chain);
+    filter.doFilter(request, response, chain);
+    filter.doFilter(request, response, chain);
+    verify(bundlesNode, times(2)).getNode("en_US.properties");
+    assertTrue(sw.toString().contains("Yay, In the language bundle!"));
+  }
+
   private void writeToResponse(final String key, final boolean useOutputStream) throws IOException, ServletException {
     doAnswer(new Answer<Object>() {
       public Object answer(InvocationOnMock invocation) {
@@ -0,0 +1,79 @@
+package org.sakaiproject.nakamura.http.qos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class QoSControlTest {
+
+  @Test
+  public void testLimitBacksOffAndRecovers() throws Exception {
+    QoSControl control = new QoSControl(new QoSScheduler(2), 10, 1, 1000L, 50L);
+    assertEquals(10, control.getLimit());
+    // within the target with the limit fully used.
+    runFull(control, 20, 10);
+    assertEquals(10, control.getLimit());
+
+    // service times rise well past the target.
+    runFull(control, 5, 200);
+    int reduced = control.getLimit();
+    assertTrue(reduced < 10);
+
+    // and fall again, with the limit fully used the limit grows back.
+    runFull(control, 500, 10);
+    assertEquals(10, control.getLimit());
+  }
+
+  @Test
+  public void testMixedLatencyAtLowLoad() throws Exception {
+    QoSControl control = new QoSControl(new QoSScheduler(2), 10, 1, 1000L, 50L);
+    // slow requests mixed with fast ones, one at a time, are not load.
+    for (int i = 0; i < 200; i++) {
+      assertTrue(control.tryAcquire(0));
+      control.release(TimeUnit.MILLISECONDS.toNanos(i % 2 == 0 ? 5 : 500));
+    }
+    assertEquals(10, control.getLimit());
+  }
+
+  @Test
+  public void testMixedLatencyWithoutTarget() throws Exception {
+    QoSControl control = new QoSControl(new QoSScheduler(2), 10, 1, 1000L);
+    for (int i = 0; i < 200; i++) {
+      runFull(control, 1, i % 2 == 0 ? 5 : 500);
+    }
+    assertEquals(10, control.getLimit());
+    assertEquals(0, control.getTargetServiceTime());
+  }
+
+  @Test
+  public void testAcquireLimit() throws Exception {
+    QoSControl control = new QoSControl(new QoSScheduler(2), 2, 1, 1000L);
+    assertTrue(control.tryAcquire(0));
+    assertTrue(control.tryAcquire(0));
+    assertFalse(control.hasCapacity());
+    assertFalse(control.tryAcquire(10));
+    control.release(0);
+    assertTrue(control.hasCapacity());
+    assertEquals(2, control.getAcceptedCount());
+  }
+
+  /**
+   * Start as many requests as the limit allows then finish them all, rounds times.
+   */
+  private void runFull(QoSControl control, int rounds, long serviceTimeMs)
+      throws InterruptedException {
+    for (int i = 0; i < rounds; i++) {
+      for (int j = control.getLimit(); j > 0; j--) {
+        assertTrue(control.tryAcquire(0));
+      }
+      int running = control.getInFlight();
+      for (int j = 0; j < running; j++) {
+        control.release(TimeUnit.MILLISECONDS.toNanos(serviceTimeMs));
+      }
+    }
+  }
+}
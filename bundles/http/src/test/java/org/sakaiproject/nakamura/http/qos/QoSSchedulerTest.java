@@ -0,0 +1,126 @@
+package org.sakaiproject.nakamura.http.qos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.mortbay.util.ajax.Continuation;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletRequest;
+
+public class QoSSchedulerTest {
+
+  private final List<String> started = new CopyOnWriteArrayList<String>();
+  private final List<Throwable> failures = new CopyOnWriteArrayList<Throwable>();
+
+  @Test
+  public void testHigherPriorityInOtherCategoryWokenFirst() throws Exception {
+    QoSScheduler scheduler = new QoSScheduler(2);
+    QoSControl low = new QoSControl(scheduler, 1, 0, 10000L);
+    QoSControl high = new QoSControl(scheduler, 1, 2, 10000L);
+
+    // both categories are full.
+    QoSTokenImpl lowRunning = new QoSTokenImpl(low, mock(ServletRequest.class));
+    assertTrue(lowRunning.acquire(0));
+    assertTrue(high.tryAcquire(0));
+
+    // a low priority request waits first, then a high priority one.
+    Thread lowWaiting = request("low", low);
+    waitForQueue(low, lowWaiting);
+    Thread highWaiting = request("high", high);
+    waitForQueue(high, highWaiting);
+
+    // the high priority category gets a place without waking anyone, then the place
+    // given up in the low priority category wakes the high priority request first.
+    high.release(0);
+    lowRunning.release();
+    lowWaiting.join(10000L);
+    highWaiting.join(10000L);
+
+    assertTrue(failures.isEmpty());
+    assertEquals(2, started.size());
+    assertEquals("high", started.get(0));
+    assertEquals("low", started.get(1));
+    assertEquals(0, low.getQueueDepth());
+    assertEquals(0, high.getQueueDepth());
+  }
+
+  @Test
+  public void testFullCategoryNotWoken() throws Exception {
+    QoSScheduler scheduler = new QoSScheduler(2);
+    QoSControl low = new QoSControl(scheduler, 1, 0, 10000L);
+    QoSControl high = new QoSControl(scheduler, 1, 2, 10000L);
+    QoSTokenImpl lowRunning = new QoSTokenImpl(low, mock(ServletRequest.class));
+    assertTrue(lowRunning.acquire(0));
+    assertTrue(high.tryAcquire(0));
+
+    Thread lowWaiting = request("low", low);
+    waitForQueue(low, lowWaiting);
+    Thread highWaiting = request("high", high);
+    waitForQueue(high, highWaiting);
+
+    // the high priority category is still full, so the low priority request goes.
+    lowRunning.release();
+    lowWaiting.join(10000L);
+    assertEquals("low", started.get(0));
+    assertEquals(1, high.getQueueDepth());
+
+    high.release(0);
+    scheduler.wake();
+    highWaiting.join(10000L);
+    assertTrue(failures.isEmpty());
+    assertEquals("high", started.get(1));
+  }
+
+  /**
+   * Start a request that waits as the QoS filter does until it can run, then runs and
+   * finishes straight away.
+   */
+  private Thread request(final String name, final QoSControl control) {
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          QoSTokenImpl token = new QoSTokenImpl(control, mock(ServletRequest.class));
+          if (!token.acquire(0)) {
+            final CountDownLatch resumed = new CountDownLatch(1);
+            Continuation continuation = mock(Continuation.class);
+            doAnswer(new Answer<Object>() {
+              public Object answer(InvocationOnMock invocation) {
+                resumed.countDown();
+                return null;
+              }
+            }).when(continuation).resume();
+            token.queue(continuation);
+            assertTrue(resumed.await(10, TimeUnit.SECONDS));
+            token.acquire();
+          }
+          started.add(name);
+          token.release();
+        } catch (Throwable t) {
+          failures.add(t);
+        }
+      }
+    };
+    thread.start();
+    return thread;
+  }
+
+  private void waitForQueue(QoSControl control, Thread thread) throws InterruptedException {
+    long until = System.currentTimeMillis() + 10000L;
+    while ((control.getQueueDepth() == 0 || thread.getState() != Thread.State.TIMED_WAITING)
+        && System.currentTimeMillis() < until) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, control.getQueueDepth());
+  }
+}
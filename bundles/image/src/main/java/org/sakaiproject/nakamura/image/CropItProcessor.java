@@ -41,15 +41,31 @@ import org.slf4j.LoggerFactory;
 
 import java.awt.Dimension;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.IIOException;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.jcr.Binary;
 import javax.jcr.Node;
 import javax.jcr.PathNotFoundException;
@@ -60,6 +76,74 @@ public class CropItProcessor {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CropItProcessor.class);
 
+  /**
+   * The most pixels one crop may decode and produce, over the piece cut out and all of
+   * the sizes it is scaled to. 40M pixels is about 160MB of heap at 4 bytes a pixel.
+   */
+  protected static final long MAX_PIXELS = 40L * 1024L * 1024L;
+
+  /**
+   * Scales and encodes the sizes of an image. The threads are shared by all crops, so a
+   * few large images can not take every processor; when they are all busy the
+   * requesting thread does the work itself. Started by the first crop and stopped by
+   * {@link #shutdown()}.
+   */
+  private static ThreadPoolExecutor scaler;
+
+  protected static synchronized ThreadPoolExecutor getScaler() {
+    if (scaler == null) {
+      int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+      scaler = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+          new ArrayBlockingQueue<Runnable>(threads * 4), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+              Thread thread = new Thread(r, "CropItProcessor-" + count.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            }
+          }, new RejectedExecutionHandler() {
+            // unlike CallerRunsPolicy this also runs the task once the pool is shut down,
+            // so a crop that was under way is never left waiting on a dropped task.
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+              r.run();
+            }
+          });
+      scaler.allowCoreThreadTimeOut(true);
+    }
+    return scaler;
+  }
+
+  /**
+   * Stops the scaling threads once the work queued for them is done.
+   */
+  protected static synchronized void shutdown() {
+    if (scaler != null) {
+      scaler.shutdown();
+      scaler = null;
+    }
+  }
+
+  private static class ScaleTask implements Callable<byte[]> {
+    private final int width;
+    private final int height;
+    private final BufferedImage img;
+    private final String imgName;
+    private final ImageInfo info;
+
+    ScaleTask(int width, int height, BufferedImage img, String imgName, ImageInfo info) {
+      this.width = width;
+      this.height = height;
+      this.img = img;
+      this.imgName = imgName;
+      this.info = info;
+    }
+
+    public byte[] call() throws Exception {
+      return scaleAndWriteToByteArray(width, height, img, imgName, info);
+    }
+  }
+
   /**
    *
    * @param session
@@ -137,7 +221,6 @@ public class CropItProcessor {
           // this doesn't help.
           byte[] bytes = IOUtils.getInputStreamBytes(in);
           ImageInfo info = Sanselan.getImageInfo(bytes);
-          BufferedImage imgBuf = getBufferedImage(bytes, info);
 
           // Set the correct width & height.
           width = (width <= 0) ? info.getWidth() : width;
@@ -149,47 +232,63 @@ public class CropItProcessor {
           if (y + height > info.getHeight()) {
             height = info.getHeight() - y;
           }
+          if (x < 0 || y < 0 || width <= 0 || height <= 0) {
+            throw new ImageException(400, "The area to crop is outside image " + img);
+          }
 
-          // Cut the desired piece out of the image.
-          BufferedImage subImage = imgBuf.getSubimage(x, y, width, height);
-
-          // Loop the dimensions and create and save an image for each
-          // one.
+          // Work out every size up front, so the image is only decoded once and no finer
+          // than the largest of them needs.
+          int[][] sizes = new int[dimensions.size()][];
+          int maxWidth = 1;
+          int maxHeight = 1;
+          long pixels = 0;
           for (int i = 0; i < dimensions.size(); i++) {
-
             Dimension d = dimensions.get(i);
+            int iWidth = (d.width <= 0) ? info.getWidth() : d.width;
+            int iHeight = (d.height <= 0) ? info.getHeight() : d.height;
+            sizes[i] = new int[] { iWidth, iHeight };
+            maxWidth = Math.max(maxWidth, iWidth);
+            maxHeight = Math.max(maxHeight, iHeight);
+            pixels += (long) iWidth * iHeight;
+          }
+          int subsampling = getSubsampling(width, height, maxWidth, maxHeight);
+          pixels += (long) ((width + subsampling - 1) / subsampling)
+              * ((height + subsampling - 1) / subsampling);
+          if (pixels > MAX_PIXELS) {
+            throw new ImageException(413, "Cropping " + img + " to " + dimensions.size()
+                + " sizes needs " + pixels + " pixels, more than the " + MAX_PIXELS
+                + " allowed");
+          }
 
-            // get dimension size
-            int iWidth = d.width;
-            int iHeight = d.height;
-
-            iWidth = (iWidth <= 0) ? info.getWidth() : iWidth;
-            iHeight = (iHeight <= 0) ? info.getHeight() : iHeight;
-
-            // Create the image.
-            byte[] image = scaleAndWriteToByteArray(iWidth, iHeight, subImage, imgName, info);
+          // Decode only the desired piece of the image.
+          BufferedImage subImage = getRegion(bytes, info, new Rectangle(x, y, width,
+              height), subsampling);
+
+          // Scale and encode every size at once, the content manager is only used from
+          // this thread.
+          ThreadPoolExecutor scaler = getScaler();
+          List<Future<byte[]>> images = new ArrayList<Future<byte[]>>();
+          for (int[] size : sizes) {
+            images.add(scaler.submit(new ScaleTask(size[0], size[1], subImage, imgName,
+                info)));
+          }
+          for (int i = 0; i < sizes.length; i++) {
+            int iWidth = sizes[i][0];
+            int iHeight = sizes[i][1];
 
-            if ( image != null ) {
+            byte[] image = getImage(images.get(i), img);
 
-              String sPath = save + "/" + iWidth + "x" + iHeight + "_" + imgName;
-              // Save new image to JCR.
-              saveImageToContentStore(sPath, info.getMimeType(), image, session);
+            String sPath = save + "/" + iWidth + "x" + iHeight + "_" + imgName;
+            // Save new image to JCR.
+            saveImageToContentStore(sPath, info.getMimeType(), image, session);
 
-              arrFiles[i] = sPath;
-            } else {
-              LOGGER.warn("Failed to scale image "+img+" to "+iWidth+" by "+iHeight+" defaulting to full size");
-              arrFiles[i] = img;
-            }
+            arrFiles[i] = sPath;
           }
         } catch (ImageReadException e) {
           // This is not a valid image.
           LOGGER.error("Can't parse this format. Image {}, mime Type {} :{}", new Object[]{img, mimeType, e.getMessage()});
           LOGGER.debug("Cause: ", e);
           throw new ImageException(406, "Can't parse this format.  Image "+img+", mime Type "+mimeType);
-        } catch (ImageWriteException e) {
-          LOGGER.error("Can't crop this Image {}, mime Type {}  :{} ", new Object[]{img, mimeType, e.getMessage()});
-          LOGGER.debug("Cause: ", e);
-          throw new ImageException(406, "Can't crop this Image "+img+", mime Type "+mimeType);
         }
 
     } catch (IOException e) {
@@ -248,6 +347,111 @@ public class CropItProcessor {
     return imgBuf;
   }
 
+  /**
+   * Decodes a piece of an image. Where ImageIO can read the format only the piece is
+   * decoded, reading every <code>subsampling</code>th pixel, otherwise the whole image is
+   * decoded and the piece cut out of it.
+   *
+   * @param bytes
+   * @param info
+   * @param region
+   *          The piece of the image to decode, inside the image.
+   * @param subsampling
+   *          Read 1 in this many pixels across and down.
+   * @return
+   * @throws IOException
+   * @throws ImageReadException
+   * @throws ImageException
+   */
+  protected static BufferedImage getRegion(byte[] bytes, ImageInfo info, Rectangle region,
+      int subsampling) throws ImageReadException, IOException, ImageException {
+    if (info.getFormat() == ImageFormat.IMAGE_FORMAT_UNKNOWN) {
+      // This is not a valid image.
+      LOGGER.error("Can't parse this format.");
+      throw new ImageException(406, "Can't parse this format.");
+    }
+    ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes));
+    try {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+      if (readers.hasNext()) {
+        ImageReader reader = readers.next();
+        try {
+          reader.setInput(iis, true, true);
+          ImageReadParam param = reader.getDefaultReadParam();
+          param.setSourceRegion(region);
+          param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+          return toKnownType(reader.read(0, param));
+        } catch (IIOException e) {
+          // eg CMYK jpegs, which Sanselan may still manage.
+          LOGGER.debug("ImageIO could not read the image, decoding all of it {} ",
+              e.getMessage());
+        } finally {
+          reader.dispose();
+        }
+      }
+    } finally {
+      iis.close();
+    }
+    if ((long) info.getWidth() * info.getHeight() > MAX_PIXELS) {
+      throw new ImageException(413, "Image is too large to decode, " + info.getWidth()
+          + "x" + info.getHeight());
+    }
+    BufferedImage imgBuf = getBufferedImage(bytes, info);
+    return toKnownType(imgBuf.getSubimage(region.x, region.y, region.width, region.height));
+  }
+
+  /**
+   * @return how many pixels may be skipped across and down while still leaving twice the
+   *         pixels of the largest size, so the last step down is still a smoothing one.
+   */
+  protected static int getSubsampling(int width, int height, int maxWidth, int maxHeight) {
+    return Math.max(1, Math.min(width / maxWidth, height / maxHeight) / 2);
+  }
+
+  /**
+   * Scaling draws into a new image of the same type, which can not be done for a custom
+   * type, as some PNGs decode to.
+   */
+  private static BufferedImage toKnownType(BufferedImage img) {
+    if (img.getType() != BufferedImage.TYPE_CUSTOM) {
+      return img;
+    }
+    BufferedImage converted = new BufferedImage(img.getWidth(), img.getHeight(), img
+        .getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB
+        : BufferedImage.TYPE_INT_RGB);
+    Graphics2D g2 = converted.createGraphics();
+    g2.drawImage(img, 0, 0, null);
+    g2.dispose();
+    return converted;
+  }
+
+  /**
+   * @return the scaled image, failing with what the scaling failed with.
+   */
+  protected static byte[] getImage(Future<byte[]> image, String img) throws ImageException {
+    try {
+      return image.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ImageException(500, "Interrupted while scaling " + img);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof ImageException) {
+        throw (ImageException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      } else if (cause instanceof ImageWriteException) {
+        LOGGER.error("Can't crop this Image {} :{} ", img, cause.getMessage());
+        LOGGER.debug("Cause: ", cause);
+        throw new ImageException(406, "Can't crop this Image " + img);
+      }
+      LOGGER.error("Failed to scale image " + img + " " + cause.getMessage(), cause);
+      throw new ImageException(500, "Failed to scale image " + img);
+    }
+  }
+
   /**
    * Will save a stream of an image to the JCR.
    *
@@ -314,27 +518,22 @@ public class CropItProcessor {
   protected static byte[] scaleAndWriteToByteArray(int width, int height,
       BufferedImage img, String imgName, ImageInfo info) throws IOException,
       ImageWriteException {
-    try {
-      // Get a scaled image.
-      BufferedImage imgScaled = getScaledInstance(img, width, height);
+    // Get a scaled image.
+    BufferedImage imgScaled = getScaledInstance(img, width, height);
 
-      // Convert image to a stream
-      ByteArrayOutputStream out = new ByteArrayOutputStream();
+    // Convert image to a stream
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
 
-      // Write to stream.
-      if (info.getFormat() == ImageFormat.IMAGE_FORMAT_JPEG) {
-        ImageIO.write(imgScaled, "jpg", out);
-      } else if (info.getFormat() == ImageFormat.IMAGE_FORMAT_PNG) {
-        ImageIO.write(imgScaled, "png", out);
-      } else {
-        Sanselan.writeImage(imgScaled, out, info.getFormat(), null);
-      }
-      out.close();
-      return out.toByteArray();
-    } catch (Exception e) {
-      LOGGER.error("Failed to process image "+e.getMessage(), e);
+    // Write to stream.
+    if (info.getFormat() == ImageFormat.IMAGE_FORMAT_JPEG) {
+      ImageIO.write(imgScaled, "jpg", out);
+    } else if (info.getFormat() == ImageFormat.IMAGE_FORMAT_PNG) {
+      ImageIO.write(imgScaled, "png", out);
+    } else {
+      Sanselan.writeImage(imgScaled, out, info.getFormat(), null);
     }
-    return null;
+    out.close();
+    return out.toByteArray();
   }
 
 
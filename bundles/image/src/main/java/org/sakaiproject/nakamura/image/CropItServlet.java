@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.image;
 
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
@@ -71,12 +72,18 @@ import javax.servlet.http.HttpServletResponse;
         + "Example: {\"files\":[\"/test/16x16_gateway.png\",\"/test/32x32_gateway.png\"]}"),
     @ServiceResponse(code = 400, description = "There is a missing (or invalid) parameter."),
     @ServiceResponse(code = 406, description = "The provided image is not a valid imagetype."),
+    @ServiceResponse(code = 413, description = "Cropping the image to the sizes asked for would take too much memory."),
     @ServiceResponse(code = 500, description = "Failure, explanation is in the HTML.") }))
 public class CropItServlet extends SlingAllMethodsServlet {
 
   private static final Logger logger = LoggerFactory.getLogger(CropItServlet.class);
   private static final long serialVersionUID = 7893384805719426200L;
 
+  @Deactivate
+  protected void deactivate() {
+    CropItProcessor.shutdown();
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -18,6 +18,9 @@
 package org.sakaiproject.nakamura.image;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
@@ -29,6 +32,7 @@ import org.apache.sanselan.ImageInfo;
 import org.apache.sanselan.ImageReadException;
 import org.apache.sanselan.ImageWriteException;
 import org.apache.sanselan.Sanselan;
+import org.apache.sanselan.util.IOUtils;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.junit.Before;
 import org.junit.Test;
@@ -42,12 +46,16 @@ import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
 import org.sakaiproject.nakamura.lite.jackrabbit.SparseMapUserManager;
 
 import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import javax.imageio.ImageIO;
 import javax.jcr.RepositoryException;
@@ -149,4 +157,94 @@ public class CropItProcessorTest {
     assertEquals(scaledImage.getHeight(), 50);
   }
 
+  @Test
+  public void testGetSubsampling() {
+    assertEquals(1, CropItProcessor.getSubsampling(100, 100, 50, 50));
+    assertEquals(1, CropItProcessor.getSubsampling(100, 100, 200, 200));
+    assertEquals(7, CropItProcessor.getSubsampling(4000, 4000, 256, 256));
+    assertEquals(1, CropItProcessor.getSubsampling(4000, 1000, 256, 256));
+    assertEquals(3, CropItProcessor.getSubsampling(4000, 2000, 256, 256));
+  }
+
+  @Test
+  public void testGetRegion() throws IOException, ImageReadException, ImageException {
+    byte[] bytes = IOUtils.getInputStreamBytes(getClass().getResourceAsStream("people.png"));
+    ImageInfo info = Sanselan.getImageInfo(bytes);
+    BufferedImage region = CropItProcessor.getRegion(bytes, info, new Rectangle(10, 10, 60,
+        40), 2);
+    assertEquals(30, region.getWidth());
+    assertEquals(20, region.getHeight());
+  }
+
+  @Test
+  public void testRegionTooLarge() throws IOException, ImageReadException {
+    ImageInfo info = mock(ImageInfo.class);
+    when(info.getFormat()).thenReturn(ImageFormat.IMAGE_FORMAT_PNG);
+    when(info.getWidth()).thenReturn(10000);
+    when(info.getHeight()).thenReturn(10000);
+    try {
+      CropItProcessor.getRegion("not read by ImageIO".getBytes(), info, new Rectangle(0, 0,
+          100, 100), 1);
+      fail("The whole image should not be decoded.");
+    } catch (ImageException e) {
+      assertEquals(413, e.getCode());
+    }
+  }
+
+  @Test
+  public void testScalingFailure() {
+    final ImageException failure = new ImageException(413, "Too large");
+    FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+      public byte[] call() throws Exception {
+        throw failure;
+      }
+    });
+    task.run();
+    try {
+      CropItProcessor.getImage(task, img);
+      fail("The failure should be passed on.");
+    } catch (ImageException e) {
+      assertSame(failure, e);
+    }
+  }
+
+  @Test
+  public void testFailedScaleFailsCrop() throws IOException, ImageReadException {
+    InputStream is = getClass().getResourceAsStream("people.png");
+    final BufferedImage subImage = Sanselan.getBufferedImage(is).getSubimage(0, 0, 100,
+        100);
+    // no writer takes an unknown format.
+    final ImageInfo info = new ImageInfo("PNG", 8, null, ImageFormat.IMAGE_FORMAT_UNKNOWN,
+        "PNG", 256, "image/png", 1, 76, 76, 76, 76, 256, true, true, false, 2, "ZIP");
+    FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+      public byte[] call() throws Exception {
+        return CropItProcessor.scaleAndWriteToByteArray(50, 50, subImage, "people.png",
+            info);
+      }
+    });
+    task.run();
+    try {
+      CropItProcessor.getImage(task, img);
+      fail("A size that can not be written should fail the crop.");
+    } catch (ImageException e) {
+      assertEquals(406, e.getCode());
+    }
+  }
+
+  @Test
+  public void testShutdown() throws Exception {
+    ThreadPoolExecutor scaler = CropItProcessor.getScaler();
+    CropItProcessor.shutdown();
+    assertTrue(scaler.isShutdown());
+    // a crop after that starts the threads again.
+    scaler = CropItProcessor.getScaler();
+    assertFalse(scaler.isShutdown());
+    assertEquals("done", scaler.submit(new Callable<String>() {
+      public String call() {
+        return "done";
+      }
+    }).get());
+    CropItProcessor.shutdown();
+  }
+
 }
@@ -0,0 +1,288 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.jetty;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds gzipped responses so that a shareable static response is only rendered and
+ * compressed once while it is fresh. Responses are looked up by request URI and query
+ * string, and held with the headers needed to send them again until the max-age their
+ * Cache-Control gave them runs out. Bodies are stored by a digest of their compressed
+ * bytes, so identical bodies served from several URIs are held once. The total size of the
+ * held bodies is bounded, the least recently used being dropped first.
+ *
+ * Pre-built <code>.gz</code> files can be used instead of compressing at all: each
+ * configured URI prefix maps to a directory, and a <code>.gz</code> file next to where
+ * the resource would be in that directory is served if it is no older than the
+ * resource.
+ */
+public class GzipCache {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(GzipCache.class);
+
+  private final long maxSize;
+
+  private final int maxEntrySize;
+
+  private final Map<String, File> precompressed = new LinkedHashMap<String, File>();
+
+  private long size;
+
+  /**
+   * Key to the response held for it.
+   */
+  private final Map<String, Entry> keys = new LinkedHashMap<String, Entry>(16, 0.75f,
+      true);
+
+  /**
+   * Digest to the body.
+   */
+  private final Map<String, byte[]> bodies = new LinkedHashMap<String, byte[]>(16, 0.75f,
+      true);
+
+  /**
+   * A gzipped response and the headers it was sent with.
+   */
+  public static class Entry {
+    private final byte[] body;
+    private final String contentType;
+    private final long lastModified;
+    private final String etag;
+    private final String cacheControl;
+    private final long expires;
+    private String digest;
+
+    /**
+     * @param body
+     *          the gzipped body.
+     * @param contentType
+     * @param lastModified
+     *          the Last-Modified date, or -1 if there was none.
+     * @param etag
+     *          the ETag, or null if there was none.
+     * @param cacheControl
+     *          the Cache-Control header the response was sent with.
+     * @param expires
+     *          when the response stops being fresh, in ms since the epoch.
+     */
+    public Entry(byte[] body, String contentType, long lastModified, String etag,
+        String cacheControl, long expires) {
+      this.body = body;
+      this.contentType = contentType;
+      this.lastModified = lastModified;
+      this.etag = etag;
+      this.cacheControl = cacheControl;
+      this.expires = expires;
+    }
+
+    /**
+     * @return the same headers with another body.
+     */
+    public Entry withBody(byte[] body) {
+      return new Entry(body, contentType, lastModified, etag, cacheControl, expires);
+    }
+
+    public byte[] getBody() {
+      return body;
+    }
+
+    public String getContentType() {
+      return contentType;
+    }
+
+    public long getLastModified() {
+      return lastModified;
+    }
+
+    public String getEtag() {
+      return etag;
+    }
+
+    public String getCacheControl() {
+      return cacheControl;
+    }
+
+    public long getExpires() {
+      return expires;
+    }
+  }
+
+  /**
+   * @param maxSize
+   *          the total bytes of compressed bodies to hold.
+   * @param maxEntrySize
+   *          the largest compressed body to hold.
+   * @param precompressed
+   *          comma separated <code>uriPrefix=directory</code> pairs saying where pre-built
+   *          <code>.gz</code> files are, may be null.
+   */
+  public GzipCache(long maxSize, int maxEntrySize, String precompressed) {
+    this.maxSize = maxSize;
+    this.maxEntrySize = maxEntrySize;
+    if (precompressed != null) {
+      for (String mapping : precompressed.split(",")) {
+        int i = mapping.indexOf('=');
+        if (i > 0) {
+          File dir = new File(mapping.substring(i + 1).trim());
+          try {
+            this.precompressed.put(mapping.substring(0, i).trim(), dir.getCanonicalFile());
+          } catch (IOException e) {
+            LOGGER.warn("Ignoring precompressed directory {} {}", dir, e.getMessage());
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the key to hold the response to a request under.
+   */
+  public static String getKey(String uri, String query) {
+    return query == null ? uri : uri + '?' + query;
+  }
+
+  /**
+   * @return the response held under the key, or null if there is none or it is no longer
+   *         fresh.
+   */
+  public synchronized Entry get(String key, long now) {
+    Entry entry = keys.get(key);
+    if (entry == null) {
+      return null;
+    }
+    // getting the body marks it as used.
+    if (bodies.get(entry.digest) == null || now >= entry.expires) {
+      keys.remove(key);
+      return null;
+    }
+    return entry;
+  }
+
+  /**
+   * Hold a gzipped response under a key.
+   */
+  public void put(String key, Entry entry) {
+    byte[] body = entry.body;
+    if (body.length > maxEntrySize || body.length > maxSize) {
+      return;
+    }
+    entry.digest = digest(body);
+    synchronized (this) {
+      // getting the body marks it as used.
+      if (bodies.get(entry.digest) == null) {
+        bodies.put(entry.digest, body);
+        size += body.length;
+      }
+      keys.put(key, entry);
+      for (Iterator<byte[]> i = bodies.values().iterator(); i.hasNext() && size > maxSize;) {
+        size -= i.next().length;
+        i.remove();
+      }
+      // keys whose bodies have gone are dropped when they are next looked up, this keeps
+      // them from building up if they never are.
+      if (keys.size() > bodies.size() * 4 + 16) {
+        for (Iterator<Entry> i = keys.values().iterator(); i.hasNext();) {
+          if (!bodies.containsKey(i.next().digest)) {
+            i.remove();
+          }
+        }
+      }
+    }
+  }
+
+  public int getMaxEntrySize() {
+    return maxEntrySize;
+  }
+
+  public synchronized long getSize() {
+    return size;
+  }
+
+  /**
+   * @return a pre-built gzipped body for the URI that is no older than the resource, or
+   *         null.
+   */
+  public byte[] getPrecompressed(String uri, long lastModified) {
+    if (lastModified <= 0 || precompressed.isEmpty()) {
+      return null;
+    }
+    for (Map.Entry<String, File> e : precompressed.entrySet()) {
+      if (uri.startsWith(e.getKey())) {
+        try {
+          File file = new File(e.getValue(), uri.substring(e.getKey().length()) + ".gz")
+              .getCanonicalFile();
+          if (!file.getPath().startsWith(e.getValue().getPath() + File.separator)) {
+            return null;
+          }
+          // the header has a resolution of seconds.
+          if (file.isFile() && file.length() <= maxEntrySize
+              && file.lastModified() / 1000L >= lastModified / 1000L) {
+            return read(file);
+          }
+        } catch (IOException ex) {
+          LOGGER.debug("Unable to read precompressed {} {}", uri, ex.getMessage());
+        }
+        return null;
+      }
+    }
+    return null;
+  }
+
+  private byte[] read(File file) throws IOException {
+    byte[] body = new byte[(int) file.length()];
+    InputStream in = new FileInputStream(file);
+    try {
+      int n = 0;
+      while (n < body.length) {
+        int r = in.read(body, n, body.length - n);
+        if (r < 0) {
+          throw new IOException("File shrank while reading " + file);
+        }
+        n += r;
+      }
+    } finally {
+      in.close();
+    }
+    return body;
+  }
+
+  private String digest(byte[] body) {
+    try {
+      byte[] d = MessageDigest.getInstance("SHA-1").digest(body);
+      StringBuilder sb = new StringBuilder();
+      for (byte b : d) {
+        sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    }
+  }
+}
@@ -28,6 +28,7 @@ import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
@@ -47,9 +48,28 @@ import org.slf4j.LoggerFactory;
  * <li>The content-type is in the comma separated list of mimeTypes set in the <code>mimeTypes</code> initParameter or
  * if no mimeTypes are defined the content-type is not "application/gzip"</li>
  * <li>No content-encoding is specified by the resource</li>
+ * <li>The content-type is not one that is already compressed and the body does not start
+ * like a gzip, zip, png, jpeg or gif file</li>
  * </ul>
  *
  * <p>
+ * If the <code>cacheSize</code> initParameter is more than 0, GET responses that any
+ * cache may share (a Cache-Control max-age, and no private, no-cache, no-store, Set-Cookie
+ * or Vary other than Accept-Encoding) are kept gzipped in a {@link GzipCache} of that
+ * many bytes. Until the max-age runs out, the same URI is answered from there without
+ * running the rest of the chain. Conditional requests and requests carrying an
+ * Authorization header always go down the chain. Bodies larger than
+ * <code>cacheMaxEntrySize</code> are not kept. The cache is off unless
+ * <code>cacheSize</code> is set. Pages rendered per locale say so with a Vary header, so
+ * they are never kept.
+ * The <code>precompressed</code> initParameter maps URI prefixes to
+ * directories holding pre-built <code>.gz</code> files of static resources, eg
+ * <code>/dev/lib=../ui/dev/lib,/dev/css=../ui/dev/css</code>. A pre-built file is never
+ * sent for a response that could not be kept, so the HTML pages under /dev and
+ * /devwidgets, which the i18n filter renders per locale, are still rendered.
+ * </p>
+ *
+ * <p>
  * Compressing the content can greatly improve the network bandwidth usage, but at a cost of memory and
  * CPU cycles.   If this filter is mapped for static content, then use of efficient direct NIO may be
  * prevented, thus use of the gzip mechanism of the {@link org.mortbay.jetty.servlet.DefaultServlet} is
@@ -70,6 +90,22 @@ public class GzipFilter extends UserAgentFilter
     protected int _bufferSize=8192;
     protected int _minGzipSize=0;
     protected Set<String> _excluded;
+    protected GzipCache _cache;
+
+    /**
+     * Content types that are compressed already, and would only grow if gzipped.
+     */
+    protected static final Set<String> COMPRESSED_TYPES = new HashSet<String>();
+    static
+    {
+        COMPRESSED_TYPES.add("application/gzip");
+        COMPRESSED_TYPES.add("application/x-gzip");
+        COMPRESSED_TYPES.add("application/zip");
+        COMPRESSED_TYPES.add("application/x-compress");
+        COMPRESSED_TYPES.add("application/x-bzip2");
+        COMPRESSED_TYPES.add("application/java-archive");
+        COMPRESSED_TYPES.add("application/x-shockwave-flash");
+    }
 
     public void init(FilterConfig filterConfig) throws ServletException
     {
@@ -100,6 +136,45 @@ public class GzipFilter extends UserAgentFilter
             while (tok.hasMoreTokens())
                 _excluded.add(tok.nextToken());
         }
+
+        tmp=filterConfig.getInitParameter("cacheSize");
+        if (tmp!=null && Long.parseLong(tmp)>0)
+        {
+            String maxEntrySize=filterConfig.getInitParameter("cacheMaxEntrySize");
+            _cache=new GzipCache(Long.parseLong(tmp),
+                maxEntrySize==null?1048576:Integer.parseInt(maxEntrySize),
+                filterConfig.getInitParameter("precompressed"));
+        }
+        else
+            _cache=null;
+    }
+
+    /**
+     * @return true if a body of the content type is compressed already.
+     */
+    protected boolean isCompressedType(String ct)
+    {
+        if (ct==null)
+            return false;
+        ct=StringUtil.asciiToLowerCase(ct);
+        if (ct.startsWith("image/"))
+            return !ct.startsWith("image/svg") && !ct.startsWith("image/bmp");
+        return ct.startsWith("audio/") || ct.startsWith("video/") || COMPRESSED_TYPES.contains(ct);
+    }
+
+    /**
+     * @return true if the start of a body looks like a gzip, zip, png, jpeg or gif file.
+     */
+    protected static boolean isCompressed(byte[] b, int off, int len)
+    {
+        if (len<4)
+            return false;
+        int b0=b[off]&0xff, b1=b[off+1]&0xff, b2=b[off+2]&0xff, b3=b[off+3]&0xff;
+        return (b0==0x1f && b1==0x8b)
+            || (b0=='P' && b1=='K' && b2==3 && b3==4)
+            || (b0==0x89 && b1=='P' && b2=='N' && b3=='G')
+            || (b0==0xff && b1==0xd8 && b2==0xff)
+            || (b0=='G' && b1=='I' && b2=='F' && b3=='8');
     }
 
     public void destroy()
@@ -127,6 +202,9 @@ public class GzipFilter extends UserAgentFilter
                 }
             }
 
+            if (_cache!=null && serveCached(request,response))
+                return;
+
             GZIPResponseWrapper wrappedResponse=newGZIPResponseWrapper(request,response);
 
             boolean exceptional=true;
@@ -159,6 +237,66 @@ public class GzipFilter extends UserAgentFilter
         }
     }
 
+    /**
+     * Send a fresh response from the cache, without running the rest of the chain.
+     *
+     * @return true if the response was sent.
+     */
+    protected boolean serveCached(HttpServletRequest request, HttpServletResponse response)
+        throws IOException
+    {
+        if (!isCacheable(request) || request.getHeader("If-None-Match")!=null
+            || request.getHeader("If-Modified-Since")!=null)
+            return false;
+        String key=GzipCache.getKey(request.getRequestURI(),request.getQueryString());
+        GzipCache.Entry entry=_cache.get(key,System.currentTimeMillis());
+        if (entry==null)
+            return false;
+        LOGGER.debug("Serving cached gzip response for {}",key);
+        if (entry.getContentType()!=null)
+            response.setContentType(entry.getContentType());
+        if (entry.getLastModified()>0)
+            response.setDateHeader("Last-Modified",entry.getLastModified());
+        if (entry.getEtag()!=null)
+            response.setHeader("ETag",entry.getEtag());
+        response.setHeader("Cache-Control",entry.getCacheControl());
+        response.setHeader("Vary","Accept-Encoding");
+        response.setHeader("Content-Encoding","gzip");
+        response.setContentLength(entry.getBody().length);
+        response.getOutputStream().write(entry.getBody());
+        return true;
+    }
+
+    /**
+     * @return true if the response to the request may come from, or go in, the cache.
+     */
+    protected static boolean isCacheable(HttpServletRequest request)
+    {
+        return "GET".equals(request.getMethod()) && request.getHeader("Authorization")==null;
+    }
+
+    /**
+     * @return the seconds a response may be shared for, from its Cache-Control, or -1.
+     */
+    protected static long getMaxAge(String cacheControl)
+    {
+        if (cacheControl==null)
+            return -1;
+        String cc=StringUtil.asciiToLowerCase(cacheControl);
+        int i=cc.indexOf("s-maxage=");
+        if (i<0)
+            i=cc.indexOf("max-age=");
+        if (i<0)
+            return -1;
+        i=cc.indexOf('=',i)+1;
+        int end=i;
+        while (end<cc.length() && Character.isDigit(cc.charAt(end)))
+            end++;
+        if (end==i || end-i>9)
+            return -1;
+        return Long.parseLong(cc.substring(i,end));
+    }
+
     protected GZIPResponseWrapper newGZIPResponseWrapper(HttpServletRequest request, HttpServletResponse response)
     {
         return new GZIPResponseWrapper(request,response);
@@ -180,6 +318,12 @@ public class GzipFilter extends UserAgentFilter
         PrintWriter _writer;
         GzipStream _gzStream;
         long _contentLength=-1;
+        int _status=200;
+        long _lastModified=-1;
+        String _etag;
+        String _contentType;
+        String _cacheControl;
+        boolean _cacheable=true;
 
         public GZIPResponseWrapper(HttpServletRequest request, HttpServletResponse response)
         {
@@ -190,6 +334,7 @@ public class GzipFilter extends UserAgentFilter
         public void setContentType(String ct)
         {
             super.setContentType(ct);
+            _contentType=ct;
 
             if (ct!=null)
             {
@@ -199,7 +344,7 @@ public class GzipFilter extends UserAgentFilter
             }
 
             if ((_gzStream==null || _gzStream._out==null) &&
-                (_mimeTypes==null && "application/gzip".equalsIgnoreCase(ct) ||
+                (isCompressedType(ct) ||
                  _mimeTypes!=null && (ct==null||!_mimeTypes.contains(StringUtil.asciiToLowerCase(ct)))))
             {
                 noGzip(true, "Wrong Mime Type, "+ct);
@@ -210,6 +355,7 @@ public class GzipFilter extends UserAgentFilter
         public void setStatus(int sc, String sm)
         {
             super.setStatus(sc,sm);
+            status(sc);
             if (sc<200||sc>=300)
               noGzip(false, "Status Code "+sc);
             else if ( !isCommitted() )
@@ -220,6 +366,7 @@ public class GzipFilter extends UserAgentFilter
         public void setStatus(int sc)
         {
             super.setStatus(sc);
+            status(sc);
             if (sc<200||sc>=300)
                 noGzip(false, "Status Code "+sc );
             else 
@@ -254,7 +401,10 @@ public class GzipFilter extends UserAgentFilter
                 }
             }
             else
+            {
+                validator(name,value);
                 super.addHeader(name,value);
+            }
         }
 
         public void setHeader(String name, String value)
@@ -278,7 +428,65 @@ public class GzipFilter extends UserAgentFilter
                 }
             }
             else
+            {
+                validator(name,value);
                 super.setHeader(name,value);
+            }
+        }
+
+        public void setDateHeader(String name, long date)
+        {
+            if ("last-modified".equalsIgnoreCase(name))
+                _lastModified=date;
+            super.setDateHeader(name,date);
+        }
+
+        public void addDateHeader(String name, long date)
+        {
+            if ("last-modified".equalsIgnoreCase(name))
+                _lastModified=date;
+            super.addDateHeader(name,date);
+        }
+
+        public void addCookie(Cookie cookie)
+        {
+            notCacheable();
+            super.addCookie(cookie);
+        }
+
+        void status(int sc)
+        {
+            _status=sc;
+            if (sc!=200)
+                notCacheable();
+        }
+
+        /**
+         * Notes the headers that say when the body changes, or that it must not be shared.
+         */
+        void validator(String name, String value)
+        {
+            if ("etag".equalsIgnoreCase(name))
+                _etag=value;
+            else if ("set-cookie".equalsIgnoreCase(name))
+                notCacheable();
+            else if ("vary".equalsIgnoreCase(name) && value!=null
+                && !"accept-encoding".equalsIgnoreCase(value.trim()))
+                notCacheable();
+            else if ("cache-control".equalsIgnoreCase(name) && value!=null)
+            {
+                _cacheControl=value;
+                String cc=StringUtil.asciiToLowerCase(value);
+                if (cc.indexOf("private")>=0 || cc.indexOf("no-store")>=0 || cc.indexOf("no-cache")>=0)
+                    notCacheable();
+            }
+        }
+
+        void notCacheable()
+        {
+            _cacheable=false;
+            if (_gzStream!=null)
+                _gzStream.noCache();
         }
 
         public void setIntHeader(String name, int value)
@@ -313,6 +521,12 @@ public class GzipFilter extends UserAgentFilter
             _noGzip=false;
             _hardNoGzip=false;
             _contentLength=-1;
+            _status=200;
+            _lastModified=-1;
+            _etag=null;
+            _contentType=null;
+            _cacheControl=null;
+            _cacheable=true;
         }
 
         public void resetBuffer()
@@ -350,6 +564,7 @@ public class GzipFilter extends UserAgentFilter
                     return getResponse().getOutputStream();
 
                 _gzStream=newGzipStream(_request,(HttpServletResponse)getResponse(),_contentLength,_bufferSize,_minGzipSize);
+                useCache();
             }
             else if (_writer!=null)
                 throw new IllegalStateException("getWriter() called");
@@ -368,11 +583,33 @@ public class GzipFilter extends UserAgentFilter
                     return getResponse().getWriter();
 
                 _gzStream=newGzipStream(_request,(HttpServletResponse)getResponse(),_contentLength,_bufferSize,_minGzipSize);
+                useCache();
                 _writer=newWriter(_gzStream,getCharacterEncoding());
             }
             return _writer;
         }
 
+        /**
+         * Once the headers are known, have the stream send a pre-built body instead of
+         * what is written, and keep the gzipped body if the response can be shared.
+         */
+        void useCache()
+        {
+            if (_cache==null || !_cacheable || _status!=200 || !isCacheable(_request))
+                return;
+            long maxAge=getMaxAge(_cacheControl);
+            if (maxAge>0)
+                _gzStream.capture(_cache,GzipCache.getKey(_request.getRequestURI(),_request.getQueryString()),
+                    new GzipCache.Entry(null,_contentType,_lastModified,_etag,_cacheControl,
+                        System.currentTimeMillis()+maxAge*1000L));
+            byte[] body=_cache.getPrecompressed(_request.getRequestURI(),_lastModified);
+            if (body!=null)
+            {
+                LOGGER.debug("Serving precompressed body for {}",_request.getRequestURI());
+                _gzStream.serveCached(body);
+            }
+        }
+
         void noGzip(boolean hard, String message)
         {
           LOGGER.debug("no gzip hard :{} {}",hard, message);
@@ -433,6 +670,13 @@ public class GzipFilter extends UserAgentFilter
         protected int _bufferSize;
         protected int _minGzipSize;
         protected long _contentLength;
+        protected byte[] _cached;
+        protected boolean _discarded;
+        protected GzipCache _cache;
+        protected String _cacheKey;
+        protected GzipCache.Entry _cacheHeaders;
+        protected CaptureStream _capture;
+        protected boolean _sniffed;
 
         public GzipStream(HttpServletRequest request,HttpServletResponse response,long contentLength,int bufferSize, int minGzipSize) throws IOException
         {
@@ -446,8 +690,40 @@ public class GzipFilter extends UserAgentFilter
             // doGzip();
         }
 
+        /**
+         * Discard whatever is written and send this gzipped body instead.
+         */
+        public void serveCached(byte[] body)
+        {
+            _cached=body;
+        }
+
+        /**
+         * Keep the gzipped body for the cache with the headers it is sent with, if it is
+         * gzipped and not too large.
+         */
+        public void capture(GzipCache cache, String key, GzipCache.Entry headers)
+        {
+            _cache=cache;
+            _cacheKey=key;
+            _cacheHeaders=headers;
+        }
+
+        public void noCache()
+        {
+            _cacheKey=null;
+            if (_cached!=null && !_discarded)
+                _cached=null;
+        }
+
         public void resetBuffer()
         {
+            _cached=null;
+            _discarded=false;
+            _cacheKey=null;
+            _cacheHeaders=null;
+            _capture=null;
+            _sniffed=false;
             _closed=false;
             _out=null;
             _bOut=null;
@@ -463,6 +739,8 @@ public class GzipFilter extends UserAgentFilter
 
         public void flush() throws IOException
         {
+            if (_cached!=null)
+                return;
             if (_out==null || _bOut!=null)
             {
                 if (_contentLength>0 && _contentLength<_minGzipSize)
@@ -478,6 +756,11 @@ public class GzipFilter extends UserAgentFilter
         {
             if (_request.getAttribute("javax.servlet.include.request_uri")!=null)
                 flush();
+            else if (_cached!=null)
+            {
+                writeCached();
+                _response.getOutputStream().close();
+            }
             else
             {
                 if (_bOut!=null)
@@ -495,7 +778,10 @@ public class GzipFilter extends UserAgentFilter
                 }
 
                 if (_gzOut!=null)
+                {
                     _gzOut.close();
+                    cache();
+                }
                 else
                     _out.close();
                 _closed=true;
@@ -504,7 +790,11 @@ public class GzipFilter extends UserAgentFilter
 
         public void finish() throws IOException
         {
-            if (!_closed)
+            if (!_closed && _cached!=null)
+            {
+                writeCached();
+            }
+            else if (!_closed)
             {
                 if (_out==null || _bOut!=null)
                 {
@@ -518,24 +808,59 @@ public class GzipFilter extends UserAgentFilter
                 {
                     _closed=true;
                     _gzOut.close();
+                    cache();
                 }
             }
         }
 
+        private void writeCached() throws IOException
+        {
+            _closed=true;
+            if (setContentEncodingGzip())
+            {
+                _response.setContentLength(_cached.length);
+                _response.getOutputStream().write(_cached);
+                if (_cacheKey!=null)
+                    _cache.put(_cacheKey,_cacheHeaders.withBody(_cached));
+            }
+            else
+                throw new IllegalStateException("Unable to set Content-Encoding for a cached body");
+        }
+
+        private void cache()
+        {
+            if (_cacheKey!=null && _capture!=null && _capture._capture!=null)
+                _cache.put(_cacheKey,_cacheHeaders.withBody(_capture._capture.toByteArray()));
+            _capture=null;
+        }
+
         public void write(int b) throws IOException
         {
+            if (discard())
+                return;
+            _sniffed=true;
             checkOut(1);
             _out.write(b);
         }
 
         public void write(byte b[]) throws IOException
         {
-            checkOut(b.length);
-            _out.write(b);
+            write(b,0,b.length);
         }
 
         public void write(byte b[], int off, int len) throws IOException
         {
+            if (discard())
+                return;
+            if (!_sniffed && len>0)
+            {
+                _sniffed=true;
+                if (_out==null && isCompressed(b,off,len))
+                {
+                    LOGGER.debug("Body is compressed already");
+                    doNotGzip();
+                }
+            }
             checkOut(len);
             _out.write(b,off,len);
         }
@@ -556,7 +881,10 @@ public class GzipFilter extends UserAgentFilter
 
                 if (setContentEncodingGzip())
                 {
-                    _out=_gzOut=new GZIPOutputStream(_response.getOutputStream(),_bufferSize);
+                    OutputStream out=_response.getOutputStream();
+                    if (_cacheKey!=null)
+                        out=_capture=new CaptureStream(out,_cache);
+                    _out=_gzOut=new GZIPOutputStream(out,_bufferSize);
 
                     if (_bOut!=null)
                     {
@@ -571,6 +899,13 @@ public class GzipFilter extends UserAgentFilter
 
         public void doNotGzip() throws IOException
         {
+            if (_cached!=null)
+            {
+                if (_discarded)
+                    return;
+                _cached=null;
+            }
+            _cacheKey=null;
             if (_gzOut!=null)
                 throw new IllegalStateException("_gzOut != null");
             if (_out==null || _bOut!=null )
@@ -590,6 +925,20 @@ public class GzipFilter extends UserAgentFilter
             }
         }
 
+        /**
+         * @return true if the body is being served from the cache, so what is written is
+         *         not needed.
+         */
+        private boolean discard() throws IOException
+        {
+            if (_cached==null)
+                return false;
+            if (_closed)
+                throw new IOException("CLOSED");
+            _discarded=true;
+            return true;
+        }
+
         private void checkOut(int length) throws IOException
         {
             if (_closed)
@@ -613,4 +962,57 @@ public class GzipFilter extends UserAgentFilter
             }
         }
     }
+
+    /**
+     * Passes the gzipped body on to the response, keeping a copy for the cache until it
+     * gets larger than the cache will hold.
+     */
+    public static class CaptureStream extends OutputStream
+    {
+        protected final OutputStream _out;
+        protected final int _limit;
+        protected ByteArrayOutputStream2 _capture=new ByteArrayOutputStream2(4096);
+
+        public CaptureStream(OutputStream out, GzipCache cache)
+        {
+            _out=out;
+            _limit=cache.getMaxEntrySize();
+        }
+
+        public void write(int b) throws IOException
+        {
+            _out.write(b);
+            if (_capture!=null)
+            {
+                _capture.write(b);
+                checkLimit();
+            }
+        }
+
+        public void write(byte b[], int off, int len) throws IOException
+        {
+            _out.write(b,off,len);
+            if (_capture!=null)
+            {
+                _capture.write(b,off,len);
+                checkLimit();
+            }
+        }
+
+        public void flush() throws IOException
+        {
+            _out.flush();
+        }
+
+        public void close() throws IOException
+        {
+            _out.close();
+        }
+
+        private void checkLimit()
+        {
+            if (_capture.getCount()>_limit)
+                _capture=null;
+        }
+    }
 }
@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.jetty;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+public class GzipCacheTest {
+
+  private static final long NEVER = Long.MAX_VALUE;
+
+  private File root;
+
+  @Before
+  public void setUp() throws IOException {
+    root = File.createTempFile("gzipcache", "");
+    root.delete();
+    root.mkdirs();
+  }
+
+  @After
+  public void tearDown() {
+    delete(root);
+  }
+
+  @Test
+  public void testKeys() {
+    assertEquals("/dev/a.js", GzipCache.getKey("/dev/a.js", null));
+    assertEquals("/dev/a.js?x=1", GzipCache.getKey("/dev/a.js", "x=1"));
+  }
+
+  @Test
+  public void testHeadersKept() {
+    GzipCache cache = new GzipCache(30, 10, null);
+    cache.put("a", new GzipCache.Entry(body('a', 10), "text/css", 1000, "\"abc\"",
+        "max-age=60", 2000));
+    GzipCache.Entry entry = cache.get("a", 1000);
+    assertArrayEquals(body('a', 10), entry.getBody());
+    assertEquals("text/css", entry.getContentType());
+    assertEquals(1000, entry.getLastModified());
+    assertEquals("\"abc\"", entry.getEtag());
+    assertEquals("max-age=60", entry.getCacheControl());
+  }
+
+  @Test
+  public void testExpired() {
+    GzipCache cache = new GzipCache(30, 10, null);
+    cache.put("a", entry('a', 10, 2000));
+    assertNotNull(cache.get("a", 1999));
+    assertNull(cache.get("a", 2000));
+    assertNull(cache.get("a", 1000));
+  }
+
+  @Test
+  public void testLeastRecentlyUsedDropped() {
+    GzipCache cache = new GzipCache(30, 10, null);
+    cache.put("a", entry('a', 10, NEVER));
+    cache.put("b", entry('b', 10, NEVER));
+    cache.put("c", entry('c', 10, NEVER));
+    assertEquals(30, cache.getSize());
+
+    cache.get("a", 0);
+    cache.put("d", entry('d', 10, NEVER));
+    assertEquals(30, cache.getSize());
+    assertNull(cache.get("b", 0));
+    assertArrayEquals(body('a', 10), cache.get("a", 0).getBody());
+    assertArrayEquals(body('c', 10), cache.get("c", 0).getBody());
+    assertArrayEquals(body('d', 10), cache.get("d", 0).getBody());
+  }
+
+  @Test
+  public void testSameBodyHeldOnce() {
+    GzipCache cache = new GzipCache(30, 10, null);
+    cache.put("a", entry('x', 10, NEVER));
+    cache.put("b", entry('x', 10, NEVER));
+    assertEquals(10, cache.getSize());
+    assertArrayEquals(body('x', 10), cache.get("a", 0).getBody());
+    assertArrayEquals(body('x', 10), cache.get("b", 0).getBody());
+
+    // putting the body again under another key marks it as used.
+    cache.put("c", entry('c', 10, NEVER));
+    cache.put("d", entry('d', 10, NEVER));
+    cache.put("e", entry('x', 10, NEVER));
+    cache.put("f", entry('f', 10, NEVER));
+    assertEquals(30, cache.getSize());
+    assertArrayEquals(body('x', 10), cache.get("a", 0).getBody());
+    assertNull(cache.get("c", 0));
+  }
+
+  @Test
+  public void testLargeBodiesNotHeld() {
+    GzipCache cache = new GzipCache(100, 10, null);
+    cache.put("a", entry('a', 11, NEVER));
+    assertEquals(0, cache.getSize());
+    assertNull(cache.get("a", 0));
+  }
+
+  @Test
+  public void testPrecompressed() throws IOException {
+    File lib = new File(root, "lib");
+    lib.mkdirs();
+    File file = new File(lib, "a.js.gz");
+    write(file, body('z', 5));
+    long lastModified = file.lastModified();
+    GzipCache cache = new GzipCache(100, 10, "/dev/lib=" + lib.getPath());
+
+    assertArrayEquals(body('z', 5), cache.getPrecompressed("/dev/lib/a.js", lastModified));
+    assertNull(cache.getPrecompressed("/dev/lib/b.js", lastModified));
+    assertNull(cache.getPrecompressed("/dev/index.html", lastModified));
+    // without a Last-Modified there is no telling if the file is current.
+    assertNull(cache.getPrecompressed("/dev/lib/a.js", -1));
+  }
+
+  @Test
+  public void testStalePrecompressedIgnored() throws IOException {
+    File lib = new File(root, "lib");
+    lib.mkdirs();
+    File file = new File(lib, "a.js.gz");
+    write(file, body('z', 5));
+    GzipCache cache = new GzipCache(100, 10, "/dev/lib=" + lib.getPath());
+    assertNull(cache.getPrecompressed("/dev/lib/a.js", file.lastModified() + 2000));
+  }
+
+  @Test
+  public void testPrecompressedOutsideDirectory() throws IOException {
+    File lib = new File(root, "lib");
+    lib.mkdirs();
+    File secret = new File(root, "secret.gz");
+    write(secret, body('s', 5));
+    File sibling = new File(root, "lib2");
+    sibling.mkdirs();
+    write(new File(sibling, "a.js.gz"), body('s', 5));
+    GzipCache cache = new GzipCache(100, 10, "/dev/lib=" + lib.getPath());
+
+    long lastModified = secret.lastModified();
+    assertNull(cache.getPrecompressed("/dev/lib/../secret", lastModified));
+    assertNull(cache.getPrecompressed("/dev/lib/../lib2/a.js", lastModified));
+  }
+
+  private GzipCache.Entry entry(char c, int length, long expires) {
+    return new GzipCache.Entry(body(c, length), "text/plain", -1, null, "max-age=60",
+        expires);
+  }
+
+  private byte[] body(char c, int length) {
+    byte[] body = new byte[length];
+    for (int i = 0; i < length; i++) {
+      body[i] = (byte) c;
+    }
+    return body;
+  }
+
+  private void write(File file, byte[] body) throws IOException {
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(body);
+    } finally {
+      out.close();
+    }
+  }
+
+  private void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.jetty;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A shareable response is served from the cache without running the chain while it is
+ * fresh, anything that varies or may not be shared is rendered every time.
+ */
+public class GzipFilterTest {
+
+  private static final byte[] BODY = new byte[1000];
+  static {
+    Arrays.fill(BODY, (byte) 'a');
+  }
+
+  private GzipFilter filter;
+
+  @Before
+  public void setUp() throws Exception {
+    FilterConfig config = mock(FilterConfig.class);
+    when(config.getInitParameter("minGzipSize")).thenReturn("0");
+    when(config.getInitParameter("cacheSize")).thenReturn("100000");
+    filter = new GzipFilter();
+    filter.init(config);
+  }
+
+  @Test
+  public void testFreshHitSkipsChain() throws Exception {
+    FilterChain chain = chain("max-age=60", null);
+    ByteArrayOutputStream first = new ByteArrayOutputStream();
+    filter.doFilter(request(null), response(first), chain);
+
+    ByteArrayOutputStream second = new ByteArrayOutputStream();
+    HttpServletResponse response = response(second);
+    filter.doFilter(request(null), response, chain);
+    verify(chain, times(1)).doFilter(any(ServletRequest.class),
+        any(ServletResponse.class));
+    assertArrayEquals(first.toByteArray(), second.toByteArray());
+    verify(response).setHeader("Content-Encoding", "gzip");
+    verify(response).setHeader("Cache-Control", "max-age=60");
+    verify(response).setContentType("text/javascript");
+  }
+
+  @Test
+  public void testConditionalRequestRunsChain() throws Exception {
+    FilterChain chain = chain("max-age=60", null);
+    filter.doFilter(request(null), response(new ByteArrayOutputStream()), chain);
+    filter.doFilter(request("\"abc\""), response(new ByteArrayOutputStream()), chain);
+    verify(chain, times(2)).doFilter(any(ServletRequest.class),
+        any(ServletResponse.class));
+  }
+
+  @Test
+  public void testVaryNotKept() throws Exception {
+    FilterChain chain = chain("max-age=60", "Accept-Language");
+    filter.doFilter(request(null), response(new ByteArrayOutputStream()), chain);
+    filter.doFilter(request(null), response(new ByteArrayOutputStream()), chain);
+    verify(chain, times(2)).doFilter(any(ServletRequest.class),
+        any(ServletResponse.class));
+  }
+
+  @Test
+  public void testNotSharedNotKept() throws Exception {
+    for (String cacheControl : new String[] { null, "private, max-age=60", "max-age=0" }) {
+      FilterChain chain = chain(cacheControl, null);
+      filter.doFilter(request(null), response(new ByteArrayOutputStream()), chain);
+      HttpServletResponse response = response(new ByteArrayOutputStream());
+      filter.doFilter(request(null), response, chain);
+      verify(chain, times(2)).doFilter(any(ServletRequest.class),
+          any(ServletResponse.class));
+      verify(response, never()).setHeader("Vary", "Accept-Encoding");
+    }
+  }
+
+  @Test
+  public void testMaxAge() {
+    assertEquals(-1, GzipFilter.getMaxAge(null));
+    assertEquals(-1, GzipFilter.getMaxAge("no-cache"));
+    assertEquals(60, GzipFilter.getMaxAge("public, max-age=60"));
+    assertEquals(10, GzipFilter.getMaxAge("max-age=60, s-maxage=10"));
+    assertEquals(-1, GzipFilter.getMaxAge("max-age=x"));
+  }
+
+  private HttpServletRequest request(String ifNoneMatch) {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getRequestURI()).thenReturn("/dev/lib/a.js");
+    when(request.getHeader("accept-encoding")).thenReturn("gzip, deflate");
+    when(request.getHeader("If-None-Match")).thenReturn(ifNoneMatch);
+    return request;
+  }
+
+  private HttpServletResponse response(final ByteArrayOutputStream sent) throws IOException {
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        sent.write(b);
+      }
+    });
+    when(response.containsHeader("Content-Encoding")).thenReturn(false, true);
+    return response;
+  }
+
+  private FilterChain chain(final String cacheControl, final String vary) throws Exception {
+    FilterChain chain = mock(FilterChain.class);
+    doAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        HttpServletResponse response = (HttpServletResponse) invocation.getArguments()[1];
+        response.setContentType("text/javascript");
+        response.setHeader("ETag", "\"abc\"");
+        if (cacheControl != null) {
+          response.setHeader("Cache-Control", cacheControl);
+        }
+        if (vary != null) {
+          response.addHeader("Vary", vary);
+        }
+        response.getOutputStream().write(BODY);
+        return null;
+      }
+    }).when(chain).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+    return chain;
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.jetty;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.jetty.GzipFilter.GzipStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A stream that is serving a cached body discards what the servlet writes, unless it is
+ * told not to before anything has been written.
+ */
+public class GzipStreamTest {
+
+  private static final byte[] BODY = "a body long enough to be gzipped".getBytes();
+
+  private static final GzipCache.Entry HEADERS = new GzipCache.Entry(null, "text/plain",
+      -1, null, "max-age=60", Long.MAX_VALUE);
+
+  private ByteArrayOutputStream sent;
+  private HttpServletResponse response;
+  private GzipStream stream;
+
+  @Before
+  public void setUp() throws IOException {
+    sent = new ByteArrayOutputStream();
+    ServletOutputStream out = new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        sent.write(b);
+      }
+    };
+    response = mock(HttpServletResponse.class);
+    when(response.getOutputStream()).thenReturn(out);
+    when(response.containsHeader("Content-Encoding")).thenReturn(true);
+    stream = new GzipStream(mock(HttpServletRequest.class), response, -1, 8192, 16);
+  }
+
+  @Test
+  public void testServeCachedOnClose() throws IOException {
+    byte[] cached = gzip(BODY);
+    stream.serveCached(cached);
+    stream.write(BODY);
+    stream.close();
+    assertArrayEquals(cached, sent.toByteArray());
+    verify(response).setHeader("Content-Encoding", "gzip");
+    verify(response).setContentLength(cached.length);
+  }
+
+  @Test
+  public void testServeCachedOnFinish() throws IOException {
+    byte[] cached = gzip(BODY);
+    stream.serveCached(cached);
+    stream.write(BODY);
+    stream.finish();
+    assertArrayEquals(cached, sent.toByteArray());
+    try {
+      stream.write(BODY);
+      fail("The stream is closed");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testNoCacheBeforeWrite() throws IOException {
+    stream.serveCached(gzip("something else".getBytes()));
+    stream.noCache();
+    stream.write(BODY);
+    stream.close();
+    assertArrayEquals(BODY, gunzip(sent.toByteArray()));
+  }
+
+  @Test
+  public void testNoCacheAfterWrite() throws IOException {
+    byte[] cached = gzip(BODY);
+    stream.serveCached(cached);
+    stream.write(BODY);
+    // what was written has gone, so the cached body still has to be sent.
+    stream.noCache();
+    stream.doNotGzip();
+    stream.close();
+    assertArrayEquals(cached, sent.toByteArray());
+  }
+
+  @Test
+  public void testNotGzippedBeforeWrite() throws IOException {
+    stream.serveCached(gzip(BODY));
+    stream.doNotGzip();
+    stream.write(BODY);
+    stream.close();
+    assertArrayEquals(BODY, sent.toByteArray());
+  }
+
+  @Test
+  public void testCapture() throws IOException {
+    GzipCache cache = new GzipCache(1024, 1024, null);
+    stream.capture(cache, "key", HEADERS);
+    stream.write(BODY);
+    stream.close();
+    assertArrayEquals(BODY, gunzip(sent.toByteArray()));
+    GzipCache.Entry entry = cache.get("key", 0);
+    assertArrayEquals(sent.toByteArray(), entry.getBody());
+    assertEquals("text/plain", entry.getContentType());
+  }
+
+  @Test
+  public void testCapturePrecompressed() throws IOException {
+    GzipCache cache = new GzipCache(1024, 1024, null);
+    byte[] precompressed = gzip(BODY);
+    stream.capture(cache, "key", HEADERS);
+    stream.serveCached(precompressed);
+    stream.write(BODY);
+    stream.close();
+    assertArrayEquals(precompressed, cache.get("key", 0).getBody());
+  }
+
+  @Test
+  public void testNoCaptureWhenNotShared() throws IOException {
+    GzipCache cache = new GzipCache(1024, 1024, null);
+    stream.capture(cache, "key", HEADERS);
+    stream.serveCached(gzip(BODY));
+    // eg a Vary header came after the body was started.
+    stream.noCache();
+    stream.write(BODY);
+    stream.close();
+    assertNull(cache.get("key", 0));
+  }
+
+  @Test
+  public void testCaptureTooLarge() throws IOException {
+    GzipCache cache = new GzipCache(1024, 8, null);
+    stream.capture(cache, "key", HEADERS);
+    stream.write(BODY);
+    stream.close();
+    assertArrayEquals(BODY, gunzip(sent.toByteArray()));
+    assertEquals(0, cache.getSize());
+  }
+
+  @Test
+  public void testNoCaptureWhenNotGzipped() throws IOException {
+    GzipCache cache = new GzipCache(1024, 1024, null);
+    stream.capture(cache, "key", HEADERS);
+    stream.doNotGzip();
+    stream.write(BODY);
+    stream.close();
+    assertArrayEquals(BODY, sent.toByteArray());
+    assertNull(cache.get("key", 0));
+  }
+
+  private byte[] gzip(byte[] body) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    GZIPOutputStream gz = new GZIPOutputStream(out);
+    gz.write(body);
+    gz.close();
+    return out.toByteArray();
+  }
+
+  private byte[] gunzip(byte[] body) throws IOException {
+    InputStream in = new GZIPInputStream(new ByteArrayInputStream(body));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+      out.write(buffer, 0, n);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+}
@@ -17,8 +17,11 @@
  */
 package org.sakaiproject.nakamura.memory;
 
+import net.sf.ehcache.CacheException;
 import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
 
 import org.sakaiproject.nakamura.api.memory.Cache;
 
@@ -26,12 +29,15 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
- *
+ * A Cache backed by an ehcache instance. The keys of each ehcache instance are tracked in a
+ * {@link PathKeyIndex}, kept current through the cache event listeners, so that
+ * removeChildren does not have to scan every key in the cache.
  */
 public class CacheImpl<V> implements Cache<V> {
 
   private String cacheName;
   private net.sf.ehcache.Cache cache;
+  private PathKeyIndex keyIndex;
 
   /**
    * @param cacheManager
@@ -52,9 +58,31 @@ public class CacheImpl<V> implements Cache<V> {
           throw new RuntimeException("Failed to create Cache with name " + cacheName);
         }
       }
+      keyIndex = getKeyIndex(cache);
     }
   }
 
+  /**
+   * There may be many CacheImpl instances over the same ehcache, they must all share one
+   * index, so the index lives with the listener registered on the ehcache.
+   *
+   * @param cache
+   * @return the index of keys in the cache.
+   */
+  private static PathKeyIndex getKeyIndex(net.sf.ehcache.Cache cache) {
+    for (Object listener : cache.getCacheEventNotificationService().getCacheEventListeners()) {
+      if (listener instanceof KeyIndexListener) {
+        return ((KeyIndexListener) listener).getKeyIndex();
+      }
+    }
+    KeyIndexListener listener = new KeyIndexListener();
+    for (Object k : cache.getKeys()) {
+      listener.getKeyIndex().add((String) k);
+    }
+    cache.getCacheEventNotificationService().registerListener(listener);
+    return listener.getKeyIndex();
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -121,14 +149,8 @@ public class CacheImpl<V> implements Cache<V> {
    */
   public void removeChildren(String key) {
     cache.remove(key);
-    if (!key.endsWith("/")) {
-      key = key + "/";
-    }
-    List<?> keys = cache.getKeys();
-    for (Object k : keys) {
-      if (((String) k).startsWith(key)) {
-        cache.remove(k);
-      }
+    for (String k : keyIndex.removeChildren(key)) {
+      cache.remove(k);
     }
   }
 
@@ -150,4 +172,50 @@ public class CacheImpl<V> implements Cache<V> {
     return values;
   }
 
+  /**
+   * Maintains the key index from the ehcache events, so that entries evicted or expired by
+   * ehcache itself leave the index too.
+   */
+  static class KeyIndexListener implements CacheEventListener {
+
+    private PathKeyIndex keyIndex = new PathKeyIndex();
+
+    public PathKeyIndex getKeyIndex() {
+      return keyIndex;
+    }
+
+    public void notifyElementPut(Ehcache cache, Element element) throws CacheException {
+      keyIndex.add((String) element.getObjectKey());
+    }
+
+    public void notifyElementUpdated(Ehcache cache, Element element) throws CacheException {
+      keyIndex.add((String) element.getObjectKey());
+    }
+
+    public void notifyElementRemoved(Ehcache cache, Element element) throws CacheException {
+      keyIndex.remove((String) element.getObjectKey());
+    }
+
+    public void notifyElementExpired(Ehcache cache, Element element) {
+      keyIndex.remove((String) element.getObjectKey());
+    }
+
+    public void notifyElementEvicted(Ehcache cache, Element element) {
+      keyIndex.remove((String) element.getObjectKey());
+    }
+
+    public void notifyRemoveAll(Ehcache cache) {
+      keyIndex.clear();
+    }
+
+    public void dispose() {
+      keyIndex.clear();
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+      throw new CloneNotSupportedException("The key index belongs to a single cache");
+    }
+  }
+
 }
@@ -22,7 +22,11 @@ import net.sf.ehcache.management.ManagementService;
 
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
@@ -36,6 +40,7 @@ import java.lang.management.ManagementFactory;
 import java.util.HashMap;
 import java.util.Map;
 
+import javax.jms.JMSException;
 import javax.management.MBeanServer;
 
 /**
@@ -53,10 +58,34 @@ public class CacheManagerServiceImpl implements CacheManagerService {
 
   private static final String CONFIG_PATH = "res://org/sakaiproject/nakamura/memory/ehcacheConfig.xml";
   private static final Logger logger = LoggerFactory.getLogger(CacheManagerServiceImpl.class);
+  /**
+   * The maximum number of cache events waiting to go to the cluster before caches are
+   * cleared cluster wide.
+   */
+  private static final int CLUSTER_QUEUE_SIZE = 20000;
+  /**
+   * The maximum number of cache events sent in one message.
+   */
+  private static final int CLUSTER_BATCH_SIZE = 1000;
+  /**
+   * The time in ms that the first event of a batch waits for others to join it.
+   */
+  private static final long CLUSTER_BATCH_DELAY = 20L;
   private CacheManager cacheManager;
   private Map<String, Cache<?>> caches = new HashMap<String, Cache<?>>();
-  private ThreadLocalCacheMap requestCacheMapHolder = new ThreadLocalCacheMap();
-  private ThreadLocalCacheMap threadCacheMapHolder = new ThreadLocalCacheMap();
+  private CacheNameIndex cacheNameIndex = new CacheNameIndex();
+  private ThreadLocalCacheMap requestCacheMapHolder = new ThreadLocalCacheMap(cacheNameIndex);
+  private ThreadLocalCacheMap threadCacheMapHolder = new ThreadLocalCacheMap(cacheNameIndex);
+  private Map<String, Cache<?>> clusterCaches = new HashMap<String, Cache<?>>();
+  private ClusterCacheChannel clusterCacheChannel = new ClusterCacheChannel(
+      CLUSTER_QUEUE_SIZE, CLUSTER_BATCH_SIZE, CLUSTER_BATCH_DELAY);
+
+  /**
+   * Optional, when present CLUSTERINVALIDATED and CLUSTERREPLICATED caches are kept in step
+   * with the other servers connected to the same broker.
+   */
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC, bind = "bindConnectionFactoryService", unbind = "unbindConnectionFactoryService")
+  private ConnectionFactoryService connectionFactoryService;
 
   public CacheManagerServiceImpl() throws IOException {
     create();
@@ -101,6 +130,7 @@ public class CacheManagerServiceImpl implements CacheManagerService {
    * perform a shutdown
    */
   public void stop() {
+    clusterCacheChannel.stop();
     cacheManager.shutdown();
     // we really want to notify all threads that have maps
   }
@@ -115,9 +145,9 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     case INSTANCE:
       return getInstanceCache(name);
     case CLUSTERINVALIDATED:
-      return getInstanceCache(name);
+      return getClusterCache(name, false);
     case CLUSTERREPLICATED:
-      return getInstanceCache(name);
+      return getClusterCache(name, true);
     case REQUEST:
       return getRequestCache(name);
     case THREAD:
@@ -133,15 +163,8 @@ public class CacheManagerServiceImpl implements CacheManagerService {
    * @param name
    * @return
    */
-  @SuppressWarnings("unchecked")
   private <V> Cache<V> getThreadCache(String name) {
-    Map<String, Cache<?>> threadCacheMap = threadCacheMapHolder.get();
-    Cache<V> threadCache = (Cache<V>) threadCacheMap.get(name);
-    if (threadCache == null) {
-      threadCache = new MapCacheImpl<V>();
-      threadCacheMap.put(name, threadCache);
-    }
-    return threadCache;
+    return threadCacheMapHolder.get().<V>get(cacheNameIndex.indexOf(name));
   }
 
   /**
@@ -150,15 +173,8 @@ public class CacheManagerServiceImpl implements CacheManagerService {
    * @param name
    * @return
    */
-  @SuppressWarnings("unchecked")
   private <V> Cache<V> getRequestCache(String name) {
-    Map<String, Cache<?>> requestCacheMap = requestCacheMapHolder.get();
-    Cache<V> requestCache = (Cache<V>) requestCacheMap.get(name);
-    if (requestCache == null) {
-      requestCache = new MapCacheImpl<V>();
-      requestCacheMap.put(name, requestCache);
-    }
-    return requestCache;
+    return requestCacheMapHolder.get().<V>get(cacheNameIndex.indexOf(name));
   }
 
   /**
@@ -179,6 +195,49 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     }
   }
 
+  /**
+   * Generate a cache bound to the instance that is kept consistent with the same cache on
+   * other members of the cluster.
+   *
+   * @param name
+   * @param replicate
+   *          true if values should be copied to the other nodes, false if they should
+   *          only be invalidated there.
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  private <V> Cache<V> getClusterCache(String name, boolean replicate) {
+    String cacheName = (name == null) ? "default" : name;
+    synchronized (clusterCaches) {
+      Cache<V> c = (Cache<V>) clusterCaches.get(cacheName);
+      if (c == null) {
+        ClusterCacheImpl<V> clusterCache = new ClusterCacheImpl<V>(cacheName,
+            new CacheImpl<V>(cacheManager, cacheName), clusterCacheChannel, replicate);
+        clusterCacheChannel.register(cacheName, clusterCache);
+        clusterCaches.put(cacheName, clusterCache);
+        c = clusterCache;
+      }
+      return c;
+    }
+  }
+
+  protected void bindConnectionFactoryService(ConnectionFactoryService connectionFactoryService) {
+    this.connectionFactoryService = connectionFactoryService;
+    try {
+      clusterCacheChannel.start(connectionFactoryService.getDefaultConnectionFactory());
+    } catch (JMSException e) {
+      logger.error("Unable to connect cluster caches, they will only be local to this server: "
+          + e.getMessage(), e);
+    }
+  }
+
+  protected void unbindConnectionFactoryService(ConnectionFactoryService connectionFactoryService) {
+    if (this.connectionFactoryService == connectionFactoryService) {
+      clusterCacheChannel.stop();
+      this.connectionFactoryService = null;
+    }
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -199,22 +258,23 @@ public class CacheManagerServiceImpl implements CacheManagerService {
    *
    */
   private void unbindThread() {
-    Map<String, Cache<?>> threadCache = threadCacheMapHolder.get();
-    for (Cache<?> cache : threadCache.values()) {
-      cache.clear();
-    }
-    threadCacheMapHolder.remove();
+    unbind(threadCacheMapHolder);
   }
 
   /**
    *
    */
   private void unbindRequest() {
-    Map<String, Cache<?>> requestCache = requestCacheMapHolder.get();
-    for (Cache<?> cache : requestCache.values()) {
-      cache.clear();
-    }
-    requestCacheMapHolder.remove();
+    unbind(requestCacheMapHolder);
+  }
+
+  /**
+   * Unbind the entries of the caches on this thread and drop the caches, so nothing a
+   * cache handed out can be seen from the next request on the thread.
+   */
+  private void unbind(ThreadLocalCacheMap holder) {
+    holder.get().reset();
+    holder.remove();
   }
 
 }
@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolves cache names to small integer indices, so that thread bound caches can be held
+ * in an array per thread. A name is registered the first time it is used and keeps its
+ * index for the life of the cache manager; lookups after that do not lock.
+ */
+public class CacheNameIndex {
+
+  /**
+   * Stands in for a null cache name, which the concurrent map can't hold.
+   */
+  private static final String NULL_NAME = "\u0000null";
+  private final ConcurrentMap<String, Integer> indices = new ConcurrentHashMap<String, Integer>();
+  private final AtomicInteger next = new AtomicInteger();
+
+  /**
+   * @param name
+   *          the cache name, may be null.
+   * @return the index of the name, registering it if it has not been seen before.
+   */
+  public int indexOf(String name) {
+    String key = (name == null) ? NULL_NAME : name;
+    Integer index = indices.get(key);
+    if (index == null) {
+      Integer newIndex = next.getAndIncrement();
+      index = indices.putIfAbsent(key, newIndex);
+      if (index == null) {
+        index = newIndex;
+      }
+    }
+    return index;
+  }
+
+  /**
+   * @return the number of names registered so far.
+   */
+  public int size() {
+    return next.get();
+  }
+}
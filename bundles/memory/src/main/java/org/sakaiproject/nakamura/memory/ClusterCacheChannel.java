@@ -0,0 +1,329 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.Topic;
+
+/**
+ * Carries cache events between the cache managers of a cluster over a JMS topic. Local
+ * events are queued and sent in batches by a single sender thread, coalescing repeated
+ * operations on the same key within a batch. If the queue overflows the affected caches are
+ * cleared on the other nodes rather than risk them holding stale entries.
+ */
+public class ClusterCacheChannel implements MessageListener {
+
+  public static final String TOPIC = "org/sakaiproject/nakamura/memory/CLUSTER_CACHE";
+  static final String NODE_ID = "clusterCacheNode";
+  private static final Logger LOGGER = LoggerFactory.getLogger(ClusterCacheChannel.class);
+
+  private final String nodeId = UUID.randomUUID().toString();
+  private final Map<String, ClusterCacheImpl<?>> caches = new ConcurrentHashMap<String, ClusterCacheImpl<?>>();
+  private final Map<String, String> overflowedCaches = new ConcurrentHashMap<String, String>();
+  private final BlockingQueue<ClusterCacheEvent> queue;
+  private final int maxBatchSize;
+  private final long batchDelay;
+
+  private volatile boolean running;
+  private Connection connection;
+  private Thread sender;
+
+  /**
+   * @param queueSize
+   *          the maximum number of events waiting to be sent.
+   * @param maxBatchSize
+   *          the maximum number of events sent in one message.
+   * @param batchDelay
+   *          the time in ms to wait for more events once the first event of a batch
+   *          arrives.
+   */
+  public ClusterCacheChannel(int queueSize, int maxBatchSize, long batchDelay) {
+    this.queue = new LinkedBlockingQueue<ClusterCacheEvent>(queueSize);
+    this.maxBatchSize = maxBatchSize;
+    this.batchDelay = batchDelay;
+  }
+
+  /**
+   * Register a cache so that events from other nodes can be applied to it.
+   *
+   * @param name
+   * @param cache
+   */
+  public void register(String name, ClusterCacheImpl<?> cache) {
+    caches.put(name, cache);
+  }
+
+  /**
+   * @return true if the channel is connected to the cluster.
+   */
+  public boolean isRunning() {
+    return running;
+  }
+
+  /**
+   * Queue an event for the rest of the cluster. Events are discarded if the channel is not
+   * connected, since there is nobody to tell.
+   *
+   * @param event
+   */
+  public void send(ClusterCacheEvent event) {
+    if (!running) {
+      return;
+    }
+    if (!queue.offer(event)) {
+      overflowedCaches.put(event.getCacheName(), event.getCacheName());
+    }
+  }
+
+  /**
+   * Connect to the cluster and start sending events.
+   *
+   * @param connectionFactory
+   * @throws JMSException
+   */
+  public synchronized void start(ConnectionFactory connectionFactory) throws JMSException {
+    if (running) {
+      return;
+    }
+    connection = connectionFactory.createConnection();
+    try {
+      final Session sendSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      Topic sendTopic = sendSession.createTopic(TOPIC);
+      final MessageProducer producer = sendSession.createProducer(sendTopic);
+      producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+
+      Session receiveSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      Topic receiveTopic = receiveSession.createTopic(TOPIC);
+      MessageConsumer consumer = receiveSession.createConsumer(receiveTopic, null, true);
+      consumer.setMessageListener(this);
+      connection.start();
+
+      running = true;
+      sender = new Thread("ClusterCacheSender") {
+        @Override
+        public void run() {
+          sendLoop(sendSession, producer);
+        }
+      };
+      sender.setDaemon(true);
+      sender.start();
+      LOGGER.info("Cluster cache channel started as node {} ", nodeId);
+    } catch (JMSException e) {
+      closeConnection();
+      throw e;
+    }
+  }
+
+  /**
+   * Disconnect from the cluster, any events not yet sent are discarded.
+   */
+  public synchronized void stop() {
+    if (!running) {
+      return;
+    }
+    running = false;
+    if (sender != null) {
+      sender.interrupt();
+      try {
+        sender.join(5000L);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      sender = null;
+    }
+    closeConnection();
+    queue.clear();
+    overflowedCaches.clear();
+  }
+
+  private void closeConnection() {
+    if (connection != null) {
+      try {
+        connection.close();
+      } catch (JMSException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+      connection = null;
+    }
+  }
+
+  private void sendLoop(Session session, MessageProducer producer) {
+    List<ClusterCacheEvent> drained = new ArrayList<ClusterCacheEvent>(maxBatchSize);
+    while (running) {
+      try {
+        ClusterCacheEvent first = queue.poll(1, TimeUnit.SECONDS);
+        if (first == null && overflowedCaches.isEmpty()) {
+          continue;
+        }
+        if (first != null) {
+          drained.add(first);
+          if (batchDelay > 0) {
+            Thread.sleep(batchDelay);
+          }
+          queue.drainTo(drained, maxBatchSize - 1);
+        }
+        List<ClusterCacheEvent> batch = coalesce(drained);
+        drained.clear();
+        if (batch.size() > 0) {
+          producer.send(createMessage(session, batch));
+        }
+      } catch (InterruptedException e) {
+        if (running) {
+          LOGGER.debug("Interrupted while waiting for cache events");
+        }
+      } catch (JMSException e) {
+        drained.clear();
+        LOGGER.warn("Failed to send cache events to the cluster: {} ", e.getMessage());
+        LOGGER.debug(e.getMessage(), e);
+      } catch (IOException e) {
+        drained.clear();
+        LOGGER.warn("Failed to send cache events to the cluster: {} ", e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Collapse the batch so that only the last operation on each key is sent, preserving the
+   * order of the surviving operations. Caches that overflowed the queue are cleared at the
+   * end of the batch.
+   */
+  List<ClusterCacheEvent> coalesce(List<ClusterCacheEvent> events) {
+    LinkedHashMap<String, ClusterCacheEvent> coalesced = new LinkedHashMap<String, ClusterCacheEvent>();
+    for (ClusterCacheEvent event : events) {
+      String key = event.getCoalesceKey();
+      coalesced.remove(key);
+      coalesced.put(key, event);
+    }
+    List<ClusterCacheEvent> batch = new ArrayList<ClusterCacheEvent>(coalesced.values());
+    for (String cacheName : overflowedCaches.keySet()) {
+      overflowedCaches.remove(cacheName);
+      LOGGER.warn("Cluster cache queue overflowed, clearing {} across the cluster",
+          cacheName);
+      batch.add(new ClusterCacheEvent(cacheName, ClusterCacheEvent.Operation.CLEAR, null,
+          null));
+    }
+    return batch;
+  }
+
+  private Message createMessage(Session session, List<ClusterCacheEvent> batch)
+      throws JMSException, IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(baos);
+    oos.writeObject(new ArrayList<ClusterCacheEvent>(batch));
+    oos.close();
+    BytesMessage message = session.createBytesMessage();
+    message.writeBytes(baos.toByteArray());
+    message.setStringProperty(NODE_ID, nodeId);
+    return message;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jms.MessageListener#onMessage(javax.jms.Message)
+   */
+  @SuppressWarnings("unchecked")
+  public void onMessage(Message message) {
+    try {
+      if (nodeId.equals(message.getStringProperty(NODE_ID))
+          || !(message instanceof BytesMessage)) {
+        return;
+      }
+      BytesMessage bytesMessage = (BytesMessage) message;
+      byte[] body = new byte[(int) bytesMessage.getBodyLength()];
+      bytesMessage.readBytes(body);
+      ObjectInputStream ois = new EventObjectInputStream(new ByteArrayInputStream(body));
+      List<ClusterCacheEvent> batch;
+      try {
+        batch = (List<ClusterCacheEvent>) ois.readObject();
+      } finally {
+        ois.close();
+      }
+      for (ClusterCacheEvent event : batch) {
+        ClusterCacheImpl<?> cache = caches.get(event.getCacheName());
+        if (cache != null) {
+          cache.applyRemote(event);
+        }
+      }
+    } catch (JMSException e) {
+      LOGGER.warn("Failed to read cache events from the cluster: {} ", e.getMessage());
+    } catch (IOException e) {
+      LOGGER.warn("Failed to read cache events from the cluster: {} ", e.getMessage());
+    } catch (ClassNotFoundException e) {
+      LOGGER.warn("Failed to read cache events from the cluster: {} ", e.getMessage());
+    }
+  }
+
+  /**
+   * Only resolves the classes a batch of events is made of, so a message on the topic
+   * cannot make this node instantiate anything else. The cached values travel as bytes
+   * inside the events and are not resolved here.
+   */
+  static class EventObjectInputStream extends ObjectInputStream {
+
+    private static final Set<String> ALLOWED = new HashSet<String>(Arrays.asList(
+        ArrayList.class.getName(), ClusterCacheEvent.class.getName(),
+        ClusterCacheEvent.Operation.class.getName(), Enum.class.getName(), "[B"));
+
+    EventObjectInputStream(InputStream in) throws IOException {
+      super(in);
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException,
+        ClassNotFoundException {
+      if (!ALLOWED.contains(desc.getName())) {
+        throw new InvalidClassException(desc.getName(), "Not a cluster cache event");
+      }
+      return super.resolveClass(desc);
+    }
+  }
+}
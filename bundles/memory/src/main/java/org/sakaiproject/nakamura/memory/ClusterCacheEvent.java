@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import java.io.Serializable;
+
+/**
+ * A single cache operation sent between cluster nodes. Values are carried as serialized
+ * bytes so that the JMS layer never has to resolve classes from other bundles.
+ */
+public class ClusterCacheEvent implements Serializable {
+
+  private static final long serialVersionUID = 4617702542370593914L;
+
+  public enum Operation {
+    /**
+     * Replace the entry with the serialized value carried in the event.
+     */
+    PUT,
+    /**
+     * Drop the entry.
+     */
+    REMOVE,
+    /**
+     * Drop the entry and all its path children.
+     */
+    REMOVE_CHILDREN,
+    /**
+     * Drop every entry in the cache.
+     */
+    CLEAR;
+  }
+
+  private String cacheName;
+  private Operation operation;
+  private String key;
+  private byte[] value;
+
+  public ClusterCacheEvent(String cacheName, Operation operation, String key, byte[] value) {
+    this.cacheName = cacheName;
+    this.operation = operation;
+    this.key = key;
+    this.value = value;
+  }
+
+  public String getCacheName() {
+    return cacheName;
+  }
+
+  public Operation getOperation() {
+    return operation;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public byte[] getValue() {
+    return value;
+  }
+
+  /**
+   * @return a key that identifies events which may be coalesced within a batch. PUT and
+   *         REMOVE on the same key share a coalesce key since the last one defines the
+   *         final state of the entry.
+   */
+  public String getCoalesceKey() {
+    switch (operation) {
+    case CLEAR:
+      return cacheName + ":clear";
+    case REMOVE_CHILDREN:
+      return cacheName + ":children:" + key;
+    default:
+      return cacheName + ":" + key;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return operation + " " + cacheName + " " + key;
+  }
+}
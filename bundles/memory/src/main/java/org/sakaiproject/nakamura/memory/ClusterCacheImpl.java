@@ -0,0 +1,259 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A cache bound to the instance that propagates changes to the other members of the
+ * cluster through a {@link ClusterCacheChannel}. In invalidation mode every put and
+ * remove removes the entry on the other nodes, since a node can not tell a read through
+ * from a write made after another node cached the old value. In replication mode puts
+ * carry the serialized value so the other nodes can serve it without going back to
+ * storage. Values that are not serializable are handled as in invalidation mode, and only
+ * plain JDK values are rebuilt from a replicated put; anything else is dropped on the
+ * receiving node as if it had been invalidated.
+ */
+public class ClusterCacheImpl<V> implements Cache<V> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ClusterCacheImpl.class);
+  private String cacheName;
+  private Cache<V> localCache;
+  private ClusterCacheChannel channel;
+  private boolean replicate;
+
+  /**
+   * @param cacheName
+   *          the name of the cache, shared by all nodes in the cluster.
+   * @param localCache
+   *          the cache holding the entries on this node.
+   * @param channel
+   *          the channel that carries events to the rest of the cluster.
+   * @param replicate
+   *          true if puts should carry the value, false if they should only invalidate.
+   */
+  public ClusterCacheImpl(String cacheName, Cache<V> localCache, ClusterCacheChannel channel,
+      boolean replicate) {
+    this.cacheName = cacheName;
+    this.localCache = localCache;
+    this.channel = channel;
+    this.replicate = replicate;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#put(java.lang.String, java.lang.Object)
+   */
+  public V put(String key, V payload) {
+    V previous = localCache.put(key, payload);
+    byte[] value = null;
+    if (replicate && payload instanceof Serializable) {
+      value = serialize(payload);
+    }
+    if (value != null) {
+      channel.send(new ClusterCacheEvent(cacheName, ClusterCacheEvent.Operation.PUT, key,
+          value));
+    } else {
+      channel.send(new ClusterCacheEvent(cacheName, ClusterCacheEvent.Operation.REMOVE,
+          key, null));
+    }
+    return previous;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#containsKey(java.lang.String)
+   */
+  public boolean containsKey(String key) {
+    return localCache.containsKey(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#get(java.lang.String)
+   */
+  public V get(String key) {
+    return localCache.get(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#clear()
+   */
+  public void clear() {
+    localCache.clear();
+    channel.send(new ClusterCacheEvent(cacheName, ClusterCacheEvent.Operation.CLEAR, null,
+        null));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#remove(java.lang.String)
+   */
+  public void remove(String key) {
+    localCache.remove(key);
+    channel.send(new ClusterCacheEvent(cacheName, ClusterCacheEvent.Operation.REMOVE, key,
+        null));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#removeChildren(java.lang.String)
+   */
+  public void removeChildren(String key) {
+    localCache.removeChildren(key);
+    channel.send(new ClusterCacheEvent(cacheName,
+        ClusterCacheEvent.Operation.REMOVE_CHILDREN, key, null));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#list()
+   */
+  public List<V> list() {
+    return localCache.list();
+  }
+
+  /**
+   * Apply an event that was received from another node, without sending it on.
+   *
+   * @param event
+   */
+  @SuppressWarnings("unchecked")
+  void applyRemote(ClusterCacheEvent event) {
+    switch (event.getOperation()) {
+    case PUT:
+      Object value = deserialize(event.getValue());
+      if (value == null) {
+        // we can't rebuild the value here, so the safe thing is to drop our copy.
+        localCache.remove(event.getKey());
+      } else {
+        localCache.put(event.getKey(), (V) value);
+      }
+      break;
+    case REMOVE:
+      localCache.remove(event.getKey());
+      break;
+    case REMOVE_CHILDREN:
+      localCache.removeChildren(event.getKey());
+      break;
+    case CLEAR:
+      localCache.clear();
+      break;
+    }
+  }
+
+  private byte[] serialize(V payload) {
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      ObjectOutputStream oos = new ObjectOutputStream(baos);
+      oos.writeObject(payload);
+      oos.close();
+      return baos.toByteArray();
+    } catch (IOException e) {
+      LOGGER.debug("Unable to serialize {} for replication, will invalidate instead: {} ",
+          payload, e.getMessage());
+      return null;
+    }
+  }
+
+  private Object deserialize(byte[] value) {
+    if (value == null) {
+      return null;
+    }
+    try {
+      ObjectInputStream ois = new ValueObjectInputStream(new ByteArrayInputStream(value));
+      try {
+        return ois.readObject();
+      } finally {
+        ois.close();
+      }
+    } catch (IOException e) {
+      LOGGER.debug("Unable to deserialize replicated value in {}: {} ", cacheName,
+          e.getMessage());
+    } catch (ClassNotFoundException e) {
+      LOGGER.debug("Unable to deserialize replicated value in {}: {} ", cacheName,
+          e.getMessage());
+    }
+    return null;
+  }
+
+  /**
+   * Only resolves plain JDK values, so a replicated put cannot make this node instantiate
+   * classes from the bundles that share the cache.
+   */
+  static class ValueObjectInputStream extends ObjectInputStream {
+
+    private static final Set<String> ALLOWED = new HashSet<String>(Arrays.asList(
+        String.class.getName(), Boolean.class.getName(), Character.class.getName(),
+        Number.class.getName(), Byte.class.getName(), Short.class.getName(),
+        Integer.class.getName(), Long.class.getName(), Float.class.getName(),
+        Double.class.getName(), BigInteger.class.getName(), BigDecimal.class.getName(),
+        Date.class.getName(), ArrayList.class.getName(), LinkedList.class.getName(),
+        HashMap.class.getName(), LinkedHashMap.class.getName(), TreeMap.class.getName(),
+        HashSet.class.getName(), LinkedHashSet.class.getName(), TreeSet.class.getName(),
+        "[Ljava.lang.String;", "[Ljava.lang.Object;", "[B", "[C", "[I", "[J", "[Z"));
+
+    ValueObjectInputStream(InputStream in) throws IOException {
+      super(in);
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException,
+        ClassNotFoundException {
+      if (!ALLOWED.contains(desc.getName())) {
+        throw new InvalidClassException(desc.getName(), "Not a replicable value");
+      }
+      return super.resolveClass(desc);
+    }
+  }
+
+}
@@ -23,10 +23,12 @@ import org.sakaiproject.nakamura.api.memory.ThreadBound;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 /**
- *
+ * A Cache backed by a HashMap, with a {@link PathKeyIndex} of the keys to make
+ * removeChildren proportional to the number of children removed. Most request caches never
+ * remove children, so the index is only built the first time it is needed.
  */
 public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
 
@@ -36,6 +38,36 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
    */
   private static final long serialVersionUID = -5400056532743570231L;
 
+  private transient PathKeyIndex keyIndex;
+
+  /**
+   * {@inheritDoc}
+   * @see java.util.HashMap#put(java.lang.Object, java.lang.Object)
+   */
+  @Override
+  public V put(String key, V payload) {
+    if ( keyIndex != null ) {
+      keyIndex.add(key);
+    }
+    return super.put(key, payload);
+  }
+
+  /**
+   * {@inheritDoc}
+   * HashMap.putAll does not go through {@link #put(String, Object)}, so the keys are
+   * indexed here.
+   * @see java.util.HashMap#putAll(java.util.Map)
+   */
+  @Override
+  public void putAll(Map<? extends String, ? extends V> m) {
+    if ( keyIndex != null ) {
+      for ( String k : m.keySet() ) {
+        keyIndex.add(k);
+      }
+    }
+    super.putAll(m);
+  }
+
   /**
    * {@inheritDoc}
    * @see org.sakaiproject.nakamura.api.memory.Cache#containsKey(java.lang.String)
@@ -57,6 +89,9 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
    * @see org.sakaiproject.nakamura.api.memory.Cache#remove(java.lang.String)
    */
   public void remove(String key) {
+    if ( keyIndex != null ) {
+      keyIndex.remove(key);
+    }
     V o = super.remove(key);
     if ( o instanceof ThreadBound ) {
       ((ThreadBound) o).unbind();
@@ -77,6 +112,9 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
       }
     }
     super.clear();
+    if ( keyIndex != null ) {
+      keyIndex.clear();
+    }
   }
 
   /**
@@ -84,16 +122,17 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
    * @see org.sakaiproject.nakamura.api.memory.Cache#removeChildren(java.lang.String)
    */
   public void removeChildren(String key) {
-    super.remove(key);
-    if ( !key.endsWith("/") ) {
-      key = key + "/";
-    }
-    Set<String> keys = super.keySet();
-    for ( String k : keys) {
-      if ( (k).startsWith(key) ) {
-        super.remove(k);
+    if ( keyIndex == null ) {
+      keyIndex = new PathKeyIndex();
+      for ( String k : super.keySet() ) {
+        keyIndex.add(k);
       }
     }
+    keyIndex.remove(key);
+    super.remove(key);
+    for ( String k : keyIndex.removeChildren(key) ) {
+      super.remove(k);
+    }
   }
 
   /**
@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * A sorted index of the keys in a cache. All the path children of a key sort together
+ * directly after <code>key + "/"</code> and before <code>key + "0"</code> ('0' being the
+ * character after '/'), so finding the children of a key costs O(log n + k) rather than a
+ * scan of every key in the cache. The index is a concurrent skip list, so puts and removes
+ * on the cache never wait for each other.
+ */
+public class PathKeyIndex {
+
+  private final ConcurrentSkipListSet<String> keys = new ConcurrentSkipListSet<String>();
+
+  public void add(String key) {
+    keys.add(key);
+  }
+
+  public void remove(String key) {
+    keys.remove(key);
+  }
+
+  public void clear() {
+    keys.clear();
+  }
+
+  /**
+   * @return the number of keys, this walks the whole index.
+   */
+  public int size() {
+    return keys.size();
+  }
+
+  /**
+   * Remove all the keys that are path children of the key from the index.
+   *
+   * @param key
+   *          the parent key, with or without a trailing /
+   * @return the keys that were removed by this call, excluding the parent key itself.
+   */
+  public List<String> removeChildren(String key) {
+    String prefix = key.endsWith("/") ? key.substring(0, key.length() - 1) : key;
+    List<String> removed = new ArrayList<String>();
+    for (String child : keys.subSet(prefix + "/", prefix + "0")) {
+      // another thread may be removing the same children.
+      if (keys.remove(child)) {
+        removed.add(child);
+      }
+    }
+    return removed;
+  }
+}
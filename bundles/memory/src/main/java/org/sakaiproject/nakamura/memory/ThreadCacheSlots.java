@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+/**
+ * The caches bound to one thread, held in an array indexed by {@link CacheNameIndex}. Only
+ * the owning thread touches an instance, so there is no locking.
+ */
+public class ThreadCacheSlots {
+
+  private MapCacheImpl<?>[] slots;
+
+  public ThreadCacheSlots(int size) {
+    slots = new MapCacheImpl<?>[size];
+  }
+
+  /**
+   * @param index
+   *          the index of the cache name.
+   * @return the cache in the slot, created if the slot was empty.
+   */
+  @SuppressWarnings("unchecked")
+  public <V> MapCacheImpl<V> get(int index) {
+    if (index >= slots.length) {
+      MapCacheImpl<?>[] grown = new MapCacheImpl<?>[Math.max(index + 1, slots.length * 2)];
+      System.arraycopy(slots, 0, grown, 0, slots.length);
+      slots = grown;
+    }
+    MapCacheImpl<V> cache = (MapCacheImpl<V>) slots[index];
+    if (cache == null) {
+      cache = new MapCacheImpl<V>();
+      slots[index] = cache;
+    }
+    return cache;
+  }
+
+  /**
+   * Clear every cache in the slots, unbinding any {@link org.sakaiproject.nakamura.api.memory.ThreadBound} entries.
+   */
+  public void reset() {
+    for (MapCacheImpl<?> cache : slots) {
+      if (cache != null && cache.size() > 0) {
+        cache.clear();
+      }
+    }
+  }
+}
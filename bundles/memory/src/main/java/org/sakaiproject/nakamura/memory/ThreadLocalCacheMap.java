@@ -17,24 +17,27 @@
  */
 package org.sakaiproject.nakamura.memory;
 
-import org.sakaiproject.nakamura.api.memory.Cache;
-
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * Represents a Cache stored on the thread, used in the request thread and in other threads.
  * When used in Threads there is a potential for memory leaks as perm space is not cleaned up.
  * This will be caused by references to classloaders being in the Map, and keeping the classloaders
- * open.
+ * open. When the scope is unbound the slots are reset, to unbind their entries, and removed
+ * from the thread, so the next request on a pooled thread starts with caches of its own.
  */
-public class ThreadLocalCacheMap extends ThreadLocal<Map<String,Cache<?>>> {
+public class ThreadLocalCacheMap extends ThreadLocal<ThreadCacheSlots> {
+
+  private CacheNameIndex cacheNameIndex;
+
+  public ThreadLocalCacheMap(CacheNameIndex cacheNameIndex) {
+    this.cacheNameIndex = cacheNameIndex;
+  }
+
   /**
    * {@inheritDoc}
    * @see java.lang.ThreadLocal#initialValue()
    */
   @Override
-  protected Map<String, Cache<?>> initialValue() {
-    return new HashMap<String, Cache<?>>();
+  protected ThreadCacheSlots initialValue() {
+    return new ThreadCacheSlots(Math.max(8, cacheNameIndex.size()));
   }
 }
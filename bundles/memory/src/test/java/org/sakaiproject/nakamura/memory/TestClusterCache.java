@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Two cache managers in the same JVM sharing an embedded broker, standing in for two
+ * servers in a cluster.
+ */
+public class TestClusterCache {
+
+  private static final String BROKER_URL = "vm://clustercachetest?broker.persistent=false&broker.useJmx=false";
+  private static final long WAIT = 5000L;
+  private CacheManagerServiceImpl nodeA;
+  private CacheManagerServiceImpl nodeB;
+
+  @Before
+  public void setUp() throws IOException {
+    nodeA = new CacheManagerServiceImpl();
+    nodeB = new CacheManagerServiceImpl();
+    nodeA.bindConnectionFactoryService(createConnectionFactoryService());
+    nodeB.bindConnectionFactoryService(createConnectionFactoryService());
+  }
+
+  @After
+  public void tearDown() {
+    nodeA.stop();
+    nodeB.stop();
+  }
+
+  private ConnectionFactoryService createConnectionFactoryService() {
+    ConnectionFactoryService connectionFactoryService = createMock(ConnectionFactoryService.class);
+    expect(connectionFactoryService.getDefaultConnectionFactory()).andReturn(
+        new ActiveMQConnectionFactory(BROKER_URL)).anyTimes();
+    replay(connectionFactoryService);
+    return connectionFactoryService;
+  }
+
+  @Test
+  public void testInvalidation() throws InterruptedException {
+    Cache<String> cacheA = nodeA.getCache("invalidated", CacheScope.CLUSTERINVALIDATED);
+    Cache<String> cacheB = nodeB.getCache("invalidated", CacheScope.CLUSTERINVALIDATED);
+    cacheB.put("a/b", "stale");
+    cacheB.put("a/b/c", "stale");
+    cacheB.put("x", "stale");
+
+    // filling an empty slot may be a write made after the other node read the value.
+    cacheA.put("x", "fresh");
+    waitForNull(cacheB, "x");
+    assertEquals("fresh", cacheA.get("x"));
+    assertNull(cacheB.get("x"));
+
+    cacheA.removeChildren("a");
+    waitForNull(cacheB, "a/b/c");
+    assertNull(cacheB.get("a/b"));
+  }
+
+  @Test
+  public void testReplication() throws InterruptedException {
+    Cache<String> cacheA = nodeA.getCache("replicated", CacheScope.CLUSTERREPLICATED);
+    Cache<String> cacheB = nodeB.getCache("replicated", CacheScope.CLUSTERREPLICATED);
+    cacheA.put("key", "value");
+    waitForValue(cacheB, "key", "value");
+    assertEquals("value", cacheB.get("key"));
+
+    cacheB.remove("key");
+    waitForNull(cacheA, "key");
+    assertNull(cacheA.get("key"));
+  }
+
+  @Test
+  public void testClear() throws InterruptedException {
+    Cache<String> cacheA = nodeA.getCache("cleared", CacheScope.CLUSTERREPLICATED);
+    Cache<String> cacheB = nodeB.getCache("cleared", CacheScope.CLUSTERREPLICATED);
+    cacheA.put("one", "1");
+    cacheA.put("two", "2");
+    waitForValue(cacheB, "two", "2");
+    cacheA.clear();
+    waitForNull(cacheB, "one");
+    assertNull(cacheB.get("two"));
+  }
+
+  @Test
+  public void testOnlyEventsDeserialized() throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(baos);
+    ArrayList<ClusterCacheEvent> batch = new ArrayList<ClusterCacheEvent>();
+    batch.add(new ClusterCacheEvent("c", ClusterCacheEvent.Operation.PUT, "k", new byte[1]));
+    oos.writeObject(batch);
+    oos.close();
+    ObjectInputStream ois = new ClusterCacheChannel.EventObjectInputStream(
+        new ByteArrayInputStream(baos.toByteArray()));
+    assertEquals(1, ((List<?>) ois.readObject()).size());
+
+    baos = new ByteArrayOutputStream();
+    oos = new ObjectOutputStream(baos);
+    oos.writeObject(new HashMap<String, String>());
+    oos.close();
+    ois = new ClusterCacheChannel.EventObjectInputStream(new ByteArrayInputStream(
+        baos.toByteArray()));
+    try {
+      ois.readObject();
+      fail("Only cluster cache events should be read");
+    } catch (InvalidClassException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testOnlyValuesDeserialized() throws Exception {
+    MapCacheImpl<Object> local = new MapCacheImpl<Object>();
+    ClusterCacheImpl<Object> cache = new ClusterCacheImpl<Object>("c", local, null, true);
+    HashMap<String, Object> value = new HashMap<String, Object>();
+    value.put("names", new String[] { "a", "b" });
+    value.put("size", 2L);
+    cache.applyRemote(new ClusterCacheEvent("c", ClusterCacheEvent.Operation.PUT, "k",
+        serialize(value)));
+    assertEquals(2L, ((HashMap<?, ?>) local.get("k")).get("size"));
+
+    // anything else is dropped, as an invalidation would.
+    cache.applyRemote(new ClusterCacheEvent("c", ClusterCacheEvent.Operation.PUT, "k",
+        serialize(new ClusterCacheEvent("c", ClusterCacheEvent.Operation.CLEAR, null,
+            null))));
+    assertNull(local.get("k"));
+  }
+
+  @Test
+  public void testCoalesce() {
+    ClusterCacheChannel channel = new ClusterCacheChannel(10, 10, 0L);
+    List<ClusterCacheEvent> events = new ArrayList<ClusterCacheEvent>();
+    events.add(new ClusterCacheEvent("c", ClusterCacheEvent.Operation.PUT, "k", new byte[0]));
+    events.add(new ClusterCacheEvent("c", ClusterCacheEvent.Operation.REMOVE_CHILDREN, "k",
+        null));
+    events.add(new ClusterCacheEvent("c", ClusterCacheEvent.Operation.REMOVE, "k", null));
+    events.add(new ClusterCacheEvent("c", ClusterCacheEvent.Operation.PUT, "k", new byte[0]));
+    List<ClusterCacheEvent> batch = channel.coalesce(events);
+    assertEquals(2, batch.size());
+    assertEquals(ClusterCacheEvent.Operation.REMOVE_CHILDREN, batch.get(0).getOperation());
+    assertEquals(ClusterCacheEvent.Operation.PUT, batch.get(1).getOperation());
+  }
+
+  private byte[] serialize(Object value) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(baos);
+    oos.writeObject(value);
+    oos.close();
+    return baos.toByteArray();
+  }
+
+  private void waitForNull(Cache<String> cache, String key) throws InterruptedException {
+    long end = System.currentTimeMillis() + WAIT;
+    while (cache.get(key) != null && System.currentTimeMillis() < end) {
+      Thread.sleep(20L);
+    }
+  }
+
+  private void waitForValue(Cache<String> cache, String key, String value)
+      throws InterruptedException {
+    long end = System.currentTimeMillis() + WAIT;
+    while (!value.equals(cache.get(key)) && System.currentTimeMillis() < end) {
+      Thread.sleep(20L);
+    }
+  }
+}
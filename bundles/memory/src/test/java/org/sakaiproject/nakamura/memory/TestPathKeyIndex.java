@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class TestPathKeyIndex {
+
+  @Test
+  public void testRemoveChildren() {
+    PathKeyIndex index = new PathKeyIndex();
+    index.add("a");
+    index.add("a/b");
+    index.add("a/b/c");
+    index.add("a-b");
+    index.add("a0");
+    index.add("ab");
+    index.add("b/a");
+    List<String> removed = index.removeChildren("a");
+    assertEquals(2, removed.size());
+    assertTrue(removed.contains("a/b"));
+    assertTrue(removed.contains("a/b/c"));
+    // the parent and the siblings that share a prefix stay.
+    assertEquals(5, index.size());
+    assertEquals(0, index.removeChildren("a/").size());
+  }
+
+  @Test
+  public void testSiblingsSurvive() throws IOException {
+    CacheManagerServiceImpl cacheManagerService = new CacheManagerServiceImpl();
+    for (CacheScope scope : CacheScope.values()) {
+      Cache<String> cache = cacheManagerService.getCache("TestPathKeyIndex", scope);
+      cache.put("fish", "cat");
+      cache.put("fish/child", "childcat");
+      cache.put("fishy", "notachild");
+      cache.put("fish-cake", "notachild");
+      cache.removeChildren("fish");
+      assertNull(cache.get("fish"));
+      assertNull(cache.get("fish/child"));
+      assertEquals("notachild", cache.get("fishy"));
+      assertEquals("notachild", cache.get("fish-cake"));
+      // entries put after a removal are indexed again.
+      cache.put("fish/child", "childcat");
+      cache.removeChildren("fish/");
+      assertNull(cache.get("fish/child"));
+      cache.clear();
+      cacheManagerService.unbind(scope);
+    }
+    cacheManagerService.stop();
+  }
+
+  @Test
+  public void testPutAllIndexed() {
+    MapCacheImpl<String> cache = new MapCacheImpl<String>();
+    cache.put("fish", "cat");
+    // build the index, then add keys without going through put.
+    cache.removeChildren("fish");
+    Map<String, String> more = new HashMap<String, String>();
+    more.put("fish/child", "childcat");
+    more.put("fishy", "notachild");
+    cache.putAll(more);
+    cache.removeChildren("fish");
+    assertNull(cache.get("fish/child"));
+    assertEquals("notachild", cache.get("fishy"));
+  }
+}
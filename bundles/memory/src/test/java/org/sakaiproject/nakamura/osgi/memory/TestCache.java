@@ -22,6 +22,7 @@ import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.Before;
@@ -107,4 +108,33 @@ public class TestCache {
     verify(testItem);
   }
 
+  @Test
+  public void testScopeUnbindingUnbindsEntries() {
+    ThreadBound testItem = createMock(ThreadBound.class);
+    testItem.unbind();
+    replay(testItem);
+    Cache<ThreadBound> requestCache = cacheManagerService.getCache("testCache",
+        CacheScope.REQUEST);
+    requestCache.put("testItem", testItem);
+    cacheManagerService.unbind(CacheScope.REQUEST);
+    verify(testItem);
+  }
+
+  @Test
+  public void testRequestCacheReset() {
+    for (CacheScope scope : new CacheScope[] { CacheScope.REQUEST, CacheScope.THREAD }) {
+      Cache<String> cache = cacheManagerService.getCache("resetCache", scope);
+      cache.put("fish", "cat");
+      cacheManagerService.unbind(scope);
+      assertNull("Expected the cache to be cleared", cache.get("fish"));
+      Cache<String> nextCache = cacheManagerService.getCache("resetCache", scope);
+      assertNotSame("Expected a new cache", cache, nextCache);
+      assertNull("Expected the cache to be empty", nextCache.get("fish"));
+      Cache<String> otherCache = cacheManagerService.getCache("otherResetCache", scope);
+      otherCache.put("fish", "dog");
+      assertNull("Expected caches to be separate", nextCache.get("fish"));
+      cacheManagerService.unbind(scope);
+    }
+  }
+
 }
@@ -0,0 +1,360 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.util.LitePersonalUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the rendered sections of /system/me for each user, so a page load for a user
+ * whose contacts, groups and profile have not changed is served without going to storage
+ * or the index.
+ *
+ * A section is dropped when the content it is worked out from changes: the contact store
+ * or the public space of the user, and the authorizable of the user or of any group the
+ * groups section was worked out through. Sections are also dropped after a while, as not
+ * every change to group membership is seen as an event on the member. The messages
+ * section is not held here, the unread count is already kept in memory by the message
+ * counter, which is the only thing that knows when it has caught up with a change.
+ *
+ * Reading a section takes no lock. Storing and dropping the sections of a user lock only
+ * that user, and the groups sections are linked to their groups under a lock of their
+ * own.
+ */
+@Component(immediate = true, metatype = true, label = "LiteMeCache", description = "Cache of the sections of /system/me")
+@Service(value = { LiteMeCache.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "event.topics", value = {
+        "org/sakaiproject/nakamura/lite/content/ADDED",
+        "org/sakaiproject/nakamura/lite/content/UPDATED",
+        "org/sakaiproject/nakamura/lite/content/DELETE",
+        "org/sakaiproject/nakamura/lite/authorizables/ADDED",
+        "org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+        "org/sakaiproject/nakamura/lite/authorizables/DELETE" }) })
+public class LiteMeCache implements EventHandler {
+
+  public static final String PROFILE = "profile";
+  public static final String MESSAGES = "messages";
+  public static final String CONTACTS = "contacts";
+  public static final String GROUPS = "groups";
+
+  private static final String HOME_PREFIX = LitePersonalUtils.getHomePath("");
+
+  /**
+   * The sections that depend on each folder of the home of a user.
+   */
+  private static final Map<String, String> FOLDERS = new HashMap<String, String>();
+  static {
+    FOLDERS.put(ConnectionConstants.CONTACT_STORE_NAME, CONTACTS);
+    FOLDERS.put("public", PROFILE);
+  }
+
+  @Property(intValue = 300, label = "Maximum Age", description = "Seconds after which a cached section is worked out again")
+  static final String MAX_AGE = "me.cache.maxAge";
+
+  @Property(intValue = 10000, label = "Maximum Users", description = "The number of users to keep sections for")
+  static final String MAX_USERS = "me.cache.maxUsers";
+
+  private volatile long maxAge = 300000L;
+
+  private volatile int maxUsers = 10000;
+
+  /**
+   * Taken by every new or dropped section, so a section that was dropped while it was
+   * being worked out is never stored.
+   */
+  private final AtomicLong sequence = new AtomicLong();
+
+  private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+  /**
+   * The users whose groups section was worked out through each group. Guarded by itself,
+   * which is always taken before the lock of an entry.
+   */
+  private final Map<String, Set<String>> dependents = new HashMap<String, Set<String>>();
+
+  private final Object evictLock = new Object();
+
+  private static final class Cached {
+    final String value;
+    final long created;
+
+    Cached(String value, long created) {
+      this.value = value;
+      this.created = created;
+    }
+  }
+
+  /**
+   * The sections of one user. The versions are guarded by the entry, the groups by
+   * {@link LiteMeCache#dependents}.
+   */
+  private static final class Entry {
+    final ConcurrentMap<String, Cached> sections = new ConcurrentHashMap<String, Cached>();
+    final Map<String, Long> versions = new HashMap<String, Long>();
+    Set<String> groups = Collections.emptySet();
+    volatile long lastUsed = System.currentTimeMillis();
+  }
+
+  @Activate
+  @Modified
+  protected void activate(Map<String, Object> props) {
+    maxAge = OsgiUtil.toInteger(props.get(MAX_AGE), 300) * 1000L;
+    maxUsers = Math.max(1, OsgiUtil.toInteger(props.get(MAX_USERS), 10000));
+    clear();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty(StoreListener.PATH_PROPERTY);
+    if (path == null) {
+      return;
+    }
+    if (event.getTopic().startsWith("org/sakaiproject/nakamura/lite/authorizables/")) {
+      invalidateAuthorizable(path);
+    } else if (path.startsWith(HOME_PREFIX)) {
+      // a:<user>/<folder>/...
+      int i = path.indexOf('/', HOME_PREFIX.length());
+      if (i > HOME_PREFIX.length()) {
+        int j = path.indexOf('/', i + 1);
+        String section = FOLDERS.get(j < 0 ? path.substring(i + 1) : path.substring(i + 1, j));
+        if (section != null) {
+          invalidate(path.substring(HOME_PREFIX.length(), i), section);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the rendered section, or null if it is not cached.
+   */
+  public String get(String user, String section) {
+    Entry entry = entries.get(user);
+    if (entry == null) {
+      return null;
+    }
+    long now = System.currentTimeMillis();
+    entry.lastUsed = now;
+    Cached cached = entry.sections.get(section);
+    if (cached == null || now - cached.created > maxAge) {
+      return null;
+    }
+    return cached.value;
+  }
+
+  /**
+   * @return the version to pass to {@link #put(String, String, long, String)} once the
+   *         section has been worked out.
+   */
+  public long getVersion(String user, String section) {
+    Entry entry = entries.get(user);
+    if (entry == null) {
+      Entry created = new Entry();
+      entry = entries.putIfAbsent(user, created);
+      if (entry == null) {
+        entry = created;
+        if (entries.size() > maxUsers) {
+          evict();
+        }
+      }
+    }
+    synchronized (entry) {
+      Long version = entry.versions.get(section);
+      if (version == null) {
+        version = sequence.incrementAndGet();
+        entry.versions.put(section, version);
+      }
+      return version;
+    }
+  }
+
+  /**
+   * Cache a section, unless it was dropped since the version was taken.
+   */
+  public void put(String user, String section, long version, String value) {
+    Entry entry = entries.get(user);
+    if (entry != null) {
+      synchronized (entry) {
+        if (Long.valueOf(version).equals(entry.versions.get(section))) {
+          entry.sections.put(section, new Cached(value, System.currentTimeMillis()));
+        }
+      }
+    }
+  }
+
+  /**
+   * Cache the groups section along with the groups it was worked out through.
+   */
+  public void putGroups(String user, long version, String value, Set<String> groups) {
+    Entry entry = entries.get(user);
+    if (entry == null) {
+      return;
+    }
+    synchronized (dependents) {
+      synchronized (entry) {
+        if (!Long.valueOf(version).equals(entry.versions.get(GROUPS))) {
+          return;
+        }
+        entry.sections.put(GROUPS, new Cached(value, System.currentTimeMillis()));
+      }
+      unlink(user, entry.groups);
+      entry.groups = groups;
+      for (String group : groups) {
+        Set<String> users = dependents.get(group);
+        if (users == null) {
+          users = new HashSet<String>();
+          dependents.put(group, users);
+        }
+        users.add(user);
+      }
+    }
+  }
+
+  public void invalidate(String user, String section) {
+    Entry entry = entries.get(user);
+    if (entry == null) {
+      return;
+    }
+    if (GROUPS.equals(section)) {
+      synchronized (dependents) {
+        drop(entry, section);
+        unlink(user, entry.groups);
+        entry.groups = Collections.emptySet();
+      }
+    } else {
+      drop(entry, section);
+    }
+  }
+
+  public void clear() {
+    synchronized (dependents) {
+      entries.clear();
+      dependents.clear();
+    }
+  }
+
+  /**
+   * @return the number of users sections are held for.
+   */
+  int size() {
+    return entries.size();
+  }
+
+  private void drop(Entry entry, String section) {
+    synchronized (entry) {
+      entry.sections.remove(section);
+      entry.versions.put(section, sequence.incrementAndGet());
+    }
+  }
+
+  /**
+   * Drop everything cached for an authorizable, and the groups sections worked out
+   * through it.
+   */
+  private void invalidateAuthorizable(String id) {
+    synchronized (dependents) {
+      Set<String> users = dependents.remove(id);
+      if (users != null) {
+        for (String user : users.toArray(new String[users.size()])) {
+          invalidate(user, GROUPS);
+        }
+      }
+      remove(id);
+    }
+  }
+
+  /**
+   * Take out the least recently used tenth of the users, so the cost of finding them is
+   * paid once for every few new users rather than on each.
+   */
+  private void evict() {
+    synchronized (evictLock) {
+      if (entries.size() <= maxUsers) {
+        return;
+      }
+      List<Map.Entry<String, Entry>> byUse = new ArrayList<Map.Entry<String, Entry>>(
+          entries.entrySet());
+      Collections.sort(byUse, new Comparator<Map.Entry<String, Entry>>() {
+        public int compare(Map.Entry<String, Entry> a, Map.Entry<String, Entry> b) {
+          long x = a.getValue().lastUsed;
+          long y = b.getValue().lastUsed;
+          return x < y ? -1 : (x == y ? 0 : 1);
+        }
+      });
+      int target = maxUsers - maxUsers / 10;
+      synchronized (dependents) {
+        for (int i = 0; i < byUse.size() && entries.size() > target; i++) {
+          remove(byUse.get(i).getKey());
+        }
+      }
+    }
+  }
+
+  /**
+   * Take out the sections of a user, called with {@link #dependents} held.
+   */
+  private void remove(String user) {
+    Entry entry = entries.remove(user);
+    if (entry != null) {
+      synchronized (entry) {
+        // a section being worked out for the user now is not stored.
+        entry.versions.clear();
+      }
+      unlink(user, entry.groups);
+    }
+  }
+
+  private void unlink(String user, Set<String> groups) {
+    for (String group : groups) {
+      Set<String> users = dependents.get(group);
+      if (users != null) {
+        users.remove(user);
+        if (users.isEmpty()) {
+          dependents.remove(group);
+        }
+      }
+    }
+  }
+}
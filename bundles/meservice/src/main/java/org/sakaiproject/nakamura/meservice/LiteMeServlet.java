@@ -20,24 +20,30 @@ import static org.sakaiproject.nakamura.api.connections.ConnectionState.ACCEPTED
 import static org.sakaiproject.nakamura.api.connections.ConnectionState.INVITED;
 import static org.sakaiproject.nakamura.api.connections.ConnectionState.PENDING;
 
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
-import org.apache.jackrabbit.util.ISO9075;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONException;
-import org.apache.solr.client.solrj.util.ClientUtils;
-import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
+import org.apache.sling.commons.json.JSONString;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.sakaiproject.nakamura.api.connections.ConnectionManager;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
 import org.sakaiproject.nakamura.api.doc.ServiceMethod;
 import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -45,16 +51,13 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.message.LiteMessageCountService;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.message.MessagingException;
 import org.sakaiproject.nakamura.api.messagebucket.MessageBucketException;
 import org.sakaiproject.nakamura.api.messagebucket.MessageBucketService;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
-import org.sakaiproject.nakamura.api.search.solr.Query;
-import org.sakaiproject.nakamura.api.search.solr.Result;
-import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
-import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
-import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
@@ -65,16 +68,31 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.jcr.RepositoryException;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
@@ -119,7 +137,7 @@ import javax.servlet.http.HttpServletResponse;
       "}<pre>"),
     @ServiceResponse(code = 401, description = "Unauthorized: credentials provided were not acceptable to return information for."),
     @ServiceResponse(code = 500, description = "Unable to return information about current user.") }))
-@SlingServlet(paths = { "/system/me" }, generateComponent = true, generateService = true, methods = { "GET" })
+@SlingServlet(paths = { "/system/me" }, generateComponent = true, generateService = true, methods = { "GET" }, metatype = true)
 public class LiteMeServlet extends SlingSafeMethodsServlet {
 
   private static final long serialVersionUID = -3786472219389695181L;
@@ -127,9 +145,21 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
   private static final String LOCALE_FIELD = "locale";
   private static final String TIMEZONE_FIELD = "timezone";
 
+  private static final String[] SECTIONS = { LiteMeCache.PROFILE, LiteMeCache.MESSAGES,
+      LiteMeCache.CONTACTS, LiteMeCache.GROUPS };
+
+  @Property(intValue = 2000, label = "Section Timeout", description = "Milliseconds to wait for a section of the feed before it is written out empty")
+  static final String SECTION_TIMEOUT = "me.section.timeout";
+
+  @Property(intValue = 8, label = "Section Threads", description = "The number of threads working out sections of the feed")
+  static final String SECTION_THREADS = "me.section.threads";
+
   @Reference
   protected transient LiteMessagingService messagingService;
 
+  @Reference
+  protected transient LiteMessageCountService messageCountService;
+
   @Reference
   protected transient ConnectionManager connectionManager;
 
@@ -139,14 +169,71 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
   @Reference
   private MessageBucketService messageBucketService;
 
-  @Reference
-  SolrSearchServiceFactory searchServiceFactory;
   @Reference
   BasicUserInfoService basicUserInfoService;
 
+  @Reference
+  protected transient Repository sparseRepository;
+
+  @Reference
+  protected transient LiteMeCache meCache;
+
+  private long sectionTimeout = TimeUnit.MILLISECONDS.toNanos(2000);
+
+  private transient ThreadPoolExecutor sectionExecutor;
+
+  private final Map<String, MeSectionStatistics> statistics = new HashMap<String, MeSectionStatistics>();
+
+  private final Map<String, ObjectName> mbeanNames = new HashMap<String, ObjectName>();
+
+  public LiteMeServlet() {
+    for (String section : SECTIONS) {
+      statistics.put(section, new MeSectionStatistics());
+    }
+  }
+
+  @Activate
+  @Modified
+  protected void activate(Map<String, Object> properties) {
+    sectionTimeout = TimeUnit.MILLISECONDS.toNanos(OsgiUtil.toInteger(
+        properties.get(SECTION_TIMEOUT), 2000));
+    int threads = Math.max(1, OsgiUtil.toInteger(properties.get(SECTION_THREADS), 8));
+    if (sectionExecutor != null) {
+      sectionExecutor.shutdown();
+    }
+    final AtomicInteger threadNumber = new AtomicInteger();
+    // when every thread is busy the sections are worked out on the request thread.
+    sectionExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(threads * 4), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "LiteMeServlet-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+    sectionExecutor.allowCoreThreadTimeOut(true);
+    if (mbeanNames.isEmpty()) {
+      registerMBeans();
+    }
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    unregisterMBeans();
+    if (sectionExecutor != null) {
+      sectionExecutor.shutdown();
+      sectionExecutor = null;
+    }
+  }
+
   /**
    * {@inheritDoc}
    *
+   * The profile is worked out on the request thread, as it needs the JCR session of the
+   * request. The messages, contacts and groups are worked out alongside it, each with a
+   * session of its own for the current user. A section that is not ready in time is
+   * written out empty.
+   *
    * @see org.apache.sling.api.servlets.SlingSafeMethodsServlet#doGet(org.apache.sling.api.SlingHttpServletRequest,
    *      org.apache.sling.api.SlingHttpServletResponse)
    */
@@ -156,7 +243,7 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
     try {
       response.setContentType("application/json");
       response.setCharacterEncoding("UTF-8");
-      javax.jcr.Session jcrSession = request.getResourceResolver().adaptTo(javax.jcr.Session.class);
+      final javax.jcr.Session jcrSession = request.getResourceResolver().adaptTo(javax.jcr.Session.class);
       final Session session = StorageClientUtils.adaptToSession(request
           .getResourceResolver().adaptTo(javax.jcr.Session.class));
       if (session == null) {
@@ -171,11 +258,92 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
       if ( requestedUserId != null && requestedUserId.length() > 0) {
         userId = requestedUserId;
       }
-      Authorizable au = um.findAuthorizable(userId);
+      final Authorizable au = um.findAuthorizable(userId);
       if ( au == null ) {
         response.sendError(HttpServletResponse.SC_BAD_REQUEST,"User "+userId+" not found.");
         return;
       }
+      long deadline = System.nanoTime() + sectionTimeout;
+      final String viewer = session.getUserId();
+      // We don't do queries for anonymous users. (Possible ddos hole).
+      boolean anonymous = UserConstants.ANON_USERID.equals(au.getId());
+      // only the feed of the current user is cached, what anyone else sees depends on who
+      // they are.
+      boolean cacheable = !anonymous && au.getId().equals(viewer);
+
+      Map<String, Section> sections = new LinkedHashMap<String, Section>();
+      sections.put(LiteMeCache.PROFILE, new Section(LiteMeCache.PROFILE, au.getId(),
+          cacheable) {
+        @Override
+        String render() throws Exception {
+          StringWriter profile = new StringWriter();
+          new ExtendedJSONWriter(profile).valueMap(profileService.getProfileMap(au,
+              jcrSession));
+          return profile.toString();
+        }
+      });
+      if (anonymous) {
+        sections.put(LiteMeCache.MESSAGES, new Section(getEmpty(LiteMeCache.MESSAGES)));
+        sections.put(LiteMeCache.CONTACTS, new Section("{}"));
+        sections.put(LiteMeCache.GROUPS, new Section("[]"));
+      } else {
+        final String store = messagingService.getFullPathToStore(au.getId(), session);
+        // the unread count is kept in memory by the message counter, holding it here as
+        // well could only make it stale.
+        sections.put(LiteMeCache.MESSAGES, new Section(LiteMeCache.MESSAGES, au.getId(),
+            false) {
+          @Override
+          String render() throws Exception {
+            StringWriter messages = new StringWriter();
+            writeMessageCounts(new ExtendedJSONWriter(messages), viewer, au.getId(), store);
+            return messages.toString();
+          }
+        });
+        sections.put(LiteMeCache.CONTACTS, new Section(LiteMeCache.CONTACTS, au.getId(),
+            cacheable) {
+          @Override
+          String render() throws Exception {
+            StringWriter contacts = new StringWriter();
+            Session userSession = sparseRepository.loginAdministrative(viewer);
+            try {
+              writeContactCounts(new ExtendedJSONWriter(contacts), userSession, au.getId());
+            } finally {
+              logout(userSession);
+            }
+            return contacts.toString();
+          }
+        });
+        sections.put(LiteMeCache.GROUPS, new Section(LiteMeCache.GROUPS, au.getId(),
+            cacheable) {
+          private final Set<String> groups = new HashSet<String>();
+
+          @Override
+          String render() throws Exception {
+            StringWriter groupsJson = new StringWriter();
+            Session userSession = sparseRepository.loginAdministrative(viewer);
+            try {
+              Authorizable user = userSession.getAuthorizableManager().findAuthorizable(
+                  au.getId());
+              if (user == null) {
+                return "[]";
+              }
+              writeGroups(new ExtendedJSONWriter(groupsJson), userSession, user, groups);
+            } finally {
+              logout(userSession);
+            }
+            return groupsJson.toString();
+          }
+
+          @Override
+          void store(long version, String value) {
+            meCache.putGroups(au.getId(), version, value, groups);
+          }
+        });
+        sections.get(LiteMeCache.MESSAGES).start();
+        sections.get(LiteMeCache.CONTACTS).start();
+        sections.get(LiteMeCache.GROUPS).start();
+      }
+
       PrintWriter w = response.getWriter();
       ExtendedJSONWriter writer = new ExtendedJSONWriter(w);
       writer.object();
@@ -195,22 +363,15 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
 
       }
 
-      // Dump this user his info
-      writer.key("profile");
-      ValueMap profile = profileService.getProfileMap(au,jcrSession);
-      writer.valueMap(profile);
+      // The profile needs the JCR session of the request, so it is worked out here.
+      sections.get(LiteMeCache.PROFILE).run();
 
-      // Dump this user his number of unread messages.
-      writer.key("messages");
-      writeMessageCounts(writer, session, au, request);
-
-      // Dump this user his number of contacts.
-      writer.key("contacts");
-      writeContactCounts(writer, session, au, request);
-
-      // Dump the groups for this user.
-      writer.key("groups");
-      writeGroups(writer, session, au, jcrSession);
+      // Dump this user his profile, number of unread messages, number of contacts and
+      // groups.
+      for (Entry<String, Section> section : sections.entrySet()) {
+        writer.key(section.getKey());
+        writeRaw(writer, section.getValue().get(deadline));
+      }
 
       writer.endObject();
     } catch (JSONException e) {
@@ -233,26 +394,177 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
       LOG.error("Failed to get a user his message counts in /system/me", e);
       response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
           "Messaging error.");
-    } catch (SolrSearchException e) {
-      LOG.error("Failed to execute a Solr search in /system/me", e);
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-          "Solr search error.");
     }
 
   }
 
+  /**
+   * One section of the feed, taken from the cache or worked out by {@link #render()}.
+   */
+  private class Section implements Callable<String> {
+
+    private final String name;
+    private final String user;
+    private final boolean cacheable;
+    private long version;
+    private Future<String> future;
+    private String value;
+
+    /**
+     * A section with a fixed value.
+     */
+    Section(String value) {
+      this(null, null, false);
+      this.value = value;
+    }
+
+    Section(String name, String user, boolean cacheable) {
+      this.name = name;
+      this.user = user;
+      this.cacheable = cacheable;
+    }
+
+    /**
+     * @return the section as JSON.
+     */
+    String render() throws Exception {
+      return value;
+    }
+
+    /**
+     * Cache the section for the user.
+     */
+    void store(long version, String value) {
+      meCache.put(user, name, version, value);
+    }
+
+    /**
+     * Start working out the section on another thread, unless it is cached.
+     */
+    void start() {
+      if (isCached()) {
+        return;
+      }
+      future = sectionExecutor.submit(this);
+    }
+
+    /**
+     * Work out the section on this thread, unless it is cached.
+     */
+    void run() {
+      if (isCached()) {
+        return;
+      }
+      FutureTask<String> task = new FutureTask<String>(this);
+      task.run();
+      future = task;
+    }
+
+    public String call() throws Exception {
+      long start = System.nanoTime();
+      try {
+        String rendered = render();
+        statistics.get(name).sample(System.nanoTime() - start);
+        if (cacheable) {
+          store(version, rendered);
+        }
+        return rendered;
+      } catch (Exception e) {
+        statistics.get(name).failed();
+        throw e;
+      }
+    }
+
+    /**
+     * @param deadline
+     *          the {@link System#nanoTime()} by which the section should be ready.
+     * @return the section as JSON, empty if it was not ready in time.
+     */
+    String get(long deadline) throws JSONException, StorageClientException,
+        AccessDeniedException, RepositoryException, MessagingException {
+      if (future == null) {
+        return value;
+      }
+      try {
+        return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+      } catch (TimeoutException e) {
+        // left to finish, so the cache is warm for the next request.
+        statistics.get(name).timedOut();
+        LOG.warn("Section {} of /system/me for {} was not ready in time", name, user);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof JSONException) {
+          throw (JSONException) cause;
+        } else if (cause instanceof StorageClientException) {
+          throw (StorageClientException) cause;
+        } else if (cause instanceof AccessDeniedException) {
+          throw (AccessDeniedException) cause;
+        } else if (cause instanceof RepositoryException) {
+          throw (RepositoryException) cause;
+        } else if (cause instanceof MessagingException) {
+          throw (MessagingException) cause;
+        } else if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new IllegalStateException(cause);
+      }
+      return getEmpty(name);
+    }
+
+    private boolean isCached() {
+      if (cacheable) {
+        value = meCache.get(user, name);
+        if (value != null) {
+          statistics.get(name).cached();
+          return true;
+        }
+        version = meCache.getVersion(user, name);
+      }
+      return false;
+    }
+  }
+
+  /**
+   * @return what a section is written as when it is not ready in time, with the keys
+   *         clients expect.
+   */
+  private static String getEmpty(String section) {
+    if (LiteMeCache.GROUPS.equals(section)) {
+      return "[]";
+    } else if (LiteMeCache.MESSAGES.equals(section)) {
+      return "{\"unread\":0}";
+    }
+    return "{}";
+  }
+
+  /**
+   * Write JSON that has already been rendered as a value.
+   */
+  private void writeRaw(ExtendedJSONWriter writer, final String json) throws JSONException {
+    writer.value(new JSONString() {
+      public String toJSONString() {
+        return json;
+      }
+    });
+  }
+
   /**
    * @param writer
    * @param session
    * @param au
-   * @param jcrSession
+   * @param groupIds
+   *          collects the ids of the groups the list was worked out through.
    * @throws JSONException
    * @throws StorageClientException
    * @throws AccessDeniedException
-   * @throws RepositoryException
    */
-  protected void writeGroups(ExtendedJSONWriter writer, Session session, Authorizable au, javax.jcr.Session jcrSession)
-      throws JSONException, StorageClientException, AccessDeniedException {
+  protected void writeGroups(ExtendedJSONWriter writer, Session session, Authorizable au,
+      Set<String> groupIds) throws JSONException, StorageClientException,
+      AccessDeniedException {
     AuthorizableManager authorizableManager = session.getAuthorizableManager();
     writer.array();
     if (!UserConstants.ANON_USERID.equals(au.getId())) {
@@ -269,9 +581,12 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
           // we don't want the "everyone" group in this feed
           continue;
         }
+        groupIds.add(group.getId());
         if (group.hasProperty(UserConstants.PROP_MANAGED_GROUP)) {
           // fetch the group that the manager group manages
-          group = authorizableManager.findAuthorizable((String) group.getProperty(UserConstants.PROP_MANAGED_GROUP));
+          String managedGroup = (String) group.getProperty(UserConstants.PROP_MANAGED_GROUP);
+          groupIds.add(managedGroup);
+          group = authorizableManager.findAuthorizable(managedGroup);
           if (group == null || !(group instanceof Group)) {
             continue;
           }
@@ -291,49 +606,22 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
    *
    * @param writer
    * @param session
-   * @param au
+   *          A session that may read the contact store of the user.
+   * @param userID
    * @throws JSONException
-   * @throws SolrSearchException
-   * @throws RepositoryException
    */
   protected void writeContactCounts(ExtendedJSONWriter writer, Session session,
-      Authorizable au, SlingHttpServletRequest request) throws JSONException, SolrSearchException {
+      String userID) throws JSONException {
     writer.object();
 
-    // We don't do queries for anonymous users. (Possible ddos hole).
-    String userID = au.getId();
-    if (UserConstants.ANON_USERID.equals(userID)) {
-      writer.endObject();
-      return;
-    }
-
-    // Get the path to the store for this user.
     Map<String, Integer> contacts = new HashMap<String, Integer>();
     contacts.put(ACCEPTED.toString().toLowerCase(), 0);
     contacts.put(INVITED.toString().toLowerCase(), 0);
     contacts.put(PENDING.toString().toLowerCase(), 0);
     try {
-      // This could just use ConnectionUtils.getConnectionPathBase, but that util class is
-      // in the private package unfortunately.
-      String store = LitePersonalUtils.getHomePath(userID) + "/"
-          + ConnectionConstants.CONTACT_STORE_NAME;
-      store = ISO9075.encodePath(store);
-      String queryString = "path:" + ClientUtils.escapeQueryChars(store) + " AND resourceType:sakai/contact AND state:(ACCEPTED OR INVITED OR PENDING)";
-      Query query = new Query(queryString);
-      LOG.debug("Submitting Query {} ", query);
-      SolrSearchResultSet resultSet = searchServiceFactory.getSearchResultSet(
-          request, query, false);
-      Iterator<Result> resultIterator = resultSet.getResultSetIterator();
-      while (resultIterator.hasNext()) {
-        Result contact = resultIterator.next();
-        if (contact.getProperties().containsKey("state")) {
-          String state = (String) contact.getProperties().get("state").iterator().next();
-          int count = 0;
-          if (contacts.containsKey(state)) {
-            count = contacts.get(state);
-          }
-          contacts.put(state, count + 1);
-        }
+      for (ConnectionState state : new ConnectionState[] { ACCEPTED, INVITED, PENDING }) {
+        contacts.put(state.toString().toLowerCase(), connectionManager.getConnectedUsers(
+            session, userID, state).size());
       }
     } finally {
       for (Entry<String, Integer> entry : contacts.entrySet()) {
@@ -349,46 +637,67 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
    *
    * @param writer
    *          The writer
-   * @param session
-   *          A JCR session to perform queries with. This session needs read access on the
-   *          authorizable's message box.
-   * @param au
-   *          An authorizable to look up the messages for.
+   * @param viewer
+   *          The user the messages are counted for, only the user himself and the
+   *          administrator see a count for anyone else's message store.
+   * @param userID
+   *          The user to count the messages of.
+   * @param store
+   *          The message store of the user.
    * @throws JSONException
-   * @throws RepositoryException
    * @throws MessagingException
-   * @throws SolrSearchException
    */
-  protected void writeMessageCounts(ExtendedJSONWriter writer, Session session,
-      Authorizable au, SlingHttpServletRequest request) throws JSONException, MessagingException, SolrSearchException {
+  protected void writeMessageCounts(ExtendedJSONWriter writer, String viewer,
+      String userID, String store) throws JSONException, MessagingException {
     writer.object();
     writer.key("unread");
 
-    // We don't do queries for anonymous users. (Possible ddos hole).
-    String userID = au.getId();
-    if (UserConstants.ANON_USERID.equals(userID)) {
-      writer.value(0);
-      writer.endObject();
-      return;
-    }
-
     long count = 0;
     try {
-      String store = messagingService.getFullPathToStore(au.getId(), session);
-      store = ISO9075.encodePath(store);
-      store = store.substring(0, store.length() - 1);
-      String queryString = "path:" + ClientUtils.escapeQueryChars(store) + " AND resourceType:sakai/message AND type:internal AND messagebox:inbox AND read:false";
-      Query query = new Query(queryString);
-      LOG.debug("Submitting Query {} ", query);
-      SolrSearchResultSet resultSet = searchServiceFactory.getSearchResultSet(
-          request, query, false);
-      count = resultSet.getSize();
+      if (userID.equals(viewer) || UserConstants.ADMIN_USERID.equals(viewer)) {
+        Map<String, String> filters = new HashMap<String, String>();
+        filters.put(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
+        filters.put(MessageConstants.PROP_SAKAI_READ, "false");
+        count = messageCountService.getCount(store, filters);
+      }
     } finally {
       writer.value(count);
     }
     writer.endObject();
   }
 
+  private void logout(Session session) {
+    try {
+      session.logout();
+    } catch (ClientPoolException e) {
+      LOG.warn(e.getMessage(), e);
+    }
+  }
+
+  private void registerMBeans() {
+    for (Entry<String, MeSectionStatistics> e : statistics.entrySet()) {
+      try {
+        ObjectName name = new ObjectName("org.sakaiproject.nakamura:type=MeServlet,section="
+            + e.getKey());
+        ManagementFactory.getPlatformMBeanServer().registerMBean(e.getValue(), name);
+        mbeanNames.put(e.getKey(), name);
+      } catch (JMException ex) {
+        LOG.warn("Unable to register /system/me statistics: {} ", ex.getMessage());
+      }
+    }
+  }
+
+  private void unregisterMBeans() {
+    for (ObjectName name : mbeanNames.values()) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+      } catch (JMException e) {
+        LOG.debug(e.getMessage(), e);
+      }
+    }
+    mbeanNames.clear();
+  }
+
   /**
    *
    * @param write
@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The times taken to work out one section of /system/me. Percentiles are taken over the
+ * last {@link #WINDOW} samples.
+ */
+public class MeSectionStatistics implements MeSectionStatisticsMBean {
+
+  static final int WINDOW = 1024;
+
+  private final long[] samples = new long[WINDOW];
+  private int next;
+  private int size;
+
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong cached = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+
+  /**
+   * @param time
+   *          the time taken in ns.
+   */
+  public void sample(long time) {
+    count.incrementAndGet();
+    long ms = TimeUnit.NANOSECONDS.toMillis(time);
+    synchronized (samples) {
+      samples[next] = ms;
+      next = (next + 1) % WINDOW;
+      size = Math.min(WINDOW, size + 1);
+    }
+  }
+
+  public void cached() {
+    cached.incrementAndGet();
+  }
+
+  public void timedOut() {
+    timeouts.incrementAndGet();
+  }
+
+  public void failed() {
+    failed.incrementAndGet();
+  }
+
+  // ---------- MeSectionStatisticsMBean ----------
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getCachedCount() {
+    return cached.get();
+  }
+
+  public long getTimeoutCount() {
+    return timeouts.get();
+  }
+
+  public long getFailedCount() {
+    return failed.get();
+  }
+
+  public double getAverageTime() {
+    long[] copy = copySamples();
+    if (copy.length == 0) {
+      return 0;
+    }
+    long total = 0;
+    for (long sample : copy) {
+      total += sample;
+    }
+    return (double) total / copy.length;
+  }
+
+  public long getP99Time() {
+    long[] copy = copySamples();
+    if (copy.length == 0) {
+      return 0;
+    }
+    Arrays.sort(copy);
+    return copy[(int) Math.ceil(copy.length * 0.99) - 1];
+  }
+
+  public void resetStatistics() {
+    count.set(0);
+    cached.set(0);
+    timeouts.set(0);
+    failed.set(0);
+    synchronized (samples) {
+      next = 0;
+      size = 0;
+    }
+  }
+
+  private long[] copySamples() {
+    synchronized (samples) {
+      return Arrays.copyOf(samples, size);
+    }
+  }
+}
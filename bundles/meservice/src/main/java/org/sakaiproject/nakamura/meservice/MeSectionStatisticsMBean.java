@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+/**
+ * Statistics for one section of /system/me.
+ */
+public interface MeSectionStatisticsMBean {
+
+  /**
+   * @return the number of times the section was worked out.
+   */
+  long getCount();
+
+  /**
+   * @return the number of times the section was served from the cache.
+   */
+  long getCachedCount();
+
+  /**
+   * @return the number of times the section was not ready in time.
+   */
+  long getTimeoutCount();
+
+  long getFailedCount();
+
+  /**
+   * @return the average time in ms over the recent samples.
+   */
+  double getAverageTime();
+
+  /**
+   * @return the 99th percentile time in ms over the recent samples.
+   */
+  long getP99Time();
+
+  void resetStatistics();
+}
@@ -0,0 +1,188 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.util.LitePersonalUtils;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Set;
+
+public class LiteMeCacheTest {
+
+  private LiteMeCache cache;
+
+  @Before
+  public void setUp() {
+    cache = new LiteMeCache();
+    cache.activate(new HashMap<String, Object>());
+  }
+
+  @Test
+  public void testPutAndGet() {
+    assertNull(cache.get("ieb", LiteMeCache.CONTACTS));
+    long version = cache.getVersion("ieb", LiteMeCache.CONTACTS);
+    cache.put("ieb", LiteMeCache.CONTACTS, version, "{\"accepted\":1}");
+    assertEquals("{\"accepted\":1}", cache.get("ieb", LiteMeCache.CONTACTS));
+    assertNull(cache.get("ieb", LiteMeCache.PROFILE));
+    assertNull(cache.get("zach", LiteMeCache.CONTACTS));
+  }
+
+  @Test
+  public void testDroppedWhileWorkedOut() {
+    long version = cache.getVersion("ieb", LiteMeCache.CONTACTS);
+    cache.invalidate("ieb", LiteMeCache.CONTACTS);
+    cache.put("ieb", LiteMeCache.CONTACTS, version, "{\"accepted\":1}");
+    assertNull(cache.get("ieb", LiteMeCache.CONTACTS));
+
+    version = cache.getVersion("ieb", LiteMeCache.CONTACTS);
+    cache.put("ieb", LiteMeCache.CONTACTS, version, "{\"accepted\":2}");
+    assertEquals("{\"accepted\":2}", cache.get("ieb", LiteMeCache.CONTACTS));
+  }
+
+  @Test
+  public void testContentEvents() {
+    put("ieb", LiteMeCache.CONTACTS, "{}");
+    put("ieb", LiteMeCache.PROFILE, "{}");
+    put("zach", LiteMeCache.CONTACTS, "{}");
+
+    String home = LitePersonalUtils.getHomePath("ieb");
+    cache.handleEvent(event("content/UPDATED", home + "/contacts/zach"));
+    assertNull(cache.get("ieb", LiteMeCache.CONTACTS));
+    assertEquals("{}", cache.get("ieb", LiteMeCache.PROFILE));
+    assertEquals("{}", cache.get("zach", LiteMeCache.CONTACTS));
+
+    // other folders of the home are not part of the feed
+    cache.handleEvent(event("content/UPDATED", home + "/private/stuff"));
+    assertEquals("{}", cache.get("ieb", LiteMeCache.PROFILE));
+
+    cache.handleEvent(event("content/UPDATED", home + "/public"));
+    assertNull(cache.get("ieb", LiteMeCache.PROFILE));
+  }
+
+  @Test
+  public void testGroupEvents() {
+    Set<String> groups = new HashSet<String>();
+    groups.add("g-course101");
+    groups.add("g-course102");
+    long version = cache.getVersion("ieb", LiteMeCache.GROUPS);
+    cache.putGroups("ieb", version, "[1,2]", groups);
+    put("ieb", LiteMeCache.CONTACTS, "{}");
+
+    cache.handleEvent(event("authorizables/UPDATED", "g-other"));
+    assertEquals("[1,2]", cache.get("ieb", LiteMeCache.GROUPS));
+
+    // a group the section was worked out through drops just the groups section
+    cache.handleEvent(event("authorizables/UPDATED", "g-course102"));
+    assertNull(cache.get("ieb", LiteMeCache.GROUPS));
+    assertEquals("{}", cache.get("ieb", LiteMeCache.CONTACTS));
+
+    // an event on the user drops all of it
+    cache.handleEvent(event("authorizables/UPDATED", "ieb"));
+    assertNull(cache.get("ieb", LiteMeCache.CONTACTS));
+  }
+
+  @Test
+  public void testGroupsReplaced() {
+    Set<String> groups = new HashSet<String>();
+    groups.add("g-course101");
+    long version = cache.getVersion("ieb", LiteMeCache.GROUPS);
+    cache.putGroups("ieb", version, "[1]", groups);
+    cache.invalidate("ieb", LiteMeCache.GROUPS);
+
+    version = cache.getVersion("ieb", LiteMeCache.GROUPS);
+    cache.putGroups("ieb", version, "[]", new HashSet<String>());
+    // no longer worked out through the group
+    cache.handleEvent(event("authorizables/UPDATED", "g-course101"));
+    assertEquals("[]", cache.get("ieb", LiteMeCache.GROUPS));
+  }
+
+  @Test
+  public void testExpiry() throws Exception {
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(LiteMeCache.MAX_AGE, 0);
+    cache.activate(props);
+    put("ieb", LiteMeCache.CONTACTS, "{}");
+    Thread.sleep(10);
+    assertNull(cache.get("ieb", LiteMeCache.CONTACTS));
+  }
+
+  @Test
+  public void testBoundedUsers() {
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(LiteMeCache.MAX_USERS, 100);
+    cache.activate(props);
+    for (int i = 0; i < 500; i++) {
+      put("user" + i, LiteMeCache.CONTACTS, "{}");
+      assertTrue(cache.size() <= 100);
+    }
+    assertEquals("{}", cache.get("user499", LiteMeCache.CONTACTS));
+  }
+
+  @Test
+  public void testConcurrentUse() throws Exception {
+    Thread[] threads = new Thread[4];
+    final Throwable[] failure = new Throwable[1];
+    for (int t = 0; t < threads.length; t++) {
+      final int n = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 1000; i++) {
+              String user = "user" + (i % 50);
+              put(user, LiteMeCache.CONTACTS, "{}");
+              cache.get(user, LiteMeCache.CONTACTS);
+              if (i % 7 == n) {
+                cache.handleEvent(event("authorizables/UPDATED", user));
+              }
+            }
+          } catch (Throwable e) {
+            failure[0] = e;
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertNull(failure[0]);
+    assertTrue(cache.size() <= 50);
+  }
+
+  private void put(String user, String section, String value) {
+    cache.put(user, section, cache.getVersion(user, section), value);
+  }
+
+  private Event event(String topic, String path) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(StoreListener.PATH_PROPERTY, path);
+    return new Event("org/sakaiproject/nakamura/lite/" + topic, properties);
+  }
+}
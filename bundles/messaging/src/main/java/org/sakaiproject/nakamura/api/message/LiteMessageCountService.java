@@ -0,0 +1,58 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.message;
+
+import java.util.Map;
+
+/**
+ * Counts the internal messages in a message store. Counts by box, category and read
+ * state are maintained as messages change; counts that involve any other property are
+ * worked out by the search index.
+ *
+ * Property names may be given with or without the "sakai:" prefix, so "sakai:messagebox"
+ * and "messagebox" are the same.
+ */
+public interface LiteMessageCountService {
+
+  /**
+   * @param messageStore
+   *          the full path to the message store, as returned by
+   *          {@link LiteMessagingService#getFullPathToStore(String, org.sakaiproject.nakamura.api.lite.Session)}
+   * @param filters
+   *          property values all the counted messages must have, may be empty.
+   * @return the number of internal messages in the store that match the filters.
+   * @throws MessagingException
+   *           if the messages could not be counted.
+   */
+  long getCount(String messageStore, Map<String, String> filters) throws MessagingException;
+
+  /**
+   * @param messageStore
+   *          the full path to the message store.
+   * @param filters
+   *          property values all the counted messages must have, may be empty.
+   * @param groupedBy
+   *          the property to group the messages by.
+   * @return the number of internal messages in the store that match the filters for each
+   *         value of groupedBy. Messages without a value for groupedBy are not counted.
+   * @throws MessagingException
+   *           if the messages could not be counted.
+   */
+  Map<String, Long> getCounts(String messageStore, Map<String, String> filters,
+      String groupedBy) throws MessagingException;
+}
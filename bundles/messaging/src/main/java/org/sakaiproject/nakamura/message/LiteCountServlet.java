@@ -17,10 +17,6 @@
  */
 package org.sakaiproject.nakamura.message;
 
-import com.google.common.collect.ImmutableMap;
-
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_ITEMS_PER_PAGE;
-
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
@@ -30,8 +26,6 @@ import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
-import org.apache.solr.client.solrj.util.ClientUtils;
-import org.apache.solr.common.params.CommonParams;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
@@ -41,17 +35,13 @@ import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.doc.ServiceSelector;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.message.LiteMessageCountService;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
-import org.sakaiproject.nakamura.api.search.solr.Query;
-import org.sakaiproject.nakamura.api.search.solr.Result;
-import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
-import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -68,6 +58,10 @@ import javax.servlet.http.HttpServletResponse;
  *  - filters: only nodes with the properties in filters and the values in values
  *    get traversed
  *  - groupedby: group the results by the values of this parameter.
+ *
+ * Counts over sakai:messagebox, sakai:category and sakai:read are kept up to date as
+ * messages change and are served without a query, any other property is counted by the
+ * search index.
  */
 @SlingServlet(methods = {"GET"}, resourceTypes = {"sakai/messagestore"}, selectors = {"count"}, generateComponent = true, generateService = true)
 @Properties(value = {
@@ -102,13 +96,11 @@ public class LiteCountServlet extends SlingSafeMethodsServlet {
   private static final long serialVersionUID = -5714446506015596037L;
   private static final Logger LOGGER = LoggerFactory.getLogger(LiteCountServlet.class);
 
-  private static long MAX_RESULTS_COUNTED = 500;
-
   @Reference
   protected transient LiteMessagingService messagingService;
-  
+
   @Reference
-  SolrSearchServiceFactory searchServiceFactory;
+  protected transient LiteMessageCountService messageCountService;
 
   @Override
   protected void doGet(SlingHttpServletRequest request,
@@ -118,55 +110,29 @@ public class LiteCountServlet extends SlingSafeMethodsServlet {
     Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
 
     try {
-      // Do the query
-      // We do the query on the user his messageStore's path.
-      String messageStorePath = ClientUtils.escapeQueryChars(messagingService.getFullPathToStore(request.getRemoteUser(), session));
-      //path:a\:zach/contacts AND resourceType:sakai/contact AND state:("ACCEPTED" -NONE) (name:"*" OR firstName:"*" OR lastName:"*" OR email:"*")) AND readers:(zach OR everyone)&start=0&rows=25&sort=score desc
-      StringBuilder queryString = new StringBuilder("(path:"
-          + messageStorePath + "* AND resourceType:sakai/message"
-          + " AND type:internal");
+      // We count the messages in the user his messageStore.
+      String messageStorePath = messagingService.getFullPathToStore(request.getRemoteUser(), session);
 
       // Get the filters
+      Map<String, String> filters = new LinkedHashMap<String, String>();
       if (request.getRequestParameter("filters") != null
           && request.getRequestParameter("values") != null) {
         // The user wants to filter some things.
-        String[] filters = request.getRequestParameter("filters").getString()
+        String[] filterNames = request.getRequestParameter("filters").getString()
             .split(",");
         String[] values = request.getRequestParameter("values").getString()
             .split(",");
-        if (filters.length != values.length) {
+        if (filterNames.length != values.length) {
           response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
               "The amount of values doesn't match the amount of keys.");
+          return;
         }
 
-        for (int i = 0; i < filters.length; i++) {
-          String filterName = filters[i].replaceFirst("sakai:", "");
-          queryString.append(" AND " + filterName + ":\"" + values[i] + "\"");
+        for (int i = 0; i < filterNames.length; i++) {
+          filters.put(filterNames[i], values[i]);
         }
       }
 
-      queryString.append(")");
-
-      // The "groupedby" clause forces us to inspect every message. If not
-      // specified, all we need is the count.
-      final long itemCount;
-      if (request.getRequestParameter("groupedby") == null) {
-        itemCount = 0;
-      } else {
-        itemCount = MAX_RESULTS_COUNTED;
-      }
-      Map<String, String> queryOptions = ImmutableMap.of(
-          PARAMS_ITEMS_PER_PAGE, Long.toString(itemCount),
-          CommonParams.START, "0",
-          CommonParams.SORT, "_created desc"
-      );
-
-      Query query = new Query(queryString.toString(), queryOptions);
-      LOGGER.info("Submitting Query {} ", query);
-      SolrSearchResultSet resultSet = searchServiceFactory.getSearchResultSet(
-          request, query, false);
-      Iterator<Result> resultIterator = resultSet.getResultSetIterator();
-
       response.setContentType("application/json");
       response.setCharacterEncoding("UTF-8");
 
@@ -175,41 +141,18 @@ public class LiteCountServlet extends SlingSafeMethodsServlet {
       if (request.getRequestParameter("groupedby") == null) {
         write.object();
         write.key("count");
-        write.value(resultSet.getSize());
+        write.value(messageCountService.getCount(messageStorePath, filters));
         write.endObject();
       } else {
-        // The user want to group the count by a specified set.
-        // We will have to traverse each node, get that property and count each
-        // value for it.
+        // The user want to group the count by a specified property.
         String groupedby = request.getRequestParameter("groupedby").getString();
-        if (groupedby.startsWith("sakai:")) {
-          groupedby = groupedby.substring(6);
-        }
-
-        long count = 0;
-        Map<String, Integer> mapCount = new HashMap<String, Integer>();
-        while (resultIterator.hasNext()) {
-          Result n = resultIterator.next();
-
-          if (count >= MAX_RESULTS_COUNTED) {
-            break;
-          }
-          count++;
-
-          if (n.getProperties().containsKey(groupedby)) {
-            String key = (String) n.getFirstValue(groupedby);
-            int val = 1;
-            if (mapCount.containsKey(key)) {
-              val = mapCount.get(key) + 1;
-            }
-            mapCount.put(key, val);
-          }
-        }
+        Map<String, Long> mapCount = messageCountService.getCounts(messageStorePath,
+            filters, groupedby);
 
         write.object();
         write.key("count");
         write.array();
-        for (Entry<String, Integer> e : mapCount.entrySet()) {
+        for (Entry<String, Long> e : mapCount.entrySet()) {
           write.object();
 
           write.key("group");
@@ -0,0 +1,488 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.message;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.message.LiteMessageCountService;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.message.MessagingException;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+import org.sakaiproject.nakamura.util.LitePersonalUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps running counts of the internal messages in each message store, by box, category
+ * and read state, so counting the messages of a user does not need to walk them.
+ *
+ * The counts of a store are taken from the index with two facet queries the first time
+ * they are asked for, and are then kept current from the content events of the messages
+ * in that store. The last state each recently changed message was counted in is
+ * remembered, so events that are handled after the message has changed again still
+ * move the message out of the right count. Counts are taken from the index again after a
+ * while, which bounds any drift caused by the index lagging behind the content.
+ */
+@Component(immediate = true, metatype = true, label = "LiteMessageCounter", description = "Keeps running counts of the messages in each message store")
+@Service(value = { LiteMessageCountService.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "event.topics", value = {
+        "org/sakaiproject/nakamura/lite/content/ADDED",
+        "org/sakaiproject/nakamura/lite/content/UPDATED",
+        "org/sakaiproject/nakamura/lite/content/DELETE" }) })
+public class LiteMessageCounter implements LiteMessageCountService, EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(LiteMessageCounter.class);
+
+  private static final String STORE_SEGMENT = "/" + MessageConstants.FOLDER_MESSAGES + "/";
+
+  private static final String[] READ_STATES = { "true", "false", null };
+
+  private static final int MAX_RECENT = 10000;
+
+  /**
+   * What a property may look like to be grouped by.
+   */
+  private static final Pattern FIELD_NAME = Pattern.compile("[A-Za-z0-9_\\-]+");
+
+  @Property(intValue = 300, label = "Maximum Age", description = "Seconds after which the counts of a message store are taken from the index again")
+  static final String MAX_AGE = "message.counts.maxAge";
+
+  @Property(intValue = 10000, label = "Maximum Stores", description = "The number of message stores to keep counts for")
+  static final String MAX_STORES = "message.counts.maxStores";
+
+  @Reference
+  protected transient SolrServerService solrServerService;
+
+  @Reference
+  protected transient Repository sparseRepository;
+
+  private final ConcurrentMap<String, MessageCounts> stores = new ConcurrentHashMap<String, MessageCounts>();
+
+  /**
+   * The key each recently changed message was last counted under, a null value means it
+   * was not counted.
+   */
+  private final Map<String, String> recent = new LinkedHashMap<String, String>(16, 0.75f,
+      true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+      return size() > MAX_RECENT;
+    }
+  };
+
+  private long maxAge = 300000L;
+
+  private int maxStores = 10000;
+
+  @Activate
+  @Modified
+  protected void activate(Map<String, Object> props) {
+    maxAge = OsgiUtil.toInteger(props.get(MAX_AGE), 300) * 1000L;
+    maxStores = OsgiUtil.toInteger(props.get(MAX_STORES), 10000);
+    stores.clear();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty(StoreListener.PATH_PROPERTY);
+    String store = getStore(path);
+    if (store == null) {
+      return;
+    }
+    MessageCounts counts = stores.get(store);
+    if (counts == null) {
+      // nobody is looking at this store, it will be counted from the index when they do
+      synchronized (recent) {
+        recent.remove(path);
+      }
+      return;
+    }
+    String topic = event.getTopic();
+    @SuppressWarnings("unchecked")
+    Map<String, Object> before = (Map<String, Object>) event
+        .getProperty(StoreListener.BEFORE_EVENT_PROPERTY);
+    String current = null;
+    if (!topic.endsWith(StoreListener.DELETE_TOPIC)) {
+      try {
+        current = getKey(getContent(path), store);
+      } catch (StorageClientException e) {
+        LOGGER.warn("Failed to count message {}: {}", path, e.getMessage());
+        stores.remove(store);
+        return;
+      } catch (AccessDeniedException e) {
+        LOGGER.warn("Failed to count message {}: {}", path, e.getMessage());
+        stores.remove(store);
+        return;
+      }
+    }
+    synchronized (recent) {
+      String previous;
+      if (recent.containsKey(path)) {
+        previous = recent.get(path);
+      } else if (topic.endsWith(StoreListener.ADDED_TOPIC)) {
+        previous = null;
+      } else if (before != null) {
+        previous = getKey(before, store);
+      } else {
+        // no way of telling what this message was counted as
+        stores.remove(store);
+        recent.remove(path);
+        return;
+      }
+      recent.put(path, current);
+      if (previous != null) {
+        counts.add(previous, -1);
+      }
+      if (current != null) {
+        counts.add(current, 1);
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.message.LiteMessageCountService#getCount(java.lang.String,
+   *      java.util.Map)
+   */
+  public long getCount(String messageStore, Map<String, String> filters)
+      throws MessagingException {
+    String[] filter = toFilter(filters);
+    if (filter == null) {
+      return query(messageStore, filters, null).getResults().getNumFound();
+    }
+    return getCounts(messageStore).count(filter);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.message.LiteMessageCountService#getCounts(java.lang.String,
+   *      java.util.Map, java.lang.String)
+   */
+  public Map<String, Long> getCounts(String messageStore, Map<String, String> filters,
+      String groupedBy) throws MessagingException {
+    String[] filter = toFilter(filters);
+    int dimension = MessageCounts.dimension(groupedBy);
+    if (filter != null && dimension >= 0) {
+      return getCounts(messageStore).countBy(filter, dimension);
+    }
+    String field = stripPrefix(groupedBy);
+    if (!FIELD_NAME.matcher(field).matches()) {
+      throw new MessagingException(400, "Unable to group messages by " + groupedBy);
+    }
+    Map<String, Long> result = new HashMap<String, Long>();
+    FacetField facet = query(messageStore, filters, field).getFacetField(field);
+    if (facet != null && facet.getValues() != null) {
+      for (FacetField.Count count : facet.getValues()) {
+        result.put(count.getName(), count.getCount());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the counts of a store, from the index if they are not known or too old.
+   */
+  private MessageCounts getCounts(String store) throws MessagingException {
+    long now = System.currentTimeMillis();
+    MessageCounts counts = stores.get(store);
+    if (counts == null || now - counts.getCreated() > maxAge) {
+      counts = seed(store, now);
+      if (stores.size() >= maxStores) {
+        evict(now);
+      }
+      stores.put(store, counts);
+    }
+    return counts;
+  }
+
+  /**
+   * Count the messages of a store in the index. The first query finds the boxes and
+   * categories in use, the second counts every combination of those with the read
+   * states as a facet query.
+   */
+  private MessageCounts seed(String store, long now) throws MessagingException {
+    MessageCounts counts = new MessageCounts(now);
+    String readers = getReadersFilter(store);
+    try {
+      SolrQuery query = new SolrQuery(getBaseQuery(store));
+      query.addFilterQuery(readers);
+      query.setRows(0);
+      query.setFacet(true);
+      query.setFacetLimit(-1);
+      query.setFacetMinCount(1);
+      query.addFacetField(MessageCounts.DIMENSIONS[0], MessageCounts.DIMENSIONS[1]);
+      QueryResponse response = solrServerService.getServer().query(query);
+      if (response.getResults().getNumFound() == 0) {
+        return counts;
+      }
+      List<String> boxes = getFacetValues(response, MessageCounts.DIMENSIONS[0]);
+      List<String> categories = getFacetValues(response, MessageCounts.DIMENSIONS[1]);
+
+      query = new SolrQuery(getBaseQuery(store));
+      query.addFilterQuery(readers);
+      query.setRows(0);
+      query.setFacet(true);
+      Map<String, String> keys = new HashMap<String, String>();
+      for (String box : boxes) {
+        for (String category : categories) {
+          for (String read : READ_STATES) {
+            String facetQuery = term(MessageCounts.DIMENSIONS[0], box) + " AND "
+                + term(MessageCounts.DIMENSIONS[1], category) + " AND "
+                + term(MessageCounts.DIMENSIONS[2], read);
+            keys.put(facetQuery, MessageCounts.key(box, category, read));
+            query.addFacetQuery(facetQuery);
+          }
+        }
+      }
+      response = solrServerService.getServer().query(query);
+      for (Entry<String, Integer> e : response.getFacetQuery().entrySet()) {
+        if (e.getValue() > 0 && keys.containsKey(e.getKey())) {
+          counts.add(keys.get(e.getKey()), e.getValue());
+        }
+      }
+      return counts;
+    } catch (SolrServerException e) {
+      LOGGER.warn("Failed to count messages in {}: {}", store, e.getMessage());
+      throw new MessagingException(500, "Unable to count messages");
+    }
+  }
+
+  /**
+   * Ask the index, for the counts that are not kept. The filters come from the request,
+   * so every key and value is escaped, and the store and the readers of the store owner
+   * are filter queries the filters can not widen.
+   */
+  private QueryResponse query(String store, Map<String, String> filters, String facetField)
+      throws MessagingException {
+    StringBuilder queryString = new StringBuilder("*:*");
+    for (Entry<String, String> e : filters.entrySet()) {
+      queryString.append(" AND (")
+          .append(ClientUtils.escapeQueryChars(stripPrefix(e.getKey()))).append(":\"")
+          .append(ClientUtils.escapeQueryChars(e.getValue())).append("\")");
+    }
+    SolrQuery query = new SolrQuery(queryString.toString());
+    query.addFilterQuery("(" + getBaseQuery(store) + ")", getReadersFilter(store));
+    query.setRows(0);
+    if (facetField != null) {
+      query.setFacet(true);
+      query.setFacetLimit(-1);
+      query.setFacetMinCount(1);
+      query.addFacetField(facetField);
+    }
+    try {
+      return solrServerService.getServer().query(query);
+    } catch (SolrServerException e) {
+      LOGGER.warn("Failed to count messages in {}: {}", store, e.getMessage());
+      throw new MessagingException(500, "Unable to count messages");
+    }
+  }
+
+  /**
+   * @return the readers filter of the authorizable that owns a store, as the search
+   *         service would apply for them.
+   */
+  private String getReadersFilter(String store) throws MessagingException {
+    if (!store.startsWith(LitePersonalUtils.PATH_AUTHORIZABLE)
+        || !store.endsWith(STORE_SEGMENT)) {
+      throw new MessagingException(400, "Not a message store " + store);
+    }
+    String owner = store.substring(LitePersonalUtils.PATH_AUTHORIZABLE.length(),
+        store.length() - STORE_SEGMENT.length());
+    Set<String> readers = new TreeSet<String>();
+    readers.add(ClientUtils.escapeQueryChars(owner));
+    try {
+      Session session = sparseRepository.loginAdministrative();
+      try {
+        AuthorizableManager authorizableManager = session.getAuthorizableManager();
+        Authorizable authorizable = authorizableManager.findAuthorizable(owner);
+        if (authorizable != null) {
+          for (Iterator<Group> i = authorizable.memberOf(authorizableManager); i.hasNext();) {
+            readers.add(ClientUtils.escapeQueryChars(i.next().getId()));
+          }
+        }
+      } finally {
+        session.logout();
+      }
+    } catch (StorageClientException e) {
+      LOGGER.warn("Failed to find the readers of {}: {}", store, e.getMessage());
+      throw new MessagingException(500, "Unable to count messages");
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Failed to find the readers of {}: {}", store, e.getMessage());
+      throw new MessagingException(500, "Unable to count messages");
+    }
+    StringBuilder filter = new StringBuilder("readers:(");
+    for (Iterator<String> i = readers.iterator(); i.hasNext();) {
+      filter.append(i.next()).append(i.hasNext() ? " OR " : ")");
+    }
+    return filter.toString();
+  }
+
+  private String getBaseQuery(String store) {
+    return "path:" + ClientUtils.escapeQueryChars(store)
+        + "* AND resourceType:sakai/message AND type:internal";
+  }
+
+  private List<String> getFacetValues(QueryResponse response, String field) {
+    List<String> values = new ArrayList<String>();
+    FacetField facet = response.getFacetField(field);
+    if (facet != null && facet.getValues() != null) {
+      for (FacetField.Count count : facet.getValues()) {
+        values.add(count.getName());
+      }
+    }
+    // messages without a value
+    values.add(null);
+    return values;
+  }
+
+  private String term(String field, String value) {
+    if (value == null) {
+      return "-" + field + ":[* TO *]";
+    }
+    return field + ":" + ClientUtils.escapeQueryChars(value);
+  }
+
+  /**
+   * @return a value for each of the kept dimensions, or null if the filters use any
+   *         other property.
+   */
+  private String[] toFilter(Map<String, String> filters) {
+    String[] filter = new String[MessageCounts.DIMENSIONS.length];
+    for (Entry<String, String> e : filters.entrySet()) {
+      int dimension = MessageCounts.dimension(e.getKey());
+      if (dimension < 0) {
+        return null;
+      }
+      filter[dimension] = e.getValue();
+    }
+    return filter;
+  }
+
+  /**
+   * @return the key a message is counted under in a store, null if it is not counted
+   *         there.
+   */
+  private String getKey(Map<String, Object> properties, String store) {
+    if (properties == null
+        || !MessageConstants.SAKAI_MESSAGE_RT.equals(properties.get("sling:resourceType"))
+        || !MessageConstants.TYPE_INTERNAL.equals(properties
+            .get(MessageConstants.PROP_SAKAI_TYPE))
+        || !store.equals(properties.get(MessageConstants.PROP_SAKAI_MESSAGE_STORE))) {
+      // a message that is being copied in still carries the store of its sender
+      return null;
+    }
+    return MessageCounts.key(properties.get(MessageConstants.PROP_SAKAI_MESSAGEBOX),
+        properties.get("sakai:category"),
+        properties.get(MessageConstants.PROP_SAKAI_READ));
+  }
+
+  private Map<String, Object> getContent(String path) throws StorageClientException,
+      AccessDeniedException {
+    Session session = sparseRepository.loginAdministrative();
+    try {
+      Content content = session.getContentManager().get(path);
+      return content == null ? null : content.getProperties();
+    } finally {
+      try {
+        session.logout();
+      } catch (ClientPoolException e) {
+        LOGGER.warn(e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * @return the message store a path is in, null if it is not in one.
+   */
+  private String getStore(String path) {
+    if (path == null) {
+      return null;
+    }
+    int i = path.indexOf(STORE_SEGMENT);
+    if (i <= 0 || i + STORE_SEGMENT.length() == path.length()) {
+      return null;
+    }
+    return path.substring(0, i + STORE_SEGMENT.length());
+  }
+
+  private String stripPrefix(String property) {
+    return property.startsWith("sakai:") ? property.substring(6) : property;
+  }
+
+  /**
+   * Make room for another store, dropping those that are too old first.
+   */
+  private void evict(long now) {
+    for (Iterator<MessageCounts> i = stores.values().iterator(); i.hasNext();) {
+      if (now - i.next().getCreated() > maxAge) {
+        i.remove();
+      }
+    }
+    for (Iterator<String> i = stores.keySet().iterator(); i.hasNext()
+        && stores.size() >= maxStores;) {
+      i.next();
+      i.remove();
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.message;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The number of messages in one message store for each combination of box, category and
+ * read state. There are only ever a handful of combinations, so any count over these
+ * three properties is a sum over a few entries.
+ */
+public class MessageCounts {
+
+  /**
+   * The properties counts are kept for, as they are named in the index.
+   */
+  public static final String[] DIMENSIONS = { "messagebox", "category", "read" };
+
+  private static final char SEPARATOR = '\n';
+
+  private final ConcurrentMap<String, AtomicLong> counts = new ConcurrentHashMap<String, AtomicLong>();
+
+  private final long created;
+
+  public MessageCounts(long created) {
+    this.created = created;
+  }
+
+  /**
+   * @return when these counts were taken from the index.
+   */
+  public long getCreated() {
+    return created;
+  }
+
+  /**
+   * @return the position of a property in {@link #DIMENSIONS}, -1 if no counts are kept
+   *         for it.
+   */
+  public static int dimension(String property) {
+    if (property.startsWith("sakai:")) {
+      property = property.substring(6);
+    }
+    for (int i = 0; i < DIMENSIONS.length; i++) {
+      if (DIMENSIONS[i].equals(property)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the key of a combination of values, a null value is kept as missing.
+   */
+  public static String key(Object box, Object category, Object read) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(box == null ? "" : String.valueOf(box)).append(SEPARATOR);
+    sb.append(category == null ? "" : String.valueOf(category)).append(SEPARATOR);
+    sb.append(read == null ? "" : String.valueOf(read));
+    return sb.toString();
+  }
+
+  public void add(String key, long delta) {
+    AtomicLong count = counts.get(key);
+    if (count == null) {
+      AtomicLong created = new AtomicLong();
+      count = counts.putIfAbsent(key, created);
+      if (count == null) {
+        count = created;
+      }
+    }
+    count.addAndGet(delta);
+  }
+
+  /**
+   * @param filter
+   *          a value for each of the {@link #DIMENSIONS}, null matches any value.
+   * @return the number of messages matching the filter.
+   */
+  public long count(String[] filter) {
+    long total = 0;
+    for (Entry<String, AtomicLong> e : counts.entrySet()) {
+      if (matches(e.getKey().split(String.valueOf(SEPARATOR), -1), filter)) {
+        total += e.getValue().get();
+      }
+    }
+    return Math.max(0, total);
+  }
+
+  /**
+   * @param filter
+   *          a value for each of the {@link #DIMENSIONS}, null matches any value.
+   * @param dimension
+   *          the position in {@link #DIMENSIONS} to group by.
+   * @return the number of messages matching the filter for each value of the dimension.
+   *         Messages without a value are left out.
+   */
+  public Map<String, Long> countBy(String[] filter, int dimension) {
+    Map<String, Long> result = new HashMap<String, Long>();
+    for (Entry<String, AtomicLong> e : counts.entrySet()) {
+      String[] values = e.getKey().split(String.valueOf(SEPARATOR), -1);
+      if (values[dimension].length() > 0 && matches(values, filter)) {
+        Long sum = result.get(values[dimension]);
+        result.put(values[dimension], (sum == null ? 0 : sum) + e.getValue().get());
+      }
+    }
+    for (Iterator<Long> i = result.values().iterator(); i.hasNext();) {
+      if (i.next() <= 0) {
+        i.remove();
+      }
+    }
+    return result;
+  }
+
+  private boolean matches(String[] values, String[] filter) {
+    for (int i = 0; i < filter.length; i++) {
+      if (filter[i] != null && !filter[i].equals(values[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,289 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.SolrParams;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.message.MessagingException;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Events are delivered after the content has changed, and may be handled after it has
+ * changed again, so each one is counted from the current content and the state the
+ * message was last counted in.
+ */
+public class LiteMessageCounterTest {
+
+  private static final String STORE = "a:ieb/message/";
+
+  private static final String MESSAGE = STORE + "ab/cd/msg1";
+
+  private static final String READERS = "readers:("
+      + ClientUtils.escapeQueryChars("g-contacts-ieb") + " OR ieb)";
+
+  private LiteMessageCounter counter;
+  private ContentManager contentManager;
+  private SolrServer server;
+
+  @Before
+  public void setUp() throws Exception {
+    counter = new LiteMessageCounter();
+
+    // the index has no messages, so the counts start at 0
+    SolrDocumentList results = new SolrDocumentList();
+    results.setNumFound(0);
+    QueryResponse response = mock(QueryResponse.class);
+    when(response.getResults()).thenReturn(results);
+    server = mock(SolrServer.class);
+    when(server.query(any(SolrParams.class))).thenReturn(response);
+    counter.solrServerService = mock(SolrServerService.class);
+    when(counter.solrServerService.getServer()).thenReturn(server);
+
+    contentManager = mock(ContentManager.class);
+    Session session = mock(Session.class);
+    when(session.getContentManager()).thenReturn(contentManager);
+    AuthorizableManager authorizableManager = mock(AuthorizableManager.class);
+    when(session.getAuthorizableManager()).thenReturn(authorizableManager);
+    Authorizable owner = mock(Authorizable.class);
+    when(authorizableManager.findAuthorizable("ieb")).thenReturn(owner);
+    Group group = mock(Group.class);
+    when(group.getId()).thenReturn("g-contacts-ieb");
+    final List<Group> groups = Arrays.asList(group);
+    when(owner.memberOf(authorizableManager)).thenAnswer(new Answer<Iterator<Group>>() {
+      public Iterator<Group> answer(InvocationOnMock invocation) {
+        return groups.iterator();
+      }
+    });
+    counter.sparseRepository = mock(Repository.class);
+    when(counter.sparseRepository.loginAdministrative()).thenReturn(session);
+
+    counter.activate(new HashMap<String, Object>());
+    assertEquals(0, getUnread());
+  }
+
+  @Test
+  public void testReadAndUnread() throws Exception {
+    setContent("false");
+    counter.handleEvent(event(StoreListener.ADDED_TOPIC, null));
+    assertEquals(1, getUnread());
+
+    setContent("true");
+    counter.handleEvent(event(StoreListener.UPDATED_TOPIC, message("false")));
+    assertEquals(0, getUnread());
+    assertEquals(1, getRead());
+
+    setContent("false");
+    counter.handleEvent(event(StoreListener.UPDATED_TOPIC, message("true")));
+    assertEquals(1, getUnread());
+    assertEquals(0, getRead());
+  }
+
+  @Test
+  public void testEventsHandledAfterLaterChanges() throws Exception {
+    setContent("false");
+    counter.handleEvent(event(StoreListener.ADDED_TOPIC, null));
+
+    // the message is read, then marked unread, then read again before any of the
+    // update events are handled
+    setContent("true");
+    counter.handleEvent(event(StoreListener.UPDATED_TOPIC, message("false")));
+    counter.handleEvent(event(StoreListener.UPDATED_TOPIC, message("true")));
+    counter.handleEvent(event(StoreListener.UPDATED_TOPIC, message("false")));
+    assertEquals(0, getUnread());
+    assertEquals(1, getRead());
+  }
+
+  @Test
+  public void testUpdateHandledAfterDelete() throws Exception {
+    setContent("false");
+    counter.handleEvent(event(StoreListener.ADDED_TOPIC, null));
+
+    // the message is read and then deleted, the delete is handled first
+    setContent(null);
+    counter.handleEvent(event(StoreListener.DELETE_TOPIC, message("true")));
+    counter.handleEvent(event(StoreListener.UPDATED_TOPIC, message("false")));
+    assertEquals(0, getUnread());
+    assertEquals(0, getRead());
+  }
+
+  @Test
+  public void testDeleteOfMessageNotSeenBefore() throws Exception {
+    for (String other : new String[] { STORE + "ab/cd/msg2", STORE + "ab/cd/msg3" }) {
+      when(contentManager.get(other)).thenReturn(new Content(other, message("false")));
+      counter.handleEvent(event(other, StoreListener.ADDED_TOPIC, null));
+    }
+    assertEquals(2, getUnread());
+
+    // the message was counted by the index, the delete carries what it was
+    counter.handleEvent(event(StoreListener.DELETE_TOPIC, message("false")));
+    assertEquals(1, getUnread());
+    // and it is not taken out of the count twice
+    counter.handleEvent(event(StoreListener.DELETE_TOPIC, message("false")));
+    assertEquals(1, getUnread());
+  }
+
+  @Test
+  public void testUnknownStateReseeds() throws Exception {
+    verify(server, times(1)).query(any(SolrParams.class));
+    setContent("true");
+    counter.handleEvent(event(StoreListener.UPDATED_TOPIC, null));
+
+    // there is no telling what the message was counted as, so the counts are taken
+    // from the index again
+    assertEquals(0, getUnread());
+    verify(server, times(2)).query(any(SolrParams.class));
+  }
+
+  @Test
+  public void testMessagesOfOtherStoresAreNotCounted() throws Exception {
+    Map<String, Object> properties = message("false");
+    properties.put(MessageConstants.PROP_SAKAI_MESSAGE_STORE, "a:other/message/");
+    when(contentManager.get(MESSAGE)).thenReturn(new Content(MESSAGE, properties));
+    counter.handleEvent(event(StoreListener.ADDED_TOPIC, null));
+    assertEquals(0, getUnread());
+  }
+
+  private long getUnread() throws Exception {
+    return counter.getCount(STORE, filter("false"));
+  }
+
+  @Test
+  public void testQueryIsEscaped() throws Exception {
+    Map<String, String> filters = new HashMap<String, String>();
+    filters.put("sakai:category", "x\" OR path:*");
+    filters.put("sakai:to) OR (path", "*");
+    counter.getCount(STORE, filters);
+
+    // the first query seeded the counts for the store
+    ArgumentCaptor<SolrParams> params = ArgumentCaptor.forClass(SolrParams.class);
+    verify(server, times(2)).query(params.capture());
+    SolrParams query = params.getValue();
+    String q = query.get("q");
+    assertTrue(q, q.contains("(category:\"" + ClientUtils.escapeQueryChars("x\" OR path:*")
+        + "\")"));
+    assertTrue(q, q.contains("(" + ClientUtils.escapeQueryChars("to) OR (path") + ":\""
+        + ClientUtils.escapeQueryChars("*") + "\")"));
+    assertFalse(q, q.contains(" OR path:*"));
+    String[] fq = query.getParams("fq");
+    assertEquals(2, fq.length);
+    assertEquals("(path:" + ClientUtils.escapeQueryChars(STORE)
+        + "* AND resourceType:sakai/message AND type:internal)", fq[0]);
+    assertEquals(READERS, fq[1]);
+  }
+
+  @Test
+  public void testSeedIsLimitedToReaders() throws Exception {
+    ArgumentCaptor<SolrParams> params = ArgumentCaptor.forClass(SolrParams.class);
+    verify(server).query(params.capture());
+    assertEquals(READERS, params.getValue().get("fq"));
+  }
+
+  @Test
+  public void testGroupedByMustBeAField() throws Exception {
+    try {
+      counter.getCounts(STORE, new HashMap<String, String>(), "category OR *:*");
+      fail("Only properties can be grouped by");
+    } catch (MessagingException e) {
+      assertEquals(400, e.getCode());
+    }
+  }
+
+  @Test
+  public void testStoreMustBeAMessageStore() throws Exception {
+    try {
+      counter.getCount("a:ieb/", filter("false"));
+      fail("Only message stores can be counted");
+    } catch (MessagingException e) {
+      assertEquals(400, e.getCode());
+    }
+  }
+
+  private long getRead() throws Exception {
+    return counter.getCount(STORE, filter("true"));
+  }
+
+  private Map<String, String> filter(String read) {
+    Map<String, String> filter = new HashMap<String, String>();
+    filter.put(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
+    filter.put(MessageConstants.PROP_SAKAI_READ, read);
+    return filter;
+  }
+
+  private void setContent(String read) throws Exception {
+    when(contentManager.get(MESSAGE)).thenReturn(
+        read == null ? null : new Content(MESSAGE, message(read)));
+  }
+
+  private Map<String, Object> message(String read) {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put("sling:resourceType", MessageConstants.SAKAI_MESSAGE_RT);
+    properties.put(MessageConstants.PROP_SAKAI_TYPE, MessageConstants.TYPE_INTERNAL);
+    properties.put(MessageConstants.PROP_SAKAI_MESSAGE_STORE, STORE);
+    properties.put(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
+    properties.put(MessageConstants.PROP_SAKAI_READ, read);
+    return properties;
+  }
+
+  private Event event(String topic, Map<String, Object> before) {
+    return event(MESSAGE, topic, before);
+  }
+
+  private Event event(String path, String topic, Map<String, Object> before) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(StoreListener.PATH_PROPERTY, path);
+    if (before != null) {
+      properties.put(StoreListener.BEFORE_EVENT_PROPERTY, before);
+    }
+    return new Event(StoreListener.TOPIC_BASE + "content/" + topic, properties);
+  }
+}
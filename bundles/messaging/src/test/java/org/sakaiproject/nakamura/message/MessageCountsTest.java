@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+
+/**
+ *
+ */
+public class MessageCountsTest {
+
+  private MessageCounts counts;
+
+  @Before
+  public void setUp() {
+    counts = new MessageCounts(0);
+    counts.add(MessageCounts.key("inbox", "message", "false"), 3);
+    counts.add(MessageCounts.key("inbox", "message", "true"), 2);
+    counts.add(MessageCounts.key("inbox", "invitation", "false"), 1);
+    counts.add(MessageCounts.key("outbox", "message", "true"), 4);
+    counts.add(MessageCounts.key("inbox", null, "false"), 5);
+  }
+
+  @Test
+  public void testDimension() {
+    assertEquals(0, MessageCounts.dimension("sakai:messagebox"));
+    assertEquals(1, MessageCounts.dimension("category"));
+    assertEquals(2, MessageCounts.dimension("sakai:read"));
+    assertEquals(-1, MessageCounts.dimension("sakai:subject"));
+  }
+
+  @Test
+  public void testCount() {
+    assertEquals(15, counts.count(new String[] { null, null, null }));
+    assertEquals(9, counts.count(new String[] { "inbox", null, "false" }));
+    assertEquals(3, counts.count(new String[] { "inbox", "message", "false" }));
+    assertEquals(0, counts.count(new String[] { "trash", null, null }));
+  }
+
+  @Test
+  public void testCountBy() {
+    Map<String, Long> byCategory = counts.countBy(new String[] { "inbox", null, null }, 1);
+    assertEquals(2, byCategory.size());
+    assertEquals(Long.valueOf(5), byCategory.get("message"));
+    assertEquals(Long.valueOf(1), byCategory.get("invitation"));
+  }
+
+  @Test
+  public void testMovedOutOfCount() {
+    counts.add(MessageCounts.key("inbox", "invitation", "false"), -1);
+    counts.add(MessageCounts.key("inbox", "invitation", "true"), 1);
+    assertEquals(8, counts.count(new String[] { "inbox", null, "false" }));
+    Map<String, Long> byRead = counts.countBy(new String[] { null, "invitation", null }, 2);
+    assertNull(byRead.get("false"));
+    assertEquals(Long.valueOf(1), byRead.get("true"));
+  }
+}
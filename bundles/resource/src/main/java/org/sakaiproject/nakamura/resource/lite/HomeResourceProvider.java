@@ -39,7 +39,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -53,13 +55,37 @@ public class HomeResourceProvider implements ResourceProvider {
   public static final String HOME_RESOURCE_PROVIDER = HomeResourceProvider.class
       .getName();
 
+  /**
+   * Request attribute holding the home paths resolved during the request.
+   */
+  private static final String HOME_PATHS_ATTRIBUTE = HOME_RESOURCE_PROVIDER + ".homePaths";
+
   public Resource getResource(ResourceResolver resourceResolver,
       HttpServletRequest request, String path) {
-    LOGGER.info("Got Resource URI [{}]  Path [{}] ", request.getRequestURI(), path);
-    return getResource(resourceResolver, path);
+    LOGGER.debug("Got Resource URI [{}]  Path [{}] ", request.getRequestURI(), path);
+    // Sling tries several paths while it works out the selectors and extension, all
+    // of them under the same home. What was looked up is only kept for requests that
+    // do not change anything.
+    NegativeLookupCache negativeLookupCache = NegativeLookupCache.forRequest(request);
+    if (negativeLookupCache == null) {
+      return getResource(resourceResolver, path, null, null);
+    }
+    @SuppressWarnings("unchecked")
+    Map<String, String> homePaths = (Map<String, String>) request
+        .getAttribute(HOME_PATHS_ATTRIBUTE);
+    if (homePaths == null) {
+      homePaths = new HashMap<String, String>();
+      request.setAttribute(HOME_PATHS_ATTRIBUTE, homePaths);
+    }
+    return getResource(resourceResolver, path, homePaths, negativeLookupCache);
   }
 
   public Resource getResource(ResourceResolver resourceResolver, String path) {
+    return getResource(resourceResolver, path, null, null);
+  }
+
+  private Resource getResource(ResourceResolver resourceResolver, String path,
+      Map<String, String> homePaths, NegativeLookupCache negativeLookupCache) {
     if (path == null || path.length() < 2) {
       return null;
     }
@@ -71,7 +97,7 @@ public class HomeResourceProvider implements ResourceProvider {
       return null;
     }
     try {
-      return resolveMappedResource(resourceResolver, path);
+      return resolveMappedResource(resourceResolver, path, homePaths, negativeLookupCache);
     } catch (AccessDeniedException e) {
       if ( LOGGER.isDebugEnabled()) {
         LOGGER.debug(e.getMessage(),e);
@@ -84,7 +110,15 @@ public class HomeResourceProvider implements ResourceProvider {
     return null;
   }
 
-  private Resource resolveMappedResource(ResourceResolver resourceResolver, String path)
+  /**
+   * @param homePaths
+   *          the home paths already resolved in this request, keyed by authorizable id,
+   *          may be null.
+   * @param negativeLookupCache
+   *          the paths already found missing in this request, may be null.
+   */
+  private Resource resolveMappedResource(ResourceResolver resourceResolver, String path,
+      Map<String, String> homePaths, NegativeLookupCache negativeLookupCache)
       throws AccessDeniedException, StorageClientException {
     String subPath = null;
     if (path.startsWith("/~")) {
@@ -101,17 +135,23 @@ public class HomeResourceProvider implements ResourceProvider {
       }
       if (elements.length >= 1) {
         Session session = StorageClientUtils.adaptToSession(resourceResolver.adaptTo(javax.jcr.Session.class));
-        AuthorizableManager um = session.getAuthorizableManager();
-        Authorizable a = um.findAuthorizable(elements[0]);
-        if (a != null) {
-          String userPath = LitePersonalUtils.getHomePath(a.getId());
+        String homePath = getHomePath(session, elements[0], homePaths);
+        if (homePath != null) {
+          String userPath = homePath;
           if (elements.length == 2) {
             userPath = userPath + "/" + elements[1];
           }
+          if (negativeLookupCache != null && negativeLookupCache.isMissingContent(userPath)) {
+            return null;
+          }
           ContentManager contentManager = session.getContentManager();
           Content content = contentManager.get(userPath);
           LOGGER.debug("Resolving [{}] to [{}] ", userPath, content);
-          if (content != null) {
+          if (content == null) {
+            if (negativeLookupCache != null) {
+              negativeLookupCache.missingContent(userPath);
+            }
+          } else {
             SparseContentResource cpr = new SparseContentResource(content, session,
                 resourceResolver, path);
             cpr.getResourceMetadata().put(HOME_RESOURCE_PROVIDER, this);
@@ -123,6 +163,26 @@ public class HomeResourceProvider implements ResourceProvider {
     return null;
   }
 
+  /**
+   * @return the home path of an authorizable, null if there is no such authorizable.
+   */
+  private String getHomePath(Session session, String id, Map<String, String> homePaths)
+      throws AccessDeniedException, StorageClientException {
+    if (homePaths != null && homePaths.containsKey(id)) {
+      return homePaths.get(id);
+    }
+    String homePath = null;
+    AuthorizableManager um = session.getAuthorizableManager();
+    Authorizable a = um.findAuthorizable(id);
+    if (a != null) {
+      homePath = LitePersonalUtils.getHomePath(a.getId());
+    }
+    if (homePaths != null) {
+      homePaths.put(id, homePath);
+    }
+    return homePath;
+  }
+
   public Iterator<Resource> listChildren(Resource parent) {
     if (LOGGER.isDebugEnabled()) {
       LOGGER.debug("List Children [{}] ", parent.getPath());
@@ -57,13 +57,29 @@ public class LiteResourceProvider implements ResourceProvider {
    *      java.lang.String)
    */
   public Resource getResource(ResourceResolver resourceResolver, String path) {
+    return getResource(resourceResolver, path, null);
+  }
+
+  /**
+   * @param negativeLookupCache
+   *          the paths already found missing in this request, may be null.
+   */
+  private Resource getResource(ResourceResolver resourceResolver, String path,
+      NegativeLookupCache negativeLookupCache) {
     Resource retRes = null;
+    if (negativeLookupCache != null && negativeLookupCache.isMissingContent(path)) {
+      return null;
+    }
     try {
       javax.jcr.Session jcrSession = resourceResolver.adaptTo(javax.jcr.Session.class);
       Session session = JackrabbitSparseUtils.getSparseSession(jcrSession);
       ContentManager cm = session.getContentManager();
       Content content = cm.get(path);
-      if (content != null) {
+      if (content == null) {
+        if (negativeLookupCache != null) {
+          negativeLookupCache.missingContent(path);
+        }
+      } else {
         String userId = jcrSession.getUserID();
         ResourceResolver rr = new LiteResourceResolver(session, userId);
         retRes = new SparseContentResource(content, session, rr);
@@ -88,7 +104,7 @@ public class LiteResourceProvider implements ResourceProvider {
    */
   public Resource getResource(ResourceResolver resourceResolver,
       HttpServletRequest request, String path) {
-    return getResource(resourceResolver, path);
+    return getResource(resourceResolver, path, NegativeLookupCache.forRequest(request));
   }
 
   /**
@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.resource.lite;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Remembers the content paths that were not found while handling one request. Sling asks
+ * the resource providers for several paths that do not exist while it works out the
+ * selectors and extension of a request, and the same paths are often asked for again
+ * later in the request; without this each of those is a storage lookup.
+ *
+ * Misses are only remembered for GET and HEAD requests, and only until the end of the
+ * request, so content created by a request is never hidden from it or from any request
+ * that follows, on this server or any other.
+ */
+final class NegativeLookupCache {
+
+  private static final String ATTRIBUTE = NegativeLookupCache.class.getName();
+
+  private final Set<String> missingContent = new HashSet<String>();
+
+  private NegativeLookupCache() {
+  }
+
+  /**
+   * @return the misses of a request, null if misses are not remembered for it.
+   */
+  static NegativeLookupCache forRequest(HttpServletRequest request) {
+    if (request == null
+        || !("GET".equals(request.getMethod()) || "HEAD".equals(request.getMethod()))) {
+      return null;
+    }
+    NegativeLookupCache cache = (NegativeLookupCache) request.getAttribute(ATTRIBUTE);
+    if (cache == null) {
+      cache = new NegativeLookupCache();
+      request.setAttribute(ATTRIBUTE, cache);
+    }
+    return cache;
+  }
+
+  boolean isMissingContent(String path) {
+    return missingContent.contains(path);
+  }
+
+  /**
+   * Remember that there is no content at a path.
+   */
+  void missingContent(String path) {
+    missingContent.add(path);
+  }
+}
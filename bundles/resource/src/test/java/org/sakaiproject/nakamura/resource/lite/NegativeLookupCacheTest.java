@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.resource.lite;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ *
+ */
+public class NegativeLookupCacheTest {
+
+  @Test
+  public void testMissingForTheRequest() {
+    HttpServletRequest request = request("GET");
+    NegativeLookupCache cache = NegativeLookupCache.forRequest(request);
+    assertNotNull(cache);
+    cache.missingContent("/a.json");
+    assertTrue(NegativeLookupCache.forRequest(request).isMissingContent("/a.json"));
+    assertFalse(cache.isMissingContent("/b.json"));
+
+    // the next request looks again
+    assertFalse(NegativeLookupCache.forRequest(request("GET")).isMissingContent("/a.json"));
+  }
+
+  @Test
+  public void testOnlyForRequestsThatDoNotChangeContent() {
+    assertNotNull(NegativeLookupCache.forRequest(request("HEAD")));
+    assertNull(NegativeLookupCache.forRequest(request("POST")));
+    assertNull(NegativeLookupCache.forRequest(request("DELETE")));
+    assertNull(NegativeLookupCache.forRequest(null));
+  }
+
+  @Test
+  public void testSameForTheRequest() {
+    HttpServletRequest request = request("GET");
+    assertSame(NegativeLookupCache.forRequest(request), NegativeLookupCache
+        .forRequest(request));
+  }
+
+  private HttpServletRequest request(String method) {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getMethod()).thenReturn(method);
+    final Map<String, Object> attributes = new HashMap<String, Object>();
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) {
+        attributes.put((String) invocation.getArguments()[0], invocation.getArguments()[1]);
+        return null;
+      }
+    }).when(request).setAttribute(anyString(), any());
+    when(request.getAttribute(anyString())).thenAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) {
+        return attributes.get(invocation.getArguments()[0]);
+      }
+    });
+    return request;
+  }
+}
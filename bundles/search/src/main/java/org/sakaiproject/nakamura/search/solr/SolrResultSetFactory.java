@@ -17,8 +17,6 @@
  */
 package org.sakaiproject.nakamura.search.solr;
 
-import com.google.common.collect.Sets;
-
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
@@ -39,6 +37,7 @@ import org.apache.solr.common.params.CommonParams;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
@@ -51,6 +50,7 @@ import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchUtil;
 import org.sakaiproject.nakamura.api.solr.SolrServerService;
+import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -68,6 +68,9 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  *
@@ -78,6 +81,8 @@ import java.util.ArrayList;
     @Property(name = "type", value = Query.SOLR),
     @Property(name = "event.topics", value = {
         "org/sakaiproject/nakamura/lite/content/DELETE",
+        "org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+        "org/sakaiproject/nakamura/lite/authorizables/DELETE",
         "org/sakaiproject/nakamura/solr/COMMIT"})})
 
   public class SolrResultSetFactory implements ResultSetFactory, EventHandler {
@@ -89,6 +94,13 @@ import java.util.ArrayList;
   private static final String DEFAULT_MAX_RESULTS = "defaultMaxResults";
 
   private static final String DELETED_PATH_CACHE = "deletedPathQueue";
+  private static final String READERS_FILTER_CACHE = "solrReadersFilterCache";
+  private static final String READERS_FILTER_GROUP_CACHE = "solrReadersFilterGroupCache";
+  /**
+   * Members added to or removed from a group, comma separated, on authorizable events.
+   */
+  static final String EVENT_PROP_ADDED = "added";
+  static final String EVENT_PROP_REMOVED = "removed";
 
   /** only used to mark the logger */
   private final class SlowQueryLogger { }
@@ -188,6 +200,49 @@ import java.util.ArrayList;
   }
 
 
+  /*
+   * Get the cache of readers filter queries by user id. The cache is local to this
+   * server, each server drops its own entries from the authorizable events.
+   */
+  private Cache<ReadersFilter> getReadersFilterCache() {
+    return cacheManagerService.getCache(READERS_FILTER_CACHE, CacheScope.INSTANCE);
+  }
+
+
+  /*
+   * Get the cache of the users with a cached readers filter, by the groups in the
+   * filter. A filter is only used while every one of its groups still lists the user,
+   * so when either cache evicts or expires an entry the filters that depend on it are
+   * built again, and nothing is kept outside the caches.
+   */
+  private Cache<ConcurrentMap<String, Boolean>> getReadersFilterGroupCache() {
+    return cacheManagerService.getCache(READERS_FILTER_GROUP_CACHE, CacheScope.INSTANCE);
+  }
+
+
+  /*
+   * Drop the readers filter of an authorizable, and of every user whose filter was
+   * built through it, without looking anything up in storage.
+   */
+  private void invalidateReadersFilter(Object authorizableId) {
+    if (authorizableId == null) {
+      return;
+    }
+    String id = String.valueOf(authorizableId);
+    getReadersFilterCache().remove(id);
+    getReadersFilterGroupCache().remove(id);
+  }
+
+
+  private void invalidateReadersFilters(Object authorizableIds) {
+    if (authorizableIds != null) {
+      for (String id : StringUtils.split(String.valueOf(authorizableIds), ',')) {
+        invalidateReadersFilter(id.trim());
+      }
+    }
+  }
+
+
   public void handleEvent(Event event) {
     String topic = event.getTopic();
 
@@ -199,9 +254,96 @@ import java.util.ArrayList;
       }
     } else if (topic.equals("org/sakaiproject/nakamura/solr/COMMIT")) {
       clearDeletedPaths();
+    } else if (topic.startsWith("org/sakaiproject/nakamura/lite/authorizables/")) {
+      // a group change affects the users below it and the members that joined or left,
+      // deletes carry the id as the userid rather than the path.
+      invalidateReadersFilter(event.getProperty(StoreListener.PATH_PROPERTY));
+      invalidateReadersFilter(event.getProperty(UserConstants.EVENT_PROP_USERID));
+      invalidateReadersFilters(event.getProperty(EVENT_PROP_ADDED));
+      invalidateReadersFilters(event.getProperty(EVENT_PROP_REMOVED));
+    }
+  }
+
+
+  /**
+   * Get the filter query restricting results to the documents the user can read. The
+   * principals are sorted so that users with the same principals produce the same
+   * filter, which lets Solr share the cached filter between them.
+   *
+   * @param session
+   * @return the filter query, or null if the user is admin and sees everything.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  String getReadersFilter(Session session) throws StorageClientException,
+      AccessDeniedException {
+    String userId = session.getUserId();
+    if (User.ADMIN_USER.equals(userId)) {
+      return null;
+    }
+    Cache<ReadersFilter> cache = getReadersFilterCache();
+    Cache<ConcurrentMap<String, Boolean>> groupCache = getReadersFilterGroupCache();
+    ReadersFilter cached = cache.get(userId);
+    if (cached != null && isListed(groupCache, cached.groupIds, userId)) {
+      return cached.filter;
+    }
+    AuthorizableManager am = session.getAuthorizableManager();
+    Authorizable user = am.findAuthorizable(userId);
+    Set<String> readers = new TreeSet<String>();
+    List<String> groupIds = new ArrayList<String>();
+    if (user != null) {
+      for (Iterator<Group> gi = user.memberOf(am); gi.hasNext();) {
+        String groupId = gi.next().getId();
+        readers.add(SearchUtil.escapeString(groupId, Query.SOLR));
+        groupIds.add(groupId);
+        addReadersFilterUser(groupCache, groupId, userId);
+      }
+    }
+    readers.add(SearchUtil.escapeString(userId, Query.SOLR));
+    String filter = "readers:(" + StringUtils.join(readers, " OR ") + ")";
+    cache.put(userId, new ReadersFilter(filter, groupIds.toArray(new String[groupIds
+        .size()])));
+    return filter;
+  }
+
+
+  private boolean isListed(Cache<ConcurrentMap<String, Boolean>> groupCache,
+      String[] groupIds, String userId) {
+    for (String groupId : groupIds) {
+      Map<String, Boolean> users = groupCache.get(groupId);
+      if (users == null || !users.containsKey(userId)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+
+  private void addReadersFilterUser(Cache<ConcurrentMap<String, Boolean>> groupCache,
+      String groupId, String userId) {
+    // two users may add a group at once and one set replace the other, the filter of
+    // the user missing from the set is then built again on its next use.
+    ConcurrentMap<String, Boolean> users = groupCache.get(groupId);
+    if (users == null) {
+      users = new ConcurrentHashMap<String, Boolean>();
+      groupCache.put(groupId, users);
+    }
+    users.put(userId, Boolean.TRUE);
+  }
+
+
+  /**
+   * A cached readers filter and the groups it was built from.
+   */
+  static final class ReadersFilter {
+    private final String filter;
+    private final String[] groupIds;
+
+    ReadersFilter(String filter, String[] groupIds) {
+      this.filter = filter;
+      this.groupIds = groupIds;
     }
   }
-      
 
 
   /**
@@ -217,22 +359,16 @@ import java.util.ArrayList;
   public SolrSearchResultSet processQuery(SlingHttpServletRequest request, Query query,
       boolean asAnon) throws SolrSearchException {
     try {
+      long tbuild = System.currentTimeMillis();
       String queryString = query.getQueryString();
-      // apply readers restrictions.
+      // apply readers restrictions as a filter query, so Solr can cache the matching
+      // documents independently of the query text.
+      String readersFilter;
       if (asAnon) {
-        queryString = "(" + queryString + ")  AND readers:" + User.ANON_USER;
+        readersFilter = "readers:" + User.ANON_USER;
       } else {
         Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
-        if (!User.ADMIN_USER.equals(session.getUserId())) {
-          AuthorizableManager am = session.getAuthorizableManager();
-          Authorizable user = am.findAuthorizable(session.getUserId());
-          Set<String> readers = Sets.newHashSet();
-          for (Iterator<Group> gi = user.memberOf(am); gi.hasNext();) {
-            readers.add(SearchUtil.escapeString(gi.next().getId(), Query.SOLR));
-          }
-          readers.add(session.getUserId());
-          queryString = "(" + queryString + ") AND readers:(" + StringUtils.join(readers," OR ") + ")";
-        }
+        readersFilter = getReadersFilter(session);
       }
 
       List<String> deletedPaths = getDeletedPaths();
@@ -241,6 +377,10 @@ import java.util.ArrayList;
       }
 
       SolrQuery solrQuery = buildQuery(request, queryString, query.getOptions());
+      if (readersFilter != null) {
+        solrQuery.addFilterQuery(readersFilter);
+      }
+      tbuild = System.currentTimeMillis() - tbuild;
 
       SolrServer solrServer = solrSearchService.getServer();
       if ( LOGGER.isDebugEnabled()) {
@@ -254,9 +394,11 @@ import java.util.ArrayList;
       tquery = System.currentTimeMillis() - tquery;
       try {
         if ( tquery > verySlowQueryThreshold ) {
-          SLOW_QUERY_LOGGER.error("Very slow solr query {} ms {} ",tquery, URLDecoder.decode(solrQuery.toString(),"UTF-8"));
+          SLOW_QUERY_LOGGER.error("Very slow solr query {} ms (built in {} ms) {} ",
+              new Object[] {tquery, tbuild, URLDecoder.decode(solrQuery.toString(),"UTF-8")});
         } else if ( tquery > slowQueryThreshold ) {
-          SLOW_QUERY_LOGGER.warn("Slow solr query {} ms {} ",tquery, URLDecoder.decode(solrQuery.toString(),"UTF-8"));
+          SLOW_QUERY_LOGGER.warn("Slow solr query {} ms (built in {} ms) {} ",
+              new Object[] {tquery, tbuild, URLDecoder.decode(solrQuery.toString(),"UTF-8")});
         }
       } catch (UnsupportedEncodingException e) {
       }
@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Iterator;
+
+public class SolrResultSetFactoryTest {
+
+  private static final String UPDATED = "org/sakaiproject/nakamura/lite/authorizables/UPDATED";
+  private static final String DELETE = "org/sakaiproject/nakamura/lite/authorizables/DELETE";
+
+  private SolrResultSetFactory factory;
+  private AuthorizableManager am;
+  private MapCacheImpl<Object> groupCache;
+
+  @Before
+  public void setUp() throws Exception {
+    factory = new SolrResultSetFactory();
+    factory.cacheManagerService = mock(CacheManagerService.class);
+    when(factory.cacheManagerService.getCache("solrReadersFilterCache", CacheScope.INSTANCE))
+        .thenReturn(new MapCacheImpl<Object>());
+    groupCache = new MapCacheImpl<Object>();
+    when(factory.cacheManagerService.getCache("solrReadersFilterGroupCache",
+        CacheScope.INSTANCE)).thenReturn(groupCache);
+    am = mock(AuthorizableManager.class);
+    user("alice", "course1", "faculty");
+    user("bob", "course1");
+    user("carol", "course2");
+  }
+
+  @Test
+  public void testFilterCached() throws Exception {
+    Assert.assertEquals("readers:(alice OR course1 OR faculty)", filter("alice"));
+    Assert.assertEquals("readers:(alice OR course1 OR faculty)", filter("alice"));
+    verify(am, times(1)).findAuthorizable("alice");
+  }
+
+  @Test
+  public void testGroupChangeDropsOnlyItsMembers() throws Exception {
+    filter("alice");
+    filter("bob");
+    filter("carol");
+    factory.handleEvent(event(UPDATED, StoreListener.PATH_PROPERTY, "course1"));
+    filter("alice");
+    filter("bob");
+    filter("carol");
+    verify(am, times(2)).findAuthorizable("alice");
+    verify(am, times(2)).findAuthorizable("bob");
+    verify(am, times(1)).findAuthorizable("carol");
+  }
+
+  @Test
+  public void testAddedMemberDropped() throws Exception {
+    filter("carol");
+    // carol joins course1, which carol's filter does not list yet.
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(StoreListener.PATH_PROPERTY, "course1");
+    properties.put(SolrResultSetFactory.EVENT_PROP_ADDED, "dave,carol");
+    factory.handleEvent(new Event(UPDATED, properties));
+    filter("carol");
+    verify(am, times(2)).findAuthorizable("carol");
+  }
+
+  @Test
+  public void testRemovedMemberDropped() throws Exception {
+    filter("alice");
+    filter("bob");
+    // bob leaves a group that no cached filter lists.
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(StoreListener.PATH_PROPERTY, "course3");
+    properties.put(SolrResultSetFactory.EVENT_PROP_REMOVED, "bob");
+    factory.handleEvent(new Event(UPDATED, properties));
+    filter("alice");
+    filter("bob");
+    verify(am, times(1)).findAuthorizable("alice");
+    verify(am, times(2)).findAuthorizable("bob");
+  }
+
+  @Test
+  public void testEvictedGroupDropsItsMembers() throws Exception {
+    filter("alice");
+    filter("carol");
+    // the cache evicts the members of faculty, without any event.
+    groupCache.remove("faculty");
+    filter("alice");
+    filter("carol");
+    verify(am, times(2)).findAuthorizable("alice");
+    verify(am, times(1)).findAuthorizable("carol");
+    // the members are listed again once the filter is built again.
+    filter("alice");
+    verify(am, times(2)).findAuthorizable("alice");
+  }
+
+  @Test
+  public void testDeleteReadsUserId() throws Exception {
+    filter("alice");
+    filter("carol");
+    factory.handleEvent(event(DELETE, UserConstants.EVENT_PROP_USERID, "faculty"));
+    filter("alice");
+    filter("carol");
+    verify(am, times(2)).findAuthorizable("alice");
+    verify(am, times(1)).findAuthorizable("carol");
+  }
+
+  private void user(String userId, String... groupIds) throws Exception {
+    User user = mock(User.class);
+    final Group[] groups = new Group[groupIds.length];
+    for (int i = 0; i < groupIds.length; i++) {
+      groups[i] = mock(Group.class);
+      when(groups[i].getId()).thenReturn(groupIds[i]);
+    }
+    when(am.findAuthorizable(userId)).thenReturn(user);
+    when(user.memberOf(am)).thenAnswer(new Answer<Iterator<Group>>() {
+      public Iterator<Group> answer(InvocationOnMock invocation) {
+        return Arrays.asList(groups).iterator();
+      }
+    });
+  }
+
+  private String filter(String userId) throws Exception {
+    Session session = mock(Session.class);
+    when(session.getUserId()).thenReturn(userId);
+    when(session.getAuthorizableManager()).thenReturn(am);
+    return factory.getReadersFilter(session);
+  }
+
+  private Event event(String topic, String key, String value) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(key, value);
+    return new Event(topic, properties);
+  }
+}
@@ -2,164 +2,232 @@ package org.apache.jackrabbit.core.security.principal;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * A reasonably dumb LRU map, but its concurrent.
+ * A concurrent LRU map. Keys are spread over a number of segments, each one an access
+ * ordered LinkedHashMap guarded by its own lock, so gets and puts are O(1) and eviction
+ * removes the least recently used entry of the segment being written to. Null values are
+ * allowed so that the map can hold negative entries, null keys are not. Hit, miss and
+ * eviction counts are kept for {@link ConcurrentLRUMapMBean}.
+ *
  * @param <K>
  * @param <V>
  */
-public class ConcurrentLRUMap<K, V> implements Map<K, V> {
+public class ConcurrentLRUMap<K, V> implements Map<K, V>, ConcurrentLRUMapMBean {
 
-  public class Holder<T> {
+  private static final int MAX_SEGMENTS = 16;
+  private static final int MIN_SEGMENT_SIZE = 16;
 
-    protected long last;
-    protected V value;
-    private K key;
-
-    public Holder(K key, V value) {
-      this.key = key;
-      this.value = value;
-      this.last = System.currentTimeMillis();
-    }
-
-    public int compareTo(Holder<T> o) {
-      return (int) (this.last - o.last);
+  /**
+   * One segment of the map, evicting its eldest entry in access order once it is full.
+   */
+  private static class Segment<K, V> extends LinkedHashMap<K, V> {
+    private static final long serialVersionUID = -2446232735138385522L;
+    private int capacity;
+    private AtomicLong evictions;
+
+    Segment(int capacity, AtomicLong evictions) {
+      super(16, 0.75f, true);
+      this.capacity = capacity;
+      this.evictions = evictions;
     }
 
     @Override
-    public boolean equals(Object obj) {
-      try {
-        @SuppressWarnings("unchecked")
-        Holder<T> t = (Holder<T>) obj;
-        return value.equals(t.value);
-      } catch (ClassCastException e) {
-        return false;
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+      if (size() > capacity) {
+        evictions.incrementAndGet();
+        return true;
       }
+      return false;
     }
-
   }
 
-  /**
-   * 
-   */
-  private static final long serialVersionUID = 6397790801684912025L;
-  private Map<K, Holder<V>> delegate = new ConcurrentHashMap<K, Holder<V>>();
-  private int maxSize = 100;
+  private final Segment<K, V>[] segments;
+  private final int maxSize;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
 
   public ConcurrentLRUMap() {
+    this(100);
   }
 
+  @SuppressWarnings("unchecked")
   public ConcurrentLRUMap(int size) {
-    maxSize = size;
+    maxSize = Math.max(1, size);
+    int nsegments = 1;
+    while (nsegments < MAX_SEGMENTS && (nsegments * 2) * MIN_SEGMENT_SIZE <= maxSize) {
+      nsegments = nsegments * 2;
+    }
+    segments = new Segment[nsegments];
+    int segmentSize = (maxSize + nsegments - 1) / nsegments;
+    for (int i = 0; i < nsegments; i++) {
+      segments[i] = new Segment<K, V>(segmentSize, evictions);
+    }
+  }
+
+  private Segment<K, V> segmentFor(Object key) {
+    if (key == null) {
+      throw new NullPointerException("Null keys are not supported");
+    }
+    int h = key.hashCode();
+    // spread the hash so keys that differ only in the high bits use different segments.
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return segments[h & (segments.length - 1)];
   }
 
   public int size() {
-    return delegate.size();
+    int size = 0;
+    for (Segment<K, V> segment : segments) {
+      synchronized (segment) {
+        size += segment.size();
+      }
+    }
+    return size;
   }
 
   public boolean isEmpty() {
-    return delegate.isEmpty();
+    return size() == 0;
   }
 
+  /**
+   * Does not count as an access, so it neither changes the order nor the statistics.
+   */
   public boolean containsKey(Object key) {
-    return delegate.containsKey(key);
+    Segment<K, V> segment = segmentFor(key);
+    synchronized (segment) {
+      return segment.containsKey(key);
+    }
   }
 
   public boolean containsValue(Object value) {
-    @SuppressWarnings("unchecked")
-    Holder<V> v = new Holder<V>(null, (V) value);
-    return delegate.containsValue(v);
+    for (Segment<K, V> segment : segments) {
+      synchronized (segment) {
+        if (segment.containsValue(value)) {
+          return true;
+        }
+      }
+    }
+    return false;
   }
 
-  public V put(K key, V value) {
-    if ( delegate.size() > maxSize ) {
-      List<Holder<V>> l = new ArrayList<Holder<V>>(delegate.values());
-      Collections.sort(l,new Comparator<Holder<V>>() {
-
-        public int compare(Holder<V> o1, Holder<V> o2) {
-          return (int) (o1.last - o2.last);
-        }
-      });
-      int i = 0;
-      while ( delegate.size() > maxSize && i < l.size() ) {
-        delegate.remove(l.get(i++).key);
+  public V get(Object key) {
+    Segment<K, V> segment = segmentFor(key);
+    synchronized (segment) {
+      V value = segment.get(key);
+      if (value != null || segment.containsKey(key)) {
+        hits.incrementAndGet();
+      } else {
+        misses.incrementAndGet();
       }
+      return value;
     }
-    Holder<V> v = delegate.put(key, new Holder<V>(key, value));
-    if (v == null) {
-      return null;
+  }
+
+  public V put(K key, V value) {
+    Segment<K, V> segment = segmentFor(key);
+    synchronized (segment) {
+      return segment.put(key, value);
     }
-    return v.value;
   }
 
   public V remove(Object key) {
-    Holder<V> v = delegate.remove(key);
-    if (v == null) {
-      return null;
+    Segment<K, V> segment = segmentFor(key);
+    synchronized (segment) {
+      return segment.remove(key);
     }
-    return v.value;
   }
 
   public void putAll(Map<? extends K, ? extends V> t) {
-    for ( java.util.Map.Entry<? extends K, ? extends V> e : t.entrySet()) {
+    for (Map.Entry<? extends K, ? extends V> e : t.entrySet()) {
       put(e.getKey(), e.getValue());
     }
   }
 
   public void clear() {
-    delegate.clear();
+    for (Segment<K, V> segment : segments) {
+      synchronized (segment) {
+        segment.clear();
+      }
+    }
   }
 
+  /**
+   * @return a snapshot of the keys.
+   */
   public Set<K> keySet() {
-    return delegate.keySet();
+    Set<K> keys = new HashSet<K>();
+    for (Segment<K, V> segment : segments) {
+      synchronized (segment) {
+        keys.addAll(segment.keySet());
+      }
+    }
+    return keys;
   }
 
+  /**
+   * @return a snapshot of the values.
+   */
   public Collection<V> values() {
     List<V> values = new ArrayList<V>();
-    for (Holder<V> v : delegate.values()) {
-      values.add(v.value);
+    for (Segment<K, V> segment : segments) {
+      synchronized (segment) {
+        values.addAll(segment.values());
+      }
     }
     return values;
   }
 
+  /**
+   * @return a snapshot of the entries, changes to the entries are not written back.
+   */
   public Set<Entry<K, V>> entrySet() {
-    Set<Entry<K, V>> set = new HashSet<Map.Entry<K, V>>();
-    for (final Entry<K, Holder<V>> e : delegate.entrySet()) {
-      set.add(new Entry<K, V>() {
+    Map<K, V> copy = new HashMap<K, V>();
+    for (Segment<K, V> segment : segments) {
+      synchronized (segment) {
+        copy.putAll(segment);
+      }
+    }
+    return copy.entrySet();
+  }
 
-        public K getKey() {
-          return e.getKey();
-        }
+  public long getHitCount() {
+    return hits.get();
+  }
 
-        public V getValue() {
-          return ((Holder<V>) e.getValue()).value;
-        }
+  public long getMissCount() {
+    return misses.get();
+  }
 
-        public V setValue(V value) {
-          Holder<V> h = e.setValue((Holder<V>) new Holder<V>(e.getKey(), value));
-          if (h == null) {
-            return null;
-          }
-          return h.value;
-        }
-      });
-    }
-    return set;
+  public long getEvictionCount() {
+    return evictions.get();
   }
 
-  public V get(Object key) {
-    Holder<V> v = delegate.get(key);
-    if (v == null) {
-      return null;
-    }
-    v.last = System.currentTimeMillis();
-    return v.value;
+  public double getHitRatio() {
+    long h = hits.get();
+    long total = h + misses.get();
+    return (total == 0) ? 0.0 : ((double) h) / total;
+  }
+
+  public int getSize() {
+    return size();
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public void resetStatistics() {
+    hits.set(0);
+    misses.set(0);
+    evictions.set(0);
   }
 }
@@ -0,0 +1,42 @@
+package org.apache.jackrabbit.core.security.principal;
+
+/**
+ * Statistics of a {@link ConcurrentLRUMap}, exposed over JMX.
+ */
+public interface ConcurrentLRUMapMBean {
+
+  /**
+   * @return the number of gets that found an entry, including negative entries.
+   */
+  long getHitCount();
+
+  /**
+   * @return the number of gets that found no entry.
+   */
+  long getMissCount();
+
+  /**
+   * @return the number of entries evicted to keep the map within its size.
+   */
+  long getEvictionCount();
+
+  /**
+   * @return hits / (hits + misses), 0 if there have been no gets.
+   */
+  double getHitRatio();
+
+  /**
+   * @return the number of entries in the map.
+   */
+  int getSize();
+
+  /**
+   * @return the maximum number of entries held by the map.
+   */
+  int getMaxSize();
+
+  /**
+   * Set the hit, miss and eviction counts back to 0.
+   */
+  void resetStatistics();
+}
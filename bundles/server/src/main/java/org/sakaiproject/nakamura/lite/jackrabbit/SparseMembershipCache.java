@@ -0,0 +1,318 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.jackrabbit;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Holds the transitive group membership of authorizables, so that resolving the principals
+ * of a user is a single map lookup rather than a walk of the group tree. Each entry records
+ * the groups it was built from; when any of those authorizables changes, every entry that
+ * depends on it is dropped. The cache is made of concurrent maps so lookups never wait on
+ * each other or on an invalidation. There is one instance per server, shared by all the
+ * principal providers, since the providers are created by Jackrabbit rather than OSGi.
+ * <p>
+ * Each invalidation stamps the authorizable with the value of a clock. A membership that
+ * was read from storage before the clock passed the stamp of any authorizable it depends
+ * on is not kept, so a walk that overlapped a change to one of its groups is not cached
+ * while walks through unrelated authorizables still are.
+ * </p>
+ * <p>
+ * Entries also expire after a while, so a membership change whose event was missed, or
+ * that reached a group without naming it, is not served for ever.
+ * </p>
+ */
+public class SparseMembershipCache {
+
+  private static final int DEFAULT_MAX_SIZE = 10000;
+  private static final long DEFAULT_MAX_AGE = 10L * 60L * 1000L;
+  private static final SparseMembershipCache INSTANCE = new SparseMembershipCache(
+      DEFAULT_MAX_SIZE);
+
+  private final int maxSize;
+  /**
+   * How long, in ms, a membership is served for before it is read again.
+   */
+  private final long maxAge;
+  private final ConcurrentMap<String, Entry> closures = new ConcurrentHashMap<String, Entry>();
+  private final ConcurrentMap<String, ConcurrentMap<String, Boolean>> dependents = new ConcurrentHashMap<String, ConcurrentMap<String, Boolean>>();
+  /**
+   * The clock value at which each authorizable was last invalidated.
+   */
+  private final ConcurrentMap<String, Long> invalidated = new ConcurrentHashMap<String, Long>();
+  private final AtomicLong clock = new AtomicLong();
+  /**
+   * Memberships read before this are not kept, the stamps older than it have been dropped.
+   */
+  private volatile long floor;
+  private final ReentrantLock evicting = new ReentrantLock();
+
+  public static SparseMembershipCache getInstance() {
+    return INSTANCE;
+  }
+
+  public SparseMembershipCache(int maxSize) {
+    this(maxSize, DEFAULT_MAX_AGE);
+  }
+
+  public SparseMembershipCache(int maxSize, long maxAge) {
+    this.maxSize = maxSize;
+    this.maxAge = maxAge;
+  }
+
+  /**
+   * @param authorizableId
+   * @return the principals the authorizable is a member of, directly or through other
+   *         groups, or null if not cached.
+   */
+  public Principal[] get(String authorizableId) {
+    Entry entry = closures.get(authorizableId);
+    if (entry == null) {
+      return null;
+    }
+    if (System.currentTimeMillis() - entry.created >= maxAge) {
+      remove(authorizableId, entry);
+      return null;
+    }
+    entry.used = System.nanoTime();
+    return entry.membership;
+  }
+
+  /**
+   * @return the current version, to be passed to {@link #put(String, Principal[], long)}
+   *         once the membership has been computed.
+   */
+  public long getVersion() {
+    return clock.get();
+  }
+
+  /**
+   * Cache the membership of an authorizable, unless the authorizable or one of the groups
+   * it was built from has been invalidated since the version was taken.
+   *
+   * @param authorizableId
+   * @param membership
+   *          the principals the authorizable is a member of.
+   * @param fromVersion
+   *          the version taken before the membership was read from storage.
+   */
+  public void put(String authorizableId, Principal[] membership, long fromVersion) {
+    if (isStale(authorizableId, membership, fromVersion)) {
+      return;
+    }
+    Entry entry = new Entry(membership);
+    // link before the entry is visible and check again after, so an invalidation running
+    // at the same time either finds the entry through its links or has stamped first.
+    link(authorizableId, authorizableId);
+    for (Principal p : membership) {
+      link(p.getName(), authorizableId);
+    }
+    Entry previous = closures.put(authorizableId, entry);
+    if (previous != null) {
+      unlinkStale(authorizableId, previous.membership, membership);
+    }
+    if (isStale(authorizableId, membership, fromVersion)) {
+      remove(authorizableId, entry);
+      return;
+    }
+    if (closures.size() > maxSize) {
+      evict();
+    }
+  }
+
+  /**
+   * Drop the membership of the authorizable, and of every authorizable whose membership
+   * was computed through it.
+   *
+   * @param authorizableId
+   */
+  public void invalidate(String authorizableId) {
+    invalidated.put(authorizableId, clock.incrementAndGet());
+    if (invalidated.size() > maxSize) {
+      // stamps are only needed for walks in flight, anything older than now can go.
+      floor = clock.get();
+      invalidated.clear();
+    }
+    Map<String, Boolean> affected = dependents.get(authorizableId);
+    if (affected != null) {
+      for (String id : affected.keySet()) {
+        remove(id);
+      }
+    }
+    remove(authorizableId);
+  }
+
+  /**
+   * @return true if the authorizable may have changed since the version was taken.
+   */
+  public boolean isInvalidatedSince(String authorizableId, long fromVersion) {
+    return fromVersion < floor || invalidatedSince(authorizableId, fromVersion);
+  }
+
+  public void clear() {
+    floor = clock.incrementAndGet();
+    closures.clear();
+    dependents.clear();
+    invalidated.clear();
+  }
+
+  public int size() {
+    return closures.size();
+  }
+
+  private boolean isStale(String authorizableId, Principal[] membership, long fromVersion) {
+    if (fromVersion < floor || invalidatedSince(authorizableId, fromVersion)) {
+      return true;
+    }
+    for (Principal p : membership) {
+      if (invalidatedSince(p.getName(), fromVersion)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean invalidatedSince(String authorizableId, long fromVersion) {
+    Long stamp = invalidated.get(authorizableId);
+    return stamp != null && stamp > fromVersion;
+  }
+
+  /**
+   * Drop the least recently used tenth of the entries. Only one thread evicts at a time,
+   * others carry on while it does.
+   */
+  private void evict() {
+    if (!evicting.tryLock()) {
+      return;
+    }
+    try {
+      int excess = closures.size() - (maxSize - maxSize / 10);
+      if (excess <= 0) {
+        return;
+      }
+      List<Map.Entry<String, Entry>> entries = new ArrayList<Map.Entry<String, Entry>>(
+          closures.entrySet());
+      Collections.sort(entries, new Comparator<Map.Entry<String, Entry>>() {
+        public int compare(Map.Entry<String, Entry> o1, Map.Entry<String, Entry> o2) {
+          long u1 = o1.getValue().used;
+          long u2 = o2.getValue().used;
+          return u1 < u2 ? -1 : (u1 == u2 ? 0 : 1);
+        }
+      });
+      for (int i = 0; i < excess && i < entries.size(); i++) {
+        remove(entries.get(i).getKey(), entries.get(i).getValue());
+      }
+    } finally {
+      evicting.unlock();
+    }
+  }
+
+  private void remove(String authorizableId) {
+    Entry entry = closures.remove(authorizableId);
+    if (entry != null) {
+      unlink(authorizableId, entry.membership);
+    }
+  }
+
+  private void remove(String authorizableId, Entry entry) {
+    if (closures.remove(authorizableId, entry)) {
+      unlink(authorizableId, entry.membership);
+    }
+  }
+
+  private void link(String dependency, String authorizableId) {
+    while (true) {
+      ConcurrentMap<String, Boolean> d = dependents.get(dependency);
+      if (d == null) {
+        d = new ConcurrentHashMap<String, Boolean>();
+        ConcurrentMap<String, Boolean> existing = dependents.putIfAbsent(dependency, d);
+        if (existing != null) {
+          d = existing;
+        }
+      }
+      d.put(authorizableId, Boolean.TRUE);
+      // an unlink may have dropped the set as empty just before the put.
+      if (dependents.get(dependency) == d) {
+        return;
+      }
+    }
+  }
+
+  private void unlink(String authorizableId, Principal[] membership) {
+    // the authorizable may have been cached again since, keep the links it needs.
+    Entry current = closures.get(authorizableId);
+    Principal[] keep = (current == null) ? null : current.membership;
+    if (keep == null) {
+      unlink(authorizableId, authorizableId);
+    }
+    unlinkStale(authorizableId, membership, keep);
+  }
+
+  private void unlinkStale(String authorizableId, Principal[] membership, Principal[] keep) {
+    for (Principal p : membership) {
+      if (!contains(keep, p.getName())) {
+        unlink(p.getName(), authorizableId);
+      }
+    }
+  }
+
+  private boolean contains(Principal[] principals, String name) {
+    if (principals != null) {
+      for (Principal p : principals) {
+        if (name.equals(p.getName())) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private void unlink(String dependency, String authorizableId) {
+    ConcurrentMap<String, Boolean> d = dependents.get(dependency);
+    if (d != null) {
+      d.remove(authorizableId);
+      if (d.isEmpty() && dependents.remove(dependency, d)) {
+        // put back anything linked while the set was being dropped.
+        for (String id : d.keySet()) {
+          link(dependency, id);
+        }
+      }
+    }
+  }
+
+  private static final class Entry {
+    private final Principal[] membership;
+    private final long created;
+    private volatile long used;
+
+    private Entry(Principal[] membership) {
+      this.membership = membership;
+      this.created = System.currentTimeMillis();
+      this.used = System.nanoTime();
+    }
+  }
+}
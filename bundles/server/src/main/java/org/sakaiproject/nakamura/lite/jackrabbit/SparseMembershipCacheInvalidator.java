@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.jackrabbit;
+
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+
+/**
+ * Drops cached group membership when an authorizable is added, updated or deleted, and
+ * of the members a group change added or removed. Bound to the authorizable topics in
+ * OSGI-INF/serviceComponents.xml.
+ */
+public class SparseMembershipCacheInvalidator implements EventHandler {
+
+  /**
+   * The id of a deleted authorizable, UserConstants.EVENT_PROP_USERID in the user bundle
+   * which this bundle does not depend on.
+   */
+  static final String EVENT_PROP_USERID = "userid";
+
+  /**
+   * Members added to or removed from a group, comma separated, on authorizable events.
+   */
+  static final String EVENT_PROP_ADDED = "added";
+  static final String EVENT_PROP_REMOVED = "removed";
+
+  public void handleEvent(Event event) {
+    // added and updated events carry the id as the path, deletes carry it as the userid.
+    Object id = event.getProperty(EVENT_PROP_USERID);
+    if (id == null) {
+      id = event.getProperty(StoreListener.PATH_PROPERTY);
+    }
+    SparseMembershipCache cache = SparseMembershipCache.getInstance();
+    if (id != null) {
+      cache.invalidate(String.valueOf(id));
+    }
+    invalidateAll(cache, event.getProperty(EVENT_PROP_ADDED));
+    invalidateAll(cache, event.getProperty(EVENT_PROP_REMOVED));
+  }
+
+  private void invalidateAll(SparseMembershipCache cache, Object ids) {
+    if (ids != null) {
+      for (String id : String.valueOf(ids).split(",")) {
+        id = id.trim();
+        if (id.length() > 0) {
+          cache.invalidate(id);
+        }
+      }
+    }
+  }
+}
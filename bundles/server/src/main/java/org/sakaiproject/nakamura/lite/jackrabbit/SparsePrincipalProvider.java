@@ -35,18 +35,23 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
-import org.sakaiproject.nakamura.api.lite.util.PreemptiveIterator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
 import java.security.Principal;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 public class SparsePrincipalProvider implements PrincipalProvider {
 
@@ -55,6 +60,8 @@ public class SparsePrincipalProvider implements PrincipalProvider {
   public static final String MAXSIZE_KEY = "cacheMaxSize";
   /** Option name to enable negative cache entries (see JCR-2672) */
   public static final String NEGATIVE_ENTRY_KEY = "cacheIncludesNegative";
+  /** Option name for how long, in ms, a negative cache entry is kept */
+  public static final String NEGATIVE_MAX_AGE_KEY = "cacheNegativeMaxAge";
   private static final Logger LOGGER = LoggerFactory
       .getLogger(SparsePrincipalProvider.class);
 
@@ -63,10 +70,19 @@ public class SparsePrincipalProvider implements PrincipalProvider {
 
   /** the principal cache */
   private ConcurrentLRUMap<String, Principal> cache = new ConcurrentLRUMap<String, Principal>();
+  /** true if principals that were not found are cached */
+  private boolean cacheIncludesNegative;
+  /** the principals that were not found */
+  private ConcurrentLRUMap<String, NegativeEntry> negativeCache = new ConcurrentLRUMap<String, NegativeEntry>();
+  /** how long, in ms, a principal that was not found is remembered for */
+  private long negativeMaxAge;
+  /** the name the cache statistics are registered under in JMX */
+  private ObjectName cacheMBeanName;
   private Repository sparseRepository;
   private org.sakaiproject.nakamura.api.lite.Session session;
   private AuthorizableManager authorizableManager;
   private AccessControlManager accesControlManager;
+  private SparseMembershipCache membershipCache = SparseMembershipCache.getInstance();
 
   /**
    * Creates a new DefaultPrincipalProvider reading the principals from the storage below
@@ -136,79 +152,110 @@ public class SparsePrincipalProvider implements PrincipalProvider {
     return PrincipalIteratorAdapter.EMPTY;
   }
 
+  /**
+   * The transitive membership of the principal comes from the shared
+   * {@link SparseMembershipCache} when possible, otherwise it is resolved from storage and
+   * cached.
+   */
   public PrincipalIterator getGroupMembership(final Principal principal) {
-    final List<String> memberIds = new ArrayList<String>();
+    String principalName = principal.getName();
+    Principal[] membership = membershipCache.get(principalName);
+    if (membership == null) {
+      long version = membershipCache.getVersion();
+      Membership resolved = resolveMembership(principalName);
+      if (resolved == null) {
+        return PrincipalIteratorAdapter.EMPTY;
+      }
+      membership = resolved.principals.toArray(new Principal[resolved.principals.size()]);
+      if (resolved.complete) {
+        membershipCache.put(principalName, membership, version);
+      }
+    }
+    List<Principal> principals = new ArrayList<Principal>(membership.length + 1);
+    boolean hasEveryone = false;
+    for (Principal p : membership) {
+      principals.add(p);
+      hasEveryone = hasEveryone || everyonePrincipal.getName().equals(p.getName());
+    }
+    if (!hasEveryone && everyonePrincipal.isMember(principal)) {
+      principals.add(everyonePrincipal);
+      addToCache(principal);
+    }
+    return new PrincipalIteratorAdapter(principals);
+  }
+
+  /**
+   * Walk the group tree breadth first from the authorizable.
+   *
+   * @param principalName
+   * @return the membership, or null if there is no such authorizable.
+   */
+  private Membership resolveMembership(String principalName) {
+    Membership membership = new Membership();
+    LinkedList<String> pending = new LinkedList<String>();
+    Set<String> seen = new HashSet<String>();
+    seen.add(principalName);
     try {
-      org.sakaiproject.nakamura.api.lite.authorizable.Authorizable a = authorizableManager
-          .findAuthorizable(principal.getName());
+      Authorizable a = authorizableManager.findAuthorizable(principalName);
       if (a == null) {
-        return PrincipalIteratorAdapter.EMPTY;
+        return null;
+      }
+      for (String pid : a.getPrincipals()) {
+        if (seen.add(pid)) {
+          pending.add(pid);
+        }
       }
-      Collections.addAll(memberIds, a.getPrincipals());
     } catch (AccessDeniedException e) {
       LOGGER.debug(e.getMessage(), e);
+      membership.complete = false;
     } catch (StorageClientException e) {
       LOGGER.debug(e.getMessage(), e);
+      membership.complete = false;
     }
-    if (everyonePrincipal.isMember(principal)
-        && !memberIds.contains(everyonePrincipal.getName())) {
-      memberIds.add(everyonePrincipal.getName());
-      addToCache(principal);
-    }
-
-    return new PrincipalIteratorAdapter(new PreemptiveIterator<Principal>() {
-
-      private int p = 0;
-      private Principal prin = null;
-
-      protected boolean internalHasNext() {
-        while (p < memberIds.size()) {
-          String id = memberIds.get(p);
-          p++;
-          try {
-            if (everyonePrincipal.getName().equals(id)) {
-              prin = everyonePrincipal;
-              return true;
-            } else {
-              org.sakaiproject.nakamura.api.lite.authorizable.Authorizable a = authorizableManager
-                  .findAuthorizable(id);
-              if (a instanceof org.sakaiproject.nakamura.api.lite.authorizable.Group) {
-                for (String pid : a.getPrincipals()) {
-                  if (!memberIds.contains(pid)) {
-                    memberIds.add(pid);
-                  }
-                }
-                if (cache.containsKey(id)) {
-                  prin = cache.get(id);
-                } else {
-                  prin = new SparsePrincipal(a, this.getClass().getName());
-                  addToCache(prin);
-                }
-                return true;
-              } else if (a instanceof org.sakaiproject.nakamura.api.lite.authorizable.User) {
-                if (cache.containsKey(id)) {
-                  prin = cache.get(id);
-                } else {
-                  prin = new SparsePrincipal(a, this.getClass().getName());
-                  addToCache(prin);
-                }
-                return true;
-              }
+    while (!pending.isEmpty()) {
+      String id = pending.removeFirst();
+      if (everyonePrincipal.getName().equals(id)) {
+        membership.principals.add(everyonePrincipal);
+        continue;
+      }
+      try {
+        Authorizable member = authorizableManager.findAuthorizable(id);
+        if (member instanceof org.sakaiproject.nakamura.api.lite.authorizable.Group) {
+          for (String pid : member.getPrincipals()) {
+            if (seen.add(pid)) {
+              pending.add(pid);
             }
-          } catch (AccessDeniedException e) {
-            LOGGER.info(e.getMessage(), e);
-          } catch (StorageClientException e) {
-            LOGGER.info(e.getMessage(), e);
           }
+          membership.principals.add(getCachedPrincipal(member));
+        } else if (member instanceof User) {
+          membership.principals.add(getCachedPrincipal(member));
         }
-        return false;
+      } catch (AccessDeniedException e) {
+        LOGGER.info(e.getMessage(), e);
+        membership.complete = false;
+      } catch (StorageClientException e) {
+        LOGGER.info(e.getMessage(), e);
+        membership.complete = false;
       }
+    }
+    return membership;
+  }
 
-      protected Principal internalNext() {
-        return prin;
-      }
+  private Principal getCachedPrincipal(Authorizable authorizable) {
+    Principal prin = cache.get(authorizable.getId());
+    if (prin == null) {
+      prin = new SparsePrincipal(authorizable, SparsePrincipalProvider.class.getName());
+      addToCache(prin);
+    }
+    return prin;
+  }
 
-    });
+  /**
+   * The result of walking the group tree, only complete results are cached.
+   */
+  private static class Membership {
+    private List<Principal> principals = new ArrayList<Principal>();
+    private boolean complete = true;
   }
 
   /**
@@ -259,6 +306,7 @@ public class SparsePrincipalProvider implements PrincipalProvider {
   }
 
   public void close() {
+    unregisterCacheMBean();
     try {
       session.logout();
     } catch (ClientPoolException e) {
@@ -272,15 +320,17 @@ public class SparsePrincipalProvider implements PrincipalProvider {
    * {@link #providePrincipal(String)} is called, if no matching entry is present in the
    * cache.<br>
    * NOTE: If the cache is enabled to contain negative entries (see
-   * {@link #NEGATIVE_ENTRY_KEY} configuration option), the cache will also store negative
-   * matches (as <code>null</code> values) in the principal cache.
+   * {@link #NEGATIVE_ENTRY_KEY} configuration option), negative matches are remembered
+   * too, until {@link #NEGATIVE_MAX_AGE_KEY} ms have passed or an authorizable of that name
+   * is added.
    */
   public Principal getPrincipal(String principalName) {
     checkInitialized();
-    if (cache.containsKey(principalName)) {
-      return (Principal) cache.get(principalName);
+    Principal principal = cache.get(principalName);
+    if (principal != null || isKnownMissing(principalName)) {
+      return principal;
     }
-    Principal principal = null;
+    long version = membershipCache.getVersion();
     try {
       principal = providePrincipal(principalName);
     } catch (RepositoryException e) {
@@ -288,10 +338,42 @@ public class SparsePrincipalProvider implements PrincipalProvider {
     }
     if (principal != null) {
       cache.put(principalName, principal);
+    } else if (cacheIncludesNegative) {
+      negativeCache.put(principalName, new NegativeEntry(version));
     }
     return principal;
   }
 
+  /**
+   * @return true if the principal was not found a short while ago, and no authorizable of
+   *         that name has been added since.
+   */
+  private boolean isKnownMissing(String principalName) {
+    NegativeEntry entry = negativeCache.get(principalName);
+    if (entry == null) {
+      return false;
+    }
+    if (System.currentTimeMillis() - entry.created >= negativeMaxAge
+        || membershipCache.isInvalidatedSince(principalName, entry.version)) {
+      negativeCache.remove(principalName);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * A principal that was not found, with the membership cache version from before the
+   * lookup, so an authorizable added since can be noticed.
+   */
+  private static class NegativeEntry {
+    private final long version;
+    private final long created = System.currentTimeMillis();
+
+    private NegativeEntry(long version) {
+      this.version = version;
+    }
+  }
+
   /**
    * Check if the instance has been closed {@link #close()}.
    * 
@@ -309,6 +391,7 @@ public class SparsePrincipalProvider implements PrincipalProvider {
    */
   protected void clearCache() {
     cache.clear();
+    negativeCache.clear();
   }
 
   /**
@@ -318,7 +401,7 @@ public class SparsePrincipalProvider implements PrincipalProvider {
    *          to be cached.
    */
   protected void addToCache(Principal principal) {
-
+    cache.put(principal.getName(), principal);
   }
 
   /**
@@ -331,8 +414,41 @@ public class SparsePrincipalProvider implements PrincipalProvider {
 
     int maxSize = Integer.parseInt(options.getProperty(MAXSIZE_KEY, "1000"));
     cache = new ConcurrentLRUMap<String, Principal>(maxSize);
+    cacheIncludesNegative = Boolean.parseBoolean(options.getProperty(NEGATIVE_ENTRY_KEY,
+        "false"));
+    negativeCache = new ConcurrentLRUMap<String, NegativeEntry>(maxSize);
+    negativeMaxAge = Long.parseLong(options.getProperty(NEGATIVE_MAX_AGE_KEY, "60000"));
+    registerCacheMBean();
 
     initialized = true;
   }
 
+  /**
+   * Expose the hit, miss and eviction counts of the principal cache over JMX. There may be
+   * a provider per workspace, so each registers under its own id.
+   */
+  private void registerCacheMBean() {
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      cacheMBeanName = new ObjectName(
+          "org.sakaiproject.nakamura:type=PrincipalCache,provider="
+              + System.identityHashCode(this));
+      mBeanServer.registerMBean(cache, cacheMBeanName);
+    } catch (JMException e) {
+      cacheMBeanName = null;
+      LOGGER.warn("Unable to register principal cache statistics: {} ", e.getMessage());
+    }
+  }
+
+  private void unregisterCacheMBean() {
+    if (cacheMBeanName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(cacheMBeanName);
+      } catch (JMException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+      cacheMBeanName = null;
+    }
+  }
+
 }
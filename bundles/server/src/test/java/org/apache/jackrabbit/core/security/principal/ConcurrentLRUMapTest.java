@@ -0,0 +1,51 @@
+package org.apache.jackrabbit.core.security.principal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ConcurrentLRUMapTest {
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    // small enough to be a single segment, so the order is exact.
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(3);
+    map.put("a", "1");
+    map.put("b", "2");
+    map.put("c", "3");
+    map.get("a");
+    map.put("d", "4");
+    assertTrue(map.containsKey("a"));
+    assertFalse(map.containsKey("b"));
+    assertEquals(3, map.size());
+    assertEquals(1, map.getEvictionCount());
+  }
+
+  @Test
+  public void testBounded() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(1000);
+    for (int i = 0; i < 10000; i++) {
+      map.put("key" + i, "value" + i);
+      map.get("key0");
+    }
+    assertTrue(map.size() <= 1000 + 16);
+    assertEquals("value0", map.get("key0"));
+  }
+
+  @Test
+  public void testNegativeEntriesAndStatistics() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(10);
+    map.put("missing", null);
+    assertTrue(map.containsKey("missing"));
+    assertNull(map.get("missing"));
+    assertNull(map.get("unknown"));
+    assertEquals(1, map.getHitCount());
+    assertEquals(1, map.getMissCount());
+    assertEquals(0.5, map.getHitRatio(), 0.001);
+    map.resetStatistics();
+    assertEquals(0, map.getHitCount());
+  }
+}
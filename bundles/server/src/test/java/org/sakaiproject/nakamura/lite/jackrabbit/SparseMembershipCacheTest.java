@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.jackrabbit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+
+import java.security.Principal;
+import java.util.Hashtable;
+
+public class SparseMembershipCacheTest {
+
+  private Principal group(String id) {
+    return new SparsePrincipal(id, "test", SparsePrincipal.GROUP_REPO_LOCATION);
+  }
+
+  @Test
+  public void testInvalidateDependents() {
+    SparseMembershipCache cache = new SparseMembershipCache(100);
+    cache.put("alice", new Principal[] { group("course1"), group("faculty") },
+        cache.getVersion());
+    cache.put("bob", new Principal[] { group("course1") }, cache.getVersion());
+    cache.put("carol", new Principal[] { group("course2") }, cache.getVersion());
+    assertEquals(3, cache.size());
+
+    // course1 joined another group, everyone whose membership went through it is stale.
+    cache.invalidate("course1");
+    assertNull(cache.get("alice"));
+    assertNull(cache.get("bob"));
+    assertNotNull(cache.get("carol"));
+
+    cache.invalidate("carol");
+    assertNull(cache.get("carol"));
+  }
+
+  @Test
+  public void testStaleVersionNotCached() {
+    SparseMembershipCache cache = new SparseMembershipCache(100);
+    long version = cache.getVersion();
+    cache.invalidate("course1");
+    cache.put("alice", new Principal[] { group("course1") }, version);
+    assertNull(cache.get("alice"));
+  }
+
+  @Test
+  public void testUnrelatedInvalidationStillCached() {
+    SparseMembershipCache cache = new SparseMembershipCache(100);
+    long version = cache.getVersion();
+    cache.invalidate("course2");
+    cache.put("alice", new Principal[] { group("course1") }, version);
+    assertNotNull(cache.get("alice"));
+  }
+
+  @Test
+  public void testInvalidatorReadsDeletedUserId() {
+    SparseMembershipCache cache = SparseMembershipCache.getInstance();
+    cache.put("course1", new Principal[] { group("faculty") }, cache.getVersion());
+    cache.put("alice", new Principal[] { group("course1") }, cache.getVersion());
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(SparseMembershipCacheInvalidator.EVENT_PROP_USERID, "course1");
+    new SparseMembershipCacheInvalidator().handleEvent(new Event(
+        "org/sakaiproject/nakamura/lite/authorizables/DELETE", properties));
+    assertNull(cache.get("course1"));
+    assertNull(cache.get("alice"));
+    cache.clear();
+  }
+
+  @Test
+  public void testInvalidatorReadsChangedMembers() {
+    SparseMembershipCache cache = SparseMembershipCache.getInstance();
+    cache.put("course1", new Principal[] { group("faculty") }, cache.getVersion());
+    cache.put("alice", new Principal[] { group("course2") }, cache.getVersion());
+    cache.put("bob", new Principal[] { group("course1") }, cache.getVersion());
+    cache.put("carol", new Principal[] { group("course3") }, cache.getVersion());
+
+    // alice joined and bob left course2, an update of course2 lists both.
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(StoreListener.PATH_PROPERTY, "course2");
+    properties.put(SparseMembershipCacheInvalidator.EVENT_PROP_ADDED, "alice");
+    properties.put(SparseMembershipCacheInvalidator.EVENT_PROP_REMOVED, "bob, course1");
+    new SparseMembershipCacheInvalidator().handleEvent(new Event(
+        "org/sakaiproject/nakamura/lite/authorizables/UPDATED", properties));
+    assertNull(cache.get("alice"));
+    assertNull(cache.get("bob"));
+    assertNull(cache.get("course1"));
+    assertNotNull(cache.get("carol"));
+    cache.clear();
+  }
+
+  @Test
+  public void testExpires() throws InterruptedException {
+    SparseMembershipCache cache = new SparseMembershipCache(100, 50);
+    cache.put("alice", new Principal[] { group("course1") }, cache.getVersion());
+    assertNotNull(cache.get("alice"));
+    Thread.sleep(100);
+    assertNull(cache.get("alice"));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testInvalidatedSince() {
+    SparseMembershipCache cache = new SparseMembershipCache(2);
+    long version = cache.getVersion();
+    assertFalse(cache.isInvalidatedSince("alice", version));
+    cache.invalidate("alice");
+    assertTrue(cache.isInvalidatedSince("alice", version));
+    assertFalse(cache.isInvalidatedSince("bob", version));
+    assertFalse(cache.isInvalidatedSince("alice", cache.getVersion()));
+
+    // once the stamps are dropped, anything older may have changed.
+    cache.invalidate("carol");
+    cache.invalidate("dave");
+    assertTrue(cache.isInvalidatedSince("bob", version));
+  }
+
+  @Test
+  public void testBounded() {
+    SparseMembershipCache cache = new SparseMembershipCache(10);
+    for (int i = 0; i < 100; i++) {
+      cache.put("user" + i, new Principal[] { group("group" + i) }, cache.getVersion());
+    }
+    assertTrue(cache.size() <= 10);
+    assertNotNull(cache.get("user99"));
+    assertNull(cache.get("user0"));
+  }
+}
@@ -5,8 +5,13 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.request.RequestParameter;
+import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
-import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.exception.ParseErrorException;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.apache.velocity.runtime.parser.ParseException;
+import org.apache.velocity.runtime.parser.node.SimpleNode;
 import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.templates.TemplateNodeSource;
 import org.sakaiproject.nakamura.api.templates.TemplateService;
@@ -14,16 +19,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Map.Entry;
 
-import javax.jcr.Node;
 import javax.jcr.Repository;
 import org.apache.commons.lang.StringUtils;
 
@@ -34,7 +39,23 @@ public class VelocityTemplateService implements TemplateService, TemplateNodeSou
   private static final Logger LOGGER = LoggerFactory
       .getLogger(VelocityTemplateService.class);
 
-  private VelocityEngine velocityEngine;
+  /**
+   * The number of parsed templates to keep. Templates are keyed by their text, so an edited
+   * template is parsed again and the old entry ages out.
+   */
+  private static final int MAX_COMPILED_TEMPLATES = 500;
+
+  private RuntimeInstance velocityRuntime;
+
+  private final Map<String, Template> compiledTemplates = Collections
+      .synchronizedMap(new LinkedHashMap<String, Template>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Entry<String, Template> eldest) {
+          return size() > MAX_COMPILED_TEMPLATES;
+        }
+      });
 
   @Reference
   protected Repository repository;
@@ -43,11 +64,9 @@ public class VelocityTemplateService implements TemplateService, TemplateNodeSou
     Map<String, String> sanitizedParameters = sanitize(parameters);
     VelocityContext context = new VelocityContext(sanitizedParameters);
     // combine template with parameter map
-    Reader templateReader = new StringReader(template);
     StringWriter templateWriter = new StringWriter();
     try {
-      velocityEngine.evaluate(context, templateWriter, "templateprocessing",
-          templateReader);
+      compile(template).merge(context, templateWriter);
     } catch (IOException e) {
       LOGGER.error(e.getMessage(), e);
     }
@@ -97,40 +116,63 @@ public class VelocityTemplateService implements TemplateService, TemplateNodeSou
       return Collections.emptyList();
     }
 
+    // every ${...} in the text is required, including those in #if and #foreach blocks.
     Collection<String> missingTerms = new ArrayList<String>();
-    int startPosition = template.indexOf("${");
-    while (startPosition > -1) {
-      int endPosition = template.indexOf("}", startPosition);
-      if (endPosition > -1) {
-        String key = template.substring(startPosition + 2, endPosition);
-        Object value = parameters.get(key);
-        if (value == null) {
-          missingTerms.add(key);
-        }
-        // look for the next velocity replacement variable
-        startPosition = template.indexOf("${", endPosition);
-      } else {
-        break;
+    for (String key : missingTerms(template)) {
+      Object value = parameters.get(key);
+      if (value == null) {
+        missingTerms.add(key);
       }
     }
     return missingTerms;
   }
 
+  /**
+   * Get the parsed form of a template, parsing it if it has not been seen before.
+   *
+   * @param template
+   *          the text of the template.
+   * @return the parsed template.
+   * @throws ParseErrorException
+   *           if the template is not valid. Invalid templates are not cached.
+   */
+  private Template compile(String template) {
+    Template compiled = compiledTemplates.get(template);
+    if (compiled == null) {
+      SimpleNode document;
+      try {
+        document = velocityRuntime.parse(new StringReader(template), "templateprocessing");
+      } catch (ParseException e) {
+        throw new ParseErrorException(e);
+      }
+      Template velocityTemplate = new Template();
+      velocityTemplate.setName("templateprocessing");
+      velocityTemplate.setRuntimeServices(velocityRuntime);
+      velocityTemplate.setData(document);
+      velocityTemplate.initDocument();
+      // two threads may parse the same template at once, either result is good.
+      compiled = velocityTemplate;
+      compiledTemplates.put(template, compiled);
+    }
+    return compiled;
+  }
+
   protected void activate(ComponentContext ctx) throws Exception {
-    velocityEngine = new VelocityEngine();
-    velocityEngine.setProperty(VelocityEngine.RUNTIME_LOG_LOGSYSTEM, new VelocityLogger(
+    velocityRuntime = new RuntimeInstance();
+    velocityRuntime.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM, new VelocityLogger(
         this.getClass()));
 
-    velocityEngine.setProperty(VelocityEngine.RESOURCE_LOADER, "jcr");
-    velocityEngine.setProperty("jcr.resource.loader.class",
+    velocityRuntime.setProperty(RuntimeConstants.RESOURCE_LOADER, "jcr");
+    velocityRuntime.setProperty("jcr.resource.loader.class",
         JcrResourceLoader.class.getName());
     ExtendedProperties configuration = new ExtendedProperties();
     configuration.addProperty("jcr.resource.loader.resourceSource", this);
-    velocityEngine.setExtendedProperties(configuration);
-    velocityEngine.init();
+    velocityRuntime.setConfiguration(configuration);
+    velocityRuntime.init();
+    compiledTemplates.clear();
   }
 
-  public Node getNode() {
+  public javax.jcr.Node getNode() {
     // Velocity calls this, but it doesn't seem to make a difference in practice
     return null;
   }
@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.templates.velocity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+public class VelocityTemplateServiceTest {
+
+  private static final String CONDITIONAL = "title:${q}#if($tag) AND tag:${tag}#end";
+
+  private VelocityTemplateService templateService;
+
+  @Before
+  public void setUp() throws Exception {
+    templateService = new VelocityTemplateService();
+    templateService.activate(null);
+  }
+
+  @Test
+  public void testConditionalReferenceNotRendered() {
+    Map<String, String> parameters = new HashMap<String, String>();
+    parameters.put("q", "fish");
+    String query = templateService.evaluateTemplate(parameters, CONDITIONAL);
+    assertEquals("title:fish", query);
+    // the unset variable is inside an #if that was not rendered, so nothing is missing.
+    assertTrue(templateService.missingTerms(query).isEmpty());
+  }
+
+  @Test
+  public void testConditionalReferenceRendered() {
+    Map<String, String> parameters = new HashMap<String, String>();
+    parameters.put("q", "fish");
+    parameters.put("tag", "pets");
+    String query = templateService.evaluateTemplate(parameters, CONDITIONAL);
+    assertEquals("title:fish AND tag:pets", query);
+    assertTrue(templateService.missingTerms(query).isEmpty());
+  }
+
+  @Test
+  public void testMissingReferenceLeftInOutput() {
+    Map<String, String> parameters = new HashMap<String, String>();
+    String query = templateService.evaluateTemplate(parameters, CONDITIONAL);
+    Collection<String> missing = templateService.missingTerms(query);
+    assertEquals(1, missing.size());
+    assertTrue(missing.contains("q"));
+  }
+
+  @Test
+  public void testCachedTemplateEvaluatedWithNewParameters() {
+    Map<String, String> parameters = new HashMap<String, String>();
+    parameters.put("q", "fish");
+    assertEquals("title:fish", templateService.evaluateTemplate(parameters, CONDITIONAL));
+    parameters.put("q", "cat");
+    assertEquals("title:cat", templateService.evaluateTemplate(parameters, CONDITIONAL));
+  }
+
+  @Test
+  public void testMissingTermsInTemplateText() {
+    Map<String, String> parameters = new HashMap<String, String>();
+    parameters.put("q", "fish");
+    Collection<String> missing = templateService.missingTerms(parameters, CONDITIONAL);
+    assertEquals(1, missing.size());
+    assertTrue(missing.contains("tag"));
+  }
+}
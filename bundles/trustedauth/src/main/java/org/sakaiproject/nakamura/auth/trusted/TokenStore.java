@@ -38,6 +38,8 @@ import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
@@ -124,13 +126,12 @@ public class TokenStore {
         SecureCookieException {
       String cookiePayload = String.valueOf(secretKeyId) + String.valueOf(expires) + "@"
           + encodeField(userId) + "@" + tokenType+ "@" + serverId;
-      Mac m = Mac.getInstance(HMAC_SHA1);
       ExpiringSecretKey expiringSecretKey = TokenStore.this.getSecretKey(serverId,
           secretKeyId);
       if (expiringSecretKey == null) {
         throw new SecureCookieException("Key serverId=["+serverId+"]: KeyId=["+secretKeyId+"] not found ", false);
       }
-      m.init(TokenStore.this.getSecretKey(serverId, secretKeyId).getSecretKey());
+      Mac m = getMac(expiringSecretKey.getSecretKey());
       m.update(cookiePayload.getBytes(UTF_8));
       String cookieValue = encodeField(m.doFinal());
       return cookieValue + "@" + cookiePayload;
@@ -142,6 +143,17 @@ public class TokenStore {
      * @throws SecureCookieException
      */
     public String[] decode(String value) throws SecureCookieException {
+      if (value != null) {
+        synchronized (verifiedCookies) {
+          VerifiedCookie verified = verifiedCookies.get(value);
+          if (verified != null) {
+            if (System.currentTimeMillis() < verified.expires) {
+              return new String[] { verified.userId, verified.tokenType };
+            }
+            verifiedCookies.remove(value);
+          }
+        }
+      }
       String[] parts = StringUtils.split(value, "@");
       if (parts != null && parts.length == 5) {
         this.secretKeyId = Integer.parseInt(parts[1].substring(0, 1));
@@ -165,6 +177,7 @@ public class TokenStore {
             }
             String hmac = encode(cookieTime, userId, this.tokenType);
             if (value.equals(hmac)) {
+              addVerifiedCookie(value, new VerifiedCookie(userId, tokenType, cookieTime));
               return new String[]{userId, tokenType};
             }
           } catch (ArrayIndexOutOfBoundsException e) {
@@ -192,8 +205,40 @@ public class TokenStore {
 
   }
 
+  /**
+   * A cookie value whose HMAC has been checked.
+   */
+  private static final class VerifiedCookie {
+    private final String userId;
+    private final String tokenType;
+    private final long expires;
+
+    private VerifiedCookie(String userId, String tokenType, long expires) {
+      this.userId = userId;
+      this.tokenType = tokenType;
+      this.expires = expires;
+    }
+  }
+
+  /**
+   * A Mac for one thread, and the key it was last initialised with.
+   */
+  private static final class KeyedMac {
+    private final Mac mac;
+    private SecretKey secretKey;
+
+    private KeyedMac(Mac mac) {
+      this.mac = mac;
+    }
+  }
+
   public static final Logger LOG = LoggerFactory.getLogger(TokenStore.class);
 
+  /**
+   * The number of verified cookie values to remember.
+   */
+  static final int MAX_VERIFIED_COOKIES = 10000;
+
   /**
    *
    */
@@ -217,15 +262,16 @@ public class TokenStore {
   /**
    * The time when a new token should be created.
    */
-  private long nextUpdate = System.currentTimeMillis();
+  private volatile long nextUpdate = System.currentTimeMillis();
   /**
    * The location of the current token.
    */
-  private int secretKeyId = 0;
+  private volatile int secretKeyId = 0;
   /**
-   * A ring of tokens used to encypt.
+   * A ring of tokens used to encypt. The ring is copied on write so it can be read
+   * without holding the lock.
    */
-  private ExpiringSecretKey[] secretKeyRingBuffer;
+  private volatile ExpiringSecretKey[] secretKeyRingBuffer;
   /**
    * A secure random used for generating new tokens.
    */
@@ -253,6 +299,26 @@ public class TokenStore {
 
   private boolean debugCookies;
 
+  /**
+   * Cookie values that have already been verified, so the HMAC of a cookie is only
+   * worked out the first time it is seen and not on every request. Kept in access order,
+   * so once it is full the cookie used least recently makes room for a new one.
+   */
+  private final Map<String, VerifiedCookie> verifiedCookies = new LinkedHashMap<String, VerifiedCookie>(
+      16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, VerifiedCookie> eldest) {
+      return size() > MAX_VERIFIED_COOKIES;
+    }
+  };
+
+  /**
+   * A Mac for each thread, as getting a Mac instance goes through the provider lookup.
+   */
+  private final ThreadLocal<KeyedMac> macs = new ThreadLocal<KeyedMac>();
+
   /**
    * @throws NoSuchAlgorithmException
    * @throws InvalidKeyException
@@ -304,11 +370,22 @@ public class TokenStore {
   }
 
   /**
-   * Maintain a circular buffer to tokens, and return the current one.
+   * Maintain a circular buffer to tokens, and return the current one. The current token
+   * is read without locking, only replacing it is synchronized.
    *
    * @return the current token.
    */
-  synchronized SecureCookie getActiveToken() {
+  SecureCookie getActiveToken() {
+    ExpiringSecretKey[] ring = secretKeyRingBuffer;
+    int activeId = secretKeyId;
+    if (ring != null && System.currentTimeMillis() <= nextUpdate
+        && !hasExpired(ring[activeId])) {
+      return new SecureCookie(serverId, activeId);
+    }
+    return updateActiveToken();
+  }
+
+  private synchronized SecureCookie updateActiveToken() {
     if (secretKeyRingBuffer == null) {
       loadLocalSecretKeys();
     }
@@ -329,7 +406,9 @@ public class TokenStore {
       if (nextToken == secretKeyRingBuffer.length) {
         nextToken = 0;
       }
-      secretKeyRingBuffer[nextToken] = expiringSecretKey;
+      ExpiringSecretKey[] ring = secretKeyRingBuffer.clone();
+      ring[nextToken] = expiringSecretKey;
+      secretKeyRingBuffer = ring;
       LOG.debug("Added SecretKey {} at {} ", encodeField(expiringSecretKey.getSecretKey().getEncoded()), nextToken);
       if ( debugCookies ) {
         dumpSecretKeyRingBuffer(secretKeyRingBuffer);
@@ -501,9 +580,10 @@ public class TokenStore {
    */
   private ExpiringSecretKey getSecretKey(String serverId, int keyNumber) {
     LOG.debug("Looking key {} in {} ", serverId, keyNumber);
-    if ( secretKeyRingBuffer[keyNumber] != null ) {
-      if ( serverId.equals(secretKeyRingBuffer[keyNumber].getServerId())) {
-        return secretKeyRingBuffer[keyNumber];
+    ExpiringSecretKey localKey = secretKeyRingBuffer[keyNumber];
+    if ( localKey != null ) {
+      if ( serverId.equals(localKey.getServerId())) {
+        return localKey;
       }
     }
     String cacheKey = getCacheKey(serverId, keyNumber);
@@ -527,6 +607,44 @@ public class TokenStore {
   public SecureCookie getSecureCookie() {
     return new SecureCookie();
   }
+
+  /**
+   * @return the Mac of this thread, initialised with the secret key.
+   * @throws NoSuchAlgorithmException
+   * @throws InvalidKeyException
+   */
+  private Mac getMac(SecretKey secretKey) throws NoSuchAlgorithmException,
+      InvalidKeyException {
+    KeyedMac keyedMac = macs.get();
+    if (keyedMac == null) {
+      keyedMac = new KeyedMac(Mac.getInstance(HMAC_SHA1));
+      macs.set(keyedMac);
+    }
+    // doFinal leaves the Mac ready for the same key, so it only needs initialising when
+    // the key changes.
+    if (keyedMac.secretKey != secretKey) {
+      keyedMac.secretKey = null;
+      keyedMac.mac.init(secretKey);
+      keyedMac.secretKey = secretKey;
+    }
+    return keyedMac.mac;
+  }
+
+  /**
+   * Remember a verified cookie until it expires, or until it is the least recently used
+   * of too many.
+   */
+  private void addVerifiedCookie(String value, VerifiedCookie verified) {
+    synchronized (verifiedCookies) {
+      verifiedCookies.put(value, verified);
+    }
+  }
+
+  int getVerifiedCookieCount() {
+    synchronized (verifiedCookies) {
+      return verifiedCookies.size();
+    }
+  }
   
   
   /**
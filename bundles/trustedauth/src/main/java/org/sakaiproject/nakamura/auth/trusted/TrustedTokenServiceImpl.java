@@ -583,6 +583,10 @@ public final class TrustedTokenServiceImpl implements TrustedTokenService {
 
   }
 
+  TokenStore getTokenStore() {
+    return tokenStore;
+  }
+
 
   /**
    * Create credentials from a validated userId.
@@ -179,6 +179,79 @@ public class TrustedTokenServiceTest {
     verify();
   }
 
+  @Test
+  public void testVerifiedCookies() throws InterruptedException {
+    ComponentContext context = configureForCookie();
+    replay();
+    trustedTokenService.activate(context);
+
+    final String cookie = trustedTokenService.encodeCookie("ieb", TrustedTokenTypes.AUTHENTICATED_TRUST);
+    long start = System.nanoTime();
+    String[] token = trustedTokenService.decodeCookie(cookie);
+    LOGGER.info("First Decode Time " + (System.nanoTime() - start) + "ns");
+    Assert.assertArrayEquals(new String[]{"ieb", TrustedTokenTypes.AUTHENTICATED_TRUST}, token);
+
+    // once verified, a changed cookie must still be rejected
+    Assert.assertNull(trustedTokenService.decodeCookie(cookie + "invalid"));
+    String[] parts = StringUtils.split(cookie, "@");
+    parts[2] = parts[2].substring(1);
+    Assert.assertNull(trustedTokenService.decodeCookie(StringUtils.join(parts, "@")));
+
+    final List<String[]> decoded = new ArrayList<String[]>();
+    Thread[] threads = new Thread[4];
+    start = System.currentTimeMillis();
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        public void run() {
+          String[] t = null;
+          for (int j = 0; j < 1000; j++) {
+            t = trustedTokenService.decodeCookie(cookie);
+            trustedTokenService.encodeCookie("ieb", TrustedTokenTypes.AUTHENTICATED_TRUST);
+          }
+          synchronized (decoded) {
+            decoded.add(t);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    LOGGER.info("Concurrent Encode and Decode Time " + (System.currentTimeMillis() - start));
+    Assert.assertEquals(threads.length, decoded.size());
+    for (String[] t : decoded) {
+      Assert.assertArrayEquals(new String[]{"ieb", TrustedTokenTypes.AUTHENTICATED_TRUST}, t);
+    }
+    verify();
+  }
+
+  @Test
+  public void testVerifiedCookiesAreBounded() {
+    ComponentContext context = configureForCookie();
+    replay();
+    trustedTokenService.activate(context);
+
+    String first = trustedTokenService.encodeCookie("user0", TrustedTokenTypes.AUTHENTICATED_TRUST);
+    trustedTokenService.decodeCookie(first);
+    long start = System.currentTimeMillis();
+    for (int i = 1; i <= TokenStore.MAX_VERIFIED_COOKIES + 100; i++) {
+      String cookie = trustedTokenService.encodeCookie("user" + i, TrustedTokenTypes.AUTHENTICATED_TRUST);
+      Assert.assertArrayEquals(new String[]{"user" + i, TrustedTokenTypes.AUTHENTICATED_TRUST},
+          trustedTokenService.decodeCookie(cookie));
+      if (i % 1000 == 0) {
+        // keep the first cookie in use
+        trustedTokenService.decodeCookie(first);
+      }
+    }
+    LOGGER.info("Decode Time with a full cache " + (System.currentTimeMillis() - start));
+    Assert.assertEquals(TokenStore.MAX_VERIFIED_COOKIES, trustedTokenService.getTokenStore()
+        .getVerifiedCookieCount());
+    Assert.assertArrayEquals(new String[]{"user0", TrustedTokenTypes.AUTHENTICATED_TRUST},
+        trustedTokenService.decodeCookie(first));
+    verify();
+  }
+
   @Test
   public void testCookieEncodingSafety() {
     ComponentContext context = configureForCookie();
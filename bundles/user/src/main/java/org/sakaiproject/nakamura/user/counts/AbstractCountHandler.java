@@ -21,11 +21,6 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Reference;
 import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.lite.Repository;
-import org.sakaiproject.nakamura.api.lite.Session;
-import org.sakaiproject.nakamura.api.lite.StorageClientException;
-import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
-import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
-import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 
 
 @Component(componentAbstract=true)
@@ -34,41 +29,23 @@ public abstract class AbstractCountHandler {
   @Reference
   protected Repository repository;
 
-  protected void inc(String id, String key) throws AccessDeniedException,
-      StorageClientException {
-    Session session = null;
-    try {
-      session = repository.loginAdministrative();
-      AuthorizableManager authorizableManager = session.getAuthorizableManager();
-      Authorizable au = authorizableManager.findAuthorizable(id);
-      if (au != null) {
-        au.setProperty(key, toInt(au.getProperty(key)) + 1);
-        authorizableManager.updateAuthorizable(au);
-      }
-    } finally {
-      if (session != null) {
-        session.logout();
-      }
-    }
+  @Reference
+  protected CountAccumulator countAccumulator;
+
+  /**
+   * Increment a count on an authorizable. The change is written behind, together with
+   * any other changes to the same authorizable.
+   */
+  protected void inc(String id, String key) {
+    countAccumulator.add(id, key, 1);
   }
 
-  protected void dec(String id, String key) throws AccessDeniedException,
-      StorageClientException {
-    Session session = null;
-    try {
-      session = repository.loginAdministrative();
-      AuthorizableManager authorizableManager = session.getAuthorizableManager();
-      Authorizable au = authorizableManager.findAuthorizable(id);
-      if (au != null) {
-        int v = toInt(au.getProperty(key)) - 1;
-        au.setProperty(key, v < 0 ? 0 : v);
-        authorizableManager.updateAuthorizable(au);
-      }
-    } finally {
-      if (session != null) {
-        session.logout();
-      }
-    }
+  /**
+   * Decrement a count on an authorizable, it will not go below 0. The change is written
+   * behind, together with any other changes to the same authorizable.
+   */
+  protected void dec(String id, String key) {
+    countAccumulator.add(id, key, -1);
   }
 
   protected String dumpEvent(Event event) {
@@ -81,11 +58,4 @@ public abstract class AbstractCountHandler {
     }
     return sb.toString();
   }
-
-  private int toInt(Object property) {
-    if (property instanceof Integer) {
-      return (Integer) property;
-    }
-    return 0;
-  }
 }
@@ -23,14 +23,11 @@ import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventHandler;
-import org.sakaiproject.nakamura.api.lite.ClientPoolException;
-import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StoreListener;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
-import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,44 +46,22 @@ public class ConnectionsCountChangeListener extends AbstractCountHandler impleme
   private static final Logger LOG = LoggerFactory.getLogger(ConnectionsCountChangeListener.class);
   private ConnectionsCounter connectionsCounter = new ConnectionsCounter();
 
+  private final CountAccumulator.Recount contactsRecount = new CountAccumulator.Recount() {
+    public Integer count(Authorizable au, AuthorizableManager authorizableManager)
+        throws StorageClientException, AccessDeniedException {
+      return connectionsCounter.count(au, authorizableManager);
+    }
+  };
+
   public void handleEvent(Event event) {
-    Session adminSession = null;
-    try {
-      adminSession = repository.loginAdministrative();
-      AuthorizableManager authorizableManager = adminSession.getAuthorizableManager();
-      if (LOG.isDebugEnabled()) LOG.debug("handleEvent() " + dumpEvent(event));
-      String path = (String) event.getProperty(StoreListener.PATH_PROPERTY);
-      if ( path.startsWith("g-contacts-")) {
-        // contacts are
-        String userId = path.substring("g-contacts-".length());
-        Authorizable user = authorizableManager.findAuthorizable(userId);
-        Authorizable contactsGroup = authorizableManager.findAuthorizable(path);
-        if ( user != null && contactsGroup instanceof Group ) {
-          int n = connectionsCounter.count(user, authorizableManager);
-          Integer v = (Integer) user.getProperty(UserConstants.CONTACTS_PROP);
-          if ( v == null || n != v.intValue()) {
-            user.setProperty(UserConstants.CONTACTS_PROP, n);
-            authorizableManager.updateAuthorizable(user);
-          }
-        } else {
-          LOG.error("Failed to locate User ID from {} ",path);
-        }
-      }
-    } catch (StorageClientException e) {
-      LOG.debug("Failed to update count ", e);
-    } catch (AccessDeniedException e) {
-      LOG.debug("Failed to update count ", e);
-    } finally {
-      if ( adminSession != null ) {
-        try {
-          adminSession.logout();
-        } catch (ClientPoolException e) {
-          LOG.warn(e.getMessage(),e);
-        }
-      }
+    if (LOG.isDebugEnabled()) LOG.debug("handleEvent() " + dumpEvent(event));
+    String path = (String) event.getProperty(StoreListener.PATH_PROPERTY);
+    if (path != null && path.startsWith("g-contacts-")) {
+      // the contacts are the members of the contacts group of the user, reading the
+      // group is as cheap as working out a delta from the event. Many events for a user
+      // between two flushes cost a single recount.
+      String userId = path.substring("g-contacts-".length());
+      countAccumulator.recount(userId, UserConstants.CONTACTS_PROP, contactsRecount);
     }
   }
-  
-  
-  
 }
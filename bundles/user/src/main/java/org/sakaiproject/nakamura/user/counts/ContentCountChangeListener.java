@@ -26,6 +26,7 @@ import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -114,6 +115,14 @@ public class ContentCountChangeListener extends AbstractCountHandler implements
       LOG.debug("Failed to update count ", e);
     } catch (AccessDeniedException e) {
       LOG.debug("Failed to update count ", e);
+    } finally {
+      if (adminSession != null) {
+        try {
+          adminSession.logout();
+        } catch (ClientPoolException e) {
+          LOG.warn(e.getMessage(), e);
+        }
+      }
     }
   }
 }
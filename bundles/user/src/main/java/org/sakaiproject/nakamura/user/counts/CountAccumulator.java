@@ -0,0 +1,353 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user.counts;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.sling.commons.scheduler.Scheduler;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Collects increments and decrements of the counts held on authorizables and writes them
+ * behind, in batches. Many changes to the same authorizable between two flushes become a
+ * single read and a single write of that authorizable, and because the flush is the only
+ * writer of deltas on this server no change is lost to two handlers updating the same
+ * authorizable at once.
+ * <p>
+ * Counts that can't follow from a single event (members through pseudo groups, indirect
+ * memberships) are recounted instead; a recount is also done at the next flush, once
+ * however many events asked for it.
+ */
+@Component(metatype = true, immediate = true)
+@Service(value = CountAccumulator.class)
+public class CountAccumulator {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CountAccumulator.class);
+
+  private static final int STRIPES = 16;
+
+  protected static final String JOB_NAME = "flushCountsJob";
+
+  @Property(longValue = 2, label = "Flush Interval Seconds",
+      description = "How often the accumulated count changes are written to the authorizables")
+  protected static final String PROP_FLUSH_INTERVAL_SECONDS = "counts.flushinterval";
+
+  @Reference
+  protected Repository repository;
+
+  @Reference
+  protected Scheduler scheduler;
+
+  /**
+   * Works a count out again from the authorizable that holds it.
+   */
+  public interface Recount {
+    /**
+     * @return the count, or null to leave the property as it is.
+     */
+    Integer count(Authorizable authorizable, AuthorizableManager authorizableManager)
+        throws StorageClientException, AccessDeniedException;
+  }
+
+  /**
+   * The deltas added to one count since the last flush. Besides their sum it keeps the
+   * lowest the sum went, which is what is needed to apply them as if each one had been
+   * written (and kept from going below 0) on its own.
+   */
+  static final class Delta {
+    private int sum;
+    private int min;
+
+    synchronized void add(int delta) {
+      sum += delta;
+      min = Math.min(min, sum);
+    }
+
+    /**
+     * Add deltas that came before these.
+     */
+    synchronized void addBefore(Delta before) {
+      min = Math.min(before.min, before.sum + min);
+      sum += before.sum;
+    }
+
+    /**
+     * @return the count after applying the deltas to value one by one, never below 0.
+     */
+    synchronized int apply(int value) {
+      return Math.max(value + sum, sum - min);
+    }
+
+    synchronized boolean isEmpty() {
+      return sum == 0 && min == 0;
+    }
+  }
+
+  /**
+   * The pending deltas, by authorizable id then by property.
+   */
+  private final ConcurrentMap<String, ConcurrentMap<String, Delta>> pending = new ConcurrentHashMap<String, ConcurrentMap<String, Delta>>();
+
+  /**
+   * The pending recounts, by authorizable id then by property.
+   */
+  private final ConcurrentMap<String, ConcurrentMap<String, Recount>> recounts = new ConcurrentHashMap<String, ConcurrentMap<String, Recount>>();
+
+  /**
+   * Adding a delta takes the read side of the stripe of its authorizable, so adds never
+   * wait for each other; taking the deltas of an authorizable for a flush takes the
+   * write side so no add can land in a map that has already been taken.
+   */
+  private final ReadWriteLock[] stripes = new ReadWriteLock[STRIPES];
+
+  public CountAccumulator() {
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new ReentrantReadWriteLock();
+    }
+  }
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    long interval = OsgiUtil.toLong(properties.get(PROP_FLUSH_INTERVAL_SECONDS), 2);
+    try {
+      scheduler.addPeriodicJob(JOB_NAME, new Runnable() {
+        public void run() {
+          flush();
+        }
+      }, new HashMap<String, Serializable>(), interval, false);
+    } catch (Exception e) {
+      LOGGER.error("Failed to add periodic job for CountAccumulator", e);
+    }
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    scheduler.removeJob(JOB_NAME);
+    flush();
+  }
+
+  /**
+   * Record a change to a count, it will be written with the next flush.
+   *
+   * @param id
+   *          the authorizable holding the count.
+   * @param key
+   *          the property holding the count.
+   * @param delta
+   *          the amount to add, negative to subtract.
+   */
+  public void add(String id, String key, int delta) {
+    ReadWriteLock stripe = stripe(id);
+    stripe.readLock().lock();
+    try {
+      ConcurrentMap<String, Delta> deltas = getMap(pending, id);
+      Delta counter = deltas.get(key);
+      if (counter == null) {
+        Delta created = new Delta();
+        counter = deltas.putIfAbsent(key, created);
+        if (counter == null) {
+          counter = created;
+        }
+      }
+      counter.add(delta);
+    } finally {
+      stripe.readLock().unlock();
+    }
+  }
+
+  /**
+   * Work a count out again at the next flush. A recount replaces any deltas to the same
+   * count that are pending.
+   *
+   * @param id
+   *          the authorizable holding the count.
+   * @param key
+   *          the property holding the count.
+   * @param recount
+   *          works out the count.
+   */
+  public void recount(String id, String key, Recount recount) {
+    ReadWriteLock stripe = stripe(id);
+    stripe.readLock().lock();
+    try {
+      getMap(recounts, id).put(key, recount);
+    } finally {
+      stripe.readLock().unlock();
+    }
+  }
+
+  private <V> ConcurrentMap<String, V> getMap(
+      ConcurrentMap<String, ConcurrentMap<String, V>> maps, String id) {
+    ConcurrentMap<String, V> map = maps.get(id);
+    if (map == null) {
+      ConcurrentMap<String, V> created = new ConcurrentHashMap<String, V>();
+      map = maps.putIfAbsent(id, created);
+      if (map == null) {
+        map = created;
+      }
+    }
+    return map;
+  }
+
+  /**
+   * @return the number of authorizables with changes waiting to be written.
+   */
+  public int getPendingCount() {
+    Set<String> ids = new HashSet<String>(pending.keySet());
+    ids.addAll(recounts.keySet());
+    return ids.size();
+  }
+
+  /**
+   * Write all the pending changes, one update per authorizable. Counts never go below 0.
+   */
+  protected synchronized void flush() {
+    if (pending.isEmpty() && recounts.isEmpty()) {
+      return;
+    }
+    Session session = null;
+    try {
+      session = repository.loginAdministrative();
+      AuthorizableManager authorizableManager = session.getAuthorizableManager();
+      int written = 0;
+      Set<String> ids = new HashSet<String>(pending.keySet());
+      ids.addAll(recounts.keySet());
+      for (String id : ids) {
+        Map<String, Delta> deltas;
+        Map<String, Recount> idRecounts;
+        ReadWriteLock stripe = stripe(id);
+        stripe.writeLock().lock();
+        try {
+          deltas = pending.remove(id);
+          idRecounts = recounts.remove(id);
+        } finally {
+          stripe.writeLock().unlock();
+        }
+        try {
+          Authorizable au = authorizableManager.findAuthorizable(id);
+          if (au == null) {
+            continue;
+          }
+          boolean changed = false;
+          if (idRecounts != null) {
+            for (Entry<String, Recount> e : idRecounts.entrySet()) {
+              Integer v = e.getValue().count(au, authorizableManager);
+              if (v != null && !v.equals(au.getProperty(e.getKey()))) {
+                au.setProperty(e.getKey(), v);
+                changed = true;
+              }
+            }
+          }
+          if (deltas != null) {
+            for (Entry<String, Delta> e : deltas.entrySet()) {
+              if (!e.getValue().isEmpty()
+                  && (idRecounts == null || !idRecounts.containsKey(e.getKey()))) {
+                au.setProperty(e.getKey(), e.getValue().apply(toInt(au.getProperty(e.getKey()))));
+                changed = true;
+              }
+            }
+          }
+          if (changed) {
+            authorizableManager.updateAuthorizable(au);
+            written++;
+          }
+        } catch (StorageClientException e) {
+          LOGGER.warn("Failed to write counts of {}, will retry: {}", id, e.getMessage());
+          restore(id, deltas, idRecounts);
+        } catch (AccessDeniedException e) {
+          LOGGER.warn("Failed to write counts of {}: {}", id, e.getMessage());
+        }
+      }
+      LOGGER.debug("Wrote counts of {} authorizables", written);
+    } catch (StorageClientException e) {
+      LOGGER.warn("Failed to write counts, will retry: {}", e.getMessage());
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Failed to write counts, will retry: {}", e.getMessage());
+    } finally {
+      if (session != null) {
+        try {
+          session.logout();
+        } catch (ClientPoolException e) {
+          LOGGER.warn(e.getMessage(), e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Put back changes that could not be written, ahead of any added since they were taken.
+   */
+  private void restore(String id, Map<String, Delta> deltas, Map<String, Recount> idRecounts) {
+    ReadWriteLock stripe = stripe(id);
+    stripe.writeLock().lock();
+    try {
+      if (deltas != null) {
+        ConcurrentMap<String, Delta> later = getMap(pending, id);
+        for (Entry<String, Delta> e : deltas.entrySet()) {
+          Delta delta = later.putIfAbsent(e.getKey(), e.getValue());
+          if (delta != null) {
+            delta.addBefore(e.getValue());
+          }
+        }
+      }
+      if (idRecounts != null) {
+        ConcurrentMap<String, Recount> later = getMap(recounts, id);
+        for (Entry<String, Recount> e : idRecounts.entrySet()) {
+          later.putIfAbsent(e.getKey(), e.getValue());
+        }
+      }
+    } finally {
+      stripe.writeLock().unlock();
+    }
+  }
+
+  private ReadWriteLock stripe(String id) {
+    return stripes[(id.hashCode() & 0x7fffffff) % STRIPES];
+  }
+
+  private int toInt(Object property) {
+    if (property instanceof Integer) {
+      return (Integer) property;
+    }
+    return 0;
+  }
+}
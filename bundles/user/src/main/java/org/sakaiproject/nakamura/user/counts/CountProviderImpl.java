@@ -58,7 +58,11 @@ public class CountProviderImpl implements CountProvider {
   @Reference
   protected Repository repository;
 
-  @Property(intValue = 30)
+  /**
+   * Counts are kept current by the change listeners, a full recount of an authorizable
+   * only reconciles drift so it can be rare.
+   */
+  @Property(intValue = 1440)
   public static final String UPDATE_INTERVAL_MINUTES = "sakai.countProvider.updateIntervalMinutes";
 
   private long updateIntervalMinutes;
@@ -144,7 +148,7 @@ public class CountProviderImpl implements CountProvider {
   @Modified
   public void modify(Map<String, Object> properties) throws StorageClientException,
       AccessDeniedException {
-    updateIntervalMinutes = OsgiUtil.toLong(properties.get(UPDATE_INTERVAL_MINUTES), 30) * 60 * 1000;
+    updateIntervalMinutes = OsgiUtil.toLong(properties.get(UPDATE_INTERVAL_MINUTES), 1440);
   }
 
 
@@ -58,7 +58,7 @@ public class CountsRefreshScheduler {
   @Reference
   protected CountProvider countProvider;
   
-  @Property(longValue = 300, label = "Refresh Interval Seconds",
+  @Property(longValue = 3600, label = "Refresh Interval Seconds",
           description = "How often to wake up and update a batch of authorizables")
   protected static final String PROP_POLL_INTERVAL_SECONDS = "refreshcounts.pollinterval";
   
@@ -23,15 +23,10 @@ import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventHandler;
-import org.sakaiproject.nakamura.api.lite.ClientPoolException;
-import org.sakaiproject.nakamura.api.lite.Session;
-import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StoreListener;
-import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
-import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -52,47 +47,32 @@ public class GroupMembersCountChangeListener extends AbstractCountHandler implem
 
   private GroupMembersCounter groupMembersCounter = new GroupMembersCounter();
 
-  public void handleEvent(Event event) {
-    Session adminSession = null;
-    try {
-      adminSession = repository.loginAdministrative();
-      AuthorizableManager authorizableManager = adminSession.getAuthorizableManager();
-      LOGGER.debug("handleEvent() " + dumpEvent(event));
-      // The members of a group are defined in the membership, so simply use that value, no need to increment or decrement.
-      String groupId = (String) event.getProperty(StoreListener.PATH_PROPERTY);
-      if ( !CountProvider.IGNORE_AUTHIDS.contains(groupId) ) {
-        Authorizable au = authorizableManager.findAuthorizable(groupId);
-        if ( au instanceof Group ) {
-          if (au.hasProperty(PSEUDOGROUP_PARENT)) {
-            String parent = String.valueOf(au.getProperty(PSEUDOGROUP_PARENT));
-            au = authorizableManager.findAuthorizable(parent);
-          }
-          if (au != null) {
-            int n = groupMembersCounter.count((Group) au, authorizableManager);
-            Integer v = (Integer) au.getProperty(UserConstants.GROUP_MEMBERS_PROP);
-            if ( v == null || n != v.intValue()) {
-              au.setProperty(UserConstants.GROUP_MEMBERS_PROP, n);
-              authorizableManager.updateAuthorizable(au);
-            }
-          }
-        }
-        else if (au instanceof User) {
-          String userId = (String) event.getProperty(StoreListener.PATH_PROPERTY);
-          if (LOGGER.isDebugEnabled()) LOGGER.debug("got User event for " + userId);
-        }
+  /**
+   * Works out the members of a group again, or of its parent for a pseudo group.
+   */
+  private final CountAccumulator.Recount membersRecount = new CountAccumulator.Recount() {
+    public Integer count(Authorizable au, AuthorizableManager authorizableManager) {
+      if (!(au instanceof Group)) {
+        return null;
       }
-    } catch (StorageClientException e) {
-      LOGGER.debug("Failed to update count ", e);
-    } catch (AccessDeniedException e) {
-      LOGGER.debug("Failed to update count ", e);
-    } finally {
-      if ( adminSession != null ) {
-        try {
-          adminSession.logout();
-        } catch (ClientPoolException e) {
-          LOGGER.warn(e.getMessage(),e);
-        }
+      if (au.hasProperty(PSEUDOGROUP_PARENT)) {
+        // the members of a pseudo group are counted in its parent
+        countAccumulator.recount(String.valueOf(au.getProperty(PSEUDOGROUP_PARENT)),
+            UserConstants.GROUP_MEMBERS_PROP, this);
+        return null;
       }
+      return groupMembersCounter.count((Group) au, authorizableManager);
+    }
+  };
+
+  public void handleEvent(Event event) {
+    if (LOGGER.isDebugEnabled()) LOGGER.debug("handleEvent() " + dumpEvent(event));
+    // The members of a group are defined in the membership, and members in pseudo groups
+    // count towards the parent, so the count is worked out again rather than changed by
+    // a delta. Many events for a group between two flushes cost a single recount.
+    String groupId = (String) event.getProperty(StoreListener.PATH_PROPERTY);
+    if (groupId != null && !CountProvider.IGNORE_AUTHIDS.contains(groupId)) {
+      countAccumulator.recount(groupId, UserConstants.GROUP_MEMBERS_PROP, membersRecount);
     }
   }
 }
\ No newline at end of file
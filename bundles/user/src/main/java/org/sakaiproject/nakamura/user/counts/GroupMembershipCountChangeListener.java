@@ -23,8 +23,6 @@ import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventHandler;
-import org.sakaiproject.nakamura.api.lite.ClientPoolException;
-import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StoreListener;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
@@ -48,37 +46,21 @@ public class GroupMembershipCountChangeListener extends AbstractCountHandler imp
   private static final Logger LOG = LoggerFactory.getLogger(GroupMembershipCountChangeListener.class);
   private GroupMembershipCounter groupMembershipCounter = new GroupMembershipCounter();
 
+  private final CountAccumulator.Recount membershipsRecount = new CountAccumulator.Recount() {
+    public Integer count(Authorizable au, AuthorizableManager authorizableManager)
+        throws StorageClientException, AccessDeniedException {
+      return groupMembershipCounter.count(au, authorizableManager);
+    }
+  };
+
   public void handleEvent(Event event) {
-    Session session = null;
-    try {
-      LOG.debug("handleEvent() " + dumpEvent(event));
-      // The members of a group are defined in the membership, so simply use that value, no need to increment or decrement.
-      String groupId = (String) event.getProperty(StoreListener.PATH_PROPERTY);
-      if ( !CountProvider.IGNORE_AUTHIDS.contains(groupId)) {
-        session = repository.loginAdministrative();
-        AuthorizableManager authMgr = session.getAuthorizableManager();
-        Authorizable au = authMgr.findAuthorizable(groupId);
-        if ( au != null ) {
-          int n = groupMembershipCounter.count(au, authMgr);
-          Integer v = (Integer) au.getProperty(UserConstants.GROUP_MEMBERSHIPS_PROP);
-          if ( v == null || n != v.intValue()) {
-            au.setProperty(UserConstants.GROUP_MEMBERSHIPS_PROP, n);
-            authMgr.updateAuthorizable(au);
-          }
-        }
-      }
-    } catch (StorageClientException e) {
-      LOG.error("Failed to update count ", e);
-    } catch (AccessDeniedException e) {
-      LOG.error("Failed to update count ", e);
-    } finally {
-      if (session != null) {
-        try {
-          session.logout();
-        } catch (ClientPoolException e) {
-          LOG.warn(e.getMessage());
-        }
-      }
+    if (LOG.isDebugEnabled()) LOG.debug("handleEvent() " + dumpEvent(event));
+    // The memberships include indirect ones and leave some groups out, so the count is
+    // worked out again rather than changed by a delta. Many events for an authorizable
+    // between two flushes cost a single recount.
+    String id = (String) event.getProperty(StoreListener.PATH_PROPERTY);
+    if (id != null && !CountProvider.IGNORE_AUTHIDS.contains(id)) {
+      countAccumulator.recount(id, UserConstants.GROUP_MEMBERSHIPS_PROP, membershipsRecount);
     }
   }
 }
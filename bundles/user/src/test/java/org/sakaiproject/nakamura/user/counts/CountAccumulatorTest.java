@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user.counts;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.user.lite.resource.RepositoryHelper;
+
+public class CountAccumulatorTest {
+
+  private Repository repository;
+  private CountAccumulator accumulator;
+
+  @Before
+  public void before() throws Exception {
+    repository = RepositoryHelper.getRepository(new String[] { "ieb" },
+        new String[] { "g-course101" });
+    accumulator = new CountAccumulator();
+    accumulator.repository = repository;
+  }
+
+  @Test
+  public void testDeltasAreCoalesced() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      accumulator.add("ieb", UserConstants.CONTENT_ITEMS_PROP, 1);
+    }
+    accumulator.add("ieb", UserConstants.CONTENT_ITEMS_PROP, -2);
+    accumulator.add("ieb", UserConstants.CONTACTS_PROP, -1);
+    accumulator.add("g-course101", UserConstants.CONTENT_ITEMS_PROP, 1);
+    Assert.assertEquals(2, accumulator.getPendingCount());
+
+    accumulator.flush();
+    Assert.assertEquals(0, accumulator.getPendingCount());
+    Assert.assertEquals(3, getCount("ieb", UserConstants.CONTENT_ITEMS_PROP));
+    // counts never go below 0
+    Assert.assertEquals(0, getCount("ieb", UserConstants.CONTACTS_PROP));
+    Assert.assertEquals(1, getCount("g-course101", UserConstants.CONTENT_ITEMS_PROP));
+
+    accumulator.add("ieb", UserConstants.CONTENT_ITEMS_PROP, -1);
+    accumulator.flush();
+    Assert.assertEquals(2, getCount("ieb", UserConstants.CONTENT_ITEMS_PROP));
+  }
+
+  @Test
+  public void testDeltasAreClampedOneByOne() throws Exception {
+    // written one at a time the -1 is held at 0 and the +1 then makes it 1
+    accumulator.add("ieb", UserConstants.CONTACTS_PROP, -1);
+    accumulator.add("ieb", UserConstants.CONTACTS_PROP, 1);
+    accumulator.flush();
+    Assert.assertEquals(1, getCount("ieb", UserConstants.CONTACTS_PROP));
+
+    accumulator.add("ieb", UserConstants.CONTACTS_PROP, 2);
+    accumulator.add("ieb", UserConstants.CONTACTS_PROP, -5);
+    accumulator.add("ieb", UserConstants.CONTACTS_PROP, 1);
+    accumulator.flush();
+    Assert.assertEquals(1, getCount("ieb", UserConstants.CONTACTS_PROP));
+  }
+
+  @Test
+  public void testRecountsAreCoalesced() throws Exception {
+    final int[] calls = new int[1];
+    CountAccumulator.Recount recount = new CountAccumulator.Recount() {
+      public Integer count(Authorizable authorizable,
+          AuthorizableManager authorizableManager) {
+        calls[0]++;
+        return 7;
+      }
+    };
+    accumulator.add("ieb", UserConstants.GROUP_MEMBERSHIPS_PROP, 3);
+    for (int i = 0; i < 5; i++) {
+      accumulator.recount("ieb", UserConstants.GROUP_MEMBERSHIPS_PROP, recount);
+    }
+    accumulator.add("ieb", UserConstants.CONTENT_ITEMS_PROP, 1);
+    Assert.assertEquals(1, accumulator.getPendingCount());
+
+    accumulator.flush();
+    Assert.assertEquals(1, calls[0]);
+    // the recount replaces the pending delta to the same count
+    Assert.assertEquals(7, getCount("ieb", UserConstants.GROUP_MEMBERSHIPS_PROP));
+    Assert.assertEquals(1, getCount("ieb", UserConstants.CONTENT_ITEMS_PROP));
+
+    accumulator.flush();
+    Assert.assertEquals(1, calls[0]);
+  }
+
+  @Test
+  public void testConcurrentDeltasAreNotLost() throws Exception {
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+        public void run() {
+          for (int i = 0; i < 1000; i++) {
+            accumulator.add("ieb", UserConstants.CONTENT_ITEMS_PROP, 1);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (int i = 0; i < 10; i++) {
+      accumulator.flush();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    accumulator.flush();
+    Assert.assertEquals(4000, getCount("ieb", UserConstants.CONTENT_ITEMS_PROP));
+  }
+
+  private int getCount(String id, String key) throws Exception {
+    Session session = repository.loginAdministrative();
+    try {
+      Authorizable au = session.getAuthorizableManager().findAuthorizable(id);
+      Object v = au.getProperty(key);
+      return v == null ? 0 : (Integer) v;
+    } finally {
+      session.logout();
+    }
+  }
+}